@@ -0,0 +1,163 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Send queue of one thread on the non-blocking server channel. The caller
+ * takes a buffer from a pool of direct buffers, encodes a packet into it,
+ * commits it to the queue once it is complete, and flushes the queue once
+ * it has encoded everything that is due, so the packets go out back to
+ * back without allocating or copying. If the socket buffer is full, the
+ * rest of the queue stays for the next flush. Not thread safe, every
+ * sending thread keeps its own queue.
+ */
+public class BatchSender {
+  private DatagramChannel channel;
+  private ByteBuffer[] buffers;
+  private SocketAddress[] targets;
+  // queued packets are [head, head + count) modulo the pool size
+  private int head = 0;
+  private int count = 0;
+  // the head was flipped by a flush that stalled on it
+  private boolean headFlipped = false;
+
+  // statistics, reset by resetStats()
+  private long packetsSent = 0;
+  private long flushes = 0;
+  private long stalls = 0;
+  private long errors = 0;
+  private int maxDepth = 0;
+
+  /**
+   * @param channel non-blocking channel to send on
+   * @param capacity packets that can be queued
+   */
+  public BatchSender(DatagramChannel channel, int capacity) {
+    this.channel = channel;
+    buffers = new ByteBuffer[capacity];
+    targets = new SocketAddress[capacity];
+    for (int i = 0; i < capacity; i++) {
+      buffers[i] = ByteBuffer.allocateDirect(Config.BUFSIZE);
+    }
+  }
+
+  /**
+   * Take the buffer of the next packet, the caller writes the packet into
+   * it from position 0 and queues it with commit(). A buffer that is not
+   * committed is handed out again by the next call
+   * @return the buffer of the packet, or null if the queue is full
+   */
+  public ByteBuffer next() {
+    if (count == buffers.length) {
+      return null;
+    }
+    ByteBuffer buffer = buffers[(head + count) % buffers.length];
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Queue the packet written into the buffer from the last next(), so a
+   * packet whose encoding failed is never sent
+   * @param target the destination
+   */
+  public void commit(SocketAddress target) {
+    targets[(head + count) % buffers.length] = target;
+    count++;
+    maxDepth = Math.max(maxDepth, count);
+  }
+
+  /**
+   * Send the queued packets in order until the socket buffer is full. A
+   * packet that fails to send is dropped and counted
+   * @return true if the queue is empty
+   */
+  public boolean flush() {
+    if (count == 0) {
+      return true;
+    }
+    flushes++;
+    while (count > 0) {
+      ByteBuffer buffer = buffers[head];
+      if (!headFlipped) {
+        buffer.flip();
+        headFlipped = true;
+      }
+      try {
+        if (channel.send(buffer, targets[head]) == 0 &&
+            buffer.remaining() > 0) {
+          stalls++;
+          return false;
+        }
+        packetsSent++;
+      } catch (IOException e) {
+        errors++;
+        Config.logmsg("Fail to send UDP packet to " + targets[head] + ": " +
+                      e.getMessage());
+      }
+      targets[head] = null;
+      headFlipped = false;
+      head = (head + 1) % buffers.length;
+      count--;
+    }
+    return true;
+  }
+
+  /**
+   * @return packets waiting for the next flush
+   */
+  public int getDepth() {
+    return count;
+  }
+
+  /**
+   * @return the deepest the queue has been since the last resetStats()
+   */
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  public long getPacketsSent() {
+    return packetsSent;
+  }
+
+  public long getFlushes() {
+    return flushes;
+  }
+
+  /**
+   * @return flushes that stopped on a full socket buffer
+   */
+  public long getStalls() {
+    return stalls;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  public void resetStats() {
+    packetsSent = 0;
+    flushes = 0;
+    stalls = 0;
+    errors = 0;
+    maxDepth = count;
+  }
+}
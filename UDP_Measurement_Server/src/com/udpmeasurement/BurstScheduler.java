@@ -0,0 +1,302 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives all downlink bursts from a few threads. Every thread keeps its
+ * bursts in a queue ordered by the deadline of their next packet, parks
+ * until shortly before the earliest deadline and spins the rest of the
+ * way, so a packet goes out within microseconds of its schedule instead
+ * of the millisecond error of Thread.sleep. New bursts are handed to the
+ * threads round robin through a lock-free queue.
+ * On every wake-up a thread encodes the packets of all bursts that are due
+ * into its BatchSender and flushes them together on the shared
+ * non-blocking channel; packets the socket buffer has no room for wait in
+ * the queue and the thread spins until they are out.
+ * A request of a few bytes makes the server send up to MAX_BURSTCOUNT
+ * packets, so every burst has to fit in a global budget of downlink
+ * packets, a token bucket shared by all receivers, before it is taken.
+ * The share of one source address is limited here as well, so that a
+ * source whose ports land on different shards still gets only one share.
+ */
+public class BurstScheduler {
+  private Worker[] workers;
+  private AtomicInteger nextWorker = new AtomicInteger();
+
+  // downlink budget and the share of every source, guarded by budgetLock
+  private final Object budgetLock = new Object();
+  private double budgetPerNano;
+  private int budgetBurst;
+  private double budget;
+  // time of the last refill, on the clock of the callers
+  private long budgetTime;
+  private boolean budgetStarted = false;
+  private SourceRateLimiter sourceLimiter;
+
+  /**
+   * Create and start the scheduler threads with the default downlink budget
+   * @param channel the non-blocking server channel the bursts are sent on
+   * @param threads number of threads sending bursts
+   */
+  public BurstScheduler(DatagramChannel channel, int threads) {
+    this(channel, threads, Config.DOWNLINK_BUDGET_PPS,
+         Config.DOWNLINK_BUDGET_BURST);
+  }
+
+  /**
+   * Create and start the scheduler threads
+   * @param channel the non-blocking server channel the bursts are sent on
+   * @param threads number of threads sending bursts
+   * @param budgetPps downlink packets per second of all bursts together
+   * @param budgetBurst downlink packets that may be granted at once
+   */
+  public BurstScheduler(DatagramChannel channel, int threads, int budgetPps,
+                        int budgetBurst) {
+    this.budgetPerNano = budgetPps / 1e9;
+    this.budgetBurst = budgetBurst;
+    this.budget = budgetBurst;
+    this.sourceLimiter = new SourceRateLimiter(Config.SOURCE_DOWNLINK_PPS,
+        Config.SOURCE_DOWNLINK_BURST, Config.SOURCE_TABLE_CAPACITY);
+    workers = new Worker[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker(i, new BatchSender(channel,
+                                                 Config.SEND_QUEUE_SIZE));
+      Thread thread = new Thread(workers[i], "BurstScheduler-" + i);
+      // the receivers keep the server alive
+      thread.setDaemon(true);
+      workers[i].thread = thread;
+      thread.start();
+    }
+  }
+
+  /**
+   * Take packets from the downlink budget for a new burst
+   * @param packets packets of the burst
+   * @return false if the budget is used up, the burst must not be sent
+   */
+  public boolean reserve(int packets) {
+    synchronized (budgetLock) {
+      if (!refillBudget(packets, System.nanoTime())) {
+        return false;
+      }
+      budget -= packets;
+      return true;
+    }
+  }
+
+  /**
+   * Take packets from the downlink budget and from the share of the source
+   * that requested the burst. The global budget is checked first, and
+   * nothing is taken from either unless both have room. Both refill on the
+   * receive time, so a replay sees the same budget at any speed
+   * @param addr source address of the request
+   * @param bytes size of the request
+   * @param packets packets of the burst
+   * @param nowNanos receive time of the request
+   * @return false if the budget or the source's share is used up, the
+   *         burst must not be sent
+   */
+  public boolean reserve(InetAddress addr, int bytes, int packets,
+                         long nowNanos) {
+    synchronized (budgetLock) {
+      if (!refillBudget(packets, nowNanos)
+          || !sourceLimiter.allow(addr, bytes, packets, nowNanos)) {
+        return false;
+      }
+      budget -= packets;
+      return true;
+    }
+  }
+
+  // bring the budget up to date, true if it holds packets. The first call
+  // starts the clock, and a time older than the last one adds nothing, as
+  // the shards may call slightly out of order
+  private boolean refillBudget(int packets, long now) {
+    if (!budgetStarted) {
+      budgetTime = now;
+      budgetStarted = true;
+    }
+    if (now > budgetTime) {
+      budget = Math.min(budgetBurst,
+                        budget + (now - budgetTime) * budgetPerNano);
+      budgetTime = now;
+    }
+    return budget >= packets;
+  }
+
+  /**
+   * Start sending a burst, its first packet is due at its start time
+   * @param burst the burst to be sent
+   */
+  public void submit(DownlinkBurst burst) {
+    int i = (nextWorker.getAndIncrement() & Integer.MAX_VALUE)
+        % workers.length;
+    workers[i].incoming.offer(burst);
+    LockSupport.unpark(workers[i].thread);
+  }
+
+  /**
+   * Stop the scheduler threads and wait for them to exit, the bursts that
+   * are still running are dropped. The channel stays open
+   */
+  public void close() {
+    for (Worker worker : workers) {
+      worker.running = false;
+      LockSupport.unpark(worker.thread);
+    }
+    for (Worker worker : workers) {
+      try {
+        worker.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private static class Worker implements Runnable {
+    private int id;
+    private BatchSender sender;
+    Thread thread;
+    volatile boolean running = true;
+    ConcurrentLinkedQueue<DownlinkBurst> incoming =
+        new ConcurrentLinkedQueue<DownlinkBurst>();
+    private PriorityQueue<DownlinkBurst> bursts =
+        new PriorityQueue<DownlinkBurst>(64, new Comparator<DownlinkBurst>() {
+          @Override
+          public int compare(DownlinkBurst a, DownlinkBurst b) {
+            long diff = a.nextSendNanos - b.nextSendNanos;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+          }
+        });
+
+    // statistics of the current interval, only written by this thread
+    private long burstsDone = 0;
+    private long packetsSent = 0;
+    private long totalLateNanos = 0;
+    private long maxLateNanos = 0;
+    private long lastStatsTime = System.currentTimeMillis();
+
+    Worker(int id, BatchSender sender) {
+      this.id = id;
+      this.sender = sender;
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        DownlinkBurst burst;
+        while ((burst = incoming.poll()) != null) {
+          bursts.add(burst);
+        }
+        reportStats();
+
+        if (!sender.flush()) {
+          // the socket buffer is full, retry soon whatever is due
+          Thread.yield();
+          continue;
+        }
+
+        burst = bursts.peek();
+        if (burst == null) {
+          LockSupport.parkNanos(this, Config.STATS_INTERVAL * 1000000L);
+          continue;
+        }
+        long now = System.nanoTime();
+        long wait = burst.nextSendNanos - now;
+        if (wait > Config.BURST_SPIN_NANOS) {
+          LockSupport.parkNanos(this, wait - Config.BURST_SPIN_NANOS);
+          continue;
+        }
+        if (wait > 0) {
+          // close to the deadline, parking could overshoot it. Yield so the
+          // spin does not starve the other threads on a small machine
+          Thread.yield();
+          continue;
+        }
+
+        // encode every packet that is due, then send them as one batch
+        while ((burst = bursts.peek()) != null &&
+               burst.nextSendNanos - now <= 0) {
+          ByteBuffer buffer = sender.next();
+          if (buffer == null) {
+            break;
+          }
+          bursts.poll();
+          try {
+            // only a packet that was encoded completely is queued
+            long late = burst.encodeNext(now, buffer);
+            sender.commit(burst.getTarget());
+            packetsSent++;
+            totalLateNanos += late;
+            maxLateNanos = Math.max(maxLateNanos, late);
+          } catch (MeasurementError e) {
+            Config.logmsg("Error processing message: " + e.getMessage());
+            continue;
+          }
+          if (!burst.isDone()) {
+            bursts.add(burst);
+          }
+          else {
+            burstsDone++;
+            if (Log.isDebug()) {
+              Log.debug("Downlink burst to " + burst.getClientId() +
+                  " sent " + burst.getPacketsSent() + " packets, late mean " +
+                  burst.getMeanLateNanos() / 1000 + "us max " +
+                  burst.getMaxLateNanos() / 1000 + "us");
+            }
+          }
+        }
+        sender.flush();
+      }
+    }
+
+    /**
+     * Log how late the packets of the last STATS_INTERVAL were sent if
+     * this thread has sent any
+     */
+    private void reportStats() {
+      long now = System.currentTimeMillis();
+      if (now - lastStatsTime < Config.STATS_INTERVAL) {
+        return;
+      }
+      lastStatsTime = now;
+      if (packetsSent == 0) {
+        return;
+      }
+      Config.logmsg("Burst scheduler " + id + ": bursts " + burstsDone +
+                    " packets " + packetsSent + " late mean " +
+                    totalLateNanos / packetsSent / 1000 + "us max " +
+                    maxLateNanos / 1000 + "us active " + bursts.size() +
+                    " flushes " + sender.getFlushes() + " queue max " +
+                    sender.getMaxDepth() + " stalls " + sender.getStalls() +
+                    " send errors " + sender.getErrors());
+      sender.resetStats();
+      burstsDone = 0;
+      packetsSent = 0;
+      totalLateNanos = 0;
+      maxLateNanos = 0;
+    }
+  }
+}
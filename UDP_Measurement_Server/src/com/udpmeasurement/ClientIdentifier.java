@@ -15,6 +15,7 @@
 package com.udpmeasurement;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
@@ -24,12 +25,39 @@ import java.net.InetAddress;
 public class ClientIdentifier {
   InetAddress addr;
   int port;
+  // socket address of the client, made on first use
+  private InetSocketAddress target = null;
 
   public ClientIdentifier (InetAddress addr, int port) {
     this.addr = addr;
     this.port = port;
   }
 
+  /**
+   * Point a reused lookup key at another client. Only for keys that are
+   * never stored in a map
+   * @param addr the client address
+   * @param port the client port
+   */
+  void set(InetAddress addr, int port) {
+    if ( this.port != port || !addr.equals(this.addr) ) {
+      target = null;
+    }
+    this.addr = addr;
+    this.port = port;
+  }
+
+  /**
+   * @return the socket address of the client, the same object on every
+   *         call until the key is pointed at another client
+   */
+  public InetSocketAddress getTarget() {
+    if ( target == null ) {
+      target = new InetSocketAddress(addr, port);
+    }
+    return target;
+  }
+
   @Override
   public String toString() {
     return addr.toString() + "(" + port + ")";
@@ -64,19 +92,11 @@ public class ClientIdentifier {
   /* (non-Javadoc)
    * @see java.lang.Object#hashCode()
    * Override hashcode to ensure its proper behavior as the key
-   * of a hash map
+   * of a hash map. InetAddress hashes all bytes of an IPv6 address, and
+   * neither copies the address
    */
   @Override
   public int hashCode() {
-    // pack the address
-    byte[] rawByte = addr.getAddress();
-    int rawAddr = 0;
-    for ( int i = 0; i < rawByte.length; i++ ) {
-      rawAddr <<= 8;
-      rawAddr |= ((int)rawByte[i] & 0xff);  // convert to unsigned number
-    }
-    rawAddr += port;
-    
-    return rawAddr;
+    return addr.hashCode() * 31 + port;
   }
 }
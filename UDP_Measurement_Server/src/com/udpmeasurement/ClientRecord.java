@@ -14,79 +14,250 @@
  */
 package com.udpmeasurement;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
  * ClientRecord save the information and status of a UDP burst
  * , both uplink and downlink
+ * The uplink statistics are updated as every packet arrives, so answering
+ * a burst is O(1) whatever its size: a Fenwick tree over the packet
+ * numbers counts the inversions, Welford's method keeps the mean and
+ * variance of the delays, a bitmap spots duplicates and the holes in it
+ * are counted as loss runs. Everything lives in primitive arrays that are
+ * allocated at the first packet and only grow for bursts of unknown size.
  */
-public class ClientRecord {
-  public int seq;
+public class ClientRecord extends TimedRecord {
   public int burstCount;
   public int packetReceived;
-  public int packetSize;
-  public long lastTimestamp;
   public int udpInterval;
-  public ArrayList<Integer> receivedNumberList;
-  public ArrayList<Long> offsetedDelayList;  
+  // keep the delay of every packet for a v2 response, set before the first
+  // packet
+  public boolean keepDelays = false;
+
+  // packet numbers [0, capacity) are tracked
+  private int capacity = 0;
+  // bit i is set once packet i arrived
+  private long[] received;
+  // Fenwick tree counting the received packet numbers
+  private int[] tree;
+  // delay of each received packet if keepDelays is set
+  private long[] delays;
+  private int uniqueCount = 0;
+  private int duplicateCount = 0;
+  private int invalidCount = 0;
+  private long inversionCount = 0;
+  // highest packet number received so far, -1 for none
+  private int maxReceived = -1;
+  // runs of missing packet numbers below maxReceived
+  private int lossRuns = 0;
+  // Welford's running mean and sum of squared deviations of the delays
+  private int delayCount = 0;
+  private double delayMean = 0;
+  private double delaySquares = 0;
 
   public ClientRecord() {
-    receivedNumberList = new ArrayList<Integer>();
-    offsetedDelayList = new ArrayList<Long>();
   }
 
   /**
-   * Leverage the combine process during merge-sort to calculate inversion
-   * number
-   * @param packetNumList the entire array to be processed
-   * @param start start point of the first array
-   * @param mid the next to the end point of the first array 
-   *            and the start point of the second one
-   * @param end the next to the end point of the second array
-   * @return the inversion number between two arrays
+   * Forget all packets but keep the arrays, so a streaming session can
+   * reuse the record for its next window
    */
-  private int combine(Integer[] packetNumList, int start, int mid, int end) {
-    int inversionCounter = 0;
-    int[] tmp = new int[end - start + 1];
-    int pf = start;
-    int ps = mid + 1;
-    int pt = 0;// the number of sorted elements
-    while (pf <= mid && ps <= end)
-      if (packetNumList[pf] > packetNumList[ps]) {
-        for (int t = pf; t <= mid; t++)
-          inversionCounter++;
-        tmp[pt++] = packetNumList[ps++];
-      } else {
-        tmp[pt++] = packetNumList[pf++];
-      }
-    while (pf <= mid)
-      tmp[pt++] = packetNumList[pf++];
-    while (ps <= end)
-      tmp[pt++] = packetNumList[ps++];
-    for (int i = start; i <= end; i++)
-      packetNumList[i] = tmp[i - start];
-    return inversionCounter;
+  public void reset() {
+    if ( received != null ) {
+      Arrays.fill(received, 0L);
+      Arrays.fill(tree, 0);
+    }
+    uniqueCount = 0;
+    duplicateCount = 0;
+    invalidCount = 0;
+    inversionCount = 0;
+    maxReceived = -1;
+    lossRuns = 0;
+    delayCount = 0;
+    delayMean = 0;
+    delaySquares = 0;
   }
 
   /**
-   * Recursively accumulate the inversion number  
-   * @param packetNumList the entire array to be processed
-   * @param start start point of the current array
-   * @param end the next to end point of the current array
-   * @return the inversion number of current array
+   * Record the arrival of an uplink packet. Packet numbers must lie in
+   * [0, burstCount) once burstCount is known
+   * @param packetNum the number of the packet in the burst
+   * @param offsetedDelay receive time minus send time, offseted by the
+   *                      clock difference between client and server
+   * @return false if the packet is a duplicate or its number is invalid,
+   *         such packets are not counted
    */
-  private int merge(Integer[] packetNumList, int start, int end) {
-    if (start < end) {
-      int mid = (start + end) / 2;
-      int invLeft = merge(packetNumList, start, mid);
-      int invRight = merge(packetNumList, mid + 1, end);
-      int invThis = combine(packetNumList, start, mid, end);
-      return invLeft + invRight + invThis;
+  public boolean addPacket(int packetNum, long offsetedDelay) {
+    if ( packetNum < 0 || (burstCount > 0 && packetNum >= burstCount) ) {
+      invalidCount++;
+      return false;
+    }
+    if ( packetNum >= capacity ) {
+      grow(packetNum + 1);
+    }
+    if ( (received[packetNum >>> 6] & (1L << packetNum)) != 0 ) {
+      duplicateCount++;
+      return false;
+    }
+
+    // packets with a higher number that arrived earlier
+    inversionCount += uniqueCount - countUpTo(packetNum);
+    for ( int i = packetNum + 1; i <= capacity; i += i & -i ) {
+      tree[i]++;
+    }
+    received[packetNum >>> 6] |= 1L << packetNum;
+    uniqueCount++;
+    if ( delays != null ) {
+      delays[packetNum] = offsetedDelay;
+    }
+
+    if ( packetNum > maxReceived ) {
+      if ( packetNum > maxReceived + 1 ) {
+        // a new hole opens behind this packet
+        lossRuns++;
+      }
+      maxReceived = packetNum;
     }
     else {
-      return 0;
+      // the packet fills one slot of a hole, which may close or split it
+      boolean leftReceived = packetNum == 0 || isReceived(packetNum - 1);
+      boolean rightReceived = isReceived(packetNum + 1);
+      if ( leftReceived && rightReceived ) {
+        lossRuns--;
+      }
+      else if ( !leftReceived && !rightReceived ) {
+        lossRuns++;
+      }
+    }
+
+    delayCount++;
+    double diff = offsetedDelay - delayMean;
+    delayMean += diff / delayCount;
+    delaySquares += diff * (offsetedDelay - delayMean);
+    return true;
+  }
+
+  /**
+   * @return number of received packets whose number is at most packetNum
+   */
+  private int countUpTo(int packetNum) {
+    int count = 0;
+    for ( int i = packetNum + 1; i > 0; i -= i & -i ) {
+      count += tree[i];
+    }
+    return count;
+  }
+
+  public boolean isReceived(int packetNum) {
+    return packetNum < capacity &&
+        (received[packetNum >>> 6] & (1L << packetNum)) != 0;
+  }
+
+  /**
+   * Make room for packet numbers below minCapacity, the first call sizes
+   * the arrays for the whole burst
+   * @param minCapacity the number of packet numbers to track
+   */
+  private void grow(int minCapacity) {
+    int newCapacity = Math.max(minCapacity, burstCount);
+    if ( capacity > 0 ) {
+      newCapacity = Math.max(newCapacity, capacity * 2);
+    }
+    long[] newReceived = new long[(newCapacity + 63) >>> 6];
+    if ( received != null ) {
+      System.arraycopy(received, 0, newReceived, 0, received.length);
+    }
+    // rebuild the tree from the bitmap in linear time
+    int[] newTree = new int[newCapacity + 1];
+    for ( int i = 1; i <= newCapacity; i++ ) {
+      if ( (newReceived[(i - 1) >>> 6] & (1L << (i - 1))) != 0 ) {
+        newTree[i]++;
+      }
+      int parent = i + (i & -i);
+      if ( parent <= newCapacity ) {
+        newTree[parent] += newTree[i];
+      }
+    }
+    if ( keepDelays ) {
+      long[] newDelays = new long[newCapacity];
+      if ( delays != null ) {
+        System.arraycopy(delays, 0, newDelays, 0, delays.length);
+      }
+      delays = newDelays;
+    }
+    received = newReceived;
+    tree = newTree;
+    capacity = newCapacity;
+  }
+
+  /**
+   * Write the delay of every received packet below count: the count, a
+   * bitmap of the received packets, least significant bit first, then the
+   * delays in microseconds in packet order, each as the zigzag varint of
+   * its difference to the previous one
+   * @param buffer the response being built
+   * @param count packet numbers to cover, the caller makes sure the worst
+   *              case of 10 bytes per packet fits
+   */
+  public void writeDelays(ByteBuffer buffer, int count) {
+    count = Math.min(count, capacity);
+    buffer.putInt(count);
+    for ( int i = 0; i < count; i += 8 ) {
+      int bits = 0;
+      for ( int j = i; j < Math.min(i + 8, count); j++ ) {
+        if ( isReceived(j) ) {
+          bits |= 1 << (j - i);
+        }
+      }
+      buffer.put((byte) bits);
+    }
+    long previous = 0;
+    for ( int i = 0; i < count; i++ ) {
+      if ( isReceived(i) ) {
+        long delay = delays == null ? 0 : delays[i] / 1000;
+        MeasurementPacket.putVarLong(buffer, delay - previous);
+        previous = delay;
+      }
+    }
+  }
+
+  /**
+   * @return number of distinct packets received
+   */
+  public int getPacketsReceived() {
+    return uniqueCount;
+  }
+
+  public int getDuplicates() {
+    return duplicateCount;
+  }
+
+  /**
+   * @return packets with a number outside of the burst
+   */
+  public int getInvalidPackets() {
+    return invalidCount;
+  }
+
+  /**
+   * @return packets missing so far, including those after the highest
+   *         received one if burstCount is known
+   */
+  public int getLostPackets() {
+    return Math.max(burstCount, maxReceived + 1) - uniqueCount;
+  }
+
+  /**
+   * @return number of runs of consecutive missing packets
+   */
+  public int getLossRuns() {
+    if ( burstCount > maxReceived + 1 ) {
+      // the tail of the burst is missing
+      return lossRuns + 1;
     }
+    return lossRuns;
   }
 
   /**
@@ -94,10 +265,7 @@ public class ClientRecord {
    * @return the inversion number of the current UDP burst
    */
   public int calculateInversionNumber() {
-    Integer[] base = new Integer[receivedNumberList.size()];
-    receivedNumberList.toArray(base);
-
-    return merge(base, 0, base.length - 1);
+    return (int) Math.min(inversionCount, Integer.MAX_VALUE);
   }
 
   /**
@@ -107,21 +275,8 @@ public class ClientRecord {
    * @return the jitter of UDP burst
    */
   public long calculateJitter() {
-    int size = offsetedDelayList.size();
-    if ( size > 1 ) {
-      double offsetedDelay_mean = 0;
-      for ( long offsetedDelay : offsetedDelayList ) {
-        offsetedDelay_mean += (double)offsetedDelay / size;
-      }
-
-      double jitter = 0;
-      for ( long offsetedDelay : offsetedDelayList ) {
-        jitter += ((double)offsetedDelay - offsetedDelay_mean)
-            * ((double)offsetedDelay - offsetedDelay_mean)  / (size - 1);
-      }
-      jitter = Math.sqrt(jitter);
-      
-      return (long)jitter;
+    if ( delayCount > 1 ) {
+      return (long) Math.sqrt(delaySquares / (delayCount - 1));
     }
     else {
       return 0;
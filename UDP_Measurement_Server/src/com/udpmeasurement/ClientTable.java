@@ -0,0 +1,281 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * Map from a client's address and port to its record, for one receiver
+ * thread, or to any other per-client state. The key is packed into two
+ * longs and an int: an IPv4 address is stored as its IPv4-mapped IPv6
+ * form, read from Inet4Address.hashCode() without copying it, and an IPv6
+ * address takes both longs. Reading an IPv6 address copies it, so the
+ * packed form of the last one is kept by identity; the channel hands out
+ * the same address object for a sender that keeps sending, and the records
+ * keep the object they were made with, so a lookup allocates nothing in
+ * either case. Entries live in preallocated parallel arrays
+ * and are found through an open addressing index with linear probing, at
+ * most half full, whose deletions shift the following slots back instead
+ * of leaving tombstones. The table holds at most capacity entries; when it
+ * is full, adding one evicts the least recently used, which the caller
+ * must finish.
+ */
+public class ClientTable<V> {
+  private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+  private int capacity;
+  private int size = 0;
+
+  // entries, addressed by id
+  private long[] keyHigh;
+  private long[] keyLow;
+  private int[] keyPort;
+  private Object[] values;
+  // LRU list through the used entries, head is the most recent; the free
+  // entries are chained through lruNext
+  private int[] lruPrev;
+  private int[] lruNext;
+  private int lruHead = -1;
+  private int lruTail = -1;
+  private int freeHead;
+
+  // open addressing index, id + 1 or 0 for empty
+  private int[] index;
+  private int mask;
+
+  // key of the last lookup, so callers do not pay for packing twice
+  private long probeHigh;
+  private long probeLow;
+  private int probePort;
+  // last IPv6 address packed and its key
+  private InetAddress packedAddr = null;
+  private long packedHigh;
+  private long packedLow;
+
+  /**
+   * @param capacity the most clients kept at once
+   */
+  public ClientTable(int capacity) {
+    this.capacity = capacity;
+    keyHigh = new long[capacity];
+    keyLow = new long[capacity];
+    keyPort = new int[capacity];
+    values = new Object[capacity];
+    lruPrev = new int[capacity];
+    lruNext = new int[capacity];
+    for (int i = 0; i < capacity; i++) {
+      lruNext[i] = i + 1 < capacity ? i + 1 : -1;
+    }
+    freeHead = 0;
+
+    int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+    index = new int[slots];
+    mask = slots - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Find the record of a client and mark it as the most recently used
+   * @return the record or null
+   */
+  @SuppressWarnings("unchecked")
+  public V get(InetAddress addr, int port) {
+    int id = find(addr, port);
+    if (id < 0) {
+      return null;
+    }
+    unlink(id);
+    linkFirst(id);
+    return (V) values[id];
+  }
+
+  public boolean containsKey(InetAddress addr, int port) {
+    return find(addr, port) >= 0;
+  }
+
+  /**
+   * Add or replace the record of a client
+   * @return the least recently used record if it had to be evicted to
+   *         make room, or null
+   */
+  @SuppressWarnings("unchecked")
+  public V put(InetAddress addr, int port, V record) {
+    int id = find(addr, port);
+    if (id >= 0) {
+      values[id] = record;
+      unlink(id);
+      linkFirst(id);
+      return null;
+    }
+
+    V evicted = null;
+    if (freeHead < 0) {
+      int victim = lruTail;
+      evicted = (V) values[victim];
+      removeEntry(victim);
+    }
+    id = freeHead;
+    freeHead = lruNext[id];
+    keyHigh[id] = probeHigh;
+    keyLow[id] = probeLow;
+    keyPort[id] = probePort;
+    values[id] = record;
+    linkFirst(id);
+    size++;
+
+    int slot = hash(probeHigh, probeLow, probePort) & mask;
+    while (index[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    index[slot] = id + 1;
+    return evicted;
+  }
+
+  /**
+   * Remove the record of a client
+   * @return the record or null
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(InetAddress addr, int port) {
+    int id = find(addr, port);
+    if (id < 0) {
+      return null;
+    }
+    V record = (V) values[id];
+    removeEntry(id);
+    return record;
+  }
+
+  /**
+   * Pack the key into the probe fields
+   */
+  private void pack(InetAddress addr, int port) {
+    if (addr instanceof Inet4Address) {
+      // hashCode is the address itself and does not copy it
+      probeHigh = 0;
+      probeLow = IPV4_MAPPED | (addr.hashCode() & 0xFFFFFFFFL);
+    } else {
+      if (addr != packedAddr) {
+        byte[] raw = addr.getAddress();
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+          high = (high << 8) | (raw[i] & 0xFF);
+          low = (low << 8) | (raw[i + 8] & 0xFF);
+        }
+        packedAddr = addr;
+        packedHigh = high;
+        packedLow = low;
+      }
+      probeHigh = packedHigh;
+      probeLow = packedLow;
+    }
+    probePort = port;
+  }
+
+  /**
+   * @return the id of the entry of the client or -1, leaves its key in the
+   *         probe fields
+   */
+  private int find(InetAddress addr, int port) {
+    pack(addr, port);
+    int slot = hash(probeHigh, probeLow, probePort) & mask;
+    int entry;
+    while ((entry = index[slot]) != 0) {
+      int id = entry - 1;
+      if (keyLow[id] == probeLow && keyPort[id] == probePort &&
+          keyHigh[id] == probeHigh) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Drop an entry from the index and the LRU list and free it
+   */
+  private void removeEntry(int id) {
+    int slot = hash(keyHigh[id], keyLow[id], keyPort[id]) & mask;
+    while (index[slot] != id + 1) {
+      slot = (slot + 1) & mask;
+    }
+    // shift back the following entries that probed past the hole
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (index[next] != 0) {
+      int other = index[next] - 1;
+      int home = hash(keyHigh[other], keyLow[other], keyPort[other]) & mask;
+      // move it if its home is not in (hole, next]
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        index[hole] = index[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    index[hole] = 0;
+
+    unlink(id);
+    values[id] = null;
+    lruNext[id] = freeHead;
+    freeHead = id;
+    size--;
+  }
+
+  private void linkFirst(int id) {
+    lruPrev[id] = -1;
+    lruNext[id] = lruHead;
+    if (lruHead >= 0) {
+      lruPrev[lruHead] = id;
+    }
+    lruHead = id;
+    if (lruTail < 0) {
+      lruTail = id;
+    }
+  }
+
+  private void unlink(int id) {
+    int prev = lruPrev[id];
+    int next = lruNext[id];
+    if (prev >= 0) {
+      lruNext[prev] = next;
+    } else {
+      lruHead = next;
+    }
+    if (next >= 0) {
+      lruPrev[next] = prev;
+    } else {
+      lruTail = prev;
+    }
+  }
+
+  private static int hash(long high, long low, int port) {
+    long h = (high * 0x9E3779B97F4A7C15L) ^ low ^ ((long) port << 48);
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+}
@@ -14,9 +14,6 @@
  */
 package com.udpmeasurement;
 
-import java.sql.Date;
-import java.text.SimpleDateFormat;
-
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
  * Provide the definition of constant and logging function
@@ -40,20 +37,129 @@ public class Config {
   public static final int DEFAULT_TIMEOUT = 3000;
   // Todo(Hongyi): Arbitrary value, need further discuss
   public static final int MAX_BURSTCOUNT = 100;
+  // Largest report window and longest session of a streaming test, in
+  // packets
+  public static final int MAX_STREAM_WINDOW = 1000;
+  public static final int MAX_STREAM_PACKETS = 1000000;
+  // Bytes a report adds after the header: loss runs, duplicates, arrival
+  // span and rate
+  public static final int STREAM_REPORT_EXTRA = 16;
+  // Packet trains: most packets per train, packets per test, largest
+  // packet and longest gap between trains in ms
+  public static final int MAX_TRAIN_LENGTH = 100;
+  public static final int MAX_TRAIN_PACKETS = 2 * MAX_BURSTCOUNT;
+  public static final int MAX_TRAIN_PACKETSIZE = 1400;
+  public static final int MAX_TRAIN_GAP = 1000;
+  // Bytes a train report adds after the header: capacity, available
+  // bandwidth, pairs used and trains used
+  public static final int TRAIN_REPORT_EXTRA = 16;
+  // Bytes a clock sync response adds after the header: receive and send
+  // time of the request
+  public static final int SYNC_RESPONSE_EXTRA = 16;
+  // Most bursts and streams a receiver tracks at once, beyond that the
+  // least recently active is answered early and forgotten
+  public static final int CLIENT_TABLE_CAPACITY = 65536;
+  public static final int STREAM_TABLE_CAPACITY = 1024;
+  public static final int TRAIN_TABLE_CAPACITY = 1024;
+  // Resolution of the burst timeout, also the longest the receiver blocks
+  public static final int TIMER_TICK = 50;
+  // One turn of the wheel covers DEFAULT_TIMEOUT with plenty of margin
+  public static final int TIMER_SLOTS = 256;
+  // Sharded mode: packets queued per shard and the socket's receive buffer
+  public static final int SHARD_RING_SIZE = 4096;
+  public static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+  // Threads sending downlink bursts, and how close to a deadline the
+  // scheduler stops parking and spins
+  public static final int BURST_THREADS = 2;
+  public static final long BURST_SPIN_NANOS = 200000;
+  // Packets a sending thread can queue between two flushes
+  public static final int SEND_QUEUE_SIZE = 256;
+  // Packets per second and burst accepted from one source address before
+  // the receiver parses anything, and the number of sources tracked
+  public static final int SOURCE_RATE_PPS = 2000;
+  public static final int SOURCE_BURST = 400;
+  public static final int SOURCE_TABLE_CAPACITY = 65536;
+  // Downlink packets per second and burst one source address may request,
+  // over all shards together
+  public static final int SOURCE_DOWNLINK_PPS = 2000;
+  public static final int SOURCE_DOWNLINK_BURST = 2 * MAX_BURSTCOUNT;
+  // Downlink packets per second and burst of all bursts together, caps the
+  // traffic requests can make the server send. A burst is charged in full
+  // when it is requested, so the burst allows 200 full bursts at once
+  public static final int DOWNLINK_BUDGET_PPS = 50000;
+  public static final int DOWNLINK_BUDGET_BURST = 200 * MAX_BURSTCOUNT;
+  // Echo service of the RRC probes: port, 0 (the default) disables it,
+  // bytes of every answer, and packets read before the batch is answered.
+  // It answers anyone, so it only runs when -echo_port asks for it
+  public static final int ECHO_PORT = 0;
+  public static final int ECHO_RESPONSE_SIZE = 0;
+  public static final int ECHO_BATCH = 64;
+  // Answers per second and burst allowed to one source address, and the
+  // number of sources tracked
+  public static final int ECHO_RATE_PPS = 200;
+  public static final int ECHO_BURST = 50;
+  public static final int ECHO_SOURCES = 65536;
+  // Session store: bytes of a segment, records per segment, records
+  // waiting for the writer and interval of its syncs to disk in ms
+  public static final int STORE_SEGMENT_SIZE = 64 * 1024 * 1024;
+  public static final int STORE_INDEX_ENTRIES = 1024 * 1024;
+  public static final int STORE_QUEUE_SIZE = 4096;
+  public static final int STORE_FORCE_INTERVAL = 1000;
+  // Largest payload of a stored record, and whether an uplink burst keeps
+  // the delay of every packet when the client asked for them
+  public static final int STORE_RECORD_SIZE = 4096;
+  public static final boolean STORE_SAMPLES = true;
+  // Kinds of stored records. An uplink burst holds version, seq, burst
+  // count, packet size, received, lost, loss runs, duplicates, invalid and
+  // inversions as ints, the jitter as a long, then the delays as in a v2
+  // response with a count of 0 if there are none. A downlink request holds
+  // version, seq and the type, burst count, packet number, packet size and
+  // interval of the request packet. A stream
+  // holds version, seq, packet size and windows reported as ints, expected,
+  // received and late packets as longs. An uplink train holds version,
+  // seq, train length, train count, packet size, arrivals, pairs and
+  // trains used as ints, capacity and available bandwidth in kbps as longs
+  public static final int STORE_UPLINK_BURST = 1;
+  public static final int STORE_DOWNLINK_REQUEST = 2;
+  public static final int STORE_STREAM = 3;
+  public static final int STORE_UPLINK_TRAIN = 4;
+  // Default bytes of the ring of a packet capture, in MB, and how long
+  // UDPReplay waits after the last packet for the timed out sessions
+  public static final int CAPTURE_SIZE_MB = 64;
+  public static final int REPLAY_DRAIN = 2 * DEFAULT_TIMEOUT;
+  // Interval of the per-receiver statistics in the log
+  public static final int STATS_INTERVAL = 10000;
 
   public static final int PKT_ERROR = 1;
   public static final int PKT_RESPONSE = 2;
   public static final int PKT_DATA = 3;
   public static final int PKT_REQUEST = 4;
+  // Streaming sessions: the client sends STREAM_DATA until it sends
+  // STREAM_STOP, the server answers with a STREAM_REPORT per window and a
+  // STREAM_END with the totals
+  public static final int PKT_STREAM_DATA = 5;
+  public static final int PKT_STREAM_REPORT = 6;
+  public static final int PKT_STREAM_STOP = 7;
+  public static final int PKT_STREAM_END = 8;
+  // Packet trains: the client sends TRAIN_DATA trains and gets a
+  // TRAIN_REPORT with the estimates, or sends a TRAIN_REQUEST and gets
+  // TRAIN_DATA trains. packetNum numbers the packets of the whole test,
+  // burstCount is the train length and udpInterval the number of trains
+  public static final int PKT_TRAIN_REQUEST = 9;
+  public static final int PKT_TRAIN_DATA = 10;
+  public static final int PKT_TRAIN_REPORT = 11;
+  // Clock sync, v2 only: the client sends its time in the timestamp, the
+  // response echoes it and adds the server's receive and send times, all
+  // in System.nanoTime() of their side
+  public static final int PKT_SYNC_REQUEST = 12;
+  public static final int PKT_SYNC_RESPONSE = 13;
 
   /**
-   * print a log message with the current time and extra information 
+   * print a log message with the current time and extra information,
+   * the printing is done asynchronously by Log
    * @param a extra information to be logged
    */
   public static void logmsg(String a) {
-    long timenow = System.currentTimeMillis();
-    Date date = new Date(timenow);
-    SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd kk:mm:ss");
-    System.out.println(df.format(date) + " " + a);
+    Log.info(a);
   }
 }
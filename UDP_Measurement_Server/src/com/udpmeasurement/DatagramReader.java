@@ -0,0 +1,92 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Reads the non-blocking server channel into a DatagramPacket, waiting on
+ * a Selector when nothing is queued, so the thread that owns the socket
+ * can keep using DatagramPacket while the senders share the channel
+ * without blocking. One reader per channel.
+ */
+public class DatagramReader {
+  private DatagramChannel channel;
+  private Selector selector;
+  // view of the data of the last packet read into
+  private ByteBuffer view = null;
+
+  /**
+   * @param channel non-blocking channel to read
+   * @throws IOException the selector could not be opened
+   */
+  public DatagramReader(DatagramChannel channel) throws IOException {
+    this.channel = channel;
+    selector = Selector.open();
+    channel.register(selector, SelectionKey.OP_READ);
+  }
+
+  /**
+   * Read the next packet into the buffer of a DatagramPacket
+   * @param packet gets the data, length, address and port
+   * @param timeout milliseconds to wait, 0 to wait until a packet arrives
+   * @return false if none arrived in time
+   * @throws IOException the channel failed or was closed
+   */
+  public boolean receive(DatagramPacket packet, long timeout)
+      throws IOException {
+    if (view == null || view.array() != packet.getData()) {
+      view = ByteBuffer.wrap(packet.getData());
+    }
+    ByteBuffer buffer = view;
+    buffer.clear();
+    buffer.position(packet.getOffset());
+    InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+    if (source == null) {
+      try {
+        selector.select(timeout);
+        selector.selectedKeys().clear();
+      } catch (ClosedSelectorException e) {
+        // closed by close() while the owner was waiting
+        throw new ClosedChannelException();
+      }
+      source = (InetSocketAddress) channel.receive(buffer);
+      if (source == null) {
+        return false;
+      }
+    }
+    packet.setAddress(source.getAddress());
+    packet.setPort(source.getPort());
+    packet.setLength(buffer.position() - packet.getOffset());
+    return true;
+  }
+
+  /**
+   * Release the selector, a thread waiting in receive() gets a
+   * ClosedChannelException
+   * @throws IOException the selector failed to close
+   */
+  public void close() throws IOException {
+    selector.close();
+  }
+}
@@ -0,0 +1,158 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * State of one downlink burst driven by the BurstScheduler. Packet i is
+ * due at start + i * udpInterval, so a late send does not push back the
+ * rest of the burst, and every send records how late it was against that
+ * schedule. The scheduler encodes the due packets of all its bursts into
+ * its BatchSender and sends them together.
+ * A v2 request gets v2 packets stamped with System.nanoTime().
+ * A packet-train test is a burst whose packets come in trains: all
+ * packets of train k are due at start + k * udpInterval, so they leave in
+ * one batch back to back, and they are padded to packetSize since their
+ * dispersion is what the client measures.
+ */
+public class DownlinkBurst {
+  private ClientIdentifier clientId;
+  private InetSocketAddress target;
+  private ClientRecord  clientRecord;
+  private MeasurementPacket packet;
+  // packets sharing a deadline, 1 for an ordinary burst
+  private int trainLength;
+  private static final byte[] PADDING = new byte[Config.BUFSIZE];
+
+  // schedule in System.nanoTime()
+  private long startNanos;
+  private long intervalNanos;
+  long nextSendNanos;
+  // lateness of the sends so far
+  private long totalLateNanos = 0;
+  private long maxLateNanos = 0;
+
+  /**
+   * Constructor
+   * @param clientId corresponding client identifier
+   * @param clientRecord the downlink request
+   * @param startNanos when the first packet is due
+   */
+  public DownlinkBurst(ClientIdentifier clientId, ClientRecord clientRecord,
+                       long startNanos) {
+    this(clientId, clientRecord, 1, startNanos);
+  }
+
+  /**
+   * Constructor of a packet-train test
+   * @param clientId corresponding client identifier
+   * @param clientRecord the request, burstCount is the number of packets of
+   *                     all trains and udpInterval the gap between trains
+   * @param trainLength packets per train
+   * @param startNanos when the first train is due
+   */
+  public DownlinkBurst(ClientIdentifier clientId, ClientRecord clientRecord,
+                       int trainLength, long startNanos) {
+    this.clientId = clientId;
+    this.trainLength = trainLength;
+    this.target = clientId.getTarget();
+    this.clientRecord = clientRecord;
+    this.startNanos = startNanos;
+    this.intervalNanos = clientRecord.udpInterval * 1000000L;
+    this.nextSendNanos = startNanos;
+    clientRecord.packetReceived = 0;
+
+    packet = new MeasurementPacket(clientId);
+    packet.version = clientRecord.version;
+    packet.seq = clientRecord.seq;
+    packet.packetSize = clientRecord.packetSize;
+    if ( trainLength > 1 ) {
+      packet.type = Config.PKT_TRAIN_DATA;
+      packet.burstCount = trainLength;
+      packet.udpInterval = clientRecord.burstCount / trainLength;
+    }
+    else {
+      packet.type = Config.PKT_DATA;
+      packet.burstCount = clientRecord.burstCount;
+    }
+  }
+
+  /**
+   * Encode the packet that is due and schedule the next one
+   * @param now current System.nanoTime()
+   * @param buffer queued by the scheduler, sent with the rest of the batch
+   * @return how late the packet is in nanoseconds
+   * @throws MeasurementError encoding failed
+   */
+  public long encodeNext(long now, ByteBuffer buffer)
+      throws MeasurementError {
+    packet.packetNum = clientRecord.packetReceived;
+    packet.timestamp = packet.version == 2 ?
+        System.nanoTime() : System.currentTimeMillis();
+    packet.encode(buffer);
+    if ( trainLength > 1 && buffer.position() < packet.packetSize ) {
+      buffer.put(PADDING, 0, packet.packetSize - buffer.position());
+    }
+
+    long late = Math.max(0, now - nextSendNanos);
+    totalLateNanos += late;
+    maxLateNanos = Math.max(maxLateNanos, late);
+    clientRecord.packetReceived++;
+    nextSendNanos = startNanos +
+        clientRecord.packetReceived / trainLength * intervalNanos;
+
+    if (Log.isDebug()) {
+      Log.debug("Queued packet to " + clientId.toString() + " type:" +
+          packet.type + " b:" +
+          packet.burstCount + " p:" + packet.packetNum + " i:" +
+          packet.intervalNum + " j:" + packet.timestamp + " s:" +
+          packet.packetSize + " late:" + late / 1000 + "us");
+    }
+    return late;
+  }
+
+  /**
+   * @return true if all burstCount packets have been sent
+   */
+  public boolean isDone() {
+    return clientRecord.packetReceived >= clientRecord.burstCount;
+  }
+
+  public ClientIdentifier getClientId() {
+    return clientId;
+  }
+
+  public InetSocketAddress getTarget() {
+    return target;
+  }
+
+  public int getPacketsSent() {
+    return clientRecord.packetReceived;
+  }
+
+  /**
+   * @return mean lateness of the sends so far in nanoseconds
+   */
+  public long getMeanLateNanos() {
+    int sent = clientRecord.packetReceived;
+    return sent == 0 ? 0 : totalLateNanos / sent;
+  }
+
+  public long getMaxLateNanos() {
+    return maxLateNanos;
+  }
+}
@@ -0,0 +1,192 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Echo service for the RRC inference probes of the client, which send a
+ * packet and time the answer. Every packet is answered with responseSize
+ * zero bytes, whatever its own size. The thread drains up to ECHO_BATCH
+ * packets from a non-blocking DatagramChannel, then answers the batch;
+ * if the socket buffer fills up, it waits for OP_WRITE before it reads
+ * again. Answers go through a SourceRateLimiter, so the service cannot be
+ * used to flood a third party.
+ */
+public class EchoServer implements Runnable {
+  private DatagramChannel channel;
+  private Selector selector;
+  private SelectionKey key;
+  private ByteBuffer receiveBuffer;
+  private ByteBuffer response;
+  private SourceRateLimiter limiter;
+
+  // sources of the current batch still to be answered
+  private SocketAddress[] pending;
+  private int pendingStart = 0;
+  private int pendingCount = 0;
+
+  // statistics, only written by this thread
+  private long packetsReceived = 0;
+  private long packetsSent = 0;
+  private long bytesReceived = 0;
+  private long lastStatsTime;
+
+  /**
+   * Bind the echo socket
+   * @param port UDP port, 0 for any free port
+   * @param responseSize bytes of every answer
+   * @param limiter caps the answers per source
+   * @throws MeasurementError socket failed
+   */
+  public EchoServer(int port, int responseSize, SourceRateLimiter limiter)
+      throws MeasurementError {
+    this.limiter = limiter;
+    receiveBuffer = ByteBuffer.allocateDirect(Config.BUFSIZE);
+    response = ByteBuffer.allocateDirect(responseSize);
+    pending = new SocketAddress[Config.ECHO_BATCH];
+    lastStatsTime = System.currentTimeMillis();
+    try {
+      channel = DatagramChannel.open();
+      channel.socket().setReceiveBufferSize(Config.SOCKET_BUFFER_SIZE);
+      channel.socket().bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      key = channel.register(selector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      throw new MeasurementError("Failed opening echo socket on port " +
+                                 port + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the port the service is bound to
+   */
+  public int getPort() {
+    return channel.socket().getLocalPort();
+  }
+
+  /**
+   * Stop the service, the thread returns
+   */
+  public void close() {
+    try {
+      selector.close();
+      channel.close();
+    } catch (IOException e) {
+      Config.logmsg("Error closing echo socket: " + e.getMessage());
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see java.lang.Runnable#run()
+   * Main echo iteration
+   */
+  @Override
+  public void run() {
+    Config.logmsg("Echo server runs on port " + getPort() + ", answers " +
+                  response.capacity() + " bytes");
+    while ( true ) {
+      try {
+        selector.select(Config.STATS_INTERVAL);
+        selector.selectedKeys().clear();
+        if ( flush() ) {
+          receiveBatch();
+          flush();
+        }
+        // read only once the last batch is answered
+        key.interestOps(pendingStart < pendingCount ?
+            SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (ClosedSelectorException e) {
+        return;
+      } catch (IOException e) {
+        if ( !channel.isOpen() ) {
+          return;
+        }
+        Config.logmsg("Error in echo server: " + e.getMessage());
+      }
+      reportStats();
+    }
+  }
+
+  /**
+   * Read up to ECHO_BATCH packets and queue the sources to be answered
+   * @throws IOException
+   */
+  private void receiveBatch() throws IOException {
+    long now = System.nanoTime();
+    pendingStart = 0;
+    pendingCount = 0;
+    while ( pendingCount < pending.length ) {
+      receiveBuffer.clear();
+      SocketAddress source = channel.receive(receiveBuffer);
+      if ( source == null ) {
+        break;
+      }
+      packetsReceived++;
+      bytesReceived += receiveBuffer.position();
+      if ( limiter.allow(((InetSocketAddress) source).getAddress(),
+                         receiveBuffer.position(), now) ) {
+        pending[pendingCount++] = source;
+      }
+    }
+  }
+
+  /**
+   * Answer the queued sources until the socket buffer is full
+   * @return true if all are answered
+   * @throws IOException
+   */
+  private boolean flush() throws IOException {
+    while ( pendingStart < pendingCount ) {
+      response.rewind();
+      if ( channel.send(response, pending[pendingStart]) == 0 &&
+           response.capacity() > 0 ) {
+        return false;
+      }
+      pending[pendingStart++] = null;
+      packetsSent++;
+    }
+    return true;
+  }
+
+  /**
+   * Log the counters every STATS_INTERVAL if there was traffic
+   */
+  private void reportStats() {
+    long now = System.currentTimeMillis();
+    if ( now - lastStatsTime < Config.STATS_INTERVAL ) {
+      return;
+    }
+    lastStatsTime = now;
+    if ( packetsReceived == 0 ) {
+      return;
+    }
+    Config.logmsg("Echo: received " + packetsReceived + " packets " +
+                  bytesReceived + " bytes, sent " + packetsSent +
+                  " rate limited " + limiter.getLimited() + " sources " +
+                  limiter.getSourceCount());
+  }
+}
@@ -14,15 +14,38 @@
  */
 package com.udpmeasurement;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
  * A helper structure for packing and unpacking network message
+ * The structure is a flyweight: the receiver and the burst senders keep one
+ * instance and decode or encode every packet through a reused ByteBuffer,
+ * so no stream or array is allocated per packet.
+ * Two versions of the header exist. v1 is 36 bytes with a millisecond
+ * timestamp. v2 starts with MAGIC_V2, carries flags and a System.nanoTime()
+ * timestamp, and is padded to 48 bytes:
+ *   int magic, int type, int flags, int seq, int burstCount, int packetNum,
+ *   int packetSize, int udpInterval, long timestamp, int intervalNum,
+ *   int reserved
+ * The server answers in the version of the packet it received.
  */
 public class MeasurementPacket {
+  // the header length in bytes, seven ints and one long
+  public static final int HEADER_SIZE = 36;
+  public static final int HEADER_SIZE_V2 = 48;
+  // first int of a v2 header, "UDP2", never a v1 packet type
+  public static final int MAGIC_V2 = 0x55445032;
+  // v2 flag of uplink data: answer with the delay of every packet
+  public static final int FLAG_DELAYS = 1;
+  // v2 flag of a response: the delays did not all fit
+  public static final int FLAG_TRUNCATED = 2;
+
   public ClientIdentifier clientId;
-  // the field in network message
+  // 1 or 2, the version of the header
+  public int version = 1;
+  public int flags;
+  // the field in network message, timestamp is in ns for v2
   public int type;
   public int burstCount;
   public int packetNum;
@@ -44,65 +67,159 @@ public class MeasurementPacket {
    * Unpack received message and fill the structure
    * @param cliId corresponding client identifier
    * @param rawdata network message
-   * @throws MeasurementError stream reader failed
+   * @throws MeasurementError the message is shorter than the header
    */
   public MeasurementPacket(ClientIdentifier cliId, byte[] rawdata)
       throws MeasurementError{
     this.clientId = cliId;
+    decode(ByteBuffer.wrap(rawdata));
+  }
 
-    ByteArrayInputStream byteIn = new ByteArrayInputStream(rawdata);
-    DataInputStream dataIn = new DataInputStream(byteIn);
-    
-    try {
-      type = dataIn.readInt();
-      burstCount = dataIn.readInt();
-      packetNum  = dataIn.readInt();
-      intervalNum = dataIn.readInt();
-      timestamp = dataIn.readLong();
-      packetSize = dataIn.readInt();
-      seq = dataIn.readInt();
-      udpInterval = dataIn.readInt();
-    } catch (IOException e) {
-      throw new MeasurementError("Fetch payload failed! " + e.getMessage());
+  /**
+   * Reset every field of the network message to zero
+   */
+  public void clear() {
+    version = 1;
+    flags = 0;
+    type = 0;
+    burstCount = 0;
+    packetNum = 0;
+    intervalNum = 0;
+    timestamp = 0;
+    packetSize = 0;
+    seq = 0;
+    udpInterval = 0;
+  }
+
+  /**
+   * Unpack the header starting at the position of the buffer and advance
+   * the position past it, the version is told by the first int
+   * @param buffer holds the received message between position and limit
+   * @throws MeasurementError the message is shorter than the header
+   */
+  public void decode(ByteBuffer buffer) throws MeasurementError {
+    if ( buffer.remaining() >= 4 &&
+         buffer.getInt(buffer.position()) == MAGIC_V2 ) {
+      decodeV2(buffer);
+      return;
     }
-    
-    try {
-      byteIn.close();
-    } catch (IOException e) {
-      throw new MeasurementError("Error closing inputstream!");
+    if ( buffer.remaining() < HEADER_SIZE ) {
+      throw new MeasurementError("Fetch payload failed! Message of " +
+          buffer.remaining() + " bytes is shorter than the header");
     }
+    version = 1;
+    flags = 0;
+    type = buffer.getInt();
+    burstCount = buffer.getInt();
+    packetNum  = buffer.getInt();
+    intervalNum = buffer.getInt();
+    timestamp = buffer.getLong();
+    packetSize = buffer.getInt();
+    seq = buffer.getInt();
+    udpInterval = buffer.getInt();
+  }
+
+  private void decodeV2(ByteBuffer buffer) throws MeasurementError {
+    if ( buffer.remaining() < HEADER_SIZE_V2 ) {
+      throw new MeasurementError("Fetch payload failed! Message of " +
+          buffer.remaining() + " bytes is shorter than the v2 header");
+    }
+    version = 2;
+    buffer.getInt();
+    type = buffer.getInt();
+    flags = buffer.getInt();
+    seq = buffer.getInt();
+    burstCount = buffer.getInt();
+    packetNum = buffer.getInt();
+    packetSize = buffer.getInt();
+    udpInterval = buffer.getInt();
+    timestamp = buffer.getLong();
+    intervalNum = buffer.getInt();
+    buffer.getInt();
+  }
+
+  /**
+   * @return the length of the header in the current version
+   */
+  public int getHeaderSize() {
+    return version == 2 ? HEADER_SIZE_V2 : HEADER_SIZE;
+  }
+
+  /**
+   * Pack the header in the current version at the position of the buffer
+   * and advance the position past it
+   * @param buffer needs getHeaderSize() bytes remaining
+   * @throws MeasurementError the buffer is too small
+   */
+  public void encode(ByteBuffer buffer) throws MeasurementError {
+    if ( buffer.remaining() < getHeaderSize() ) {
+      throw new MeasurementError("Create rawpacket failed! Only " +
+          buffer.remaining() + " bytes left for the header");
+    }
+    if ( version == 2 ) {
+      buffer.putInt(MAGIC_V2);
+      buffer.putInt(type);
+      buffer.putInt(flags);
+      buffer.putInt(seq);
+      buffer.putInt(burstCount);
+      buffer.putInt(packetNum);
+      buffer.putInt(packetSize);
+      buffer.putInt(udpInterval);
+      buffer.putLong(timestamp);
+      buffer.putInt(intervalNum);
+      buffer.putInt(0);
+      return;
+    }
+    buffer.putInt(type);
+    buffer.putInt(burstCount);
+    buffer.putInt(packetNum);
+    buffer.putInt(intervalNum);
+    buffer.putLong(timestamp);
+    buffer.putInt(packetSize);
+    buffer.putInt(seq);
+    buffer.putInt(udpInterval);
   }
   
+  /**
+   * Write a signed value as a zigzag varint, 1 byte for small magnitudes
+   * and at most 10
+   * @param buffer destination
+   * @param value the value to write
+   */
+  public static void putVarLong(ByteBuffer buffer, long value) {
+    long zigzag = (value << 1) ^ (value >> 63);
+    while ( (zigzag & ~0x7FL) != 0 ) {
+      buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+      zigzag >>>= 7;
+    }
+    buffer.put((byte) zigzag);
+  }
+
+  /**
+   * Read a value written by putVarLong
+   * @param buffer source
+   * @return the value
+   */
+  public static long getVarLong(ByteBuffer buffer) {
+    long zigzag = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      zigzag |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ( (b & 0x80) != 0 && shift < 64 );
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
   /**
    * Pack the structure to the network message
    * @return the network message in byte[]
-   * @throws MeasurementError stream writer failed
+   * @throws MeasurementError packing failed
    */
   public byte[] getByteArray() throws MeasurementError {
-
-    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-    DataOutputStream dataOut = new DataOutputStream(byteOut);
-    
-    try {
-      dataOut.writeInt(type);
-      dataOut.writeInt(burstCount);
-      dataOut.writeInt(packetNum);
-      dataOut.writeInt(intervalNum);
-      dataOut.writeLong(timestamp);
-      dataOut.writeInt(packetSize);
-      dataOut.writeInt(seq);
-      dataOut.writeInt(udpInterval);
-    } catch (IOException e) {
-      throw new MeasurementError("Create rawpacket failed! " + e.getMessage());
-    }
-    
-    byte[] rawPacket = byteOut.toByteArray();
-    
-    try {
-      byteOut.close();
-    } catch (IOException e) {
-      throw new MeasurementError("Error closing outputstream!");
-    }
+    byte[] rawPacket = new byte[getHeaderSize()];
+    encode(ByteBuffer.wrap(rawPacket));
     return rawPacket; 
   }
 
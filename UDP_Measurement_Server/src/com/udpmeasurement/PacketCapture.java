@@ -0,0 +1,280 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Capture of the raw datagrams a server receives, for UDPReplay. The file
+ * is a ring of fixed size mapped into memory: a header of
+ *   int magic, int version, int size, int head, int tail, int count,
+ *   long startNanos, long startMillis, long captured
+ * then size bytes of records back to back, each
+ *   int length, long receive nanos, byte[16] address, int port, data
+ * A record that does not fit before the end of the ring starts over at its
+ * beginning, leaving a WRAP marker if there is room for it, and the oldest
+ * records are overwritten as the head goes round. tail is the oldest
+ * record still in the ring and count the number of records from it.
+ * Only the thread that reads the socket writes, a record costs a copy into
+ * the mapping and the header is updated after every record, so a capture
+ * stays readable whenever the process dies.
+ */
+public class PacketCapture {
+  public static final int MAGIC = 0x55445043;
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+  // int length, long nanos, byte[16] address, int port
+  public static final int RECORD_HEADER = 32;
+  // length of the marker that sends the reader back to the beginning
+  private static final int WRAP = -1;
+
+  private MappedByteBuffer buffer;
+  // bytes of the record area
+  private int size;
+  // offsets in the record area
+  private int head = 0;
+  private int tail = 0;
+  private int count = 0;
+  private long captured = 0;
+
+  /**
+   * Start a new capture, an existing file is overwritten
+   * @param file the capture file
+   * @param size bytes of the ring, the file is HEADER_SIZE longer
+   * @throws MeasurementError the file could not be mapped
+   */
+  public PacketCapture(File file, int size) throws MeasurementError {
+    this.size = size;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(0);
+        raf.setLength(HEADER_SIZE + size);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                      HEADER_SIZE + size);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new MeasurementError("Failed opening capture " + file + ": " +
+                                 e.getMessage());
+    }
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(8, size);
+    buffer.putLong(24, System.nanoTime());
+    buffer.putLong(32, System.currentTimeMillis());
+    updateHeader();
+  }
+
+  /**
+   * Append a received datagram, overwriting the oldest ones if needed
+   * @param packet the datagram as received
+   * @param nanos System.nanoTime() when it was read
+   */
+  public void write(DatagramPacket packet, long nanos) {
+    int length = RECORD_HEADER + packet.getLength();
+    if ( length > size ) {
+      return;
+    }
+    if ( head + length > size ) {
+      evict(head, size);
+      if ( head + 4 <= size ) {
+        buffer.putInt(HEADER_SIZE + head, WRAP);
+      }
+      head = 0;
+    }
+    evict(head, head + length);
+    if ( count == 0 ) {
+      tail = head;
+    }
+    int at = HEADER_SIZE + head;
+    buffer.putInt(at, length);
+    buffer.putLong(at + 4, nanos);
+    buffer.position(at + 12);
+    buffer.put(SessionStore.toBytes(packet.getAddress()));
+    buffer.putInt(packet.getPort());
+    buffer.put(packet.getData(), packet.getOffset(), packet.getLength());
+    head += length;
+    count++;
+    captured++;
+    updateHeader();
+  }
+
+  /**
+   * Drop the oldest records while the tail lies in [from, to)
+   */
+  private void evict(int from, int to) {
+    while ( count > 0 && tail >= from && tail < to ) {
+      if ( tail + RECORD_HEADER > size ||
+           buffer.getInt(HEADER_SIZE + tail) == WRAP ) {
+        tail = 0;
+        continue;
+      }
+      tail += buffer.getInt(HEADER_SIZE + tail);
+      count--;
+    }
+  }
+
+  private void updateHeader() {
+    buffer.putInt(12, head);
+    buffer.putInt(16, tail);
+    buffer.putInt(20, count);
+    buffer.putLong(40, captured);
+  }
+
+  /**
+   * @return datagrams captured, including those overwritten since
+   */
+  public long getCaptured() {
+    return captured;
+  }
+
+  /**
+   * Write the capture out to the file
+   */
+  public void close() {
+    buffer.force();
+  }
+
+  /**
+   * Reads the datagrams of a capture, oldest first
+   */
+  public static class Reader {
+    private ByteBuffer buffer;
+    private int size;
+    private int tail;
+    private int count;
+    private long startNanos;
+    private long startMillis;
+    // position and records left of the walk
+    private int position;
+    private int remaining;
+    private long nanos;
+    private byte[] address = new byte[16];
+
+    /**
+     * @param file a capture file
+     * @throws MeasurementError the file is not a capture
+     */
+    public Reader(File file) throws MeasurementError {
+      try {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+          buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                        raf.length());
+        } finally {
+          raf.close();
+        }
+      } catch (IOException e) {
+        throw new MeasurementError("Failed opening capture " + file + ": " +
+                                   e.getMessage());
+      }
+      if ( buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC ||
+           buffer.getInt(4) != VERSION ) {
+        throw new MeasurementError(file + " is not a packet capture");
+      }
+      size = buffer.getInt(8);
+      tail = buffer.getInt(16);
+      count = buffer.getInt(20);
+      startNanos = buffer.getLong(24);
+      startMillis = buffer.getLong(32);
+      if ( buffer.capacity() < HEADER_SIZE + size ) {
+        throw new MeasurementError(file + " is truncated");
+      }
+      rewind();
+    }
+
+    /**
+     * Go back to the oldest datagram
+     */
+    public void rewind() {
+      position = tail;
+      remaining = count;
+    }
+
+    /**
+     * Read the next datagram
+     * @param into receives the data, address and port, its buffer must
+     *             hold BUFSIZE bytes
+     * @return false at the end of the capture
+     * @throws MeasurementError a record is damaged
+     */
+    public boolean next(DatagramPacket into) throws MeasurementError {
+      if ( remaining == 0 ) {
+        return false;
+      }
+      if ( position + RECORD_HEADER > size ||
+           buffer.getInt(HEADER_SIZE + position) == WRAP ) {
+        position = 0;
+      }
+      int at = HEADER_SIZE + position;
+      int length = buffer.getInt(at);
+      int dataLength = length - RECORD_HEADER;
+      if ( dataLength < 0 || position + length > size ||
+           dataLength > into.getData().length ) {
+        throw new MeasurementError("Damaged capture record at " + position);
+      }
+      nanos = buffer.getLong(at + 4);
+      for ( int i = 0; i < 16; i++ ) {
+        address[i] = buffer.get(at + 12 + i);
+      }
+      try {
+        into.setAddress(InetAddress.getByAddress(address));
+      } catch (UnknownHostException e) {
+        throw new MeasurementError("Damaged capture record at " + position);
+      }
+      into.setPort(buffer.getInt(at + 28));
+      ByteBuffer view = buffer.duplicate();
+      view.position(at + RECORD_HEADER);
+      view.get(into.getData(), 0, dataLength);
+      into.setLength(dataLength);
+      position += length;
+      remaining--;
+      return true;
+    }
+
+    /**
+     * @return System.nanoTime() of the server when the last datagram read
+     *         was received
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * @return wall clock of the server in ms when the last datagram read
+     *         was received
+     */
+    public long getMillis() {
+      return startMillis + (nanos - startNanos) / 1000000;
+    }
+
+    /**
+     * @return datagrams in the capture
+     */
+    public int getCount() {
+      return count;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer single-consumer queue of datagrams between the
+ * UDPDispatcher and one receiver shard. All slots are allocated up front and
+ * packets are copied in and out, so nothing is allocated per packet. When
+ * the shard falls behind the ring fills up and new packets are dropped and
+ * counted, like a full socket buffer would.
+ */
+public class PacketRing {
+  private int capacity;
+  private int mask;
+  private byte[][] data;
+  private int[] lengths;
+  private InetAddress[] addrs;
+  private int[] ports;
+  // System.nanoTime() and wall clock in ms when the dispatcher read each
+  // packet
+  private long[] times;
+  private long[] millis;
+  // read time of the last packet polled, only touched by the consumer
+  private long polledNanos = 0;
+  private long polledMillis = 0;
+  // next slot to read, only advanced by the consumer
+  private AtomicLong head = new AtomicLong();
+  // next slot to write, only advanced by the producer
+  private AtomicLong tail = new AtomicLong();
+  // consumer parked on an empty ring, null while it is busy
+  private volatile Thread waiter = null;
+  private volatile long dropped = 0;
+
+  /**
+   * @param capacity number of slots, rounded up to a power of two
+   * @param packetSize size of the largest packet
+   */
+  public PacketRing(int capacity, int packetSize) {
+    int n = 1;
+    while (n < capacity) {
+      n <<= 1;
+    }
+    this.capacity = n;
+    this.mask = n - 1;
+    this.data = new byte[n][packetSize];
+    this.lengths = new int[n];
+    this.addrs = new InetAddress[n];
+    this.ports = new int[n];
+    this.times = new long[n];
+    this.millis = new long[n];
+  }
+
+  /**
+   * Copy a packet into the ring, producer thread only
+   * @param packet received packet
+   * @return false if the ring is full and the packet was dropped
+   */
+  public boolean offer(DatagramPacket packet) {
+    return offer(packet, System.nanoTime(), System.currentTimeMillis());
+  }
+
+  /**
+   * Copy a packet into the ring, producer thread only
+   * @param packet received packet
+   * @param receivedNanos System.nanoTime() when the packet was read
+   * @param receivedMillis wall clock in ms when the packet was read
+   * @return false if the ring is full and the packet was dropped
+   */
+  public boolean offer(DatagramPacket packet, long receivedNanos,
+                       long receivedMillis) {
+    long t = tail.get();
+    if (t - head.get() >= capacity) {
+      // only the producer writes it
+      dropped++;
+      return false;
+    }
+    int i = (int) (t & mask);
+    int length = Math.min(packet.getLength(), data[i].length);
+    System.arraycopy(packet.getData(), packet.getOffset(), data[i], 0, length);
+    lengths[i] = length;
+    addrs[i] = packet.getAddress();
+    ports[i] = packet.getPort();
+    times[i] = receivedNanos;
+    millis[i] = receivedMillis;
+    tail.set(t + 1);
+    Thread w = waiter;
+    if (w != null) {
+      LockSupport.unpark(w);
+    }
+    return true;
+  }
+
+  /**
+   * Copy the oldest packet out of the ring, consumer thread only
+   * @param into packet whose buffer, length, address and port are set
+   * @param timeoutNanos longest time to wait for a packet
+   * @return false if the ring stayed empty
+   */
+  public boolean poll(DatagramPacket into, long timeoutNanos) {
+    long h = head.get();
+    if (h == tail.get()) {
+      waiter = Thread.currentThread();
+      // the producer checks waiter after publishing, so one of us sees
+      // the other
+      if (h == tail.get()) {
+        LockSupport.parkNanos(this, timeoutNanos);
+      }
+      waiter = null;
+      if (h == tail.get()) {
+        return false;
+      }
+    }
+    int i = (int) (h & mask);
+    byte[] buffer = into.getData();
+    int length = Math.min(lengths[i], buffer.length);
+    System.arraycopy(data[i], 0, buffer, 0, length);
+    into.setLength(length);
+    into.setAddress(addrs[i]);
+    into.setPort(ports[i]);
+    polledNanos = times[i];
+    polledMillis = millis[i];
+    addrs[i] = null;
+    head.set(h + 1);
+    return true;
+  }
+
+  /**
+   * @return System.nanoTime() when the last packet polled was read from
+   *         the socket, consumer thread only
+   */
+  public long getPolledNanos() {
+    return polledNanos;
+  }
+
+  /**
+   * @return wall clock in ms when the last packet polled was read from the
+   *         socket, consumer thread only
+   */
+  public long getPolledMillis() {
+    return polledMillis;
+  }
+
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  /** Packets dropped because the ring was full. */
+  public long getDropped() {
+    return dropped;
+  }
+}
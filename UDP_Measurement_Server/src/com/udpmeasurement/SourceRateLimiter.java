@@ -0,0 +1,116 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.net.InetAddress;
+
+/**
+ * A token bucket per source address, so that no single host can make the
+ * server send more than ratePps packets per second on average, with bursts
+ * of up to burst packets. Each source also keeps its counters. The sources
+ * live in a bounded ClientTable; when it is full the least recently seen
+ * source is forgotten and starts again with a full bucket. Not thread
+ * safe, every thread keeps its own limiter.
+ */
+public class SourceRateLimiter {
+  /**
+   * Bucket and counters of one source
+   */
+  public static class Source {
+    double tokens;
+    long lastNanos;
+    public long packets = 0;
+    public long bytes = 0;
+    public long limited = 0;
+  }
+
+  private ClientTable<Source> sources;
+  private double tokensPerNano;
+  private int burst;
+  private long limitedTotal = 0;
+
+  /**
+   * @param ratePps sustained packets per second of a source
+   * @param burst packets a source may send at once
+   * @param capacity most sources tracked at once
+   */
+  public SourceRateLimiter(int ratePps, int burst, int capacity) {
+    this.tokensPerNano = ratePps / 1e9;
+    this.burst = burst;
+    this.sources = new ClientTable<Source>(capacity);
+  }
+
+  /**
+   * Count a packet of a source and take a token for the answer
+   * @param addr source address, the port is not part of the key
+   * @param bytes size of the packet
+   * @param nowNanos current System.nanoTime()
+   * @return false if the source is over its rate and must not be answered
+   */
+  public boolean allow(InetAddress addr, int bytes, long nowNanos) {
+    return allow(addr, bytes, 1, nowNanos);
+  }
+
+  /**
+   * Count a packet of a source and take the tokens of its answer
+   * @param addr source address, the port is not part of the key
+   * @param bytes size of the packet
+   * @param cost tokens the answer takes, at most burst
+   * @param nowNanos current System.nanoTime()
+   * @return false if the source is over its rate and must not be answered,
+   *         no token is taken then
+   */
+  public boolean allow(InetAddress addr, int bytes, int cost,
+                       long nowNanos) {
+    Source source = sources.get(addr, 0);
+    if (source == null) {
+      source = new Source();
+      source.tokens = burst;
+      source.lastNanos = nowNanos;
+      sources.put(addr, 0, source);
+    }
+    source.packets++;
+    source.bytes += bytes;
+
+    source.tokens = Math.min(burst, source.tokens +
+        (nowNanos - source.lastNanos) * tokensPerNano);
+    source.lastNanos = nowNanos;
+    if (source.tokens < cost) {
+      source.limited++;
+      limitedTotal++;
+      return false;
+    }
+    source.tokens -= cost;
+    return true;
+  }
+
+  /**
+   * @return the counters of a source, or null if it is not tracked
+   */
+  public Source getSource(InetAddress addr) {
+    return sources.get(addr, 0);
+  }
+
+  public int getSourceCount() {
+    return sources.size();
+  }
+
+  /**
+   * @return packets refused over all sources
+   */
+  public long getLimited() {
+    return limitedTotal;
+  }
+}
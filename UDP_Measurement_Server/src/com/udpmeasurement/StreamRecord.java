@@ -0,0 +1,184 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+/**
+ * StreamRecord keeps the status of a streaming session, a long uplink test
+ * that is reported window by window. Window k holds the packets numbered
+ * [k * windowPackets, (k + 1) * windowPackets). Only two windows are kept,
+ * so the memory is bounded whatever the length of the session: a window
+ * is reported once a packet of the window after next arrives, which leaves
+ * one window of slack for reordering. Packets of a reported window count
+ * as late. The record itself is what the TimerWheel schedules for the
+ * idle timeout.
+ */
+public class StreamRecord extends TimedRecord {
+  public int windowPackets;
+
+  // index of the window in windows[0], windows[1] is the next one
+  private long baseWindow = 0;
+  private ClientRecord[] windows = new ClientRecord[2];
+  private long[] firstArrival = new long[2];
+  private long[] lastArrival = new long[2];
+
+  // totals of the session
+  private long totalReceived = 0;
+  private long latePackets = 0;
+  private int maxPacketNum = -1;
+  private int windowsReported = 0;
+  private int delayCount = 0;
+  private double delayMean = 0;
+  private double delaySquares = 0;
+
+  /**
+   * @param windowPackets number of packets per report window
+   */
+  public StreamRecord(int windowPackets) {
+    this.windowPackets = windowPackets;
+    for ( int i = 0; i < windows.length; i++ ) {
+      windows[i] = new ClientRecord();
+      windows[i].burstCount = windowPackets;
+    }
+  }
+
+  public long windowOf(int packetNum) {
+    return packetNum / windowPackets;
+  }
+
+  /**
+   * @return true if the oldest window must be reported before the packet
+   *         can be recorded
+   */
+  public boolean needsAdvance(int packetNum) {
+    return packetNum >= 0 && packetNum < Config.MAX_STREAM_PACKETS &&
+        windowOf(packetNum) >= baseWindow + 2;
+  }
+
+  /**
+   * Record the arrival of a packet of the session
+   * @param packetNum the number of the packet in the session
+   * @param offsetedDelay receive time minus send time
+   * @param now current time in milliseconds
+   * @return false if the packet was late, a duplicate or invalid
+   */
+  public boolean addPacket(int packetNum, long offsetedDelay, long now) {
+    if ( packetNum < 0 || packetNum >= Config.MAX_STREAM_PACKETS ) {
+      return false;
+    }
+    long window = windowOf(packetNum);
+    if ( window < baseWindow ) {
+      latePackets++;
+      return false;
+    }
+    int slot = (int) (window - baseWindow);
+    int offset = (int) (packetNum - window * windowPackets);
+    if ( !windows[slot].addPacket(offset, offsetedDelay) ) {
+      return false;
+    }
+    if ( windows[slot].getPacketsReceived() == 1 ) {
+      firstArrival[slot] = now;
+    }
+    lastArrival[slot] = now;
+    totalReceived++;
+    maxPacketNum = Math.max(maxPacketNum, packetNum);
+
+    delayCount++;
+    double diff = offsetedDelay - delayMean;
+    delayMean += diff / delayCount;
+    delaySquares += diff * (offsetedDelay - delayMean);
+    return true;
+  }
+
+  /**
+   * @return the oldest window, the one to be reported next
+   */
+  public ClientRecord getOldestWindow() {
+    return windows[0];
+  }
+
+  public long getOldestWindowIndex() {
+    return baseWindow;
+  }
+
+  /**
+   * @return milliseconds between the first and last arrival in the oldest
+   *         window
+   */
+  public long getOldestWindowSpan() {
+    return lastArrival[0] - firstArrival[0];
+  }
+
+  /**
+   * @return true if no packet of the kept windows has arrived
+   */
+  public boolean isEmpty() {
+    return windows[0].getPacketsReceived() == 0 &&
+        windows[1].getPacketsReceived() == 0;
+  }
+
+  /**
+   * Drop the oldest window after it was reported, or skip empty windows
+   * @param packetNum the packet that needs room, or -1 to advance by one
+   */
+  public void advance(int packetNum) {
+    if ( windows[0].getPacketsReceived() > 0 ) {
+      windowsReported++;
+    }
+    if ( packetNum >= 0 && isEmpty() ) {
+      // nothing arrived for a while, jump instead of walking every window
+      baseWindow = windowOf(packetNum) - 1;
+      return;
+    }
+    ClientRecord oldest = windows[0];
+    oldest.reset();
+    windows[0] = windows[1];
+    windows[1] = oldest;
+    firstArrival[0] = firstArrival[1];
+    lastArrival[0] = lastArrival[1];
+    baseWindow++;
+  }
+
+  /**
+   * @return packets expected so far, up to the highest number received
+   */
+  public long getExpectedPackets() {
+    return maxPacketNum + 1;
+  }
+
+  public long getTotalReceived() {
+    return totalReceived;
+  }
+
+  /**
+   * @return packets that arrived after their window was reported
+   */
+  public long getLatePackets() {
+    return latePackets;
+  }
+
+  public int getWindowsReported() {
+    return windowsReported;
+  }
+
+  /**
+   * @return standard deviation of the delays of the whole session
+   */
+  public long calculateJitter() {
+    if ( delayCount > 1 ) {
+      return (long) Math.sqrt(delaySquares / (delayCount - 1));
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,38 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+/**
+ * What every per-client record of a receiver has in common: the client and
+ * the test it runs, and the links through which the TimerWheel keeps the
+ * record until its deadline. Uplink bursts, streaming sessions and
+ * packet-train tests each extend it with their own statistics.
+ */
+public class TimedRecord {
+  public ClientIdentifier clientId;
+  public int seq;
+  public int packetSize;
+  // time of the last packet in milliseconds
+  public long lastTimestamp;
+  // protocol version of the client, delays are in ms for v1 and ns for v2
+  public int version = 1;
+
+  // links of the TimerWheel, only touched by the wheel
+  long deadline;
+  TimedRecord timerPrev;
+  TimedRecord timerNext;
+  int timerSlot;
+  boolean timerScheduled = false;
+}
@@ -0,0 +1,133 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.util.List;
+
+/**
+ * Hashed timing wheel holding the deadline of each unfinished uplink burst,
+ * streaming session and packet-train test.
+ * A record sits in the slot of its deadline tick, linked through its own
+ * timerPrev/timerNext fields, so scheduling, rescheduling and cancelling
+ * are O(1) and allocate nothing. Advancing the wheel by one tick only
+ * visits the records of one slot, however many clients are active.
+ * Deadlines further away than one turn of the wheel stay in their slot
+ * until their turn comes.
+ *
+ * Not thread safe, only used by the receiver thread.
+ */
+public class TimerWheel {
+  private TimedRecord[] slots;
+  private int mask;
+  private long tickMs;
+  // next tick to be processed
+  private long currentTick;
+  private int size = 0;
+
+  /**
+   * @param tickMs resolution of the wheel in milliseconds
+   * @param slotCount number of slots, rounded up to a power of two
+   * @param now current time in milliseconds
+   */
+  public TimerWheel(long tickMs, int slotCount, long now) {
+    int n = 1;
+    while (n < slotCount) {
+      n <<= 1;
+    }
+    this.slots = new TimedRecord[n];
+    this.mask = n - 1;
+    this.tickMs = tickMs;
+    this.currentTick = now / tickMs;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Set the deadline of a record, replacing the previous one if any
+   * @param record record to be expired
+   * @param deadline time in milliseconds after which it expires
+   */
+  public void schedule(TimedRecord record, long deadline) {
+    if (record.timerScheduled) {
+      unlink(record);
+    }
+    record.deadline = deadline;
+    // a deadline in the past fires on the next tick
+    long tick = Math.max(deadline / tickMs, currentTick);
+    int slot = (int) (tick & mask);
+    record.timerPrev = null;
+    record.timerNext = slots[slot];
+    if (slots[slot] != null) {
+      slots[slot].timerPrev = record;
+    }
+    slots[slot] = record;
+    record.timerSlot = slot;
+    record.timerScheduled = true;
+    size++;
+  }
+
+  /**
+   * Remove the deadline of a record, no-op if it has none
+   * @param record record that no longer expires
+   */
+  public void cancel(TimedRecord record) {
+    if (record.timerScheduled) {
+      unlink(record);
+    }
+  }
+
+  private void unlink(TimedRecord record) {
+    if (record.timerPrev != null) {
+      record.timerPrev.timerNext = record.timerNext;
+    } else {
+      slots[record.timerSlot] = record.timerNext;
+    }
+    if (record.timerNext != null) {
+      record.timerNext.timerPrev = record.timerPrev;
+    }
+    record.timerPrev = null;
+    record.timerNext = null;
+    record.timerScheduled = false;
+    size--;
+  }
+
+  /**
+   * Process every tick that is over by now and remove the records whose
+   * deadline fell into it. A record thus expires at most one tick late.
+   * @param now current time in milliseconds
+   * @param expired receives the expired records, in no particular order
+   */
+  public void advance(long now, List<TimedRecord> expired) {
+    long nowTick = now / tickMs;
+    if (nowTick - currentTick > slots.length) {
+      // after a long gap every slot is due, visit each of them once
+      currentTick = nowTick - slots.length;
+    }
+    for (; currentTick < nowTick; currentTick++) {
+      TimedRecord record = slots[(int) (currentTick & mask)];
+      while (record != null) {
+        TimedRecord next = record.timerNext;
+        // later turns of the wheel share the slot and stay
+        if (record.deadline / tickMs <= currentTick) {
+          unlink(record);
+          expired.add(record);
+        }
+        record = next;
+      }
+    }
+  }
+}
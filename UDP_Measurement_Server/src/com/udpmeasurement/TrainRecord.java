@@ -0,0 +1,172 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.util.Arrays;
+
+/**
+ * TrainRecord keeps the arrival times of a packet-train test and estimates
+ * the bandwidth from their dispersion. The packets of a train are sent
+ * back to back, so the bottleneck link spaces them by its transmission
+ * time: the gap between two consecutive packets gives one capacity sample,
+ * and the rate of a whole train, its asymptotic dispersion rate, bounds
+ * the available bandwidth from above. Cross traffic and interrupt
+ * coalescing both stretch and squeeze the gaps, so the samples outside
+ * 1.5 interquartile ranges of the quartiles are dropped and the median of
+ * the rest is taken. The record itself is what the TimerWheel schedules
+ * for the timeout.
+ */
+public class TrainRecord extends TimedRecord {
+  public int trainLength;
+  public int trainCount;
+  // packets of all trains
+  public int burstCount;
+
+  // arrival time of each packet in System.nanoTime(), MISSING if lost
+  private static final long MISSING = Long.MIN_VALUE;
+  private long[] arrivals;
+  private int received = 0;
+
+  // estimates of the last estimate() call
+  private long capacityKbps = 0;
+  private long availableKbps = 0;
+  private int pairsUsed = 0;
+  private int trainsUsed = 0;
+
+  /**
+   * @param trainLength packets per train
+   * @param trainCount number of trains
+   */
+  public TrainRecord(int trainLength, int trainCount) {
+    this.trainLength = trainLength;
+    this.trainCount = trainCount;
+    this.burstCount = trainLength * trainCount;
+    arrivals = new long[burstCount];
+    Arrays.fill(arrivals, MISSING);
+  }
+
+  /**
+   * Record the arrival of a packet
+   * @param packetNum the number of the packet in the test
+   * @param arrivalNanos System.nanoTime() at arrival
+   * @return false if the packet is a duplicate or its number is invalid
+   */
+  public boolean addArrival(int packetNum, long arrivalNanos) {
+    if ( packetNum < 0 || packetNum >= arrivals.length ||
+         arrivals[packetNum] != MISSING ) {
+      return false;
+    }
+    arrivals[packetNum] = arrivalNanos;
+    received++;
+    return true;
+  }
+
+  /**
+   * @return number of distinct packets received
+   */
+  public int getArrivals() {
+    return received;
+  }
+
+  public boolean isComplete() {
+    return received == arrivals.length;
+  }
+
+  /**
+   * Compute the estimates from the packets received so far
+   * @param packetSize bytes of every packet
+   */
+  public void estimate(int packetSize) {
+    long bits = packetSize * 8L;
+    long[] pairs = new long[arrivals.length];
+    long[] trains = new long[trainCount];
+    int pairCount = 0;
+    int trainRates = 0;
+    for ( int t = 0; t < trainCount; t++ ) {
+      int base = t * trainLength;
+      int count = 0;
+      long first = Long.MAX_VALUE;
+      long last = Long.MIN_VALUE;
+      for ( int i = base; i < base + trainLength; i++ ) {
+        if ( arrivals[i] == MISSING ) {
+          continue;
+        }
+        count++;
+        first = Math.min(first, arrivals[i]);
+        last = Math.max(last, arrivals[i]);
+        // a pair sent back to back that arrived in order
+        if ( i > base && arrivals[i - 1] != MISSING &&
+             arrivals[i] > arrivals[i - 1] ) {
+          long gap = arrivals[i] - arrivals[i - 1];
+          pairs[pairCount++] = bits * 1000000 / gap;
+        }
+      }
+      if ( count > 1 && last > first ) {
+        trains[trainRates++] = (count - 1) * bits * 1000000 / (last - first);
+      }
+    }
+    pairsUsed = filterOutliers(pairs, pairCount);
+    capacityKbps = pairsUsed == 0 ? 0 : pairs[pairsUsed / 2];
+    trainsUsed = filterOutliers(trains, trainRates);
+    availableKbps = trainsUsed == 0 ? 0 : trains[trainsUsed / 2];
+  }
+
+  /**
+   * Sort the samples and keep those within 1.5 interquartile ranges of the
+   * quartiles at the front
+   * @param values the samples in [0, count), sorted in place
+   * @param count number of samples
+   * @return number of samples kept
+   */
+  public static int filterOutliers(long[] values, int count) {
+    Arrays.sort(values, 0, count);
+    if ( count < 4 ) {
+      return count;
+    }
+    long q1 = values[count / 4];
+    long q3 = values[count * 3 / 4];
+    long low = q1 - (q3 - q1) * 3 / 2;
+    long high = q3 + (q3 - q1) * 3 / 2;
+    int kept = 0;
+    for ( int i = 0; i < count; i++ ) {
+      if ( values[i] >= low && values[i] <= high ) {
+        values[kept++] = values[i];
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * @return median capacity of the packet pairs in kbps
+   */
+  public long getCapacityKbps() {
+    return capacityKbps;
+  }
+
+  /**
+   * @return median dispersion rate of the trains in kbps
+   */
+  public long getAvailableKbps() {
+    return availableKbps;
+  }
+
+  public int getPairsUsed() {
+    return pairsUsed;
+  }
+
+  public int getTrainsUsed() {
+    return trainsUsed;
+  }
+}
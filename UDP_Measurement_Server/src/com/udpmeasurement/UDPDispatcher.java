@@ -0,0 +1,147 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Front end of the sharded server. The thread only reads the shared channel
+ * and hands every packet to the shard of its client through a PacketRing,
+ * all the processing happens on the shards. Since a client always maps to
+ * the same shard, each shard keeps its client records to itself and needs
+ * no locks.
+ * Only the processing runs in parallel: this one thread still does every
+ * read of the socket, so the packets per second the server can receive do
+ * not grow with the number of shards. A receive path on several cores would
+ * need one socket per core with SO_REUSEPORT, which Java 7 does not offer.
+ * The dispatcher also drops the packets of sources over their token bucket
+ * before they take a slot in a ring, and writes the PacketCapture if the
+ * traffic is captured.
+ */
+public class UDPDispatcher implements Runnable {
+  private DatagramChannel channel;
+  private DatagramReader reader;
+  private PacketRing[] rings;
+  private DatagramPacket receivedPacket;
+  private SourceRateLimiter limiter;
+  private PacketCapture capture = null;
+  private long packetsReceived = 0;
+  private long lastStatsTime;
+
+  /**
+   * @param channel the non-blocking server channel
+   * @param rings one ring per shard
+   * @throws MeasurementError the selector could not be opened
+   */
+  public UDPDispatcher(DatagramChannel channel, PacketRing[] rings)
+      throws MeasurementError {
+    this.channel = channel;
+    try {
+      this.reader = new DatagramReader(channel);
+    } catch (IOException e) {
+      throw new MeasurementError("Failed opening selector: " +
+                                 e.getMessage());
+    }
+    this.rings = rings;
+    byte[] receivedBuffer = new byte[Config.BUFSIZE];
+    this.receivedPacket = new DatagramPacket(receivedBuffer,
+                                             receivedBuffer.length);
+    this.limiter = new SourceRateLimiter(Config.SOURCE_RATE_PPS,
+        Config.SOURCE_BURST, Config.SOURCE_TABLE_CAPACITY);
+    this.lastStatsTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Record every packet read from the socket, call before the dispatcher
+   * runs
+   * @param capture the capture file
+   */
+  public void setCapture(PacketCapture capture) {
+    this.capture = capture;
+  }
+
+  /**
+   * Pick the shard of a client
+   * @param addr client address
+   * @param port client port
+   * @param shards number of shards
+   * @return shard index in [0, shards)
+   */
+  public static int shardOf(InetAddress addr, int port, int shards) {
+    int h = addr.hashCode() * 31 + port;
+    // spread the bits, neighbouring addresses and ports are common
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return (h & 0x7fffffff) % shards;
+  }
+
+  /* (non-Javadoc)
+   * @see java.lang.Runnable#run()
+   * Main dispatching iteration
+   */
+  @Override
+  public void run() {
+    Config.logmsg("Dispatcher thread is running with " + rings.length +
+                  " shards...");
+    long receivedNanos;
+    long receivedMillis;
+    while ( true ) {
+      try {
+        if (!reader.receive(receivedPacket, 0)) {
+          continue;
+        }
+        receivedNanos = System.nanoTime();
+        receivedMillis = System.currentTimeMillis();
+      } catch (IOException e) {
+        if (!channel.isOpen()) {
+          return;
+        }
+        Config.logmsg("Error receiving packet: " + e.getMessage());
+        continue;
+      }
+      if (capture != null) {
+        capture.write(receivedPacket, receivedNanos);
+      }
+      packetsReceived++;
+      reportStats();
+      if (!limiter.allow(receivedPacket.getAddress(),
+                         receivedPacket.getLength(), receivedNanos)) {
+        continue;
+      }
+      int shard = shardOf(receivedPacket.getAddress(),
+                          receivedPacket.getPort(), rings.length);
+      rings[shard].offer(receivedPacket, receivedNanos, receivedMillis);
+    }
+  }
+
+  /**
+   * Log the packets dropped by the rate limiter every STATS_INTERVAL, only
+   * called when a packet arrives
+   */
+  private void reportStats() {
+    long now = System.currentTimeMillis();
+    if (now - lastStatsTime < Config.STATS_INTERVAL) {
+      return;
+    }
+    lastStatsTime = now;
+    Config.logmsg("Dispatcher: received " + packetsReceived + " limited " +
+                  limiter.getLimited() + " sources " +
+                  limiter.getSourceCount());
+  }
+}
@@ -17,9 +17,10 @@ package com.udpmeasurement;
 import java.io.*;
 import java.net.DatagramSocket;
 import java.net.DatagramPacket;
-import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
@@ -27,28 +28,220 @@ import java.util.Map;
  * The thread continually receives the packet from client. If the packet
  * contains uplink data, it records the packet's information and send a
  * response when the uplink is finished. Or if the packet is a downlink
- * request, it generates another handler thread to send downlink burst.
+ * request, it hands a downlink burst to the BurstScheduler.
  * Otherwise it replies with a error message
+ * An uplink burst that stops short gets its response DEFAULT_TIMEOUT after
+ * its last packet, tracked by a TimerWheel that is advanced on every
+ * iteration, busy or not.
+ * A streaming session is a long uplink test kept in a StreamRecord, which
+ * is answered with one report per window, a final report when the client
+ * stops, or the same after the idle timeout.
+ * A packet-train test estimates the bandwidth from the dispersion of
+ * back-to-back trains: uplink trains are timestamped on arrival in a
+ * TrainRecord and answered with a TRAIN_REPORT once complete or timed out,
+ * downlink trains are sent by the BurstScheduler for the client to time.
+ * A clock sync request is answered at once with the server's receive and
+ * send times, so the client can estimate the clock offset NTP style and
+ * turn the offseted delays into one-way delays.
+ * In sharded mode the receiver is one of several shards: it does not read
+ * the socket itself but takes the packets of its own clients from a
+ * PacketRing filled by the UDPDispatcher, and only sends on the socket.
+ * Packets are decoded from and encoded into reused buffers, and the client
+ * of the current packet is a reused lookup key, so the loop does not
+ * allocate per packet and the GC does not add to the measured jitter.
+ * The server socket is a non-blocking DatagramChannel shared with the
+ * BurstScheduler. Responses are encoded into the direct buffers of a
+ * BatchSender and flushed together once per iteration.
+ * Before anything is parsed, a packet must pass the token bucket of its
+ * source address, so one host cannot flood the receiver; in sharded mode
+ * the UDPDispatcher does this check. A downlink request is only scheduled
+ * if its burst fits both in the downlink share of its source and in the
+ * global downlink budget of the BurstScheduler, so a few sources asking
+ * for bursts cannot make the server amplify their traffic without bound.
+ * The delays, arrivals and rate limits take the time a packet was read,
+ * not the time it is processed, so a PacketCapture replayed by UDPReplay
+ * through replay() gives the same results as the live traffic did.
  */
 public class UDPReceiver implements Runnable {
 
   public DatagramSocket socket;
+  private DatagramChannel channel;
+  // reads the channel, null in sharded mode
+  private DatagramReader reader = null;
   private DatagramPacket receivedPacket;
   private byte[] receivedBuffer;
+  private ByteBuffer receivedView;
+  private MeasurementPacket receivedMessage;
+  private ClientIdentifier receivedClientId;
+  // System.nanoTime() and wall clock in ms when the current packet was read,
+  // the times of the capture when it is replayed
+  private long receivedNanos;
+  private long receivedMillis;
+  // time of the packet or tick being processed, the clock of the timers
+  // and stored records
+  private long nowMillis;
+  private BatchSender sender;
+  // buffer of the response being encoded
+  private ByteBuffer sendView;
+  private MeasurementPacket sendMessage;
 
-  private HashMap<ClientIdentifier, ClientRecord> clientMap;
+  private BurstScheduler scheduler;
+  private ClientTable<ClientRecord> clientTable;
+  private ClientTable<StreamRecord> streamTable;
+  private ClientTable<TrainRecord> trainTable;
+  private TimerWheel timerWheel;
+  private ArrayList<TimedRecord> expiredRecords;
+  // null in sharded mode, the dispatcher limits the sources
+  private SourceRateLimiter limiter = null;
+  // keeps the finished sessions, null if none is kept
+  private SessionStore store = null;
+  private ByteBuffer storeView;
+  // records the received packets, null if they are not captured
+  private PacketCapture capture = null;
 
+  // the channel and the scheduler were made by this receiver
+  private boolean ownsChannel = false;
+  // sharded mode only, null when the receiver reads the socket itself
+  private PacketRing ring = null;
+  private int shardId = 0;
+  // statistics, only written by this thread
+  private long packetsReceived = 0;
+  private long packetErrors = 0;
+  private long responsesSent = 0;
+  private long evictions = 0;
+  private long burstsRefused = 0;
+  private long lastStatsTime;
+
+  /**
+   * Create a receiver with its own channel and scheduler, close() releases
+   * both
+   * @param port used by server
+   * @throws MeasurementError socket failed
+   */
   public UDPReceiver(int port) throws MeasurementError {
+    this(bind(port));
+  }
+
+  private UDPReceiver(DatagramChannel channel) throws MeasurementError {
+    this(channel, new BurstScheduler(channel, Config.BURST_THREADS));
+    ownsChannel = true;
+  }
+
+  /**
+   * Create a receiver that reads the socket itself
+   * @param channel the server channel from bind()
+   * @param scheduler sends the downlink bursts
+   * @throws MeasurementError socket failed
+   */
+  public UDPReceiver(DatagramChannel channel, BurstScheduler scheduler)
+      throws MeasurementError {
+    this.channel = channel;
+    this.socket = channel.socket();
+    this.scheduler = scheduler;
+    try {
+      reader = new DatagramReader(channel);
+    } catch (IOException e) {
+      throw new MeasurementError("Failed opening selector: " +
+                                 e.getMessage());
+    }
+    limiter = new SourceRateLimiter(Config.SOURCE_RATE_PPS,
+        Config.SOURCE_BURST, Config.SOURCE_TABLE_CAPACITY);
+
+    init();
+  }
+
+  /**
+   * Create one shard of the sharded server
+   * @param channel the channel shared by all shards, only used for sending
+   * @param ring the packets of the clients of this shard
+   * @param shardId index of this shard, for the statistics
+   * @param scheduler sends the downlink bursts, shared by all shards
+   */
+  public UDPReceiver(DatagramChannel channel, PacketRing ring, int shardId,
+                     BurstScheduler scheduler) {
+    this.channel = channel;
+    this.socket = channel.socket();
+    this.scheduler = scheduler;
+    this.ring = ring;
+    this.shardId = shardId;
+    init();
+  }
+
+  /**
+   * Open the server channel in non-blocking mode
+   * @param port used by server
+   * @return the bound channel
+   * @throws MeasurementError socket failed
+   */
+  public static DatagramChannel bind(int port) throws MeasurementError {
+    try {
+      DatagramChannel channel = DatagramChannel.open();
+      // bursts arrive and leave faster than any thread handles them
+      channel.socket().setReceiveBufferSize(Config.SOCKET_BUFFER_SIZE);
+      channel.socket().setSendBufferSize(Config.SOCKET_BUFFER_SIZE);
+      channel.socket().bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+      return channel;
+    } catch (IOException e) {
+      throw new MeasurementError("Failed opening and binding socket: " +
+                                 e.getMessage());
+    }
+  }
+
+  /**
+   * Release the selector of the reader. A receiver made with
+   * UDPReceiver(port) first stops its scheduler and closes its channel,
+   * which frees the port and makes a running receiver thread exit;
+   * otherwise they belong to the caller, who closes the channel first
+   */
+  public void close() {
     try {
-      socket = new DatagramSocket(port);
-    } catch (SocketException e) {
-      throw new MeasurementError("Failed opening and binding socket!");
+      if ( ownsChannel ) {
+        scheduler.close();
+        channel.close();
+      }
+      if ( reader != null ) {
+        reader.close();
+      }
+    } catch (IOException e) {
+      Config.logmsg("Error closing receiver: " + e.getMessage());
     }
+  }
+
+  /**
+   * Keep the results of finished sessions, call before the receiver runs
+   * @param store the store shared by all receivers
+   */
+  public void setStore(SessionStore store) {
+    this.store = store;
+    storeView = ByteBuffer.allocate(Config.STORE_RECORD_SIZE);
+  }
+
+  /**
+   * Record every packet read from the socket, call before the receiver
+   * runs. In sharded mode the UDPDispatcher captures instead
+   * @param capture the capture file
+   */
+  public void setCapture(PacketCapture capture) {
+    this.capture = capture;
+  }
 
+  private void init() {
     receivedBuffer = new byte[Config.BUFSIZE];
     receivedPacket = new DatagramPacket(receivedBuffer, receivedBuffer.length);
+    receivedView = ByteBuffer.wrap(receivedBuffer);
+    receivedClientId = new ClientIdentifier(null, 0);
+    receivedMessage = new MeasurementPacket(receivedClientId);
+    sender = new BatchSender(channel, Config.SEND_QUEUE_SIZE);
+    sendMessage = new MeasurementPacket(null);
+    lastStatsTime = System.currentTimeMillis();
 
-    clientMap = new HashMap<ClientIdentifier, ClientRecord>();
+    clientTable = new ClientTable<ClientRecord>(Config.CLIENT_TABLE_CAPACITY);
+    streamTable = new ClientTable<StreamRecord>(Config.STREAM_TABLE_CAPACITY);
+    trainTable = new ClientTable<TrainRecord>(Config.TRAIN_TABLE_CAPACITY);
+    timerWheel = new TimerWheel(Config.TIMER_TICK, Config.TIMER_SLOTS,
+                                System.currentTimeMillis());
+    expiredRecords = new ArrayList<TimedRecord>();
   }
 
   /* (non-Javadoc)
@@ -57,63 +250,185 @@ public class UDPReceiver implements Runnable {
    */
   @Override
   public void run() {
-    System.out.println("Receiver thread is running...");
+    Config.logmsg("Receiver thread " + shardId + " is running...");
 
     while ( true ) {
       try {
         // get client's request
-        socket.setSoTimeout(Config.DEFAULT_TIMEOUT);
-        socket.receive(receivedPacket);
-        ClientIdentifier clientId = new ClientIdentifier(
-          receivedPacket.getAddress(), receivedPacket.getPort()); 
-        Config.logmsg("Received message from " + clientId.toString());
-
-        // processing message
-        try {
-          MeasurementPacket packet = new MeasurementPacket(
-              clientId,
-              receivedPacket.getData());
-          processPacket(packet);
-        } catch (MeasurementError e) {
-          Config.logmsg("Error processing message: " + e.getMessage());
+        if ( !receive() ) {
+          continue;
         }
-
+        // in sharded mode the dispatcher read the packet, take its time
+        if ( ring != null ) {
+          receivedNanos = ring.getPolledNanos();
+          receivedMillis = ring.getPolledMillis();
+        }
+        else {
+          receivedNanos = System.nanoTime();
+          receivedMillis = System.currentTimeMillis();
+        }
+        if ( capture != null ) {
+          capture.write(receivedPacket, receivedNanos);
+        }
+        handle();
       } catch (IOException e) {
-        // Timeout, clean all unfinished record and send response to each client
-        try {
-          removeOldRecord();
-        } catch (MeasurementError e1) {
-          Config.logmsg("Error sending response when timeout: " + e.getMessage());
+        if ( !channel.isOpen() ) {
+          return;
         }
+        Config.logmsg("Error receiving packet: " + e.getMessage());
+      } finally {
+        tick(System.currentTimeMillis());
       }
+    }
+  }
 
+  /**
+   * Process a packet of a capture as if it had just been read from the
+   * socket, for UDPReplay. Answers go to the address of the packet. The
+   * timers run on the times of the capture, the first packet replayed
+   * sets their clock
+   * @param packet the datagram, copied before it is processed
+   * @param nanos System.nanoTime() when it was received
+   * @param millis wall clock in ms when it was received
+   */
+  public void replay(DatagramPacket packet, long nanos, long millis) {
+    if ( packetsReceived == 0 ) {
+      timerWheel = new TimerWheel(Config.TIMER_TICK, Config.TIMER_SLOTS,
+                                  millis);
+      lastStatsTime = millis;
+    }
+    System.arraycopy(packet.getData(), packet.getOffset(), receivedBuffer, 0,
+                     packet.getLength());
+    receivedPacket.setData(receivedBuffer, 0, packet.getLength());
+    receivedPacket.setAddress(packet.getAddress());
+    receivedPacket.setPort(packet.getPort());
+    receivedNanos = nanos;
+    receivedMillis = millis;
+    handle();
+  }
+
+  /**
+   * Expire the timed out records, send the queued responses and log the
+   * statistics. The receiver thread calls it on every iteration with the
+   * wall clock, a replay driver at least once per timer tick of the capture
+   * with the time of the capture
+   * @param now current time in milliseconds
+   */
+  public void tick(long now) {
+    nowMillis = now;
+    expireRecords(now);
+    sender.flush();
+    reportStats(now);
+  }
+
+  /**
+   * Rate limit, decode and process the packet in receivedPacket
+   */
+  private void handle() {
+    packetsReceived++;
+    nowMillis = receivedMillis;
+    if ( limiter != null &&
+         !limiter.allow(receivedPacket.getAddress(),
+                        receivedPacket.getLength(), receivedNanos) ) {
+      return;
+    }
+    receivedClientId.set(receivedPacket.getAddress(),
+                         receivedPacket.getPort());
+    if (Log.isDebug()) {
+      Log.debug("Received message from " + receivedClientId.toString());
+    }
+
+    // processing message
+    try {
+      receivedView.clear();
+      receivedView.limit(receivedPacket.getLength());
+      receivedMessage.decode(receivedView);
+      processPacket(receivedMessage);
+    } catch (MeasurementError e) {
+      packetErrors++;
+      Config.logmsg("Error processing message: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Wait up to one timer tick for the next packet
+   * @return false if none arrived
+   * @throws IOException socket failed
+   */
+  private boolean receive() throws IOException {
+    if (ring != null) {
+      return ring.poll(receivedPacket, Config.TIMER_TICK * 1000000L);
+    }
+    // only wait for one tick, so the wheel keeps turning when idle
+    return reader.receive(receivedPacket, Config.TIMER_TICK);
+  }
+
+  /**
+   * Log the statistics of this receiver every STATS_INTERVAL if it
+   * has seen any traffic
+   * @param now current time in milliseconds
+   */
+  private void reportStats(long now) {
+    if (now - lastStatsTime < Config.STATS_INTERVAL) {
+      return;
+    }
+    lastStatsTime = now;
+    if (packetsReceived == 0 && clientTable.isEmpty() &&
+        streamTable.isEmpty() && trainTable.isEmpty()) {
+      return;
     }
+    Config.logmsg("Shard " + shardId + ": received " + packetsReceived +
+                  " dropped " + (ring == null ? 0 : ring.getDropped()) +
+                  " limited " + (limiter == null ? 0 : limiter.getLimited()) +
+                  " errors " + packetErrors + " responses " + responsesSent +
+                  " send queue max " + sender.getMaxDepth() +
+                  " stalls " + sender.getStalls() +
+                  " refused bursts " + burstsRefused +
+                  " clients " + clientTable.size() +
+                  " streams " + streamTable.size() +
+                  " trains " + trainTable.size() +
+                  " evicted " + evictions);
   }
 
   /**
    * The thread continually receives the packet from client. If the packet
    * contains uplink data, it records the packet's information and send a
    * response when the uplink is finished. Or if the packet is a downlink
-   * request, it generates another handler thread to send downlink burst.
+   * request, it hands a downlink burst to the BurstScheduler.
    * Otherwise it replies with a error message
    * @param packet received packet
    * @throws MeasurementError
    */
   private void processPacket(MeasurementPacket packet)
       throws MeasurementError {
-    if ( packet.type != Config.PKT_REQUEST && packet.type != Config.PKT_DATA ) {
+    if ( packet.type == Config.PKT_STREAM_DATA ||
+         packet.type == Config.PKT_STREAM_STOP ) {
+      processStreamPacket(packet);
+    }
+    else if ( packet.type == Config.PKT_TRAIN_DATA ||
+              packet.type == Config.PKT_TRAIN_REQUEST ) {
+      processTrainPacket(packet);
+    }
+    else if ( packet.type == Config.PKT_SYNC_REQUEST &&
+              packet.version == 2 ) {
+      answerSync(packet);
+    }
+    else if ( packet.type != Config.PKT_REQUEST &&
+              packet.type != Config.PKT_DATA ) {
       // Send error packet back
       Config.logmsg("Received malformed packet! Type " + packet.type);
-      sendPacket(Config.PKT_ERROR, packet.clientId, null);
+      sendPacket(Config.PKT_ERROR, packet.clientId, null, packet.version);
     }
     else if ( packet.type == Config.PKT_REQUEST ) {
-      // Create a new thread to burst udp packets
-      Config.logmsg("Receive packet request");      
+      // Schedule a downlink burst of udp packets
+      Log.debug("Receive packet request");
 
       ClientRecord clientRecord = new ClientRecord();
       clientRecord.burstCount = packet.burstCount;
       clientRecord.packetSize = packet.packetSize;
       clientRecord.udpInterval = packet.udpInterval;     
+      clientRecord.version = packet.version;
+      clientRecord.seq = packet.seq;
 
       // Todo(Hongyi): setup similar check in the client side
       if ( clientRecord.burstCount < 1 ) {
@@ -135,11 +450,21 @@ public class UDPReceiver implements Runnable {
             Config.MAX_PACKETSIZE);
       }
       
-      // Create a new thread for downlink burst. Otherwise the uplink burst
+      if ( !scheduler.reserve(packet.clientId.addr, packet.packetSize,
+                              clientRecord.burstCount, receivedNanos) ) {
+        // over the downlink budget, an answer would only add to the load
+        burstsRefused++;
+        Log.debug("Downlink budget used up, request dropped");
+        return;
+      }
+
+      // The scheduler threads send the burst. Otherwise the uplink burst
       // at the same time may be blocked and lead to wrong delay estimation 
-      RequestHandler respHandle = new RequestHandler(
-        socket, packet.clientId, clientRecord);
-      new Thread(respHandle).start();
+      // the id of the packet may be a reused key, keep a copy
+      scheduler.submit(new DownlinkBurst(
+        new ClientIdentifier(packet.clientId.addr, packet.clientId.port),
+        clientRecord, System.nanoTime()));
+      storeRequest(packet);
     }
     else  { // packetType == PKT_DATA
       // Look up the client map to find the corresponding recorder
@@ -148,68 +473,440 @@ public class UDPReceiver implements Runnable {
       // send a request back
 
       ClientRecord clientRecord;
-      if ( clientMap.containsKey(packet.clientId) ) {
-        clientRecord = clientMap.get(packet.clientId);
-        int packetNumber = packet.packetNum;
-        long offsetedDelay = System.currentTimeMillis() - packet.timestamp;
+      long offsetedDelay = offsetedDelay(packet);
+      clientRecord = clientTable.get(packet.clientId.addr,
+                                     packet.clientId.port);
+      if ( clientRecord != null ) {
         int seq = packet.seq;
 
         // seq must stay the same for one burst
-        if ( seq == clientRecord.seq ) {
-          clientRecord.receivedNumberList.add(packetNumber);
-          clientRecord.offsetedDelayList.add(offsetedDelay);
-          clientRecord.lastTimestamp = System.currentTimeMillis();
+        if ( seq == clientRecord.seq &&
+             packet.version == clientRecord.version ) {
+          clientRecord.addPacket(packet.packetNum, offsetedDelay);
+          clientRecord.lastTimestamp = receivedMillis;
+          timerWheel.schedule(clientRecord,
+              clientRecord.lastTimestamp + Config.DEFAULT_TIMEOUT);
         }
         else {
           Config.logmsg("client sent a different sequence number! old " + 
         clientRecord.seq + " => " + "new " + seq);
-          sendPacket(Config.PKT_ERROR, packet.clientId, null);
-          clientMap.remove(packet.clientId);
+          sendPacket(Config.PKT_ERROR, packet.clientId, null, packet.version);
+          clientTable.remove(packet.clientId.addr, packet.clientId.port);
+          timerWheel.cancel(clientRecord);
           throw new MeasurementError( packet.clientId.toString() + 
             " send a new seq " + seq + " different from current seq " +
               clientRecord.seq);
         }
       }
       else {
+        // the record is sized by the burst count, check it like a request
+        if ( packet.burstCount < 1 ||
+             packet.burstCount > Config.MAX_BURSTCOUNT ) {
+          throw new MeasurementError("Burst count should be between 1 and " +
+              Config.MAX_BURSTCOUNT + ", not " + packet.burstCount);
+        }
         clientRecord = new ClientRecord();
+        // the id of the packet may be a reused key, store a copy
+        clientRecord.clientId = new ClientIdentifier(packet.clientId.addr,
+                                                     packet.clientId.port);
         clientRecord.burstCount = packet.burstCount;
-        clientRecord.receivedNumberList.add(packet.packetNum);
-        clientRecord.offsetedDelayList.add(
-          System.currentTimeMillis() - packet.timestamp);
+        clientRecord.version = packet.version;
+        clientRecord.keepDelays = packet.version == 2 &&
+            (packet.flags & MeasurementPacket.FLAG_DELAYS) != 0;
+        clientRecord.addPacket(packet.packetNum, offsetedDelay);
         clientRecord.packetSize = packet.packetSize;
         clientRecord.seq = packet.seq;
-        clientRecord.lastTimestamp = System.currentTimeMillis();
+        clientRecord.lastTimestamp = receivedMillis;
 
-        clientMap.put(packet.clientId, clientRecord);
+        evict(clientTable.put(clientRecord.clientId.addr,
+                              clientRecord.clientId.port, clientRecord));
+        timerWheel.schedule(clientRecord,
+            clientRecord.lastTimestamp + Config.DEFAULT_TIMEOUT);
       }
 
-      int numberReceived = clientRecord.receivedNumberList.size() - 1;
-      Config.logmsg("Receive data packet s:" + clientRecord.seq + " b:" +
-          clientRecord.burstCount + " p:" + 
-          clientRecord.receivedNumberList.get(numberReceived));
+      if (Log.isDebug()) {
+        Log.debug("Receive data packet s:" + clientRecord.seq + " b:" +
+            clientRecord.burstCount + " p:" + packet.packetNum);
+      }
 
-      if (clientRecord.receivedNumberList.size() == clientRecord.burstCount) {
+      if (clientRecord.getPacketsReceived() == clientRecord.burstCount) {
         try {
-          sendPacket(Config.PKT_RESPONSE, packet.clientId, clientRecord);
+          sendPacket(Config.PKT_RESPONSE, packet.clientId, clientRecord,
+                     clientRecord.version);
         } catch (MeasurementError e) {
           throw e;
         } finally {
-          clientMap.remove(packet.clientId);
+          clientTable.remove(packet.clientId.addr, packet.clientId.port);
+          timerWheel.cancel(clientRecord);
+          storeBurst(clientRecord);
         }
       }
     }
   }
 
+  /**
+   * Record a packet of a streaming session, reporting the windows it
+   * completes, or finish the session on STREAM_STOP
+   * @param packet received packet
+   * @throws MeasurementError
+   */
+  private void processStreamPacket(MeasurementPacket packet)
+      throws MeasurementError {
+    StreamRecord stream = streamTable.get(packet.clientId.addr,
+                                          packet.clientId.port);
+    if ( packet.type == Config.PKT_STREAM_STOP ) {
+      if ( stream != null && stream.seq == packet.seq ) {
+        finishStream(stream);
+      }
+      else if (Log.isDebug()) {
+        // the session is over already, the client resends STOP until it
+        // hears the end
+        Log.debug("Stop for unknown stream from " + packet.clientId);
+      }
+      return;
+    }
+
+    long now = receivedMillis;
+    if ( stream == null ) {
+      // the window travels in the intervalNum field
+      if ( packet.intervalNum < 1 ||
+           packet.intervalNum > Config.MAX_STREAM_WINDOW ) {
+        throw new MeasurementError("Stream window should be between 1 and " +
+            Config.MAX_STREAM_WINDOW + ", not " + packet.intervalNum);
+      }
+      stream = new StreamRecord(packet.intervalNum);
+      // the id of the packet may be a reused key, store a copy
+      stream.clientId = new ClientIdentifier(packet.clientId.addr,
+                                             packet.clientId.port);
+      stream.seq = packet.seq;
+      stream.packetSize = packet.packetSize;
+      stream.version = packet.version;
+      evict(streamTable.put(stream.clientId.addr, stream.clientId.port,
+                            stream));
+      Config.logmsg("Stream from " + stream.clientId + " starts, window " +
+                    stream.windowPackets + " packets");
+    }
+    else if ( stream.seq != packet.seq || stream.version != packet.version ) {
+      sendPacket(Config.PKT_ERROR, packet.clientId, null, packet.version);
+      streamTable.remove(packet.clientId.addr, packet.clientId.port);
+      timerWheel.cancel(stream);
+      throw new MeasurementError( packet.clientId.toString() + 
+        " send a new stream seq " + packet.seq + " different from " +
+          stream.seq);
+    }
+
+    while ( stream.needsAdvance(packet.packetNum) ) {
+      if ( stream.getOldestWindow().getPacketsReceived() > 0 ) {
+        sendStreamReport(Config.PKT_STREAM_REPORT, stream);
+      }
+      stream.advance(packet.packetNum);
+    }
+    stream.addPacket(packet.packetNum, offsetedDelay(packet), now);
+    stream.lastTimestamp = now;
+    timerWheel.schedule(stream, now + Config.DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * Check the shape of a packet-train test
+   * @param trainLength packets per train
+   * @param trainCount number of trains
+   * @param packetSize bytes per packet
+   * @throws MeasurementError the test is out of bounds
+   */
+  private void checkTrains(int trainLength, int trainCount, int packetSize)
+      throws MeasurementError {
+    if ( trainLength < 2 || trainLength > Config.MAX_TRAIN_LENGTH ) {
+      throw new MeasurementError("Train length should be between 2 and " +
+          Config.MAX_TRAIN_LENGTH + ", not " + trainLength);
+    }
+    if ( trainCount < 1 ||
+         trainCount > Config.MAX_TRAIN_PACKETS / trainLength ) {
+      throw new MeasurementError("Trains should have at most " +
+          Config.MAX_TRAIN_PACKETS + " packets, not " + trainCount + " * " +
+          trainLength);
+    }
+    if ( packetSize < Config.MIN_PACKETSIZE ||
+         packetSize > Config.MAX_TRAIN_PACKETSIZE ) {
+      throw new MeasurementError("Train packet size should be between " +
+          Config.MIN_PACKETSIZE + " and " + Config.MAX_TRAIN_PACKETSIZE +
+          ", not " + packetSize);
+    }
+  }
+
+  /**
+   * Schedule the trains of a TRAIN_REQUEST, or record the arrival of an
+   * uplink train packet and report the test once it is complete
+   * @param packet received packet
+   * @throws MeasurementError
+   */
+  private void processTrainPacket(MeasurementPacket packet)
+      throws MeasurementError {
+    if ( packet.type == Config.PKT_TRAIN_REQUEST ) {
+      // the number of trains travels in packetNum
+      checkTrains(packet.burstCount, packet.packetNum, packet.packetSize);
+      if ( packet.udpInterval < 0 ||
+           packet.udpInterval > Config.MAX_TRAIN_GAP ) {
+        throw new MeasurementError("Train gap should be between 0 and " +
+            Config.MAX_TRAIN_GAP + ", not " + packet.udpInterval);
+      }
+      ClientRecord request = new ClientRecord();
+      request.burstCount = packet.burstCount * packet.packetNum;
+      request.packetSize = packet.packetSize;
+      request.udpInterval = packet.udpInterval;
+      request.version = packet.version;
+      request.seq = packet.seq;
+      if ( !scheduler.reserve(packet.clientId.addr, packet.packetSize,
+                              request.burstCount, receivedNanos) ) {
+        burstsRefused++;
+        Log.debug("Downlink budget used up, train request dropped");
+        return;
+      }
+      // the id of the packet may be a reused key, keep a copy
+      scheduler.submit(new DownlinkBurst(
+        new ClientIdentifier(packet.clientId.addr, packet.clientId.port),
+        request, packet.burstCount, System.nanoTime()));
+      storeRequest(packet);
+      return;
+    }
+
+    // the estimates depend on the time the packet was read
+    long arrival = receivedNanos;
+    TrainRecord train = trainTable.get(packet.clientId.addr,
+                                       packet.clientId.port);
+    if ( train != null &&
+         (train.seq != packet.seq || train.version != packet.version) ) {
+      // a new test replaces the old one, which is answered as it is
+      trainTable.remove(packet.clientId.addr, packet.clientId.port);
+      timerWheel.cancel(train);
+      finishTrain(train);
+      train = null;
+    }
+    if ( train == null ) {
+      // the number of trains travels in udpInterval
+      checkTrains(packet.burstCount, packet.udpInterval, packet.packetSize);
+      train = new TrainRecord(packet.burstCount, packet.udpInterval);
+      // the id of the packet may be a reused key, store a copy
+      train.clientId = new ClientIdentifier(packet.clientId.addr,
+                                            packet.clientId.port);
+      train.seq = packet.seq;
+      train.version = packet.version;
+      train.packetSize = packet.packetSize;
+      evict(trainTable.put(train.clientId.addr, train.clientId.port, train));
+    }
+    train.addArrival(packet.packetNum, arrival);
+    if ( train.isComplete() ) {
+      trainTable.remove(train.clientId.addr, train.clientId.port);
+      timerWheel.cancel(train);
+      finishTrain(train);
+    }
+    else {
+      train.lastTimestamp = receivedMillis;
+      timerWheel.schedule(train, train.lastTimestamp + Config.DEFAULT_TIMEOUT);
+    }
+  }
+
+  /**
+   * Answer a clock sync request with the time it was read and the time
+   * the answer leaves, which is sent right away rather than with the rest
+   * of the iteration
+   * @param packet the request, its timestamp is echoed
+   * @throws MeasurementError
+   */
+  private void answerSync(MeasurementPacket packet) throws MeasurementError {
+    MeasurementPacket response = sendMessage;
+    response.clear();
+    response.clientId = packet.clientId;
+    response.version = 2;
+    response.type = Config.PKT_SYNC_RESPONSE;
+    response.seq = packet.seq;
+    response.packetNum = packet.packetNum;
+    response.timestamp = packet.timestamp;
+    response.packetSize = response.getHeaderSize() +
+        Config.SYNC_RESPONSE_EXTRA;
+    // pending responses go first, so they do not delay this one
+    sender.flush();
+    sendView = nextBuffer(packet.clientId);
+    response.encode(sendView);
+    sendView.putLong(receivedNanos);
+    sendView.putLong(System.nanoTime());
+    queue(packet.clientId);
+    sender.flush();
+  }
+
+  /**
+   * Answer an uplink train test with its estimates, the record must be out
+   * of its table already
+   * @param train the test to report
+   */
+  private void finishTrain(TrainRecord train) {
+    train.estimate(train.packetSize);
+    MeasurementPacket packet = sendMessage;
+    packet.clear();
+    packet.clientId = train.clientId;
+    packet.version = train.version;
+    packet.type = Config.PKT_TRAIN_REPORT;
+    packet.seq = train.seq;
+    packet.burstCount = train.trainLength;
+    packet.udpInterval = train.trainCount;
+    packet.packetNum = train.getArrivals();
+    packet.packetSize = train.packetSize;
+    try {
+      sendView = nextBuffer(train.clientId);
+      packet.encode(sendView);
+      sendView.putInt((int) Math.min(train.getCapacityKbps(),
+                                     Integer.MAX_VALUE));
+      sendView.putInt((int) Math.min(train.getAvailableKbps(),
+                                     Integer.MAX_VALUE));
+      sendView.putInt(train.getPairsUsed());
+      sendView.putInt(train.getTrainsUsed());
+      queue(train.clientId);
+    } catch (MeasurementError e) {
+      Config.logmsg("Error sending train report: " + e.getMessage());
+    }
+    if ( store != null ) {
+      ByteBuffer view = storeView;
+      view.clear();
+      view.putInt(train.version);
+      view.putInt(train.seq);
+      view.putInt(train.trainLength);
+      view.putInt(train.trainCount);
+      view.putInt(train.packetSize);
+      view.putInt(train.getArrivals());
+      view.putInt(train.getPairsUsed());
+      view.putInt(train.getTrainsUsed());
+      view.putLong(train.getCapacityKbps());
+      view.putLong(train.getAvailableKbps());
+      view.flip();
+      store.append(Config.STORE_UPLINK_TRAIN, train.clientId.addr,
+                   train.clientId.port, nowMillis, view);
+    }
+    if (Log.isDebug()) {
+      Log.debug("Trains from " + train.clientId + " received " +
+          train.getArrivals() + " of " + train.burstCount + ", capacity " +
+          train.getCapacityKbps() + "kbps available " +
+          train.getAvailableKbps() + "kbps");
+    }
+  }
+
+  /**
+   * @param packet received data packet
+   * @return receive time minus send time, in ms for v1 and ns for v2
+   */
+  private long offsetedDelay(MeasurementPacket packet) {
+    if ( packet.version == 2 ) {
+      return receivedNanos - packet.timestamp;
+    }
+    return receivedMillis - packet.timestamp;
+  }
+
+  /**
+   * Report the windows left and the totals of a session, then forget it
+   * @param stream the session to finish
+   */
+  private void finishStream(StreamRecord stream) {
+    streamTable.remove(stream.clientId.addr, stream.clientId.port);
+    timerWheel.cancel(stream);
+    try {
+      for ( int i = 0; i < 2; i++ ) {
+        if ( stream.getOldestWindow().getPacketsReceived() > 0 ) {
+          sendStreamReport(Config.PKT_STREAM_REPORT, stream);
+        }
+        stream.advance(-1);
+      }
+      sendStreamReport(Config.PKT_STREAM_END, stream);
+    } catch (MeasurementError e) {
+      Config.logmsg("Error finishing stream: " + e.getMessage());
+    }
+    if ( store != null ) {
+      ByteBuffer view = storeView;
+      view.clear();
+      view.putInt(stream.version);
+      view.putInt(stream.seq);
+      view.putInt(stream.packetSize);
+      view.putInt(stream.getWindowsReported());
+      view.putLong(stream.getExpectedPackets());
+      view.putLong(stream.getTotalReceived());
+      view.putLong(stream.getLatePackets());
+      view.flip();
+      store.append(Config.STORE_STREAM, stream.clientId.addr,
+                   stream.clientId.port, nowMillis, view);
+    }
+    Config.logmsg("Stream from " + stream.clientId + " ends, received " +
+                  stream.getTotalReceived() + " of " +
+                  stream.getExpectedPackets() + " late " +
+                  stream.getLatePackets() + " windows " +
+                  stream.getWindowsReported());
+  }
+
+  /**
+   * Send the report of the oldest window of a session, or its totals.
+   * A window report is the header followed by four ints: loss runs,
+   * duplicates, arrival span in ms and receive rate in kbps
+   * @param type PKT_STREAM_REPORT or PKT_STREAM_END
+   * @param stream the session
+   * @throws MeasurementError
+   */
+  private void sendStreamReport(int type, StreamRecord stream)
+      throws MeasurementError {
+    MeasurementPacket packet = sendMessage;
+    packet.clear();
+    packet.clientId = stream.clientId;
+    packet.version = stream.version;
+    packet.type = type;
+    packet.packetSize = stream.packetSize;
+    packet.seq = stream.seq;
+    sendView = nextBuffer(stream.clientId);
+    if ( type == Config.PKT_STREAM_REPORT ) {
+      ClientRecord window = stream.getOldestWindow();
+      long span = stream.getOldestWindowSpan();
+      int received = window.getPacketsReceived();
+      packet.burstCount = stream.windowPackets;
+      packet.packetNum = received;
+      packet.intervalNum = window.calculateInversionNumber();
+      packet.timestamp = window.calculateJitter();
+      packet.udpInterval = (int) stream.getOldestWindowIndex();
+      packet.encode(sendView);
+      sendView.putInt(window.getLossRuns());
+      sendView.putInt(window.getDuplicates());
+      sendView.putInt((int) span);
+      // bits between the first and the last arrival, in bits per ms
+      sendView.putInt(span > 0 ?
+          (int) ((received - 1) * 8L * stream.packetSize / span) : 0);
+    }
+    else {
+      packet.burstCount = (int) stream.getExpectedPackets();
+      packet.packetNum = (int) stream.getTotalReceived();
+      packet.intervalNum = (int) stream.getLatePackets();
+      packet.timestamp = stream.calculateJitter();
+      packet.udpInterval = stream.getWindowsReported();
+      packet.encode(sendView);
+    }
+    queue(stream.clientId);
+
+    if (Log.isDebug()) {
+      Log.debug("Sent stream report to " + stream.clientId.toString() +
+          " type:" + type + " b:" + packet.burstCount + " p:" +
+          packet.packetNum + " i:" + packet.intervalNum + " j:" +
+          packet.timestamp + " w:" + packet.udpInterval);
+    }
+  }
+
   /**
    * Send packet according to the type and clientRecord
    * @param type the type of the packet to be sent
    * @param clientId the corresponding client identifier
    * @param clientRecord the other information needed in creating packet 
+   * @param version protocol version of the client
    * @throws MeasurementError
    */
   private void sendPacket(int type, ClientIdentifier clientId,
-                          ClientRecord clientRecord) throws MeasurementError {
-    MeasurementPacket packet = new MeasurementPacket(clientId);
+                          ClientRecord clientRecord, int version)
+      throws MeasurementError {
+    MeasurementPacket packet = sendMessage;
+    packet.clear();
+    packet.clientId = clientId;
+    packet.version = version;
+    int delayCount = 0;
     if ( type == Config.PKT_ERROR ) {
       MeasurementPacket errorPacket = packet;
       errorPacket.type = Config.PKT_ERROR;
@@ -229,30 +926,183 @@ public class UDPReceiver implements Runnable {
       responsePacket.burstCount = clientRecord.burstCount;
       responsePacket.intervalNum = clientRecord.calculateInversionNumber();
       responsePacket.timestamp = clientRecord.calculateJitter();
-      responsePacket.packetNum = clientRecord.receivedNumberList.size();
+      responsePacket.packetNum = clientRecord.getPacketsReceived();
       responsePacket.packetSize = clientRecord.packetSize;
+      responsePacket.seq = clientRecord.seq;
+      if ( clientRecord.keepDelays ) {
+        // count, bitmap and up to 10 bytes per delay must fit
+        int room = Config.BUFSIZE - packet.getHeaderSize() - 5;
+        delayCount = Math.min(clientRecord.burstCount, room * 8 / 81);
+        responsePacket.flags = MeasurementPacket.FLAG_DELAYS;
+        if ( delayCount < clientRecord.burstCount ) {
+          responsePacket.flags |= MeasurementPacket.FLAG_TRUNCATED;
+        }
+      }
+      if (Log.isDebug()) {
+        Log.debug("Burst from " + clientId.toString() + " lost " +
+            clientRecord.getLostPackets() + " in " +
+            clientRecord.getLossRuns() + " runs, duplicates " +
+            clientRecord.getDuplicates() + " invalid " +
+            clientRecord.getInvalidPackets());
+      }
+    }
+
+    sendView = nextBuffer(clientId);
+    packet.encode(sendView);
+    if ( (packet.flags & MeasurementPacket.FLAG_DELAYS) != 0 ) {
+      clientRecord.writeDelays(sendView, delayCount);
     }
+    queue(clientId);
 
-    byte[] sendBuffer = packet.getByteArray();
-    DatagramPacket sendPacket = new DatagramPacket(
-      sendBuffer, sendBuffer.length, clientId.addr, clientId.port); 
+    if (Log.isDebug()) {
+      Log.debug("Sent response to " + clientId.toString() + " type:" + type + " b:" +
+          packet.burstCount + " p:" + packet.packetNum + " i:" + packet.intervalNum +
+          " j:" + packet.timestamp + " s:" + packet.packetSize);
+    }
+  }
 
+  /**
+   * Take the buffer of a response, it is sent once queue() is called
+   * @param clientId the destination
+   * @return the buffer to encode the response into
+   * @throws MeasurementError the send queue stays full
+   */
+  private ByteBuffer nextBuffer(ClientIdentifier clientId)
+      throws MeasurementError {
+    ByteBuffer buffer = sender.next();
+    if ( buffer == null ) {
+      sender.flush();
+      buffer = sender.next();
+      if ( buffer == null ) {
+        throw new MeasurementError(
+          "Fail to send UDP packet to " + clientId.toString() +
+          ", send queue full");
+      }
+    }
+    return buffer;
+  }
+
+  /**
+   * Queue the response encoded into the buffer from nextBuffer(), it is
+   * sent with the next flush
+   * @param clientId the destination
+   */
+  private void queue(ClientIdentifier clientId) {
+    sender.commit(clientId.getTarget());
+    responsesSent++;
+  }
+
+  /**
+   * Answer and forget the bursts and streams whose last packet is older
+   * than DEFAULT_TIMEOUT
+   * @param now current time in milliseconds
+   */
+  private void expireRecords(long now) {
+    timerWheel.advance(now, expiredRecords);
+    for ( TimedRecord record : expiredRecords ) {
+      finish(record);
+    }
+    expiredRecords.clear();
+  }
+
+  /**
+   * Answer a burst or stream that was pushed out of its full table
+   * @param record the evicted record, or null if none was
+   */
+  private void evict(TimedRecord record) {
+    if ( record == null ) {
+      return;
+    }
+    evictions++;
+    timerWheel.cancel(record);
+    finish(record);
+  }
+
+  /**
+   * Send what a burst, stream or train has so far and take it out of its
+   * own table, which may hold a live record of another kind for the same
+   * client
+   * @param record the burst, stream or train
+   */
+  private void finish(TimedRecord record) {
+    if ( record instanceof StreamRecord ) {
+      finishStream((StreamRecord) record);
+      return;
+    }
+    if ( record instanceof TrainRecord ) {
+      trainTable.remove(record.clientId.addr, record.clientId.port);
+      finishTrain((TrainRecord) record);
+      return;
+    }
+    ClientRecord clientRecord = (ClientRecord) record;
+    if ( clientTable.get(clientRecord.clientId.addr,
+                         clientRecord.clientId.port) == clientRecord ) {
+      clientTable.remove(clientRecord.clientId.addr,
+                         clientRecord.clientId.port);
+    }
     try {
-      socket.send(sendPacket);
-    } catch (IOException e) {
-      throw new MeasurementError(
-        "Fail to send UDP packet to " + clientId.toString());
+      sendPacket(Config.PKT_RESPONSE, clientRecord.clientId, clientRecord,
+                 clientRecord.version);
+    } catch (MeasurementError e) {
+      Config.logmsg("Error sending response when timeout: " + e.getMessage());
     }
+    storeBurst(clientRecord);
+  }
 
-    Config.logmsg("Sent response to " + clientId.toString() + " type:" + type + " b:" +
-        packet.burstCount + " p:" + packet.packetNum + " i:" + packet.intervalNum +
-        " j:" + packet.timestamp + " s:" + packet.packetSize);
+  /**
+   * Store the statistics of an uplink burst and the delays it kept
+   * @param clientRecord the finished burst
+   */
+  private void storeBurst(ClientRecord clientRecord) {
+    if ( store == null ) {
+      return;
+    }
+    ByteBuffer view = storeView;
+    view.clear();
+    view.putInt(clientRecord.version);
+    view.putInt(clientRecord.seq);
+    view.putInt(clientRecord.burstCount);
+    view.putInt(clientRecord.packetSize);
+    view.putInt(clientRecord.getPacketsReceived());
+    view.putInt(clientRecord.getLostPackets());
+    view.putInt(clientRecord.getLossRuns());
+    view.putInt(clientRecord.getDuplicates());
+    view.putInt(clientRecord.getInvalidPackets());
+    view.putInt(clientRecord.calculateInversionNumber());
+    view.putLong(clientRecord.calculateJitter());
+    if ( Config.STORE_SAMPLES && clientRecord.keepDelays ) {
+      // count, bitmap and up to 10 bytes per delay must fit
+      int room = view.remaining() - 5;
+      clientRecord.writeDelays(view,
+          Math.min(clientRecord.burstCount, room * 8 / 81));
+    }
+    else {
+      view.putInt(0);
+    }
+    view.flip();
+    store.append(Config.STORE_UPLINK_BURST, clientRecord.clientId.addr,
+                 clientRecord.clientId.port, nowMillis, view);
   }
 
-  private void removeOldRecord() throws MeasurementError {
-    for ( Map.Entry<ClientIdentifier, ClientRecord> entry : clientMap.entrySet() ) {
-      sendPacket(Config.PKT_RESPONSE, entry.getKey(), entry.getValue());
+  /**
+   * Store an accepted downlink burst or train request
+   * @param packet the request
+   */
+  private void storeRequest(MeasurementPacket packet) {
+    if ( store == null ) {
+      return;
     }
-    clientMap.clear();
+    ByteBuffer view = storeView;
+    view.clear();
+    view.putInt(packet.version);
+    view.putInt(packet.seq);
+    view.putInt(packet.type);
+    view.putInt(packet.burstCount);
+    view.putInt(packet.packetNum);
+    view.putInt(packet.packetSize);
+    view.putInt(packet.udpInterval);
+    view.flip();
+    store.append(Config.STORE_DOWNLINK_REQUEST, packet.clientId.addr,
+                 packet.clientId.port, nowMillis, view);
   }
 }
@@ -0,0 +1,232 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a PacketCapture through the processing of a UDPReceiver, to
+ * reproduce a problem seen on the live server or as a load that is the
+ * same from run to run.
+ * Usage: UDPReplay capture_file [-speed f] [-loops n] [-store_dir dir]
+ * The packets are handed to the receiver with the times they were
+ * received, at the pace they arrived divided by speed, or as fast as
+ * possible with a speed of 0. The receiver is ticked with the times of the
+ * capture too, so every timeout and stored record follows the capture and
+ * not the speed of the replay. Every loop shifts the times by the length
+ * of the capture, so they keep increasing. The receiver answers from an
+ * ephemeral port, and every source of the capture is replaced by its own
+ * address in 127.128.0.0/9, so the answers and downlink bursts stay on the
+ * loopback and never reach the real clients. With store_dir the results
+ * are kept in a SessionStore, to compare with the one of the live server.
+ */
+public class UDPReplay {
+  // first replacement source, 127.128.0.1
+  private static final int LOOPBACK_BASE = 0x7F800000;
+
+  private HashMap<InetAddress, InetAddress> sources =
+      new HashMap<InetAddress, InetAddress>();
+  // time of the capture the receiver was last ticked with
+  private long clock = 0;
+
+  /**
+   * @param source address of a client in the capture
+   * @return the loopback address that stands for it
+   * @throws MeasurementError the capture has more than 2^23 sources
+   */
+  private InetAddress mapSource(InetAddress source) throws MeasurementError {
+    InetAddress mapped = sources.get(source);
+    if ( mapped != null ) {
+      return mapped;
+    }
+    int n = sources.size() + 1;
+    if ( n >= 1 << 23 ) {
+      throw new MeasurementError("Too many sources in the capture");
+    }
+    int addr = LOOPBACK_BASE + n;
+    try {
+      mapped = InetAddress.getByAddress(new byte[] {
+          (byte) (addr >>> 24), (byte) (addr >>> 16), (byte) (addr >>> 8),
+          (byte) addr });
+    } catch (UnknownHostException e) {
+      throw new MeasurementError(e.getMessage());
+    }
+    sources.put(source, mapped);
+    return mapped;
+  }
+
+  /**
+   * Replay the capture
+   * @param capture the capture to replay
+   * @param receiver processes the packets, not running in its own thread
+   * @param speed pace relative to the capture, 0 for as fast as possible
+   * @param loops number of times the capture is replayed
+   * @return number of packets replayed
+   * @throws MeasurementError the capture is damaged
+   */
+  public long replay(PacketCapture.Reader capture, UDPReceiver receiver,
+                     double speed, int loops) throws MeasurementError {
+    byte[] buffer = new byte[Config.BUFSIZE];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    long tickNanos = Config.TIMER_TICK * 1000000L;
+    long startNanos = System.nanoTime();
+    long replayed = 0;
+    long firstNanos = 0;
+    long lastNanos = 0;
+    // added to the times of the capture in the current loop
+    long shift = 0;
+
+    for ( int loop = 0; loop < loops; loop++ ) {
+      capture.rewind();
+      while ( capture.next(packet) ) {
+        if ( replayed == 0 ) {
+          firstNanos = capture.getNanos();
+        }
+        if ( loop == 0 ) {
+          lastNanos = capture.getNanos();
+        }
+        long nanos = capture.getNanos() + shift;
+        long millis = capture.getMillis() + shift / 1000000;
+        if ( speed > 0 ) {
+          long due = startNanos + (long) ((nanos - firstNanos) / speed);
+          long now;
+          while ( (now = System.nanoTime()) < due ) {
+            LockSupport.parkNanos(due - now);
+          }
+        }
+        // the timers only see the times of the capture, so the records
+        // expire at the same packets whatever the speed
+        if ( replayed > 0 ) {
+          tick(receiver, millis);
+        }
+        packet.setAddress(mapSource(packet.getAddress()));
+        receiver.replay(packet, nanos, millis);
+        replayed++;
+        tick(receiver, millis);
+      }
+      // the next loop starts one tick after the last packet
+      shift += lastNanos - firstNanos + tickNanos;
+    }
+    return replayed;
+  }
+
+  private void tick(UDPReceiver receiver, long millis) {
+    clock = millis;
+    receiver.tick(millis);
+  }
+
+  /**
+   * Keep ticking the receiver past the end of the capture, one timer tick
+   * of the capture per tick of real time, so the sessions cut short by the
+   * end of the capture time out and are answered, and the downlink bursts
+   * have the time to go out
+   * @param receiver the receiver of the replay
+   * @param millis how long to wait
+   */
+  private void drain(UDPReceiver receiver, long millis) {
+    long end = clock + millis;
+    while ( clock < end ) {
+      LockSupport.parkNanos(Config.TIMER_TICK * 1000000L);
+      tick(receiver, clock + Config.TIMER_TICK);
+    }
+  }
+
+  /**
+   * Main function
+   * @param args capture file, speed, loops and store directory
+   */
+  public static void main(String[] args) {
+    String captureFile = null;
+    double speed = 1;
+    int loops = 1;
+    String storeDir = null;
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-speed") && i + 1 < args.length) {
+        speed = Double.parseDouble(args[++i]);
+        if ( speed < 0 ) {
+          Config.logmsg("Invalid speed " + speed);
+          return;
+        }
+      }
+      else if (args[i].equals("-loops") && i + 1 < args.length) {
+        loops = Integer.parseInt(args[++i]);
+        if ( loops < 1 ) {
+          Config.logmsg("Invalid number of loops " + loops);
+          return;
+        }
+      }
+      else if (args[i].equals("-store_dir") && i + 1 < args.length) {
+        storeDir = args[++i];
+      }
+      else {
+        captureFile = args[i];
+      }
+    }
+    if ( captureFile == null ) {
+      System.err.println("Usage: UDPReplay capture_file [-speed f] " +
+                         "[-loops n] [-store_dir dir]");
+      return;
+    }
+
+    SessionStore store = null;
+    try {
+      PacketCapture.Reader capture =
+          new PacketCapture.Reader(new File(captureFile));
+      if ( storeDir != null ) {
+        store = new SessionStore(new File(storeDir),
+            Config.STORE_SEGMENT_SIZE, Config.STORE_INDEX_ENTRIES,
+            Config.STORE_QUEUE_SIZE);
+        store.start();
+      }
+      DatagramChannel channel = UDPReceiver.bind(0);
+      BurstScheduler scheduler = new BurstScheduler(channel,
+                                                    Config.BURST_THREADS);
+      UDPReceiver receiver = new UDPReceiver(channel, scheduler);
+      if ( store != null ) {
+        receiver.setStore(store);
+      }
+      Config.logmsg("Replaying " + capture.getCount() + " packets of " +
+                    captureFile + " from port " +
+                    channel.socket().getLocalPort());
+
+      UDPReplay replay = new UDPReplay();
+      long start = System.nanoTime();
+      long replayed = replay.replay(capture, receiver, speed, loops);
+      long elapsed = Math.max(System.nanoTime() - start, 1);
+      Config.logmsg("Replayed " + replayed + " packets from " +
+                    replay.sources.size() + " sources in " +
+                    elapsed / 1000000 + " ms, " +
+                    (long) (replayed * 1e9 / elapsed) + " packets/s");
+      replay.drain(receiver, Config.REPLAY_DRAIN);
+      channel.close();
+    } catch (MeasurementError e) {
+      Config.logmsg("Replay failed: " + e.getMessage());
+    } catch (IOException e) {
+      Config.logmsg("Error closing socket: " + e.getMessage());
+    } finally {
+      if ( store != null ) {
+        store.close();
+      }
+    }
+  }
+}
@@ -14,37 +14,195 @@
  */
 package com.udpmeasurement;
 
+import java.io.File;
+import java.nio.channels.DatagramChannel;
+
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
  * Entry point of the UDP burst server
+ * Usage: UDPServer [port] [-shards n] [-echo_port n] [-echo_size n]
+ *                  [-store_dir dir] [-capture file] [-capture_mb n]
+ * With more than one shard, a dispatcher thread reads the socket and hands
+ * each client's packets to one of n receiver threads. This spreads the
+ * processing over n cores, the socket is still read by one thread
+ * An echo service for the RRC probes runs on echo_port, off by default, and
+ * answers each probe with echo_size bytes
+ * With store_dir, the results of finished sessions are kept in a
+ * SessionStore in that directory
+ * With capture, every datagram read from the socket is recorded with its
+ * source and receive time in a PacketCapture ring of capture_mb MB, for
+ * UDPReplay
  */
 public class UDPServer {
   /**
    * Main function
    * Check the port and create the receiver thread  
-   * @param args port used by server 
+   * @param args port used by server and the number of shards
    */
   public static void main(String[] args) {
     UDPReceiver deamon;
-    int port = 0;
-    
-    if (args.length == 1) {
-      port = Integer.parseInt(args[0]);
-      if ( port < 1 || port > 65535 ) {
-        Config.logmsg("Invalid port " + port);
-        return;
+    int port = Config.DEFAULT_PORT;
+    int shards = 1;
+    int echoPort = Config.ECHO_PORT;
+    int echoSize = Config.ECHO_RESPONSE_SIZE;
+    String storeDir = null;
+    String captureFile = null;
+    int captureSize = Config.CAPTURE_SIZE_MB;
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-shards") && i + 1 < args.length) {
+        shards = Integer.parseInt(args[++i]);
+        if ( shards < 1 ) {
+          Config.logmsg("Invalid number of shards " + shards);
+          return;
+        }
+      }
+      else if (args[i].equals("-echo_port") && i + 1 < args.length) {
+        echoPort = Integer.parseInt(args[++i]);
+        if ( echoPort < 0 || echoPort > 65535 ) {
+          Config.logmsg("Invalid echo port " + echoPort);
+          return;
+        }
+      }
+      else if (args[i].equals("-echo_size") && i + 1 < args.length) {
+        echoSize = Integer.parseInt(args[++i]);
+        if ( echoSize < 0 || echoSize > Config.BUFSIZE ) {
+          Config.logmsg("Invalid echo response size " + echoSize);
+          return;
+        }
+      }
+      else if (args[i].equals("-store_dir") && i + 1 < args.length) {
+        storeDir = args[++i];
+      }
+      else if (args[i].equals("-capture") && i + 1 < args.length) {
+        captureFile = args[++i];
+      }
+      else if (args[i].equals("-capture_mb") && i + 1 < args.length) {
+        captureSize = Integer.parseInt(args[++i]);
+        if ( captureSize < 1 || captureSize > 2047 ) {
+          Config.logmsg("Invalid capture size " + captureSize);
+          return;
+        }
+      }
+      else {
+        port = Integer.parseInt(args[i]);
+        if ( port < 1 || port > 65535 ) {
+          Config.logmsg("Invalid port " + port);
+          return;
+        }
       }
     }
-    else {
-      port = Config.DEFAULT_PORT;
+    Config.logmsg("UDP Burst server(Ver 2.0) runs on port " + port);
+    if ( echoPort > 0 ) {
+      startEcho(echoPort, echoSize);
     }
-    System.out.println("UDP Burst server(Ver 2.0) runs on port " + port);
+    SessionStore store = null;
+    PacketCapture capture = null;
+    DatagramChannel channel;
     try {
-      deamon = new UDPReceiver(port);
+      if ( storeDir != null ) {
+        store = new SessionStore(new File(storeDir),
+            Config.STORE_SEGMENT_SIZE, Config.STORE_INDEX_ENTRIES,
+            Config.STORE_QUEUE_SIZE);
+        store.start();
+        Config.logmsg("Sessions are stored in " + storeDir);
+      }
+      if ( captureFile != null ) {
+        capture = startCapture(new File(captureFile), captureSize);
+      }
+      channel = UDPReceiver.bind(port);
+    } catch (MeasurementError e) {
+      Config.logmsg(e.getMessage());
+      return;
+    }
+    BurstScheduler scheduler = new BurstScheduler(channel,
+                                                  Config.BURST_THREADS);
+    if ( shards > 1 ) {
+      startShards(channel, shards, scheduler, store, capture);
+      return;
+    }
+    try {
+      deamon = new UDPReceiver(channel, scheduler);
+      if ( store != null ) {
+        deamon.setStore(store);
+      }
+      if ( capture != null ) {
+        deamon.setCapture(capture);
+      }
       new Thread(deamon).start();
     } catch (MeasurementError e) {
       Config.logmsg("Error when creating receiver thread: " + e.getMessage());
     }
   }
 
+  /**
+   * Open the capture file and write it out when the server stops
+   * @param file the capture file, overwritten
+   * @param sizeMb bytes of the ring in MB
+   * @return the capture
+   * @throws MeasurementError the file could not be mapped
+   */
+  private static PacketCapture startCapture(File file, int sizeMb)
+      throws MeasurementError {
+    final PacketCapture capture = new PacketCapture(file,
+                                                    sizeMb * 1024 * 1024);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        capture.close();
+      }
+    });
+    Config.logmsg("Packets are captured in " + file);
+    return capture;
+  }
+
+  /**
+   * Start the echo service of the RRC probes in its own thread
+   * @param port used by the echo service
+   * @param responseSize bytes of every answer
+   */
+  private static void startEcho(int port, int responseSize) {
+    try {
+      EchoServer echo = new EchoServer(port, responseSize,
+          new SourceRateLimiter(Config.ECHO_RATE_PPS, Config.ECHO_BURST,
+                                Config.ECHO_SOURCES));
+      new Thread(echo, "EchoServer").start();
+    } catch (MeasurementError e) {
+      Config.logmsg("Error when creating echo thread: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Start the dispatcher and one receiver thread per shard on a shared socket
+   * @param channel the bound server channel
+   * @param shards number of receiver threads
+   * @param scheduler sends the downlink bursts of all shards
+   * @param store keeps the finished sessions of all shards, may be null
+   * @param capture records the packets read by the dispatcher, may be null
+   */
+  private static void startShards(DatagramChannel channel, int shards,
+                                  BurstScheduler scheduler,
+                                  SessionStore store, PacketCapture capture) {
+    PacketRing[] rings = new PacketRing[shards];
+    UDPDispatcher dispatcher;
+    try {
+      dispatcher = new UDPDispatcher(channel, rings);
+    } catch (MeasurementError e) {
+      Config.logmsg("Error when creating dispatcher: " + e.getMessage());
+      return;
+    }
+    if ( capture != null ) {
+      dispatcher.setCapture(capture);
+    }
+    for (int i = 0; i < shards; i++) {
+      rings[i] = new PacketRing(Config.SHARD_RING_SIZE, Config.BUFSIZE);
+      UDPReceiver receiver = new UDPReceiver(channel, rings[i], i, scheduler);
+      if ( store != null ) {
+        receiver.setStore(store);
+      }
+      new Thread(receiver, "UDPReceiver-" + i).start();
+    }
+    new Thread(dispatcher, "UDPDispatcher").start();
+  }
+
 }
@@ -0,0 +1,85 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.Test;
+
+import com.udpmeasurement.BatchSender;
+
+/**
+ * Unit test for the batched send queue
+ */
+public class TestBatchSender {
+
+  @Test
+  public void testQueueAndFlush() throws IOException {
+    DatagramSocket client = new DatagramSocket(0,
+        InetAddress.getByName("127.0.0.1"));
+    client.setSoTimeout(1000);
+    DatagramChannel channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+    try {
+      InetSocketAddress target = new InetSocketAddress(
+          client.getLocalAddress(), client.getLocalPort());
+      BatchSender sender = new BatchSender(channel, 4);
+      for (int i = 0; i < 4; i++) {
+        sender.next().putInt(i).putInt(i * 10);
+        sender.commit(target);
+      }
+      // the pool is used up until the next flush
+      assertNull(sender.next());
+      assertEquals(4, sender.getDepth());
+
+      assertTrue(sender.flush());
+      assertEquals(0, sender.getDepth());
+      assertEquals(4, sender.getMaxDepth());
+      assertEquals(4, sender.getPacketsSent());
+      assertEquals(1, sender.getFlushes());
+
+      byte[] data = new byte[1500];
+      DatagramPacket packet = new DatagramPacket(data, data.length);
+      for (int i = 0; i < 4; i++) {
+        client.receive(packet);
+        assertEquals(8, packet.getLength());
+        assertEquals(i, ByteBuffer.wrap(data).getInt());
+      }
+
+      // the buffers are reused, one that is not committed is not sent
+      sender.next().putInt(9);
+      sender.next().putInt(7);
+      sender.commit(target);
+      assertEquals(1, sender.getDepth());
+      assertTrue(sender.flush());
+      client.receive(packet);
+      assertEquals(4, packet.getLength());
+      assertEquals(5, sender.getPacketsSent());
+    } finally {
+      channel.close();
+      client.close();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import com.udpmeasurement.BurstScheduler;
+import com.udpmeasurement.Config;
+
+/**
+ * Unit test for the downlink budget of the burst scheduler
+ */
+public class TestBurstScheduler {
+
+  // the budget is checked before any packet is sent, no channel is needed
+
+  @Test
+  public void testBudget() throws InterruptedException {
+    // 1000 packets per second, at most 150 at once
+    BurstScheduler scheduler = new BurstScheduler(null, 1, 1000, 150);
+    assertTrue(scheduler.reserve(100));
+    assertTrue(scheduler.reserve(50));
+    assertFalse(scheduler.reserve(100));
+    // a refused burst takes nothing, the budget refills in 100ms
+    Thread.sleep(120);
+    assertTrue(scheduler.reserve(100));
+  }
+
+  @Test
+  public void testBurstLargerThanBudget() {
+    BurstScheduler scheduler = new BurstScheduler(null, 1, 1000, 50);
+    assertFalse(scheduler.reserve(100));
+    assertTrue(scheduler.reserve(50));
+  }
+
+  @Test
+  public void testSourceShare() throws UnknownHostException {
+    BurstScheduler scheduler = new BurstScheduler(null, 1, 1000,
+        4 * Config.SOURCE_DOWNLINK_BURST);
+    InetAddress addr = InetAddress.getByName("10.0.0.1");
+    InetAddress other = InetAddress.getByName("10.0.0.2");
+    long now = System.nanoTime();
+    // one scheduler serves all shards, so every port of the source draws
+    // from the same share
+    assertTrue(scheduler.reserve(addr, 32, Config.SOURCE_DOWNLINK_BURST,
+                                 now));
+    assertFalse(scheduler.reserve(addr, 32, 1, now));
+    // a refused source takes nothing from the global budget
+    assertTrue(scheduler.reserve(other, 32, Config.SOURCE_DOWNLINK_BURST,
+                                 now));
+    assertTrue(scheduler.reserve(2 * Config.SOURCE_DOWNLINK_BURST));
+  }
+
+  @Test
+  public void testBudgetBeforeSource() throws UnknownHostException {
+    // the budget refills 1000 packets per millisecond
+    BurstScheduler scheduler = new BurstScheduler(null, 1, 1000000,
+        Config.SOURCE_DOWNLINK_BURST);
+    InetAddress addr = InetAddress.getByName("10.0.0.1");
+    InetAddress other = InetAddress.getByName("10.0.0.2");
+    long now = 1000000000L;
+    assertTrue(scheduler.reserve(other, 32, Config.SOURCE_DOWNLINK_BURST,
+                                 now));
+    // a burst over the global budget leaves the source's share untouched
+    assertFalse(scheduler.reserve(addr, 32, Config.SOURCE_DOWNLINK_BURST,
+                                  now));
+    assertTrue(scheduler.reserve(addr, 32, Config.SOURCE_DOWNLINK_BURST,
+                                 now + 1000000L));
+  }
+
+  @Test
+  public void testReceiveClock()
+      throws UnknownHostException, InterruptedException {
+    BurstScheduler scheduler = new BurstScheduler(null, 1, 1000, 100);
+    InetAddress addr = InetAddress.getByName("10.0.0.1");
+    InetAddress other = InetAddress.getByName("10.0.0.2");
+    // the budget refills on the receive time of the requests, a replay
+    // gets the same answers however long it takes
+    long now = 5000000000L;
+    assertTrue(scheduler.reserve(addr, 32, 100, now));
+    Thread.sleep(120);
+    assertFalse(scheduler.reserve(other, 32, 100, now));
+    assertTrue(scheduler.reserve(other, 32, 100, now + 100000000L));
+  }
+}
@@ -16,9 +16,12 @@ package com.udpmeasurement.test;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 import com.udpmeasurement.ClientRecord;
+import com.udpmeasurement.MeasurementPacket;
 
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
@@ -33,11 +36,11 @@ public class TestCalculation {
   public void testNormalInversion() {
 
     ClientRecord cliRec = new ClientRecord();
-    cliRec.receivedNumberList.add(2);
-    cliRec.receivedNumberList.add(3);
-    cliRec.receivedNumberList.add(8);
-    cliRec.receivedNumberList.add(6);
-    cliRec.receivedNumberList.add(1);
+    cliRec.addPacket(2, 0);
+    cliRec.addPacket(3, 0);
+    cliRec.addPacket(8, 0);
+    cliRec.addPacket(6, 0);
+    cliRec.addPacket(1, 0);
     int result = cliRec.calculateInversionNumber();
     assertEquals ( "Inversion pair of <2,3,8,6,1> should be 5, not " + result,
         5, result );
@@ -49,7 +52,7 @@ public class TestCalculation {
   @Test
   public void testInversionSingleInput() {
     ClientRecord cliRec = new ClientRecord();
-    cliRec.receivedNumberList.add(1);
+    cliRec.addPacket(1, 0);
     int result = cliRec.calculateInversionNumber();
     assertEquals( "Inversion number of <1> should be 0, not " + result,
         0, result);
@@ -62,11 +65,11 @@ public class TestCalculation {
   @Test
   public void testNormalJitter() {
     ClientRecord cliRec = new ClientRecord();
-    cliRec.offsetedDelayList.add(1L);
-    cliRec.offsetedDelayList.add(-4L);
-    cliRec.offsetedDelayList.add(8L);
-    cliRec.offsetedDelayList.add(10L);
-    cliRec.offsetedDelayList.add(-8L);
+    cliRec.addPacket(0, 1L);
+    cliRec.addPacket(1, -4L);
+    cliRec.addPacket(2, 8L);
+    cliRec.addPacket(3, 10L);
+    cliRec.addPacket(4, -8L);
     long result = cliRec.calculateJitter();
     assertEquals( "Jitter(Standard Deviation) of <1, -4, 8, 10, -8> should be 7.66 = 7, not " + result,
         7, result);
@@ -78,9 +81,102 @@ public class TestCalculation {
   @Test
   public void testJitterSingleValue() {
     ClientRecord cliRec = new ClientRecord();
-    cliRec.offsetedDelayList.add(1L);
+    cliRec.addPacket(0, 1L);
     long result = cliRec.calculateJitter();
     assertEquals( "Jitter(Standard Deviation) of <1> should be 0, not " + result,
         0L, result);
   }
+
+  /**
+   * A fully reversed burst of n packets has n * (n - 1) / 2 inversions,
+   * the tree must grow past its first size without losing any
+   */
+  @Test
+  public void testReversedInversion() {
+    ClientRecord cliRec = new ClientRecord();
+    int n = 5000;
+    for ( int i = n - 1; i >= 0; i-- ) {
+      cliRec.addPacket(i, 0);
+    }
+    assertEquals(n * (n - 1) / 2, cliRec.calculateInversionNumber());
+
+    cliRec = new ClientRecord();
+    for ( int i = 0; i < n; i++ ) {
+      cliRec.addPacket(i, 0);
+    }
+    assertEquals(0, cliRec.calculateInversionNumber());
+  }
+
+  /**
+   * Duplicates and packet numbers outside of the burst are not counted
+   */
+  @Test
+  public void testDuplicateAndInvalid() {
+    ClientRecord cliRec = new ClientRecord();
+    cliRec.burstCount = 4;
+    assertTrue(cliRec.addPacket(1, 5L));
+    assertFalse(cliRec.addPacket(1, 500L));
+    assertFalse(cliRec.addPacket(4, 5L));
+    assertFalse(cliRec.addPacket(-1, 5L));
+    assertTrue(cliRec.addPacket(0, 5L));
+    assertEquals(2, cliRec.getPacketsReceived());
+    assertEquals(1, cliRec.getDuplicates());
+    assertEquals(2, cliRec.getInvalidPackets());
+    assertEquals(1, cliRec.calculateInversionNumber());
+    assertEquals(0L, cliRec.calculateJitter());
+  }
+
+  /**
+   * Of 0..9 receive <0,3,4,7> then <1>: the runs are <1,2> <5,6> <8,9>,
+   * then <2> <5,6> <8,9>. Filling <5> and <6> leaves <2> <8,9>
+   */
+  @Test
+  public void testLossRuns() {
+    ClientRecord cliRec = new ClientRecord();
+    cliRec.burstCount = 10;
+    cliRec.addPacket(0, 0);
+    cliRec.addPacket(3, 0);
+    cliRec.addPacket(4, 0);
+    cliRec.addPacket(7, 0);
+    assertEquals(3, cliRec.getLossRuns());
+    assertEquals(6, cliRec.getLostPackets());
+    cliRec.addPacket(1, 0);
+    assertEquals(3, cliRec.getLossRuns());
+    cliRec.addPacket(6, 0);
+    cliRec.addPacket(5, 0);
+    assertEquals(2, cliRec.getLossRuns());
+    assertEquals(3, cliRec.getLostPackets());
+    cliRec.addPacket(2, 0);
+    cliRec.addPacket(9, 0);
+    cliRec.addPacket(8, 0);
+    assertEquals(0, cliRec.getLossRuns());
+    assertEquals(0, cliRec.getLostPackets());
+  }
+
+  /**
+   * The delays of <0, 2, 3> of a burst of 4 come back in microseconds from
+   * the bitmap and the deltas
+   */
+  @Test
+  public void testWriteDelays() {
+    ClientRecord cliRec = new ClientRecord();
+    cliRec.burstCount = 4;
+    cliRec.keepDelays = true;
+    cliRec.addPacket(3, 5250000L);
+    cliRec.addPacket(0, 5000000L);
+    cliRec.addPacket(2, 4900000L);
+    ByteBuffer buffer = ByteBuffer.allocate(100);
+    cliRec.writeDelays(buffer, 4);
+    buffer.flip();
+
+    assertEquals(4, buffer.getInt());
+    assertEquals(0x0D, buffer.get());
+    long delay = 0;
+    long[] expected = {5000, 4900, 5250};
+    for ( long e : expected ) {
+      delay += MeasurementPacket.getVarLong(buffer);
+      assertEquals(e, delay);
+    }
+    assertFalse(buffer.hasRemaining());
+  }
 }
@@ -0,0 +1,140 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.udpmeasurement.ClientIdentifier;
+import com.udpmeasurement.ClientRecord;
+import com.udpmeasurement.ClientTable;
+
+/**
+ * Unit test for ClientTable.java, validate lookups, removal and eviction
+ */
+public class TestClientTable {
+  /**
+   * IPv6 addresses that only differ in their first bytes must not collide,
+   * and an IPv4 address must not match its port neighbour
+   * @throws UnknownHostException
+   */
+  @Test
+  public void TestDistinctKeys() throws UnknownHostException {
+    ClientTable<ClientRecord> table = new ClientTable<ClientRecord>(16);
+    InetAddress v6a = InetAddress.getByName("2001:db8::1");
+    InetAddress v6b = InetAddress.getByName("2001:db9::1");
+    InetAddress v4 = InetAddress.getByName("192.168.1.1");
+    ClientRecord a = new ClientRecord();
+    ClientRecord b = new ClientRecord();
+    ClientRecord c = new ClientRecord();
+    table.put(v6a, 1234, a);
+    table.put(v6b, 1234, b);
+    table.put(v4, 1234, c);
+    assertSame(a, table.get(v6a, 1234));
+    assertSame(b, table.get(v6b, 1234));
+    assertSame(c, table.get(InetAddress.getByName("192.168.1.1"), 1234));
+    assertNull(table.get(v4, 1235));
+    assertEquals(3, table.size());
+
+    assertFalse("hash codes of the two IPv6 clients should differ",
+        new ClientIdentifier(v6a, 1234).hashCode() ==
+        new ClientIdentifier(v6b, 1234).hashCode());
+  }
+
+  /**
+   * IPv6 lookups find their client whether they reuse the address object
+   * of the entry, like a sender that keeps sending, or bring an equal one
+   * @throws UnknownHostException
+   */
+  @Test
+  public void TestIPv6Lookups() throws UnknownHostException {
+    ClientTable<ClientRecord> table = new ClientTable<ClientRecord>(16);
+    InetAddress v6a = InetAddress.getByName("2001:db8::1");
+    InetAddress v6b = InetAddress.getByName("2001:db8::2");
+    ClientRecord a = new ClientRecord();
+    ClientRecord b = new ClientRecord();
+    table.put(v6a, 1234, a);
+    table.put(v6b, 1234, b);
+    for ( int i = 0; i < 3; i++ ) {
+      assertSame(a, table.get(v6a, 1234));
+      assertSame(a, table.get(v6a, 1234));
+      assertSame(b, table.get(v6b, 1234));
+    }
+    assertSame(a, table.get(InetAddress.getByName("2001:db8::1"), 1234));
+    assertNull(table.get(InetAddress.getByName("2001:db8::3"), 1234));
+    assertSame(b, table.get(v6b, 1234));
+    assertSame(a, table.remove(v6a, 1234));
+    assertNull(table.get(v6a, 1234));
+    assertSame(b, table.get(v6b, 1234));
+    assertEquals(1, table.size());
+  }
+
+  /**
+   * A full table evicts the least recently used client
+   * @throws UnknownHostException
+   */
+  @Test
+  public void TestEviction() throws UnknownHostException {
+    ClientTable<ClientRecord> table = new ClientTable<ClientRecord>(3);
+    InetAddress addr = InetAddress.getByName("10.0.0.1");
+    ClientRecord[] records = new ClientRecord[4];
+    for ( int i = 0; i < 3; i++ ) {
+      records[i] = new ClientRecord();
+      assertNull(table.put(addr, i, records[i]));
+    }
+    // 0 is used again, so 1 is the oldest
+    table.get(addr, 0);
+    records[3] = new ClientRecord();
+    assertSame(records[1], table.put(addr, 3, records[3]));
+    assertNull(table.get(addr, 1));
+    assertSame(records[0], table.get(addr, 0));
+    assertSame(records[3], table.get(addr, 3));
+    assertEquals(3, table.size());
+  }
+
+  /**
+   * Random operations on a small table agree with a HashMap, which
+   * exercises the backward shift on removal
+   * @throws UnknownHostException
+   */
+  @Test
+  public void TestAgainstHashMap() throws UnknownHostException {
+    ClientTable<ClientRecord> table = new ClientTable<ClientRecord>(64);
+    HashMap<Integer, ClientRecord> map = new HashMap<Integer, ClientRecord>();
+    InetAddress addr = InetAddress.getByName("10.0.0.2");
+    Random random = new Random(7);
+    for ( int i = 0; i < 100000; i++ ) {
+      int port = random.nextInt(60);
+      if ( random.nextBoolean() ) {
+        ClientRecord record = new ClientRecord();
+        assertNull(table.put(addr, port, record));
+        map.put(port, record);
+      }
+      else {
+        assertSame(map.remove(port), table.remove(addr, port));
+      }
+      assertEquals(map.size(), table.size());
+    }
+    for ( int port = 0; port < 60; port++ ) {
+      assertSame(map.get(port), table.get(addr, port));
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.udpmeasurement.Config;
+import com.udpmeasurement.MeasurementError;
+import com.udpmeasurement.MeasurementPacket;
+import com.udpmeasurement.UDPReceiver;
+
+/**
+ * Unit test for the clock sync exchange of v2 clients
+ */
+public class TestClockSync {
+
+  @Test
+  public void testSyncResponse() throws MeasurementError, IOException {
+    UDPReceiver receiver = new UDPReceiver(3133);
+    new Thread(receiver).start();
+    DatagramSocket client = new DatagramSocket();
+    client.setSoTimeout(1000);
+    try {
+      MeasurementPacket request = new MeasurementPacket(null);
+      request.version = 2;
+      request.type = Config.PKT_SYNC_REQUEST;
+      request.seq = 7;
+      request.packetNum = 3;
+      request.packetSize = MeasurementPacket.HEADER_SIZE_V2;
+      request.timestamp = 123456789L;
+      byte[] data = request.getByteArray();
+      long before = System.nanoTime();
+      client.send(new DatagramPacket(data, data.length,
+          InetAddress.getByName("127.0.0.1"), 3133));
+
+      byte[] reply = new byte[1500];
+      DatagramPacket packet = new DatagramPacket(reply, reply.length);
+      client.receive(packet);
+      long after = System.nanoTime();
+      assertEquals(MeasurementPacket.HEADER_SIZE_V2 +
+                   Config.SYNC_RESPONSE_EXTRA, packet.getLength());
+
+      ByteBuffer buffer = ByteBuffer.wrap(reply, 0, packet.getLength());
+      MeasurementPacket response = new MeasurementPacket(null);
+      response.decode(buffer);
+      assertEquals(2, response.version);
+      assertEquals(Config.PKT_SYNC_RESPONSE, response.type);
+      assertEquals(7, response.seq);
+      assertEquals(3, response.packetNum);
+      // T1 comes back untouched
+      assertEquals(123456789L, response.timestamp);
+      long serverReceived = buffer.getLong();
+      long serverSent = buffer.getLong();
+      // the server shares our clock here, so T2 and T3 lie in the exchange
+      assertTrue(before <= serverReceived);
+      assertTrue(serverReceived <= serverSent);
+      assertTrue(serverSent <= after);
+    } finally {
+      client.close();
+      receiver.close();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.Test;
+
+import com.udpmeasurement.BurstScheduler;
+import com.udpmeasurement.ClientIdentifier;
+import com.udpmeasurement.ClientRecord;
+import com.udpmeasurement.Config;
+import com.udpmeasurement.DownlinkBurst;
+import com.udpmeasurement.MeasurementError;
+import com.udpmeasurement.MeasurementPacket;
+import com.udpmeasurement.UDPReceiver;
+
+/**
+ * Unit test for the schedule of a downlink burst: packets are due on a
+ * fixed grid, lateness is measured against it, and the scheduler sends
+ * them on time
+ */
+public class TestDownlinkBurst {
+  private static final long MS = 1000000L;
+
+  private ClientRecord request(int burstCount, int udpInterval) {
+    ClientRecord record = new ClientRecord();
+    record.burstCount = burstCount;
+    record.udpInterval = udpInterval;
+    record.packetSize = MeasurementPacket.HEADER_SIZE;
+    record.seq = 1;
+    return record;
+  }
+
+  private ClientIdentifier client() throws IOException {
+    return new ClientIdentifier(InetAddress.getByName("127.0.0.1"), 9);
+  }
+
+  /**
+   * A late packet does not push back the ones after it
+   */
+  @Test
+  public void testLateness() throws MeasurementError, IOException {
+    long start = 1000 * MS;
+    DownlinkBurst burst = new DownlinkBurst(client(), request(4, 10), start);
+    ByteBuffer buffer = ByteBuffer.allocate(Config.BUFSIZE);
+    assertEquals(0, burst.encodeNext(start, buffer));
+    buffer.clear();
+    assertEquals(3 * MS, burst.encodeNext(start + 13 * MS, buffer));
+    buffer.clear();
+    // due at 20ms whatever happened to the previous packet
+    assertEquals(0, burst.encodeNext(start + 20 * MS, buffer));
+    buffer.clear();
+    assertFalse(burst.isDone());
+    assertEquals(1 * MS, burst.encodeNext(start + 31 * MS, buffer));
+    assertTrue(burst.isDone());
+    assertEquals(4, burst.getPacketsSent());
+    assertEquals(1 * MS, burst.getMeanLateNanos());
+    assertEquals(3 * MS, burst.getMaxLateNanos());
+  }
+
+  /**
+   * All packets of a train share a deadline and are padded to packetSize
+   */
+  @Test
+  public void testTrainSchedule() throws MeasurementError, IOException {
+    long start = 1000 * MS;
+    ClientRecord record = request(6, 10);
+    record.packetSize = 200;
+    DownlinkBurst burst = new DownlinkBurst(client(), record, 3, start);
+    ByteBuffer buffer = ByteBuffer.allocate(Config.BUFSIZE);
+    for ( int i = 0; i < 3; i++ ) {
+      buffer.clear();
+      assertEquals(0, burst.encodeNext(start, buffer));
+      assertEquals(200, buffer.position());
+    }
+    buffer.clear();
+    assertEquals(2 * MS, burst.encodeNext(start + 12 * MS, buffer));
+    buffer.clear();
+    // the rest of the second train is due at 10ms too
+    assertEquals(2 * MS, burst.encodeNext(start + 12 * MS, buffer));
+  }
+
+  /**
+   * The scheduler sends every packet on its grid, in order
+   */
+  @Test
+  public void testPacing() throws MeasurementError, IOException {
+    DatagramChannel channel = UDPReceiver.bind(0);
+    DatagramSocket client = new DatagramSocket(0,
+        InetAddress.getByName("127.0.0.1"));
+    client.setSoTimeout(1000);
+    BurstScheduler scheduler = new BurstScheduler(channel, 1);
+    try {
+      int count = 10;
+      int interval = 20;
+      long start = System.nanoTime() + 10 * MS;
+      scheduler.submit(new DownlinkBurst(
+          new ClientIdentifier(client.getLocalAddress(),
+                               client.getLocalPort()),
+          request(count, interval), start));
+
+      byte[] data = new byte[Config.BUFSIZE];
+      DatagramPacket packet = new DatagramPacket(data, data.length);
+      MeasurementPacket message = new MeasurementPacket(null);
+      for ( int i = 0; i < count; i++ ) {
+        client.receive(packet);
+        long arrival = System.nanoTime();
+        message.decode(ByteBuffer.wrap(data, 0, packet.getLength()));
+        assertEquals(Config.PKT_DATA, message.type);
+        assertEquals(i, message.packetNum);
+        assertTrue("packet " + i + " sent early",
+                   arrival >= start + i * interval * MS);
+        // generous, the test machine may be busy
+        assertTrue("packet " + i + " sent late",
+                   arrival < start + (i * interval + 15) * MS);
+      }
+    } finally {
+      scheduler.close();
+      client.close();
+      channel.close();
+    }
+  }
+}
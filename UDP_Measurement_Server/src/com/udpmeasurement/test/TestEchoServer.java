@@ -0,0 +1,108 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import com.udpmeasurement.EchoServer;
+import com.udpmeasurement.MeasurementError;
+import com.udpmeasurement.SourceRateLimiter;
+
+/**
+ * Unit test for the echo service and its rate limiter
+ */
+public class TestEchoServer {
+
+  @Test
+  public void testLimiterBurstAndRefill() throws IOException {
+    SourceRateLimiter limiter = new SourceRateLimiter(100, 5, 16);
+    InetAddress addr = InetAddress.getByName("192.168.1.1");
+    long now = 1000000000L;
+    for (int i = 0; i < 5; i++) {
+      assertTrue(limiter.allow(addr, 10, now));
+    }
+    assertFalse(limiter.allow(addr, 10, now));
+    // 100 pps refills a token every 10 ms
+    assertTrue(limiter.allow(addr, 10, now + 10000000L));
+    assertFalse(limiter.allow(addr, 10, now + 10000000L));
+
+    // another source has its own bucket
+    assertTrue(limiter.allow(InetAddress.getByName("192.168.1.2"), 10, now));
+
+    SourceRateLimiter.Source source = limiter.getSource(addr);
+    assertEquals(8, source.packets);
+    assertEquals(80, source.bytes);
+    assertEquals(2, source.limited);
+    assertEquals(2, limiter.getLimited());
+    assertEquals(2, limiter.getSourceCount());
+  }
+
+  @Test
+  public void testLimiterCost() throws IOException {
+    SourceRateLimiter limiter = new SourceRateLimiter(1000, 200, 16);
+    InetAddress addr = InetAddress.getByName("192.168.1.1");
+    long now = 1000000000L;
+    assertTrue(limiter.allow(addr, 36, 100, now));
+    assertTrue(limiter.allow(addr, 36, 100, now));
+    // a refused packet takes no token
+    assertFalse(limiter.allow(addr, 36, 100, now));
+    assertTrue(limiter.allow(addr, 36, 100, now + 100000000L));
+  }
+
+  @Test
+  public void testEcho() throws MeasurementError, IOException {
+    EchoServer echo = new EchoServer(0, 64,
+        new SourceRateLimiter(1, 10, 16));
+    Thread thread = new Thread(echo);
+    thread.start();
+    DatagramSocket client = new DatagramSocket();
+    client.setSoTimeout(1000);
+    try {
+      InetAddress local = InetAddress.getByName("127.0.0.1");
+      byte[] probe = new byte[8];
+      for (int i = 0; i < 20; i++) {
+        client.send(new DatagramPacket(probe, probe.length, local,
+                                       echo.getPort()));
+      }
+      // the burst of 10 is answered, the rest is rate limited
+      byte[] reply = new byte[1500];
+      int replies = 0;
+      try {
+        while ( true ) {
+          DatagramPacket packet = new DatagramPacket(reply, reply.length);
+          client.receive(packet);
+          assertEquals(64, packet.getLength());
+          replies++;
+        }
+      } catch (SocketTimeoutException e) {
+        // no more replies
+      }
+      assertEquals(10, replies);
+    } finally {
+      client.close();
+      echo.close();
+    }
+  }
+}
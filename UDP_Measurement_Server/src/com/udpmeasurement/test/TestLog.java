@@ -0,0 +1,70 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.udpmeasurement.Log;
+
+/**
+ * Unit test for Log.java, validate level parsing and gating
+ */
+public class TestLog {
+  @After
+  public void restoreLevel() {
+    Log.setLevel(Log.INFO);
+  }
+
+  /**
+   * Level names are case insensitive, unknown ones fall back
+   */
+  @Test
+  public void TestParseLevel() {
+    assertEquals(Log.DEBUG, Log.parseLevel("debug", Log.INFO));
+    assertEquals(Log.WARN, Log.parseLevel("WARN", Log.INFO));
+    assertEquals(Log.INFO, Log.parseLevel("verbose", Log.INFO));
+    assertEquals(Log.ERROR, Log.parseLevel(null, Log.ERROR));
+  }
+
+  /**
+   * Debug messages are only enabled at debug level
+   */
+  @Test
+  public void TestGating() {
+    Log.setLevel(Log.INFO);
+    assertFalse("debug must be off at info level", Log.isDebug());
+    Log.setLevel(Log.DEBUG);
+    assertTrue("debug must be on at debug level", Log.isDebug());
+  }
+
+  /**
+   * Messages below the level are discarded before they are queued, the
+   * ones at the level take a slot in the ring
+   */
+  @Test
+  public void TestGatedMessagesAreNotQueued() {
+    Log.setLevel(Log.ERROR);
+    long queued = Log.getQueued();
+    for (int i = 0; i < 100000; i++) {
+      Log.debug("gated");
+    }
+    assertEquals(queued, Log.getQueued());
+    Log.error("not gated");
+    assertEquals(queued + 1, Log.getQueued());
+  }
+}
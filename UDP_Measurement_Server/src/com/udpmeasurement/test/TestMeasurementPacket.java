@@ -18,6 +18,7 @@ import static org.junit.Assert.*;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
@@ -64,4 +65,103 @@ public class TestMeasurementPacket {
     }
   }
 
+  /**
+   * Test encode and decode through one reused buffer
+   * @throws MeasurementError
+   */
+  @Test
+  public void TestReusedBuffer() throws MeasurementError {
+    ByteBuffer buffer = ByteBuffer.allocate(Config.BUFSIZE);
+    MeasurementPacket out = new MeasurementPacket(null);
+    MeasurementPacket in = new MeasurementPacket(null);
+    for ( int i = 0; i < 3; i++ ) {
+      out.clear();
+      out.type = Config.PKT_DATA;
+      out.burstCount = 10;
+      out.packetNum = i;
+      out.timestamp = 1234567890123L + i;
+      out.packetSize = Config.MIN_PACKETSIZE;
+      out.seq = 7;
+      buffer.clear();
+      out.encode(buffer);
+      assertEquals("Header length", MeasurementPacket.HEADER_SIZE,
+        buffer.position());
+
+      buffer.flip();
+      in.decode(buffer);
+      assertEquals(out.type, in.type);
+      assertEquals(out.burstCount, in.burstCount);
+      assertEquals(out.packetNum, in.packetNum);
+      assertEquals(out.timestamp, in.timestamp);
+      assertEquals(out.packetSize, in.packetSize);
+      assertEquals(out.seq, in.seq);
+      assertEquals(0, in.udpInterval);
+    }
+  }
+
+  /**
+   * Test that a message shorter than the header is rejected
+   */
+  @Test(expected = MeasurementError.class)
+  public void TestShortMessage() throws MeasurementError {
+    ByteBuffer buffer = ByteBuffer.allocate(Config.BUFSIZE);
+    buffer.limit(MeasurementPacket.HEADER_SIZE - 1);
+    new MeasurementPacket(null).decode(buffer);
+  }
+
+  /**
+   * Test that a v2 header is told from v1 and keeps its fields
+   * @throws MeasurementError
+   */
+  @Test
+  public void TestVersion2() throws MeasurementError {
+    MeasurementPacket out = new MeasurementPacket(null);
+    out.version = 2;
+    out.type = Config.PKT_DATA;
+    out.flags = MeasurementPacket.FLAG_DELAYS;
+    out.seq = 9;
+    out.burstCount = 100;
+    out.packetNum = 42;
+    out.packetSize = 200;
+    out.udpInterval = 5;
+    out.timestamp = 123456789012345678L;
+    byte[] raw = out.getByteArray();
+    assertEquals(MeasurementPacket.HEADER_SIZE_V2, raw.length);
+
+    MeasurementPacket in = new MeasurementPacket(null, raw);
+    assertEquals(2, in.version);
+    assertEquals(MeasurementPacket.FLAG_DELAYS, in.flags);
+    assertEquals(9, in.seq);
+    assertEquals(100, in.burstCount);
+    assertEquals(42, in.packetNum);
+    assertEquals(200, in.packetSize);
+    assertEquals(5, in.udpInterval);
+    assertEquals(123456789012345678L, in.timestamp);
+
+    // the flyweight goes back to v1 for a v1 message
+    out.clear();
+    out.type = Config.PKT_DATA;
+    in.decode(ByteBuffer.wrap(out.getByteArray()));
+    assertEquals(1, in.version);
+    assertEquals(0, in.flags);
+  }
+
+  /**
+   * Test zigzag varints of both signs and their length
+   */
+  @Test
+  public void TestVarLong() {
+    long[] values = {0, 1, -1, 63, -64, 64, 1000000, -1000000,
+                     Long.MAX_VALUE, Long.MIN_VALUE};
+    ByteBuffer buffer = ByteBuffer.allocate(values.length * 10);
+    for ( long value : values ) {
+      MeasurementPacket.putVarLong(buffer, value);
+    }
+    assertEquals("small values take one byte", 1 + 1 + 1 + 1 + 1 + 2 + 3 + 3 +
+        10 + 10, buffer.position());
+    buffer.flip();
+    for ( long value : values ) {
+      assertEquals(value, MeasurementPacket.getVarLong(buffer));
+    }
+  }
 }
@@ -0,0 +1,224 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.udpmeasurement.Config;
+import com.udpmeasurement.MeasurementError;
+import com.udpmeasurement.MeasurementPacket;
+import com.udpmeasurement.PacketCapture;
+import com.udpmeasurement.UDPReceiver;
+
+/**
+ * Unit test for the packet capture ring and the replay of its packets
+ * through a receiver
+ */
+public class TestPacketCapture {
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("capture", ".cap");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  private DatagramPacket packet(int number, int length, InetAddress addr) {
+    byte[] data = new byte[length];
+    ByteBuffer.wrap(data).putInt(number);
+    return new DatagramPacket(data, length, addr, 1000 + number);
+  }
+
+  @Test
+  public void testRoundTrip() throws MeasurementError, IOException {
+    InetAddress v4 = InetAddress.getByName("192.168.1.1");
+    InetAddress v6 = InetAddress.getByName("2001:db8::1");
+    PacketCapture capture = new PacketCapture(file, 4096);
+    for ( int i = 0; i < 10; i++ ) {
+      capture.write(packet(i, 40 + i, i % 2 == 0 ? v4 : v6), 1000L * i);
+    }
+    capture.close();
+    assertEquals(10, capture.getCaptured());
+
+    PacketCapture.Reader reader = new PacketCapture.Reader(file);
+    assertEquals(10, reader.getCount());
+    DatagramPacket into = new DatagramPacket(new byte[Config.BUFSIZE],
+                                             Config.BUFSIZE);
+    for ( int i = 0; i < 10; i++ ) {
+      assertTrue(reader.next(into));
+      assertEquals(i, ByteBuffer.wrap(into.getData()).getInt());
+      assertEquals(40 + i, into.getLength());
+      assertEquals(i % 2 == 0 ? v4 : v6, into.getAddress());
+      assertEquals(1000 + i, into.getPort());
+      assertEquals(1000L * i, reader.getNanos());
+    }
+    assertFalse(reader.next(into));
+    reader.rewind();
+    assertTrue(reader.next(into));
+    assertEquals(0, ByteBuffer.wrap(into.getData()).getInt());
+  }
+
+  /**
+   * Records of 72 bytes in a ring of 256: three fit, and each wrap leaves
+   * a gap of 40 bytes at the end
+   */
+  @Test
+  public void testWrap() throws MeasurementError, IOException {
+    InetAddress addr = InetAddress.getByName("10.0.0.1");
+    PacketCapture capture = new PacketCapture(file, 256);
+    for ( int written = 1; written <= 20; written++ ) {
+      capture.write(packet(written - 1, 40, addr), written);
+
+      PacketCapture.Reader reader = new PacketCapture.Reader(file);
+      DatagramPacket into = new DatagramPacket(new byte[Config.BUFSIZE],
+                                               Config.BUFSIZE);
+      int count = reader.getCount();
+      assertTrue(count >= 1 && count <= 3);
+      // the newest packets, oldest first
+      for ( int i = written - count; i < written; i++ ) {
+        assertTrue(reader.next(into));
+        assertEquals(i, ByteBuffer.wrap(into.getData()).getInt());
+        assertEquals(i + 1, reader.getNanos());
+      }
+      assertFalse(reader.next(into));
+    }
+    assertEquals(20, capture.getCaptured());
+  }
+
+  @Test
+  public void testOversizedPacket() throws MeasurementError, IOException {
+    PacketCapture capture = new PacketCapture(file, 64);
+    capture.write(packet(0, 40, InetAddress.getByName("10.0.0.1")), 1);
+    assertEquals(0, capture.getCaptured());
+    assertEquals(0, new PacketCapture.Reader(file).getCount());
+  }
+
+  @Test(expected = MeasurementError.class)
+  public void testNotACapture() throws MeasurementError, IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(PacketCapture.HEADER_SIZE);
+    raf.close();
+    new PacketCapture.Reader(file);
+  }
+
+  /**
+   * A replayed sync request is answered with the receive time of the
+   * capture, not the time it was replayed
+   */
+  @Test
+  public void testReplayTime() throws MeasurementError, IOException {
+    UDPReceiver receiver = new UDPReceiver(3134);
+    DatagramSocket client = new DatagramSocket(0,
+        InetAddress.getByName("127.0.0.1"));
+    client.setSoTimeout(1000);
+    try {
+      MeasurementPacket request = new MeasurementPacket(null);
+      request.version = 2;
+      request.type = Config.PKT_SYNC_REQUEST;
+      request.seq = 5;
+      request.packetSize = MeasurementPacket.HEADER_SIZE_V2;
+      request.timestamp = 100L;
+      byte[] data = request.getByteArray();
+      receiver.replay(new DatagramPacket(data, data.length,
+          client.getLocalAddress(), client.getLocalPort()), 4242L, 1L);
+      receiver.tick(1L);
+
+      byte[] reply = new byte[1500];
+      DatagramPacket packet = new DatagramPacket(reply, reply.length);
+      client.receive(packet);
+      ByteBuffer buffer = ByteBuffer.wrap(reply, 0, packet.getLength());
+      MeasurementPacket response = new MeasurementPacket(null);
+      response.decode(buffer);
+      assertEquals(Config.PKT_SYNC_RESPONSE, response.type);
+      assertEquals(5, response.seq);
+      assertEquals(100L, response.timestamp);
+      assertEquals(4242L, buffer.getLong());
+    } finally {
+      client.close();
+      receiver.close();
+    }
+  }
+
+  /**
+   * A replayed burst that is cut short times out on the clock of the
+   * capture, not on the wall clock
+   */
+  @Test
+  public void testReplayTimeout() throws MeasurementError, IOException {
+    UDPReceiver receiver = new UDPReceiver(3134);
+    DatagramSocket client = new DatagramSocket(0,
+        InetAddress.getByName("127.0.0.1"));
+    client.setSoTimeout(200);
+    try {
+      MeasurementPacket message = new MeasurementPacket(null);
+      message.type = Config.PKT_DATA;
+      message.burstCount = 10;
+      message.packetSize = 100;
+      message.seq = 9;
+      byte[] data = new byte[message.packetSize];
+      DatagramPacket packet = new DatagramPacket(data, data.length,
+          client.getLocalAddress(), client.getLocalPort());
+      // half of the burst arrives, long ago
+      long start = 1000000L;
+      for ( int i = 0; i < 5; i++ ) {
+        message.packetNum = i;
+        message.timestamp = start + i;
+        byte[] header = message.getByteArray();
+        System.arraycopy(header, 0, data, 0, header.length);
+        receiver.replay(packet, (start + i) * 1000000L, start + i);
+        receiver.tick(start + i);
+      }
+
+      byte[] reply = new byte[1500];
+      DatagramPacket response = new DatagramPacket(reply, reply.length);
+      receiver.tick(start + Config.DEFAULT_TIMEOUT / 2);
+      try {
+        client.receive(response);
+        fail("burst answered before its timeout");
+      } catch (SocketTimeoutException e) {
+        // still waiting for the rest of the burst
+      }
+      receiver.tick(start + 4 + Config.DEFAULT_TIMEOUT +
+                    2 * Config.TIMER_TICK);
+      client.receive(response);
+      message.decode(ByteBuffer.wrap(reply, 0, response.getLength()));
+      assertEquals(Config.PKT_RESPONSE, message.type);
+      assertEquals(9, message.seq);
+    } finally {
+      client.close();
+      receiver.close();
+    }
+  }
+}
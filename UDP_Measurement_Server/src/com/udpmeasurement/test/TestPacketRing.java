@@ -0,0 +1,99 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import com.udpmeasurement.PacketRing;
+import com.udpmeasurement.UDPDispatcher;
+
+/**
+ * Unit test for PacketRing.java and the shard choice of UDPDispatcher
+ */
+public class TestPacketRing {
+  private DatagramPacket packet(int port, byte value, int length)
+      throws UnknownHostException {
+    byte[] data = new byte[length];
+    data[0] = value;
+    return new DatagramPacket(data, length,
+                              InetAddress.getByName("192.168.1.1"), port);
+  }
+
+  /**
+   * Packets come out in order with their length, address and port
+   * @throws UnknownHostException
+   */
+  @Test
+  public void TestOrder() throws UnknownHostException {
+    PacketRing ring = new PacketRing(4, 100);
+    DatagramPacket into = new DatagramPacket(new byte[100], 100);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(ring.offer(packet(1000 + i, (byte) i, 36 + i)));
+      }
+      for (int i = 0; i < 4; i++) {
+        assertTrue(ring.poll(into, 0));
+        assertEquals(i, into.getData()[0]);
+        assertEquals(36 + i, into.getLength());
+        assertEquals(1000 + i, into.getPort());
+        assertEquals(InetAddress.getByName("192.168.1.1"), into.getAddress());
+      }
+    }
+    assertEquals(0, ring.size());
+  }
+
+  /**
+   * A full ring drops and counts, an empty one times out
+   * @throws UnknownHostException
+   */
+  @Test
+  public void TestFullAndEmpty() throws UnknownHostException {
+    PacketRing ring = new PacketRing(2, 100);
+    DatagramPacket into = new DatagramPacket(new byte[100], 100);
+    assertFalse("empty ring must time out", ring.poll(into, 1000000L));
+    assertTrue(ring.offer(packet(1, (byte) 1, 36)));
+    assertTrue(ring.offer(packet(2, (byte) 2, 36)));
+    assertFalse("full ring must drop", ring.offer(packet(3, (byte) 3, 36)));
+    assertEquals(1, ring.getDropped());
+    assertTrue(ring.poll(into, 0));
+    assertEquals(1, into.getPort());
+  }
+
+  /**
+   * A client always maps to the same shard, and the shards all get clients
+   * @throws UnknownHostException
+   */
+  @Test
+  public void TestShardOf() throws UnknownHostException {
+    InetAddress addr = InetAddress.getByName("10.0.0.1");
+    int shards = 4;
+    int[] counts = new int[shards];
+    for (int port = 10000; port < 10400; port++) {
+      int shard = UDPDispatcher.shardOf(addr, port, shards);
+      assertEquals(shard, UDPDispatcher.shardOf(
+          InetAddress.getByName("10.0.0.1"), port, shards));
+      counts[shard]++;
+    }
+    for (int count : counts) {
+      assertTrue("shards must be balanced", count > 50);
+    }
+  }
+}
@@ -84,7 +84,7 @@ public class TestProcessPacket {
       // InvocationTargetException wrapped the real cause, just unwrap it
       throw e.getCause();
     } finally {
-      tmpReceiver.socket.close();
+      tmpReceiver.close();
     }
   }
 
@@ -103,7 +103,7 @@ public class TestProcessPacket {
       // InvocationTargetException wrapped the real cause, just unwrap it
       throw e.getCause();
     } finally {
-      tmpReceiver.socket.close();
+      tmpReceiver.close();
     }
   }
 
@@ -123,7 +123,7 @@ public class TestProcessPacket {
       // InvocationTargetException wrapped the real cause, just unwrap it
       throw e.getCause();
     } finally {
-      tmpReceiver.socket.close();
+      tmpReceiver.close();
     }
   }
   
@@ -145,7 +145,7 @@ public class TestProcessPacket {
       // InvocationTargetException wrapped the real cause, just unwrap it
       throw e.getCause();
     } finally {
-      tmpReceiver.socket.close();
+      tmpReceiver.close();
     }
   }
   
@@ -168,7 +168,7 @@ public class TestProcessPacket {
       // InvocationTargetException wrapped the real exception, just unwrap it
       throw e.getCause();
     } finally {
-      tmpReceiver.socket.close();
+      tmpReceiver.close();
     }
     
     packet.packetNum = 1;
@@ -180,7 +180,7 @@ public class TestProcessPacket {
       // InvocationTargetException wrapped the real exception, just unwrap it
       throw e.getCause();
     } finally {
-      tmpReceiver.socket.close();
+      tmpReceiver.close();
     }
   }
   
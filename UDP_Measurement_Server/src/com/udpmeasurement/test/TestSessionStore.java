@@ -0,0 +1,199 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.udpmeasurement.MeasurementError;
+import com.udpmeasurement.SessionStore;
+
+/**
+ * Unit test for the session store: rolling segments, scans by client and
+ * time, and recovery after a restart or a torn record
+ */
+public class TestSessionStore {
+  private File dir;
+  private InetAddress first;
+  private InetAddress second;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("sessionstore").toFile();
+    first = InetAddress.getByName("192.168.1.1");
+    second = InetAddress.getByName("2001:db8::1");
+  }
+
+  @After
+  public void tearDown() {
+    for ( File file : dir.listFiles() ) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  /**
+   * A small store that rolls its segment every few records
+   */
+  private SessionStore open() throws MeasurementError {
+    SessionStore store = new SessionStore(dir, 1024, 8, 1024);
+    store.start();
+    return store;
+  }
+
+  private void append(SessionStore store, int from, int to) {
+    ByteBuffer payload = ByteBuffer.allocate(8);
+    for ( int i = from; i < to; i++ ) {
+      payload.clear();
+      payload.putInt(i);
+      payload.putInt(i * 2);
+      payload.flip();
+      assertTrue(store.append(i % 3, i % 2 == 0 ? first : second, 1000 + i,
+                              payload));
+    }
+  }
+
+  /**
+   * @return the first int of the payload of every record scanned
+   */
+  private ArrayList<Integer> scan(long from, long to, InetAddress client)
+      throws IOException {
+    final ArrayList<Integer> values = new ArrayList<Integer>();
+    SessionStore.scan(dir, from, to, client, new SessionStore.Visitor() {
+      public boolean visit(SessionStore.Entry entry) {
+        int value = entry.payload.getInt();
+        assertEquals(value * 2, entry.payload.getInt());
+        assertEquals(0, entry.payload.remaining());
+        assertEquals(value % 3, entry.kind);
+        assertEquals(1000 + value, entry.port);
+        values.add(value);
+        return true;
+      }
+    });
+    return values;
+  }
+
+  private static ArrayList<Integer> range(int from, int to, int step) {
+    ArrayList<Integer> values = new ArrayList<Integer>();
+    for ( int i = from; i < to; i += step ) {
+      values.add(i);
+    }
+    return values;
+  }
+
+  @Test
+  public void testAppendAndScan() throws MeasurementError, IOException {
+    SessionStore store = open();
+    append(store, 0, 50);
+    store.close();
+    assertEquals(50, store.getWritten());
+    assertEquals(0, store.getDropped());
+    // 8 records per segment
+    assertEquals(7, dir.list().length / 2);
+
+    assertEquals(range(0, 50, 1), scan(0, Long.MAX_VALUE, null));
+    assertEquals(range(0, 50, 2), scan(0, Long.MAX_VALUE, first));
+    assertEquals(range(1, 50, 2), scan(0, Long.MAX_VALUE, second));
+    long now = System.currentTimeMillis();
+    assertTrue(scan(now + 1000, Long.MAX_VALUE, null).isEmpty());
+    assertTrue(scan(0, now - 60000, null).isEmpty());
+  }
+
+  @Test
+  public void testScanStops() throws MeasurementError, IOException {
+    SessionStore store = open();
+    append(store, 0, 20);
+    store.close();
+    final int[] visited = new int[1];
+    long count = SessionStore.scan(dir, 0, Long.MAX_VALUE, null,
+        new SessionStore.Visitor() {
+          public boolean visit(SessionStore.Entry entry) {
+            return ++visited[0] < 5;
+          }
+        });
+    assertEquals(5, count);
+    assertEquals(5, visited[0]);
+  }
+
+  @Test
+  public void testReopen() throws MeasurementError, IOException {
+    SessionStore store = open();
+    append(store, 0, 12);
+    store.close();
+    // appending goes on in the half full segment
+    store = open();
+    append(store, 12, 20);
+    store.close();
+    assertEquals(3, dir.list().length / 2);
+    assertEquals(range(0, 20, 1), scan(0, Long.MAX_VALUE, null));
+  }
+
+  @Test
+  public void testReopenSmaller() throws MeasurementError, IOException {
+    SessionStore store = new SessionStore(dir, 1024, 64, 1024);
+    store.start();
+    append(store, 0, 12);
+    store.close();
+    // smaller segments now, the half full one keeps its size and records
+    store = new SessionStore(dir, 256, 8, 1024);
+    store.start();
+    append(store, 12, 16);
+    store.close();
+    String[] names = dir.list();
+    Arrays.sort(names);
+    assertEquals(2, names.length);
+    assertEquals(1024, new File(dir, names[1]).length());
+    assertEquals(range(0, 16, 1), scan(0, Long.MAX_VALUE, null));
+  }
+
+  @Test
+  public void testTornRecord() throws MeasurementError, IOException {
+    SessionStore store = open();
+    append(store, 0, 12);
+    store.close();
+
+    // damage the payload of the last record, as a crash during its write
+    String[] names = dir.list();
+    Arrays.sort(names);
+    File last = new File(dir, names[names.length - 1]);
+    assertTrue(last.getName().endsWith(".seg"));
+    RandomAccessFile raf = new RandomAccessFile(last, "rw");
+    raf.seek(3 * (SessionStore.RECORD_HEADER + 8) + SessionStore.RECORD_HEADER);
+    raf.writeInt(-1);
+    raf.close();
+
+    store = open();
+    append(store, 12, 14);
+    store.close();
+    // the torn record is gone and the segment sealed
+    assertEquals(3, dir.list().length / 2);
+    ArrayList<Integer> expected = range(0, 11, 1);
+    expected.addAll(range(12, 14, 1));
+    assertEquals(expected, scan(0, Long.MAX_VALUE, null));
+  }
+}
@@ -0,0 +1,93 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.udpmeasurement.Config;
+import com.udpmeasurement.StreamRecord;
+
+/**
+ * Unit test for StreamRecord.java, validate how windows advance
+ */
+public class TestStreamRecord {
+  /**
+   * Windows of 10 packets: the window after next pushes out the oldest,
+   * whose stats stay readable until it is advanced
+   */
+  @Test
+  public void TestAdvance() {
+    StreamRecord stream = new StreamRecord(10);
+    for ( int i = 0; i < 20; i++ ) {
+      if ( i != 3 ) {
+        assertFalse(stream.needsAdvance(i));
+        assertTrue(stream.addPacket(i, 5L, 1000 + i));
+      }
+    }
+    assertTrue(stream.needsAdvance(20));
+    assertEquals(0, stream.getOldestWindowIndex());
+    assertEquals(9, stream.getOldestWindow().getPacketsReceived());
+    assertEquals(1, stream.getOldestWindow().getLostPackets());
+    assertEquals(9, stream.getOldestWindowSpan());
+
+    stream.advance(20);
+    assertFalse(stream.needsAdvance(20));
+    assertEquals(1, stream.getOldestWindowIndex());
+    assertEquals(10, stream.getOldestWindow().getPacketsReceived());
+    assertEquals(1, stream.getWindowsReported());
+
+    // packet 3 arrives after its window was reported
+    assertFalse(stream.addPacket(3, 5L, 2000));
+    assertEquals(1, stream.getLatePackets());
+    assertEquals(19, stream.getTotalReceived());
+    assertEquals(20, stream.getExpectedPackets());
+  }
+
+  /**
+   * After a long silence the session jumps to the new window instead of
+   * walking every empty one
+   */
+  @Test
+  public void TestJump() {
+    StreamRecord stream = new StreamRecord(10);
+    stream.addPacket(0, 5L, 1000);
+    // the oldest window is reported and dropped
+    stream.advance(1000);
+    assertTrue(stream.isEmpty());
+    assertTrue(stream.needsAdvance(1000));
+    stream.advance(1000);
+    assertFalse(stream.needsAdvance(1000));
+    assertEquals(99, stream.getOldestWindowIndex());
+    assertTrue(stream.addPacket(1000, 5L, 2000));
+    assertEquals(1, stream.getWindowsReported());
+  }
+
+  /**
+   * Packet numbers out of the session are ignored
+   */
+  @Test
+  public void TestInvalid() {
+    StreamRecord stream = new StreamRecord(10);
+    assertFalse(stream.needsAdvance(-1));
+    // a number past the session must not flush the windows
+    assertFalse(stream.needsAdvance(Config.MAX_STREAM_PACKETS));
+    assertFalse(stream.needsAdvance(Integer.MAX_VALUE));
+    assertFalse(stream.addPacket(-1, 5L, 1000));
+    assertFalse(stream.addPacket(Integer.MAX_VALUE, 5L, 1000));
+    assertEquals(0, stream.getTotalReceived());
+  }
+}
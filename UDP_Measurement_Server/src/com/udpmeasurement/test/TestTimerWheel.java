@@ -0,0 +1,126 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.udpmeasurement.ClientRecord;
+import com.udpmeasurement.TimedRecord;
+import com.udpmeasurement.TimerWheel;
+
+/**
+ * Unit test for TimerWheel.java, validate when records expire
+ */
+public class TestTimerWheel {
+  private static final long TICK = 50;
+  private static final long START = 1000000;
+
+  /**
+   * A record expires once the tick of its deadline is over, not before
+   */
+  @Test
+  public void TestExpire() {
+    TimerWheel wheel = new TimerWheel(TICK, 16, START);
+    ClientRecord record = new ClientRecord();
+    wheel.schedule(record, START + 3000);
+    ArrayList<TimedRecord> expired = new ArrayList<TimedRecord>();
+
+    wheel.advance(START + 2999, expired);
+    assertTrue("record must not expire early", expired.isEmpty());
+    assertEquals(1, wheel.size());
+
+    wheel.advance(START + 3000 + TICK, expired);
+    assertEquals(1, expired.size());
+    assertSame(record, expired.get(0));
+    assertEquals(0, wheel.size());
+  }
+
+  /**
+   * Rescheduling replaces the old deadline
+   */
+  @Test
+  public void TestReschedule() {
+    TimerWheel wheel = new TimerWheel(TICK, 16, START);
+    ClientRecord record = new ClientRecord();
+    wheel.schedule(record, START + 100);
+    wheel.schedule(record, START + 500);
+    assertEquals(1, wheel.size());
+    ArrayList<TimedRecord> expired = new ArrayList<TimedRecord>();
+
+    wheel.advance(START + 300, expired);
+    assertTrue("old deadline must be gone", expired.isEmpty());
+    wheel.advance(START + 600, expired);
+    assertEquals(1, expired.size());
+  }
+
+  /**
+   * Cancelled records never expire, the others in the slot still do
+   */
+  @Test
+  public void TestCancel() {
+    TimerWheel wheel = new TimerWheel(TICK, 16, START);
+    ClientRecord first = new ClientRecord();
+    ClientRecord second = new ClientRecord();
+    ClientRecord third = new ClientRecord();
+    wheel.schedule(first, START + 100);
+    wheel.schedule(second, START + 100);
+    wheel.schedule(third, START + 100);
+    wheel.cancel(second);
+    wheel.cancel(second);
+    assertEquals(2, wheel.size());
+
+    ArrayList<TimedRecord> expired = new ArrayList<TimedRecord>();
+    wheel.advance(START + 1000, expired);
+    assertEquals(2, expired.size());
+    assertFalse(expired.contains(second));
+  }
+
+  /**
+   * Deadlines beyond one turn of the wheel wait for their own turn
+   */
+  @Test
+  public void TestLongDeadline() {
+    TimerWheel wheel = new TimerWheel(TICK, 16, START);
+    ClientRecord record = new ClientRecord();
+    // 16 slots of 50 ms is 800 ms per turn
+    wheel.schedule(record, START + 2000);
+    ArrayList<TimedRecord> expired = new ArrayList<TimedRecord>();
+    for (long now = START; now < START + 2000; now += 10) {
+      wheel.advance(now, expired);
+    }
+    assertTrue("record must wait for its turn", expired.isEmpty());
+    wheel.advance(START + 2100, expired);
+    assertEquals(1, expired.size());
+  }
+
+  /**
+   * After a gap longer than a turn everything due still expires
+   */
+  @Test
+  public void TestLongGap() {
+    TimerWheel wheel = new TimerWheel(TICK, 16, START);
+    ArrayList<TimedRecord> expired = new ArrayList<TimedRecord>();
+    for (int i = 0; i < 100; i++) {
+      wheel.schedule(new ClientRecord(), START + i * 37);
+    }
+    wheel.advance(START + 60000, expired);
+    assertEquals(100, expired.size());
+    assertEquals(0, wheel.size());
+  }
+}
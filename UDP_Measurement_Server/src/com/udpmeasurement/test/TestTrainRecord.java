@@ -0,0 +1,149 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.udpmeasurement.Config;
+import com.udpmeasurement.MeasurementError;
+import com.udpmeasurement.MeasurementPacket;
+import com.udpmeasurement.TrainRecord;
+import com.udpmeasurement.UDPReceiver;
+
+/**
+ * Unit test for the packet-train estimates
+ */
+public class TestTrainRecord {
+
+  @Test
+  public void testDispersion() {
+    // 1000 byte packets spaced by 100us are 80000 kbps
+    TrainRecord train = new TrainRecord(10, 4);
+    long start = 1000000000L;
+    for (int t = 0; t < 4; t++) {
+      for (int i = 0; i < 10; i++) {
+        assertTrue(train.addArrival(t * 10 + i,
+                                    start + t * 50000000L + i * 100000L));
+      }
+    }
+    assertTrue(train.isComplete());
+    train.estimate(1000);
+    assertEquals(80000, train.getCapacityKbps());
+    assertEquals(80000, train.getAvailableKbps());
+    assertEquals(36, train.getPairsUsed());
+    assertEquals(4, train.getTrainsUsed());
+  }
+
+  @Test
+  public void testOutliersAndLoss() {
+    TrainRecord train = new TrainRecord(10, 2);
+    long start = 1000000000L;
+    for (int i = 0; i < 10; i++) {
+      // packet 5 is lost
+      if (i != 5) {
+        train.addArrival(i, start + i * 100000L);
+      }
+    }
+    // the second train is squeezed together at its end by the receiver
+    for (int i = 0; i < 10; i++) {
+      train.addArrival(10 + i, start + 50000000L + (i < 8 ? i * 100000L :
+                                                    700000L + i * 1000L));
+    }
+    assertFalse(train.addArrival(3, start));
+    assertFalse(train.addArrival(20, start));
+    assertFalse(train.isComplete());
+    assertEquals(19, train.getArrivals());
+
+    train.estimate(1000);
+    // 7 pairs around packet 5 and 7 regular pairs of the second train,
+    // the 2 squeezed pairs are dropped
+    assertEquals(14, train.getPairsUsed());
+    assertEquals(80000, train.getCapacityKbps());
+    assertEquals(2, train.getTrainsUsed());
+  }
+
+  @Test
+  public void testFilterOutliers() {
+    long[] values = {5, 100, 101, 99, 102, 98, 100, 10000};
+    int kept = TrainRecord.filterOutliers(values, values.length);
+    assertEquals(6, kept);
+    assertEquals(98, values[0]);
+    assertEquals(102, values[kept - 1]);
+    assertEquals(100, values[kept / 2]);
+
+    long[] few = {3, 1, 2};
+    assertEquals(3, TrainRecord.filterOutliers(few, 3));
+    assertEquals(1, few[0]);
+  }
+
+  /**
+   * The receiver times a train packet by when it was read, not by when it
+   * is processed, so the estimate follows the receive times of a replay
+   */
+  @Test
+  public void testReceiveTimes() throws MeasurementError, IOException {
+    UDPReceiver receiver = new UDPReceiver(0);
+    DatagramSocket client = new DatagramSocket(0,
+        InetAddress.getByName("127.0.0.1"));
+    client.setSoTimeout(1000);
+    try {
+      MeasurementPacket message = new MeasurementPacket(null);
+      message.type = Config.PKT_TRAIN_DATA;
+      message.burstCount = 10;
+      message.udpInterval = 2;
+      message.packetSize = 1000;
+      message.seq = 3;
+      byte[] data = new byte[message.packetSize];
+      DatagramPacket packet = new DatagramPacket(data, data.length,
+          client.getLocalAddress(), client.getLocalPort());
+      // 1000 byte packets read 200us apart are 40000 kbps
+      long start = 1000000000L;
+      for (int i = 0; i < 20; i++) {
+        message.packetNum = i;
+        byte[] header = message.getByteArray();
+        System.arraycopy(header, 0, data, 0, header.length);
+        long nanos = start + (i / 10) * 50000000L + (i % 10) * 200000L;
+        receiver.replay(packet, nanos, nanos / 1000000L);
+      }
+      // sends the report
+      receiver.tick(start / 1000000L + 100);
+
+      byte[] reply = new byte[Config.BUFSIZE];
+      DatagramPacket report = new DatagramPacket(reply, reply.length);
+      client.receive(report);
+      ByteBuffer buffer = ByteBuffer.wrap(reply, 0, report.getLength());
+      message.decode(buffer);
+      assertEquals(Config.PKT_TRAIN_REPORT, message.type);
+      assertEquals(20, message.packetNum);
+      assertEquals(40000, buffer.getInt());
+      assertEquals(40000, buffer.getInt());
+      assertEquals(18, buffer.getInt());
+      assertEquals(2, buffer.getInt());
+    } finally {
+      client.close();
+      receiver.close();
+    }
+  }
+}
@@ -242,7 +242,11 @@ public class MeasurementResult {
   
   private void getUDPBurstResult(StringBuilderPrinter printer, HashMap<String, String> values) {
     UDPBurstDesc desc = (UDPBurstDesc) parameters;
-    if (desc.dirUp) {
+    if (desc.trainCount > 0) {
+      printer.println(desc.dirUp ? "[UDPTrainUp]" : "[UDPTrainDown]");
+    } else if (desc.streamDurationSec > 0) {
+      printer.println("[UDPStream]");
+    } else if (desc.dirUp) {
       printer.println("[UDPBurstUp]");
     } else {
       printer.println("[UDPBurstDown]");
@@ -255,6 +259,24 @@ public class MeasurementResult {
       printer.println("\nPRR: " + values.get("PRR"));
       printer.println("\nInversion Number: " + values.get("Inversion_Number"));
       printer.println("\nJitter: " + values.get("jitter"));
+      if (values.containsKey("capacity_kbps")) {
+        printer.println("\nCapacity (kbps): " + values.get("capacity_kbps"));
+        printer.println("\nAvailable bandwidth (kbps): " +
+            values.get("available_bandwidth_kbps"));
+      } else if (values.containsKey("packets_sent")) {
+        printer.println("\nPackets sent: " + values.get("packets_sent"));
+        printer.println("\nWindow loss: " + values.get("stream_loss_results"));
+        printer.println("\nWindow rate (kbps): " +
+            values.get("stream_rate_results"));
+      }
+      String owd = desc.dirUp ? "up_owd_" : "down_owd_";
+      if (values.containsKey(owd + "p50_us")) {
+        printer.println("\nOne-way delay p50/p90/p99 (us): "
+            + values.get(owd + "p50_us") + "/" + values.get(owd + "p90_us")
+            + "/" + values.get(owd + "p99_us"));
+        printer.println("\nClock offset (us): "
+            + values.get("clock_offset_us"));
+      }
     } else {
       printer.println("Failed");
     }
@@ -2,29 +2,40 @@
 
 package com.mobiperf.measurements;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InvalidClassException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.mobiperf.Config;
 import com.mobiperf.Logger;
 import com.mobiperf.MeasurementDesc;
 import com.mobiperf.MeasurementError;
 import com.mobiperf.MeasurementResult;
+import com.mobiperf.MeasurementSkippedException;
 import com.mobiperf.MeasurementTask;
 import com.mobiperf.util.MLabNS;
 import com.mobiperf.util.MeasurementJsonConvertor;
 import com.mobiperf.util.PhoneUtils;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import android.content.Context;
 
 /**
@@ -38,6 +49,15 @@ import android.content.Context;
  *    to the device.
  * 2. Downlink: similar methodology as uplink. Only difference is that the device is
  *    receiving packets from the server, and calculate the result locally. 
+ * 
+ * Servers from version 2.0 on let the device negotiate the test on the config port
+ * (duration, segment size, sampling period). The negotiated session id is then sent
+ * at the start of each data connection, and uplink data is sent in length-prefixed
+ * frames instead of being terminated by UPLINK_FINISH_MSG.
+ * 
+ * With such a server the test may also use several parallel TCP streams, which fills
+ * high bandwidth-delay product links better than a single connection. The result
+ * then holds the aggregate samples of all streams and the median of each stream.
  */
 public class TCPThroughputTask extends MeasurementTask {
   // default constant here
@@ -57,6 +77,8 @@ public class TCPThroughputTask extends MeasurementTask {
   // largest non-fragment packet size in LTE (uplink)
   public static final int THROUGHPUT_UP_PKT_SIZE_MAX = 1357;
   public static final int THROUGHPUT_UP_PKT_SIZE_MIN = 700;
+  public static final int NUM_STREAMS_MAX = 8;
+  public static final int TARGET_RATE_KBPS_MAX = 1000000;
 
   // Data related
   private final int KBYTE = 1024;
@@ -66,6 +88,16 @@ public class TCPThroughputTask extends MeasurementTask {
   private boolean DATA_LIMIT_EXCEEDED = false;
   private static final String UPLINK_FINISH_MSG = "*";
 
+  // Session negotiation (server version 2.0 and later)
+  private static final double NEGOTIATION_MIN_VERSION = 2.0;
+  private static final int STREAM_MAGIC = 0xF04D5032;
+  private static final int UPLINK_PROTO_FRAMED = 2;
+  private static final int FRAME_DATA = 1;
+  private static final int FRAME_FIN = 2;
+  private static final int FRAME_RESULT = 3;
+  private static final int FRAME_HEADER_SIZE = 5;
+  private static final int MAX_CONFIG_REPLY = 4096;
+
   private Context context = null;
 
   // helper variables 
@@ -82,6 +114,25 @@ public class TCPThroughputTask extends MeasurementTask {
   private int totalSendSize = 0;
   // downlink accumulative data
   private int totalRevSize = 0;
+  // session negotiated with the server, null for legacy servers
+  private Long sessionId = null;
+  private int segmentSize = 0;
+  private int numStreams = 1;
+  // shared by the streams of a multi-stream test
+  private AtomicLong parallelBytes = new AtomicLong(0);
+  private volatile boolean stopStreams = false;
+  private ArrayList<Double> streamResults = new ArrayList<Double>();
+  // downlink samples taken by the server, to cross-check samplingResults
+  private ArrayList<Double> serverSamplingResults = new ArrayList<Double>();
+  // paced downlink, rate accepted by the server and what it achieved
+  private long rateKbps = 0;
+  // run length including the slow start and sampling period, as accepted by
+  // the server for a negotiated session, otherwise those of the task
+  private double runSec = 0;
+  private double samplePeriodSec = 0;
+  private double achievedKbps = 0;
+  private int stallCount = 0;
+  private long stallMs = 0;
 
   // class constructor
   public TCPThroughputTask(MeasurementDesc desc, Context context) {
@@ -92,7 +143,7 @@ public class TCPThroughputTask extends MeasurementTask {
   }
 
   /**
-   * There are seven parameters specifically for this experiment:
+   * There are nine parameters specifically for this experiment:
    * 1. data_limit_mb_up: uplink cellular network data limit
    * 2. data_limit_mb_down: downlink cellular network data limit
    * 3. duration_period_sec : downlink maximum experiment duration period
@@ -100,6 +151,9 @@ public class TCPThroughputTask extends MeasurementTask {
    * 5. sample_period_sec : the small interval to calculate current throughput result
    * 6. slow_start_period_sec : waiting period to avoid TCP slow start
    * 7. tcp_timeout_sec: TCP connection timeout
+   * 8. num_streams: number of parallel TCP streams, needs server version 2.0
+   * 9. target_rate_kbps: pace the downlink at this rate instead of saturating the
+   *    link, needs server version 2.0
    */
   
   public static class TCPThroughputDesc extends MeasurementDesc {
@@ -113,6 +167,8 @@ public class TCPThroughputTask extends MeasurementTask {
     public double  slow_start_period_sec = TCPThroughputTask.SLOW_START_PERIOD_IN_SEC;
     public String  target = null;
     public double  tcp_timeout_sec = TCPThroughputTask.TCP_TIMEOUT_IN_SEC;
+    public int     num_streams = 1;
+    public int     target_rate_kbps = 0;
 
     public TCPThroughputDesc(String key, Date startTime,
                              Date endTime, double intervalSec, long count, 
@@ -189,6 +245,16 @@ public class TCPThroughputTask extends MeasurementTask {
             this.tcp_timeout_sec = TCPThroughputTask.TCP_TIMEOUT_IN_SEC;
           }
         }
+        if ((readVal = params.get("num_streams")) != null && readVal.length() > 0 
+             && Integer.parseInt(readVal) > 0) {
+          this.num_streams = Math.min(Integer.parseInt(readVal),
+                                      TCPThroughputTask.NUM_STREAMS_MAX);
+        }
+        if ((readVal = params.get("target_rate_kbps")) != null && readVal.length() > 0 
+             && Integer.parseInt(readVal) > 0) {
+          this.target_rate_kbps = Math.min(Integer.parseInt(readVal),
+                                           TCPThroughputTask.TARGET_RATE_KBPS_MAX);
+        }
       } catch  (NumberFormatException e) {
         throw new InvalidParameterException("TCP Throughput Task invalid parameters.");
       }
@@ -324,13 +390,25 @@ public class TCPThroughputTask extends MeasurementTask {
     }
 
     Logger.i("Running TCPThroughput on " + desc.target);
+    this.runSec = desc.duration_period_sec + desc.slow_start_period_sec;
+    this.samplePeriodSec = desc.sample_period_sec;
     try {
       // fetch server information
       if (!acquireServerConfig()) {
         throw new MeasurementError("Fail to acquire server configuration");
       }
       Logger.i("Server version is " + this.serverVersion);
-      if (desc.dir_up == true) {
+      if (!desc.dir_up && desc.target_rate_kbps > 0 && this.rateKbps == 0) {
+        // an unpaced test is exactly the flooding the rate was meant to avoid
+        throw new MeasurementSkippedException("Server " + this.serverVersion +
+                                              " cannot pace the downlink");
+      }
+      if (this.numStreams > 1) {
+        this.taskStartTime = System.currentTimeMillis();
+        parallelStreams(desc.dir_up);
+        Logger.i("Multi-stream measurement result is:");
+      }
+      else if (desc.dir_up == true) {
         uplink();
         Logger.i("Uplink measurement result is:");
       }
@@ -339,6 +417,9 @@ public class TCPThroughputTask extends MeasurementTask {
         downlink();
         Logger.i("Downlink measurement result is:");
       }
+      if (!desc.dir_up && this.sessionId != null) {
+        fetchServerDownlink();
+      }
       isMeasurementSuccessful = true;
     } catch (MeasurementError e) {
       throw e;
@@ -360,6 +441,19 @@ public class TCPThroughputTask extends MeasurementTask {
     result.addResult("data_limit_exceeded", this.DATA_LIMIT_EXCEEDED);
     result.addResult("duration", this.taskDuration);
     result.addResult("server_version", this.serverVersion);
+    if (this.numStreams > 1) {
+      result.addResult("num_streams", this.numStreams);
+      result.addResult("tcp_stream_speed_results", this.streamResults);
+    }
+    if (!this.serverSamplingResults.isEmpty()) {
+      result.addResult("server_tcp_speed_results", this.serverSamplingResults);
+    }
+    if (this.rateKbps > 0) {
+      result.addResult("target_rate_kbps", this.rateKbps);
+      result.addResult("achieved_kbps", this.achievedKbps);
+      result.addResult("stall_count", this.stallCount);
+      result.addResult("stall_ms", this.stallMs);
+    }
     Logger.i(MeasurementJsonConvertor.toJsonString(result));
     return result;
   }
@@ -369,6 +463,7 @@ public class TCPThroughputTask extends MeasurementTask {
    *****************************************************************
    * acquire server configuration information
    * 1) m-lab slice version
+   * 2) a negotiated session, if the server supports it
    * 
    * @return: true -- successful acquire data from M-Lab slice
    * @return: false -- failure to acquire data from M-Lab slice
@@ -395,10 +490,11 @@ public class TCPThroughputTask extends MeasurementTask {
       byte [] resultMsg = new byte[this.BUFFER_SIZE];
       int resultMsgLen = iStream.read(resultMsg, 0, resultMsg.length);
       if (resultMsgLen > 0) {
-        // TODO (Haokun): Maybe switch to JSON for multiple acquired data 
-        //               currently use one double number
         this.serverVersion = new String(resultMsg).substring(0, resultMsgLen);
         result = true;
+        if (supportsNegotiation()) {
+          negotiate(tcpSocket.getOutputStream(), iStream);
+        }
       }
     } catch (IOException e) {
       throw new MeasurementError("Error to acquire configuration from " +
@@ -410,6 +506,153 @@ public class TCPThroughputTask extends MeasurementTask {
     }
     return result;
   }
+
+  private boolean supportsNegotiation() {
+    try {
+      return Double.parseDouble(this.serverVersion.trim()) >= NEGOTIATION_MIN_VERSION;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Ask the server for a session with the parameters of this task. The server answers
+   * with the values it accepted. Any failure leaves the task in legacy mode, except
+   * for a busy server: running anyway would share its link with the other tests.
+   */
+  private void negotiate(OutputStream oStream, InputStream iStream)
+      throws MeasurementSkippedException {
+    TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
+    try {
+      JSONObject request = new JSONObject();
+      request.put("duration_sec", this.runSec);
+      request.put("segment_size", desc.dir_up ? desc.pkt_size_up_bytes : this.BUFFER_SIZE);
+      request.put("streams", desc.num_streams);
+      request.put("sample_period_sec", this.samplePeriodSec);
+      request.put("uplink_proto", TCPThroughputTask.UPLINK_PROTO_FRAMED);
+      if (!desc.dir_up && desc.target_rate_kbps > 0) {
+        request.put("rate_kbps", desc.target_rate_kbps);
+      }
+      oStream.write((request.toString() + "\n").getBytes());
+      oStream.flush();
+
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int c;
+      while ((c = iStream.read()) >= 0 && c != '\n') {
+        line.write(c);
+        if (line.size() > TCPThroughputTask.MAX_CONFIG_REPLY) {
+          throw new IOException("Server configuration reply too long");
+        }
+      }
+      JSONObject reply = new JSONObject(line.toString());
+      if ("busy".equals(reply.optString("status"))) {
+        throw new MeasurementSkippedException("Server is busy, retry after " +
+                                              reply.optLong("retry_after_sec") + " s");
+      }
+      if (!"ok".equals(reply.optString("status"))) {
+        Logger.w("Server refused session: " + reply.optString("error"));
+        return;
+      }
+      // the id is an unsigned 64 bit hex number
+      this.sessionId = new BigInteger(reply.getString("session_id"), 16)
+                       .longValue();
+      this.segmentSize = reply.getInt("segment_size");
+      this.numStreams = reply.getInt("streams");
+      this.rateKbps = reply.optLong("rate_kbps", 0);
+      // the server may have shortened the test, its series uses these values
+      this.runSec = reply.optDouble("duration_sec", this.runSec);
+      this.samplePeriodSec = reply.optDouble("sample_period_sec", this.samplePeriodSec);
+      Logger.i("Negotiated session " + reply.toString());
+    } catch (JSONException e) {
+      Logger.e("Invalid server configuration reply", e);
+      this.sessionId = null;
+    } catch (NumberFormatException e) {
+      Logger.e("Invalid server session id", e);
+      this.sessionId = null;
+    } catch (IOException e) {
+      Logger.e("Fail to negotiate a session, fall back to legacy mode", e);
+      this.sessionId = null;
+    }
+  }
+
+  /**
+   * Fetch what the server measured for the whole session, once all streams are done
+   */
+  private JSONObject fetchSessionResult() throws MeasurementError {
+    TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
+    Socket tcpSocket = new Socket();
+    try {
+      buildUpSocket(tcpSocket, desc.target, TCPThroughputTask.PORT_CONFIG);
+      InputStream iStream = tcpSocket.getInputStream();
+      OutputStream oStream = tcpSocket.getOutputStream();
+      // skip the version the server sends first
+      byte [] versionMsg = new byte[this.BUFFER_SIZE];
+      if (iStream.read(versionMsg, 0, versionMsg.length) <= 0) {
+        throw new IOException("Server closed the configuration socket");
+      }
+      JSONObject request = new JSONObject();
+      request.put("op", "result");
+      request.put("session_id", Long.toHexString(this.sessionId));
+      oStream.write((request.toString() + "\n").getBytes());
+      oStream.flush();
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int c;
+      while ((c = iStream.read()) >= 0 && c != '\n') {
+        line.write(c);
+      }
+      JSONObject reply = new JSONObject(line.toString());
+      if (!"ok".equals(reply.optString("status"))) {
+        throw new MeasurementError("Server has no result: " + reply.optString("error"));
+      }
+      return reply;
+    } catch (JSONException e) {
+      throw new MeasurementError("Invalid session result from " + desc.target);
+    } catch (IOException e) {
+      throw new MeasurementError("Error to fetch session result from " + desc.target);
+    } finally {
+      try {
+        tcpSocket.close();
+      } catch (IOException e) {
+        Logger.e("Error close the config socket", e);
+      }
+    }
+  }
+
+  /**
+   * Fetch the downlink samples the server took on its side. They are only used
+   * to cross-check the phone's own samples, so a failure here is not fatal.
+   * A paced test also gets the achieved rate and the stalls seen by the server
+   */
+  private void fetchServerDownlink() {
+    try {
+      JSONObject reply = fetchSessionResult();
+      if (this.rateKbps > 0) {
+        this.achievedKbps = reply.getDouble("achieved_kbps");
+        this.stallCount = reply.getInt("stall_count");
+        this.stallMs = reply.getLong("stall_ms");
+        Logger.i("Paced downlink achieved " + this.achievedKbps + " of " +
+                 this.rateKbps + " kbps with " + this.stallCount + " stalls");
+      }
+      JSONArray samples = reply.getJSONArray("downlink_kbps");
+      for (int i = 0; i < samples.length(); i++) {
+        this.serverSamplingResults = this.insertWithOrder(this.serverSamplingResults,
+                                                          samples.getDouble(i));
+      }
+      Logger.i("Server took " + this.serverSamplingResults.size() + " downlink samples");
+    } catch (JSONException e) {
+      Logger.w("Invalid downlink result from the server");
+    } catch (MeasurementError e) {
+      Logger.w("No downlink result from the server: " + e.getMessage());
+    }
+  }
+
+  private void sendHello(OutputStream oStream) throws IOException {
+    ByteBuffer hello = ByteBuffer.allocate(12);
+    hello.putInt(TCPThroughputTask.STREAM_MAGIC);
+    hello.putLong(this.sessionId);
+    oStream.write(hello.array());
+    oStream.flush();
+  }
   
   /* Uplink measurement task
    * @throws IOException 
@@ -439,19 +682,33 @@ public class TCPThroughputTask extends MeasurementTask {
     long endTime = startTime;
     int  data_limit_byte_up = (int)(((TCPThroughputDesc)measurementDesc).data_limit_mb_up
                               *this.KBYTE*this.KBYTE);
-    byte[] uplinkBuffer = new byte[((TCPThroughputDesc)measurementDesc).pkt_size_up_bytes];
-    this.genRandomByteArray(uplinkBuffer);
+    boolean framed = this.sessionId != null;
+    int payloadSize = framed ? this.segmentSize :
+                      ((TCPThroughputDesc)measurementDesc).pkt_size_up_bytes;
+    byte[] uplinkBuffer;
+    if (framed) {
+      // every write is one DATA frame: [type][length][payload]
+      uplinkBuffer = new byte[TCPThroughputTask.FRAME_HEADER_SIZE + payloadSize];
+      byte[] payload = new byte[payloadSize];
+      this.genRandomByteArray(payload);
+      ByteBuffer.wrap(uplinkBuffer).put((byte)TCPThroughputTask.FRAME_DATA)
+                                   .putInt(payloadSize).put(payload);
+    } else {
+      uplinkBuffer = new byte[payloadSize];
+      this.genRandomByteArray(uplinkBuffer);
+    }
     try {
+      if (framed) {
+        sendHello(oStream);
+      }
       int progUpdateCount = 0;
-      long totalDuration = (long)(this.KSEC*
-                           ((TCPThroughputDesc)measurementDesc).duration_period_sec +
-                           ((TCPThroughputDesc)measurementDesc).slow_start_period_sec);
+      long totalDuration = runLengthMs();
       do {
         oStream.write(uplinkBuffer, 0, uplinkBuffer.length);
         oStream.flush();
         endTime = System.currentTimeMillis();
 
-        this.totalSendSize += ((TCPThroughputDesc)measurementDesc).pkt_size_up_bytes;
+        this.totalSendSize += payloadSize;
         if (this.DATA_LIMIT_ON &&
             this.totalSendSize >= data_limit_byte_up) {
           Logger.i("Detect uplink exceeding limitation " +
@@ -473,14 +730,17 @@ public class TCPThroughputTask extends MeasurementTask {
       Logger.i("Uplink total data comsumption is " + 
               (double)this.totalSendSize/(1024*1024) + " MB");
       // send last message with special content
-      uplinkBuffer = TCPThroughputTask.UPLINK_FINISH_MSG.getBytes();
+      if (framed) {
+        uplinkBuffer = ByteBuffer.allocate(TCPThroughputTask.FRAME_HEADER_SIZE)
+                       .put((byte)TCPThroughputTask.FRAME_FIN).putInt(0).array();
+      } else {
+        uplinkBuffer = TCPThroughputTask.UPLINK_FINISH_MSG.getBytes();
+      }
       oStream.write(uplinkBuffer, 0, uplinkBuffer.length);
       oStream.flush();
       // read from server side results
-      byte [] resultMsg = new byte[this.BUFFER_SIZE];
-      int resultMsgLen = iStream.read(resultMsg, 0, resultMsg.length);
-      if (resultMsgLen > 0) {
-        String resultMsgStr = new String(resultMsg).substring(0, resultMsgLen);
+      String resultMsgStr = framed ? readResultFrame(iStream) : readResultMessage(iStream);
+      if (resultMsgStr != null && resultMsgStr.length() > 0) {
         // Sample result string is "1111.11#2222.22#3333.33";
         Logger.i("Uplink result from server is " + resultMsgStr);
         String [] tps_result_str = resultMsgStr.split("#");
@@ -505,6 +765,27 @@ public class TCPThroughputTask extends MeasurementTask {
     }
   }
 
+  private String readResultMessage(InputStream iStream) throws IOException {
+    byte [] resultMsg = new byte[this.BUFFER_SIZE];
+    int resultMsgLen = iStream.read(resultMsg, 0, resultMsg.length);
+    if (resultMsgLen <= 0) {
+      return null;
+    }
+    return new String(resultMsg).substring(0, resultMsgLen);
+  }
+
+  private String readResultFrame(InputStream iStream) throws IOException {
+    DataInputStream dataIn = new DataInputStream(iStream);
+    int type = dataIn.readUnsignedByte();
+    int length = dataIn.readInt();
+    if (type != TCPThroughputTask.FRAME_RESULT || length < 0 || length > this.BUFFER_SIZE) {
+      throw new IOException("Unexpected uplink frame " + type + " of length " + length);
+    }
+    byte[] body = new byte[length];
+    dataIn.readFully(body);
+    return new String(body);
+  }
+
   /**
    * Downlink measurement task
    */
@@ -517,6 +798,9 @@ public class TCPThroughputTask extends MeasurementTask {
       buildUpSocket(tcpSocket, ((TCPThroughputDesc)measurementDesc).target,
                     TCPThroughputTask.PORT_DOWNLINK);
       iStream = tcpSocket.getInputStream();
+      if (this.sessionId != null) {
+        sendHello(tcpSocket.getOutputStream());
+      }
     } catch (IOException i) {
       Logger.e("Downlink socket opening error" + i.getCause().toString());
       throw new MeasurementError("Error to open downlink socket at " +
@@ -529,10 +813,8 @@ public class TCPThroughputTask extends MeasurementTask {
       int progUpdateCount = 0;
       int data_limit_byte_down = (int)(this.KBYTE*this.KBYTE*
                                  ((TCPThroughputDesc)measurementDesc).data_limit_mb_down);
-      byte[] buffer = new byte[this.BUFFER_SIZE];
-      long totalDuration = (long)(this.KSEC*
-                           ((TCPThroughputDesc)measurementDesc).duration_period_sec + 
-                           ((TCPThroughputDesc)measurementDesc).slow_start_period_sec);
+      byte[] buffer = new byte[Math.max(this.BUFFER_SIZE, this.segmentSize)];
+      long totalDuration = runLengthMs();
       do {
         read_bytes = iStream.read(buffer, 0, buffer.length);
         updateSize(read_bytes);
@@ -574,6 +856,222 @@ public class TCPThroughputTask extends MeasurementTask {
     }
   }
   
+  /**
+   * Multi-stream measurement task. Every stream runs in its own thread, this thread
+   * keeps the progress bar going and, for downlink, samples the aggregate throughput.
+   * The aggregate uplink throughput is measured by the server.
+   */
+  private void parallelStreams(boolean up) throws MeasurementError, InterruptedException {
+    TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
+    Logger.i("Start " + this.numStreams + " parallel " + (up ? "uplink" : "downlink") +
+             " streams on " + desc.target);
+    StreamWorker[] workers = new StreamWorker[this.numStreams];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new StreamWorker(up);
+      workers[i].start();
+    }
+
+    long samplePeriod = (long)(this.samplePeriodSec*this.KSEC);
+    long slowStart = (long)(desc.slow_start_period_sec*this.KSEC);
+    long totalDuration = runLengthMs();
+    int progUpdateCount = 0;
+    long sampleStart = 0;
+    long sampleBytes = 0;
+    ArrayList<Double> aggregate = new ArrayList<Double>();
+    for (StreamWorker worker : workers) {
+      while (worker.isAlive()) {
+        worker.join(samplePeriod);
+        long now = System.currentTimeMillis();
+        if (!up && now - this.taskStartTime >= slowStart) {
+          long bytes = this.parallelBytes.get();
+          if (sampleStart == 0) {
+            sampleStart = now;
+            sampleBytes = bytes;
+          } else if (now - sampleStart >= samplePeriod) {
+            aggregate = this.insertWithOrder(aggregate,
+                (double)(bytes - sampleBytes) * 8.0 / (now - sampleStart));
+            sampleStart = now;
+            sampleBytes = bytes;
+          }
+        }
+        this.progress = (int)(this.MAXPROGRESS * (now - this.taskStartTime) / totalDuration);
+        this.progress = Math.min(this.progress, this.MAXPROGRESS);
+        if (this.progress >= (progUpdateCount+1)*25) {
+          broadcastProgressForUser(this.progress);
+          progUpdateCount++;
+        }
+      }
+    }
+    this.taskDuration = (System.currentTimeMillis() - (double) this.taskStartTime) / 1000.0;
+
+    int failed = 0;
+    for (StreamWorker worker : workers) {
+      if (worker.error != null) {
+        Logger.e("Stream failed: " + worker.error.getMessage());
+        failed++;
+      } else {
+        this.streamResults.add(worker.sampler.median());
+      }
+    }
+    if (failed == workers.length) {
+      throw new MeasurementError("All " + workers.length + " streams to " +
+                                 desc.target + " failed");
+    }
+
+    if (up) {
+      this.totalSendSize = (int) this.parallelBytes.get();
+      try {
+        JSONArray samples = fetchSessionResult().getJSONArray("uplink_kbps");
+        for (int i = 0; i < samples.length(); i++) {
+          aggregate = this.insertWithOrder(aggregate, samples.getDouble(i));
+        }
+      } catch (JSONException e) {
+        throw new MeasurementError("Invalid uplink result from " + desc.target);
+      }
+    } else {
+      this.totalRevSize = (int) this.parallelBytes.get();
+    }
+    this.samplingResults = aggregate;
+    Logger.i("Total data of " + this.numStreams + " streams is " +
+             (double)this.parallelBytes.get()/(1024*1024) + " MB");
+  }
+
+  /**
+   * One connection of a multi-stream test
+   */
+  private class StreamWorker extends Thread {
+    private boolean up;
+    private ThroughputSampler sampler;
+    private Exception error = null;
+
+    public StreamWorker(boolean up) {
+      this.up = up;
+      TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
+      this.sampler = new ThroughputSampler(taskStartTime,
+                                           desc.slow_start_period_sec*KSEC,
+                                           samplePeriodSec*KSEC);
+    }
+
+    @Override
+    public void run() {
+      TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
+      Socket tcpSocket = new Socket();
+      try {
+        buildUpSocket(tcpSocket, desc.target,
+                      up ? TCPThroughputTask.PORT_UPLINK : TCPThroughputTask.PORT_DOWNLINK);
+        sendHello(tcpSocket.getOutputStream());
+        if (up) {
+          sendStream(tcpSocket.getOutputStream(), tcpSocket.getInputStream());
+        } else {
+          receiveStream(tcpSocket.getInputStream());
+        }
+      } catch (IOException e) {
+        this.error = e;
+      } finally {
+        try {
+          tcpSocket.close();
+        } catch (IOException e) {
+          Logger.e("Error close stream socket", e);
+        }
+      }
+    }
+
+    private void sendStream(OutputStream oStream, InputStream iStream) throws IOException {
+      TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
+      long dataLimit = (long)(desc.data_limit_mb_up*KBYTE*KBYTE);
+      long totalDuration = runLengthMs();
+      byte[] payload = new byte[segmentSize];
+      genRandomByteArray(payload);
+      byte[] frame = ByteBuffer.allocate(TCPThroughputTask.FRAME_HEADER_SIZE + segmentSize)
+                     .put((byte)TCPThroughputTask.FRAME_DATA).putInt(segmentSize)
+                     .put(payload).array();
+      while (!stopStreams && System.currentTimeMillis() - taskStartTime < totalDuration) {
+        oStream.write(frame, 0, frame.length);
+        oStream.flush();
+        if (parallelBytes.addAndGet(segmentSize) >= dataLimit && DATA_LIMIT_ON) {
+          Logger.i("Detect uplink exceeding limitation " + desc.data_limit_mb_up + " MB");
+          DATA_LIMIT_EXCEEDED = true;
+          stopStreams = true;
+        }
+      }
+      frame = ByteBuffer.allocate(TCPThroughputTask.FRAME_HEADER_SIZE)
+              .put((byte)TCPThroughputTask.FRAME_FIN).putInt(0).array();
+      oStream.write(frame, 0, frame.length);
+      oStream.flush();
+      String resultMsgStr = readResultFrame(iStream);
+      if (resultMsgStr != null && resultMsgStr.length() > 0) {
+        for (String sample : resultMsgStr.split("#")) {
+          sampler.add(Double.valueOf(sample));
+        }
+      }
+    }
+
+    private void receiveStream(InputStream iStream) throws IOException {
+      TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
+      long dataLimit = (long)(desc.data_limit_mb_down*KBYTE*KBYTE);
+      byte[] buffer = new byte[Math.max(BUFFER_SIZE, segmentSize)];
+      int read_bytes;
+      while (!stopStreams && (read_bytes = iStream.read(buffer, 0, buffer.length)) >= 0) {
+        sampler.update(System.currentTimeMillis(), read_bytes);
+        if (parallelBytes.addAndGet(read_bytes) >= dataLimit && DATA_LIMIT_ON) {
+          Logger.i("Detect downlink data limitation exceed with " +
+                   desc.data_limit_mb_down + " MB");
+          DATA_LIMIT_EXCEEDED = true;
+          stopStreams = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Same sampling as updateSize(), for one stream of a multi-stream test
+   */
+  private static class ThroughputSampler {
+    private long testStart;
+    private double slowStartPeriod;
+    private double samplePeriod;
+    private long sampleStart = 0;
+    private long size = 0;
+    private ArrayList<Double> samples = new ArrayList<Double>();
+
+    public ThroughputSampler(long testStart, double slowStartPeriod, double samplePeriod) {
+      this.testStart = testStart;
+      this.slowStartPeriod = slowStartPeriod;
+      this.samplePeriod = samplePeriod;
+    }
+
+    public void update(long now, int delta) {
+      if (now - testStart < slowStartPeriod) {
+        return;
+      }
+      if (sampleStart == 0) {
+        sampleStart = now;
+        size = 0;
+      }
+      size += delta;
+      double time = now - sampleStart;
+      if (time >= samplePeriod) {
+        add((double)size * 8.0 / time);
+        size = 0;
+        sampleStart = now;
+      }
+    }
+
+    public void add(double sample) {
+      samples.add(sample);
+    }
+
+    public double median() {
+      if (samples.isEmpty()) {
+        return 0.0;
+      }
+      ArrayList<Double> sorted = new ArrayList<Double>(samples);
+      Collections.sort(sorted);
+      int n = sorted.size();
+      return n % 2 == 0 ? (sorted.get(n / 2) + sorted.get(n / 2 - 1)) / 2 : sorted.get(n / 2);
+    }
+  }
+
   /*****************************************************************
    * Helper functions
    *****************************************************************
@@ -591,7 +1089,7 @@ public class TCPThroughputTask extends MeasurementTask {
     }
     this.accumulativeSize += delta;
     double time = System.currentTimeMillis() - this.startSampleTime;
-    if (time < ((TCPThroughputDesc)measurementDesc).sample_period_sec*this.KSEC) {
+    if (time < this.samplePeriodSec*this.KSEC) {
       return;
     } else {
       double throughput = (double)this.accumulativeSize * 8.0 / time;
@@ -601,6 +1099,13 @@ public class TCPThroughputTask extends MeasurementTask {
     }  
   }
   
+  /**
+   * @return how long the streams run in ms, the slow start included
+   */
+  private long runLengthMs() {
+    return (long)(this.runSec*this.KSEC);
+  }
+
   private void buildUpSocket(Socket tcpSocket, String hostname, int portNum)
           throws IOException {
     TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
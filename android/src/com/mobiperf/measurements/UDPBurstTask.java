@@ -29,11 +29,15 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * 
@@ -47,6 +51,16 @@ import java.util.Map;
  * 2. UDPBurst Down: the device sends a request to a remote server on a UDP port
  * and the server responds by sending a burst of UDPBurstCount packets. The size
  * of each packet is packetSizeByte
+ * 
+ * 3. UDP Stream: if stream_duration_sec is set, the device sends packets
+ * every udpInterval ms for that long, or until the task is stopped. The
+ * server reports loss, reordering, jitter and rate for every window of
+ * packets while the stream runs, and the totals at the end
+ * 
+ * With protocol_version 2, bursts use the v2 header, which carries
+ * System.nanoTime() send times, and the server returns the delay of every
+ * uplink packet, so the whole one-way delay distribution is reported
+ * instead of only its standard deviation
  */
 public class UDPBurstTask extends MeasurementTask {
 
@@ -71,12 +85,63 @@ public class UDPBurstTask extends MeasurementTask {
   private static final int PKT_RESPONSE = 2;
   private static final int PKT_DATA = 3;
   private static final int PKT_REQUEST = 4;
+  private static final int PKT_STREAM_DATA = 5;
+  private static final int PKT_STREAM_REPORT = 6;
+  private static final int PKT_STREAM_STOP = 7;
+  private static final int PKT_STREAM_END = 8;
+  private static final int PKT_TRAIN_REQUEST = 9;
+  private static final int PKT_TRAIN_DATA = 10;
+  private static final int PKT_TRAIN_REPORT = 11;
+  private static final int PKT_SYNC_REQUEST = 12;
+  private static final int PKT_SYNC_RESPONSE = 13;
+
+  // Limits of a streaming test, the window must match the server's
+  private static final int STREAM_MAX_DURATION_SEC = 600;
+  private static final int STREAM_MAX_WINDOW = 1000;
+  private static final int STREAM_MAX_PACKETS = 1000000;
+  private static final int DEFAULT_REPORT_INTERVAL = 1000; // in msec.
+  // Header plus loss runs, duplicates, arrival span and rate
+  private static final int STREAM_REPORT_SIZE = MIN_PACKETSIZE + 16;
+  private static final int STREAM_STOP_ATTEMPTS = 3;
+
+  // Limits of a packet-train test, they must match the server's
+  private static final int DEFAULT_TRAIN_LENGTH = 20;
+  private static final int DEFAULT_TRAIN_PACKET_SIZE = 1400;
+  private static final int DEFAULT_TRAIN_GAP = 20; // in msec.
+  private static final int MAX_TRAIN_LENGTH = 100;
+  private static final int MAX_TRAIN_PACKETS = 200;
+  private static final int MAX_TRAIN_PACKETSIZE = 1400;
+  private static final int MAX_TRAIN_GAP = 1000; // in msec.
+  // Wait after a downlink train for the next one, in msec.
+  private static final int TRAIN_TIMEOUT = 2000;
+
+  // Clock sync of a v2 burst: probes sent before and after the burst, and
+  // the wait for each answer in msec.
+  private static final int MAX_SYNC_PROBES = 32;
+  private static final int SYNC_TIMEOUT = 500;
+
+  // v2 header: int magic, int type, int flags, int seq, int burstCount,
+  // int packetNum, int packetSize, int udpInterval, long timestamp,
+  // int intervalNum, int reserved
+  private static final int MAGIC_V2 = 0x55445032;
+  private static final int HEADER_SIZE_V2 = 48;
+  private static final int FLAG_DELAYS = 1;
+  private static final int FLAG_TRUNCATED = 2;
+  private static final int MAX_RESPONSE_SIZE = 1500;
 
   private String targetIp = null;
   private Context context = null;
 
   private static int seq = 1;
 
+  private volatile boolean stopStream = false;
+  // per window results of a streaming test, by window index
+  private TreeMap<Integer, StreamWindow> streamWindows =
+      new TreeMap<Integer, StreamWindow>();
+  private int streamPacketsSent = 0;
+  // v2 uplink bursts: nanoTime at which each packet was sent
+  private long[] upSendTimes = null;
+
   /**
    * Encode UDP specific parameters, along with common parameters inherited
    * from MeasurementDesc
@@ -91,6 +156,18 @@ public class UDPBurstTask extends MeasurementTask {
     public String target = null;
     public boolean dirUp = false;
     public int udpInterval = UDPBurstTask.DEFAULT_UDP_INTERVAL;
+    // a streaming test if positive
+    public int streamDurationSec = 0;
+    public int reportInterval = UDPBurstTask.DEFAULT_REPORT_INTERVAL;
+    // 1 for millisecond timestamps, 2 for the nanosecond header
+    public int protocolVersion = 1;
+    // a packet-train test if positive
+    public int trainCount = 0;
+    public int trainLength = UDPBurstTask.DEFAULT_TRAIN_LENGTH;
+    public int trainPacketSize = UDPBurstTask.DEFAULT_TRAIN_PACKET_SIZE;
+    public int trainGap = UDPBurstTask.DEFAULT_TRAIN_GAP;
+    // v2 bursts only: clock sync probes for absolute one-way delays
+    public int clockSyncProbes = 0;
     
     private Context context = null;
 
@@ -113,6 +190,13 @@ public class UDPBurstTask extends MeasurementTask {
      * 1. "direction": "up" if this is an uplink measurement. or "down"
      * otherwise 2. "packet_burst": how many packets should a up/down burst
      * have 3. "packet_size_byte": the size of each packet in bytes
+     * 
+     * "stream_duration_sec" turns the task into an uplink streaming test
+     * of that length, reported every "report_interval_ms"
+     * 
+     * "train_count" turns the task into a packet-train test of that many
+     * trains of "train_length" back-to-back packets of
+     * "train_packet_size_byte" bytes, "train_gap_ms" apart
      */
     @Override
     protected void initializeParams(Map<String, String> params) {
@@ -147,6 +231,44 @@ public class UDPBurstTask extends MeasurementTask {
             && val.length() > 0 && Integer.parseInt(val) > 0) {
           this.udpInterval = Integer.parseInt(val);
         }
+        if ((val = params.get("stream_duration_sec")) != null
+            && val.length() > 0 && Integer.parseInt(val) > 0) {
+          this.streamDurationSec = Math.min(Integer.parseInt(val),
+              UDPBurstTask.STREAM_MAX_DURATION_SEC);
+        }
+        if ((val = params.get("report_interval_ms")) != null
+            && val.length() > 0 && Integer.parseInt(val) > 0) {
+          this.reportInterval = Integer.parseInt(val);
+        }
+        if ((val = params.get("protocol_version")) != null
+            && val.length() > 0 && Integer.parseInt(val) == 2) {
+          this.protocolVersion = 2;
+        }
+        if ((val = params.get("train_length")) != null
+            && val.length() > 0 && Integer.parseInt(val) > 0) {
+          this.trainLength = Math.max(2, Math.min(Integer.parseInt(val),
+              UDPBurstTask.MAX_TRAIN_LENGTH));
+        }
+        if ((val = params.get("train_count")) != null
+            && val.length() > 0 && Integer.parseInt(val) > 0) {
+          this.trainCount = Math.min(Integer.parseInt(val),
+              UDPBurstTask.MAX_TRAIN_PACKETS / this.trainLength);
+        }
+        if ((val = params.get("train_packet_size_byte")) != null
+            && val.length() > 0 && Integer.parseInt(val) > 0) {
+          this.trainPacketSize = Math.max(MIN_PACKETSIZE, Math.min(
+              Integer.parseInt(val), UDPBurstTask.MAX_TRAIN_PACKETSIZE));
+        }
+        if ((val = params.get("train_gap_ms")) != null
+            && val.length() > 0 && Integer.parseInt(val) >= 0) {
+          this.trainGap = Math.min(Integer.parseInt(val),
+              UDPBurstTask.MAX_TRAIN_GAP);
+        }
+        if ((val = params.get("clock_sync_probes")) != null
+            && val.length() > 0 && Integer.parseInt(val) > 0) {
+          this.clockSyncProbes = Math.min(Integer.parseInt(val),
+              UDPBurstTask.MAX_SYNC_PROBES);
+        }
       } catch (NumberFormatException e) {
         throw new InvalidParameterException("UDPTask invalid params");
       }
@@ -216,15 +338,181 @@ public class UDPBurstTask extends MeasurementTask {
   private class UDPResult {
     public int packetNumber;
     public int InversionNumber;
+    // in msec. for v1 and nsec. for v2
     public long jitter;
+    // v2 only: one-way delay of each packet in usec., less the smallest
+    public ArrayList<Long> delays;
+    // packet-train tests only
+    public long capacityKbps;
+    public long availableKbps;
+    public int pairsUsed;
+    public int trainsUsed;
+    // v2 bursts only: receive time minus send time of each packet in nsec.,
+    // across the two clocks, and our nanoTime the packet was sent or
+    // received at
+    public ArrayList<Long> rawDelays;
+    public ArrayList<Long> rawTimes;
     
     public UDPResult () {
       packetNumber = 0;
       InversionNumber = 0;
       jitter = 0L;
+      delays = new ArrayList<Long>();
+      rawDelays = new ArrayList<Long>();
+      rawTimes = new ArrayList<Long>();
+    }
+  }
+
+  /**
+   * The best of a series of NTP-like exchanges with the server, the one
+   * with the shortest round trip
+   */
+  private static class ClockSample {
+    // server clock minus ours in nsec.
+    public long offset;
+    // round trip less the time spent in the server in nsec.
+    public long delay = Long.MAX_VALUE;
+    // our nanoTime in the middle of the exchange
+    public long time;
+  }
+
+  /**
+   * The fields of a v1 or v2 header
+   */
+  private static class Header {
+    public int version;
+    public int type;
+    public int flags;
+    public int seq;
+    public int burstCount;
+    public int packetNum;
+    public int intervalNum;
+    public long timestamp;
+    public int packetSize;
+    public int udpInterval;
+  }
+
+  /**
+   * Writes a header of the version of the task. Data packets are padded
+   * with zeroes to packetSize, requests are sent as the bare header like
+   * they always were in v1
+   */
+  private void writeHeader(DataOutputStream dataOut, int type, int flags,
+      int burstCount, int packetNum, long timestamp, int packetSize,
+      int udpInterval) throws IOException {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    int headerSize;
+    if (desc.protocolVersion == 2) {
+      dataOut.writeInt(UDPBurstTask.MAGIC_V2);
+      dataOut.writeInt(type);
+      dataOut.writeInt(flags);
+      dataOut.writeInt(seq);
+      dataOut.writeInt(burstCount);
+      dataOut.writeInt(packetNum);
+      dataOut.writeInt(packetSize);
+      dataOut.writeInt(udpInterval);
+      dataOut.writeLong(timestamp);
+      dataOut.writeInt(-1); // left for inversion number
+      dataOut.writeInt(0);
+      headerSize = UDPBurstTask.HEADER_SIZE_V2;
+    } else {
+      dataOut.writeInt(type);
+      dataOut.writeInt(burstCount);
+      dataOut.writeInt(packetNum);
+      dataOut.writeInt(-1); // left for inversion number
+      dataOut.writeLong(timestamp);
+      dataOut.writeInt(packetSize);
+      dataOut.writeInt(seq);
+      dataOut.writeInt(udpInterval);
+      headerSize = UDPBurstTask.MIN_PACKETSIZE;
+    }
+    if (type != UDPBurstTask.PKT_DATA && type != UDPBurstTask.PKT_TRAIN_DATA) {
+      // requests only carry the size, they go out as a bare header
+      return;
+    }
+    for (int j = headerSize; j < packetSize; j++) {
+      // Fill in the rest of the packet with zeroes.
+      dataOut.write(0);
     }
   }
 
+  /**
+   * Reads a v1 or v2 header, told apart by the first int
+   */
+  private Header readHeader(DataInputStream dataIn) throws IOException {
+    Header header = new Header();
+    int first = dataIn.readInt();
+    if (first == UDPBurstTask.MAGIC_V2) {
+      header.version = 2;
+      header.type = dataIn.readInt();
+      header.flags = dataIn.readInt();
+      header.seq = dataIn.readInt();
+      header.burstCount = dataIn.readInt();
+      header.packetNum = dataIn.readInt();
+      header.packetSize = dataIn.readInt();
+      header.udpInterval = dataIn.readInt();
+      header.timestamp = dataIn.readLong();
+      header.intervalNum = dataIn.readInt();
+      dataIn.readInt();
+    } else {
+      header.version = 1;
+      header.type = first;
+      header.burstCount = dataIn.readInt();
+      header.packetNum = dataIn.readInt();
+      header.intervalNum = dataIn.readInt();
+      header.timestamp = dataIn.readLong();
+      header.packetSize = dataIn.readInt();
+      header.seq = dataIn.readInt();
+      header.udpInterval = dataIn.readInt();
+    }
+    return header;
+  }
+
+  /**
+   * Reads a zigzag varint of the v2 delay array
+   */
+  private static long readVarLong(DataInputStream dataIn) throws IOException {
+    long zigzag = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = dataIn.readUnsignedByte();
+      zigzag |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0 && shift < 64);
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+  /**
+   * Shifts delays so that the smallest is zero, which removes the unknown
+   * clock offset between the two ends
+   */
+  private static void normalizeDelays(ArrayList<Long> delays) {
+    if (delays.isEmpty()) {
+      return;
+    }
+    long min = Long.MAX_VALUE;
+    for (long delay : delays) {
+      min = Math.min(min, delay);
+    }
+    for (int i = 0; i < delays.size(); i++) {
+      delays.set(i, delays.get(i) - min);
+    }
+  }
+
+  /**
+   * The server's report of one window of a streaming test
+   */
+  private class StreamWindow {
+    public int expected;
+    public int received;
+    public int inversionNumber;
+    public long jitter;
+    public int lossRuns;
+    public int duplicates;
+    public int rateKbps;
+  }
+
   /**
    * @author Hongyi Yao (hyyao@umich.edu)
    * This class calculates the number of inversion and delay jitter
@@ -244,13 +532,28 @@ public class UDPBurstTask extends MeasurementTask {
       inversionCounter = 0;
     }
 
-    public void addPacket(int packetNumber, long timestamp) {
+    /**
+     * @param offsetedDelay receive time minus send time, offseted by the
+     *                      clock difference between client and server
+     */
+    public void addPacket(int packetNumber, long offsetedDelay) {
       packetNumList[size] = packetNumber;
-      offsetedDelayList[size] = System.currentTimeMillis()
-          - timestamp;
+      offsetedDelayList[size] = offsetedDelay;
       size++;
     }
 
+    /**
+     * @return the delays of the received packets in usec.
+     * @param unitNanos length of the delay unit in nsec.
+     */
+    public ArrayList<Long> getDelays(long unitNanos) {
+      ArrayList<Long> delays = new ArrayList<Long>();
+      for (int i = 0; i < size; i++) {
+        delays.add(offsetedDelayList[i] * unitNanos / 1000);
+      }
+      return delays;
+    }
+
     /**
      * Leverage the combine process during merge-sort to calculate inversion
      * number
@@ -312,15 +615,17 @@ public class UDPBurstTask extends MeasurementTask {
      */
     public long calculateJitter() {
       if ( size > 1 ) {
+        // only the first size entries were received
         double offsetedDelay_mean = 0;
-        for ( long offsetedDelay : offsetedDelayList ) {
-          offsetedDelay_mean += (double)offsetedDelay / size;
+        for ( int i = 0; i < size; i++ ) {
+          offsetedDelay_mean += (double)offsetedDelayList[i] / size;
         }
 
         double jitter = 0;
-        for ( long offsetedDelay : offsetedDelayList ) {
-          jitter += ((double)offsetedDelay - offsetedDelay_mean)
-              * ((double)offsetedDelay - offsetedDelay_mean)  / (size - 1);
+        for ( int i = 0; i < size; i++ ) {
+          double offsetedDelay = offsetedDelayList[i];
+          jitter += (offsetedDelay - offsetedDelay_mean)
+              * (offsetedDelay - offsetedDelay_mean)  / (size - 1);
         }
         jitter = Math.sqrt(jitter);
         
@@ -332,6 +637,102 @@ public class UDPBurstTask extends MeasurementTask {
     }
   }
 
+  /**
+   * Estimates the bandwidth from the arrival times of back-to-back packet
+   * trains, the same way as the server does for uplink trains: the gap
+   * between consecutive packets gives a capacity sample, the rate of a
+   * whole train an upper bound of the available bandwidth, and samples
+   * outside 1.5 interquartile ranges of the quartiles are dropped before
+   * the median is taken
+   */
+  private static class TrainEstimator {
+    private int trainLength;
+    private int trainCount;
+    // arrival time of each packet in nsec., 0 if lost
+    private long[] arrivals;
+
+    public long capacityKbps;
+    public long availableKbps;
+    public int pairsUsed;
+    public int trainsUsed;
+
+    public TrainEstimator(int trainLength, int trainCount) {
+      this.trainLength = trainLength;
+      this.trainCount = trainCount;
+      arrivals = new long[trainLength * trainCount];
+    }
+
+    /**
+     * @return false if the packet is a duplicate or its number is invalid
+     */
+    public boolean addArrival(int packetNum, long arrivalNanos) {
+      if (packetNum < 0 || packetNum >= arrivals.length
+          || arrivals[packetNum] != 0) {
+        return false;
+      }
+      arrivals[packetNum] = arrivalNanos;
+      return true;
+    }
+
+    public void estimate(int packetSize) {
+      long bits = packetSize * 8L;
+      long[] pairs = new long[arrivals.length];
+      long[] trains = new long[trainCount];
+      int pairCount = 0;
+      int trainRates = 0;
+      for (int t = 0; t < trainCount; t++) {
+        int base = t * trainLength;
+        int count = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int i = base; i < base + trainLength; i++) {
+          if (arrivals[i] == 0) {
+            continue;
+          }
+          count++;
+          first = Math.min(first, arrivals[i]);
+          last = Math.max(last, arrivals[i]);
+          // a pair sent back to back that arrived in order
+          if (i > base && arrivals[i - 1] != 0
+              && arrivals[i] > arrivals[i - 1]) {
+            long gap = arrivals[i] - arrivals[i - 1];
+            pairs[pairCount++] = bits * 1000000 / gap;
+          }
+        }
+        if (count > 1 && last > first) {
+          trains[trainRates++] = (count - 1) * bits * 1000000 / (last - first);
+        }
+      }
+      pairsUsed = filterOutliers(pairs, pairCount);
+      capacityKbps = pairsUsed == 0 ? 0 : pairs[pairsUsed / 2];
+      trainsUsed = filterOutliers(trains, trainRates);
+      availableKbps = trainsUsed == 0 ? 0 : trains[trainsUsed / 2];
+    }
+
+    /**
+     * Sorts the samples and moves those within 1.5 interquartile ranges of
+     * the quartiles to the front
+     * @return number of samples kept
+     */
+    private static int filterOutliers(long[] values, int count) {
+      Arrays.sort(values, 0, count);
+      if (count < 4) {
+        return count;
+      }
+      long q1 = values[count / 4];
+      long q3 = values[count * 3 / 4];
+      long low = q1 - (q3 - q1) * 3 / 2;
+      long high = q3 + (q3 - q1) * 3 / 2;
+      int kept = 0;
+      for (int i = 0; i < count; i++) {
+        if (values[i] >= low && values[i] <= high) {
+          values[kept++] = values[i];
+        }
+      }
+      return kept;
+    }
+  }
+
   /**
    * Opens a Datagram socket to the server included in the UDPDesc and sends a
    * burst of UDPBurstCount packets, each of size packetSizeByte.
@@ -361,28 +762,25 @@ public class UDPBurstTask extends MeasurementTask {
     byte[] data = byteOut.toByteArray();
     DatagramPacket packet = new DatagramPacket(data, data.length, addr,
         desc.dstPort);
+    if (desc.protocolVersion == 2) {
+      upSendTimes = new long[desc.udpBurstCount];
+    }
     // Send burst
     for (int i = 0; i < desc.udpBurstCount; i++) {
       byteOut.reset();
+      long timestamp;
+      if (desc.protocolVersion == 2) {
+        timestamp = System.nanoTime();
+        upSendTimes[i] = timestamp;
+      } else {
+        timestamp = System.currentTimeMillis();
+      }
       try {
-        dataOut.writeInt(UDPBurstTask.PKT_DATA);
-        dataOut.writeInt(desc.udpBurstCount);
-        dataOut.writeInt(i);
-
-        dataOut.writeInt(-1); // left for inversion number
         // Sender: timestamp when sending
         // Receiver: jitter
-        dataOut.writeLong(System.currentTimeMillis());
-
-        dataOut.writeInt(desc.packetSizeByte);
-        dataOut.writeInt(seq);
-        dataOut.writeInt(0);  // udp interval invalid 
-        for (int j = 0; j < desc.packetSizeByte
-            - UDPBurstTask.MIN_PACKETSIZE; j++) {
-          // Fill in the rest of the packet with zeroes.
-          // TODO(aterzis): There has to be a better way to do this
-          dataOut.write(0);
-        }
+        // udp interval invalid
+        writeHeader(dataOut, UDPBurstTask.PKT_DATA, UDPBurstTask.FLAG_DELAYS,
+            desc.udpBurstCount, i, timestamp, desc.packetSizeByte, 0);
       } catch (IOException e) {
         sock.close();
         throw new MeasurementError("Error creating message to "
@@ -435,13 +833,14 @@ public class UDPBurstTask extends MeasurementTask {
     UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
     int ptype, burstsize, pktnum, invnum;
     long jitter;
+    Header header;
 
     UDPResult udpResult = new UDPResult();
     // Receive response
     Logger.i("Waiting for UDP response from " + desc.target + ": "
         + targetIp);
 
-    byte buffer[] = new byte[UDPBurstTask.MIN_PACKETSIZE];
+    byte buffer[] = new byte[UDPBurstTask.MAX_RESPONSE_SIZE];
     DatagramPacket recvpacket = new DatagramPacket(buffer, buffer.length);
 
     try {
@@ -460,11 +859,34 @@ public class UDPBurstTask extends MeasurementTask {
     DataInputStream dataIn = new DataInputStream(byteIn);
 
     try {
-      ptype = dataIn.readInt();
-      burstsize = dataIn.readInt();
-      pktnum = dataIn.readInt();
-      invnum = dataIn.readInt();
-      jitter = dataIn.readLong();
+      header = readHeader(dataIn);
+      ptype = header.type;
+      burstsize = header.burstCount;
+      pktnum = header.packetNum;
+      invnum = header.intervalNum;
+      jitter = header.timestamp;
+      if (header.version == 2
+          && (header.flags & UDPBurstTask.FLAG_DELAYS) != 0) {
+        // count, bitmap of the received packets, then delta coded delays
+        int count = dataIn.readInt();
+        byte[] bitmap = new byte[(count + 7) / 8];
+        dataIn.readFully(bitmap);
+        long delay = 0;
+        for (int i = 0; i < count; i++) {
+          if ((bitmap[i / 8] & (1 << (i % 8))) != 0) {
+            delay += readVarLong(dataIn);
+            udpResult.delays.add(delay);
+            if (upSendTimes != null && i < upSendTimes.length) {
+              udpResult.rawDelays.add(delay * 1000);
+              udpResult.rawTimes.add(upSendTimes[i]);
+            }
+          }
+        }
+        normalizeDelays(udpResult.delays);
+        if ((header.flags & UDPBurstTask.FLAG_TRUNCATED) != 0) {
+          Logger.w("Delays of " + (burstsize - count) + " packets did not fit");
+        }
+      }
     } catch (IOException e) {
       sock.close();
       throw new MeasurementError("Error parsing response from "
@@ -512,14 +934,9 @@ public class UDPBurstTask extends MeasurementTask {
         + desc.packetSizeByte + " to " + desc.target + ": " + targetIp);
 
     try {
-      dataOut.writeInt(UDPBurstTask.PKT_REQUEST);
-      dataOut.writeInt(desc.udpBurstCount);
-      dataOut.writeInt(0);
-      dataOut.writeInt(-1); // inv number is not used
-      dataOut.writeLong(-1L); // timestamp is not used
-      dataOut.writeInt(desc.packetSizeByte);
-      dataOut.writeInt(seq);
-      dataOut.writeInt(desc.udpInterval);  // set udp interval
+      // timestamp is not used, set udp interval
+      writeHeader(dataOut, UDPBurstTask.PKT_REQUEST, 0, desc.udpBurstCount,
+          0, -1L, desc.packetSizeByte, desc.udpInterval);
     } catch (IOException e) {
       sock.close();
       throw new MeasurementError("Error creating message to "
@@ -570,7 +987,9 @@ public class UDPBurstTask extends MeasurementTask {
     // Receive response
     Logger.i("Waiting for UDP burst from " + desc.target);
 
-    byte buffer[] = new byte[desc.packetSizeByte];
+    UDPResult udpResult = new UDPResult();
+    byte buffer[] = new byte[Math.max(desc.packetSizeByte,
+        UDPBurstTask.HEADER_SIZE_V2)];
     DatagramPacket recvpacket = new DatagramPacket(buffer, buffer.length);
 
     for (int i = 0; i < desc.udpBurstCount; i++) {
@@ -588,12 +1007,13 @@ public class UDPBurstTask extends MeasurementTask {
           recvpacket.getData(), 0, recvpacket.getLength());
       DataInputStream dataIn = new DataInputStream(byteIn);
 
+      Header header;
       try {
-        ptype = dataIn.readInt();
-        burstsize = dataIn.readInt();
-        pktnum = dataIn.readInt();
-        dataIn.readInt(); // we do not need inversion number
-        timestamp = dataIn.readLong(); // Get timestamp
+        header = readHeader(dataIn);
+        ptype = header.type;
+        burstsize = header.burstCount;
+        pktnum = header.packetNum;
+        timestamp = header.timestamp; // Get timestamp
       } catch (IOException e) {
         sock.close();
         throw new MeasurementError("Error parsing response from "
@@ -606,7 +1026,15 @@ public class UDPBurstTask extends MeasurementTask {
 
       if (ptype == UDPBurstTask.PKT_DATA) {
         pktrecv++;
-        metricCalculator.addPacket(pktnum, timestamp);
+        if (header.version == 2) {
+          long now = System.nanoTime();
+          metricCalculator.addPacket(pktnum, now - timestamp);
+          udpResult.rawDelays.add(now - timestamp);
+          udpResult.rawTimes.add(now);
+        } else {
+          metricCalculator.addPacket(pktnum,
+              System.currentTimeMillis() - timestamp);
+        }
       }
       
       try {
@@ -618,13 +1046,522 @@ public class UDPBurstTask extends MeasurementTask {
       }
     } // for()
 
-    UDPResult udpResult = new UDPResult();
     udpResult.packetNumber = pktrecv;
     udpResult.InversionNumber = metricCalculator.calculateInversionNumber();
     udpResult.jitter = metricCalculator.calculateJitter();
+    if (desc.protocolVersion == 2) {
+      udpResult.delays = metricCalculator.getDelays(1);
+      normalizeDelays(udpResult.delays);
+    }
     return udpResult;
   }
 
+  /**
+   * Measures the offset of the server clock with clockSyncProbes NTP-like
+   * exchanges on a socket of their own: we send T1, the server answers with
+   * T1, the time T2 it read the probe and the time T3 it answered, and we
+   * read the answer at T4. The exchange with the shortest round trip is
+   * kept, it suffers the least from queueing on either path.
+   * 
+   * @return the best exchange, or null if the task does not sync or no
+   *         probe was answered
+   * @throws MeasurementError
+   *             if an error occurs
+   */
+  private ClockSample syncClock() throws MeasurementError {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    if (desc.protocolVersion != 2 || desc.clockSyncProbes == 0) {
+      return null;
+    }
+    InetAddress addr = null;
+    try {
+      addr = InetAddress.getByName(desc.target);
+    } catch (UnknownHostException e) {
+      throw new MeasurementError("Unknown host " + desc.target);
+    }
+
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    DataOutputStream dataOut = new DataOutputStream(byteOut);
+    byte buffer[] = new byte[UDPBurstTask.MAX_RESPONSE_SIZE];
+    DatagramPacket recvpacket = new DatagramPacket(buffer, buffer.length);
+    ClockSample best = new ClockSample();
+    DatagramSocket sock = openSocket();
+    try {
+      sock.setSoTimeout(UDPBurstTask.SYNC_TIMEOUT);
+      for (int i = 0; i < desc.clockSyncProbes; i++) {
+        byteOut.reset();
+        writeHeader(dataOut, UDPBurstTask.PKT_SYNC_REQUEST, 0, 0, i,
+            System.nanoTime(), UDPBurstTask.HEADER_SIZE_V2, 0);
+        byte[] data = byteOut.toByteArray();
+        sock.send(new DatagramPacket(data, data.length, addr, desc.dstPort));
+
+        while (true) {
+          try {
+            sock.receive(recvpacket);
+          } catch (SocketTimeoutException e) {
+            Logger.w("Clock sync probe " + i + " was not answered");
+            break;
+          }
+          long t4 = System.nanoTime();
+          DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(
+              recvpacket.getData(), 0, recvpacket.getLength()));
+          Header header = readHeader(dataIn);
+          if (header.type != UDPBurstTask.PKT_SYNC_RESPONSE
+              || header.seq != seq || header.packetNum != i) {
+            // the late answer of an earlier probe
+            continue;
+          }
+          long t1 = header.timestamp;
+          long t2 = dataIn.readLong();
+          long t3 = dataIn.readLong();
+          long delay = (t4 - t1) - (t3 - t2);
+          if (delay >= 0 && delay < best.delay) {
+            best.delay = delay;
+            best.offset = ((t2 - t1) + (t3 - t4)) / 2;
+            best.time = t1 + (t4 - t1) / 2;
+          }
+          break;
+        }
+      }
+    } catch (IOException e) {
+      throw new MeasurementError("Error syncing clock with " + desc.target);
+    } finally {
+      sock.close();
+    }
+
+    if (best.delay == Long.MAX_VALUE) {
+      Logger.w("Clock sync with " + desc.target + " failed");
+      return null;
+    }
+    Logger.i("Clock offset to " + desc.target + ": " + best.offset
+        + "ns rtt: " + best.delay + "ns");
+    return best;
+  }
+
+  /**
+   * @return the server clock minus ours at our time, interpolated between
+   *         the syncs before and after the burst to follow the drift
+   */
+  private static long offsetAt(ClockSample before, ClockSample after,
+      long time) {
+    if (after == null || after.time == before.time) {
+      return before.offset;
+    }
+    return before.offset + (long) ((after.offset - before.offset)
+        * (double) (time - before.time) / (after.time - before.time));
+  }
+
+  /**
+   * Nearest-rank percentile of sorted values
+   */
+  private static long percentile(long[] sorted, int percent) {
+    int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+    return sorted[Math.max(rank - 1, 0)];
+  }
+
+  /**
+   * Adds the absolute one-way delays of a v2 burst to the result, its raw
+   * delays corrected by the clock offset at the time of each packet
+   */
+  private void addOneWayDelays(MeasurementResult result, UDPResult udpResult,
+      ClockSample before, ClockSample after) {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    String prefix = desc.dirUp ? "up_owd_" : "down_owd_";
+    int count = udpResult.rawDelays.size();
+    long[] owds = new long[count];
+    for (int i = 0; i < count; i++) {
+      long offset = offsetAt(before, after, udpResult.rawTimes.get(i));
+      // the server clock runs ahead by offset, which the uplink delays
+      // include and the downlink delays lack
+      owds[i] = (desc.dirUp ? udpResult.rawDelays.get(i) - offset
+          : udpResult.rawDelays.get(i) + offset) / 1000;
+    }
+    Arrays.sort(owds);
+
+    result.addResult("clock_offset_us", before.offset / 1000);
+    result.addResult("sync_rtt_us", before.delay / 1000);
+    if (after != null && after.time != before.time) {
+      result.addResult("clock_drift_ppm", (after.offset - before.offset)
+          * 1000000.0 / (after.time - before.time));
+    }
+    if (count > 0) {
+      result.addResult(prefix + "min_us", owds[0]);
+      result.addResult(prefix + "p50_us", percentile(owds, 50));
+      result.addResult(prefix + "p90_us", percentile(owds, 90));
+      result.addResult(prefix + "p99_us", percentile(owds, 99));
+      result.addResult(prefix + "max_us", owds[count - 1]);
+    }
+  }
+
+  /**
+   * Runs an uplink packet-train test: sends trainCount trains of
+   * trainLength back-to-back packets, trainGap ms apart, and waits for the
+   * server's estimates from their arrival times.
+   * 
+   * @param sock the datagram socket used for the test
+   * @return the estimates of the server
+   * @throws MeasurementError
+   *             if an error occurs
+   */
+  private UDPResult runUpTrains(DatagramSocket sock) throws MeasurementError {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    InetAddress addr = null;
+
+    // Resolve the server's name
+    try {
+      addr = InetAddress.getByName(desc.target);
+      targetIp = addr.getHostAddress();
+    } catch (UnknownHostException e) {
+      throw new MeasurementError("Unknown host " + desc.target);
+    }
+
+    Logger.i("Sending " + desc.trainCount + " UDP trains of " +
+        desc.trainLength + " x " + desc.trainPacketSize + " bytes to " +
+        desc.target + ": " + targetIp);
+
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    DataOutputStream dataOut = new DataOutputStream(byteOut);
+    byte[][] train = new byte[desc.trainLength][];
+    for (int t = 0; t < desc.trainCount; t++) {
+      // build the whole train first, so nothing slows down the sends
+      try {
+        for (int i = 0; i < desc.trainLength; i++) {
+          byteOut.reset();
+          writeHeader(dataOut, UDPBurstTask.PKT_TRAIN_DATA, 0,
+              desc.trainLength, t * desc.trainLength + i, System.nanoTime(),
+              desc.trainPacketSize, desc.trainCount);
+          train[i] = byteOut.toByteArray();
+        }
+      } catch (IOException e) {
+        throw new MeasurementError("Error creating message to "
+            + desc.target);
+      }
+      try {
+        for (int i = 0; i < desc.trainLength; i++) {
+          sock.send(new DatagramPacket(train[i], train[i].length, addr,
+              desc.dstPort));
+        }
+      } catch (IOException e) {
+        throw new MeasurementError("Error sending " + desc.target);
+      }
+      try {
+        Thread.sleep(desc.trainGap);
+      } catch (InterruptedException e) {
+        Logger.w("UDP train gap interrupted");
+      }
+    }
+
+    byte buffer[] = new byte[UDPBurstTask.MAX_RESPONSE_SIZE];
+    DatagramPacket recvpacket = new DatagramPacket(buffer, buffer.length);
+    while (true) {
+      try {
+        sock.setSoTimeout(RCV_TIMEOUT);
+        sock.receive(recvpacket);
+      } catch (IOException e) {
+        throw new MeasurementError("Timed out reading from " + desc.target);
+      }
+
+      DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(
+          recvpacket.getData(), 0, recvpacket.getLength()));
+      try {
+        Header header = readHeader(dataIn);
+        if (header.type == UDPBurstTask.PKT_ERROR) {
+          throw new MeasurementError("Server refused UDP trains from "
+              + desc.target);
+        }
+        if (header.type != UDPBurstTask.PKT_TRAIN_REPORT
+            || header.seq != seq) {
+          continue;
+        }
+        UDPResult udpResult = new UDPResult();
+        udpResult.packetNumber = header.packetNum;
+        udpResult.capacityKbps = dataIn.readInt();
+        udpResult.availableKbps = dataIn.readInt();
+        udpResult.pairsUsed = dataIn.readInt();
+        udpResult.trainsUsed = dataIn.readInt();
+        Logger.i("UDP train report: received " + header.packetNum +
+            " capacity " + udpResult.capacityKbps + "kbps available " +
+            udpResult.availableKbps + "kbps");
+        return udpResult;
+      } catch (IOException e) {
+        throw new MeasurementError("Error parsing response from "
+            + desc.target);
+      }
+    }
+  }
+
+  /**
+   * Runs a downlink packet-train test: asks the server for trainCount
+   * trains of trainLength back-to-back packets, trainGap ms apart, and
+   * estimates the bandwidth from their arrival times.
+   * 
+   * @param sock the datagram socket used for the test
+   * @return the estimates
+   * @throws MeasurementError
+   *             if an error occurs
+   */
+  private UDPResult runDownTrains(DatagramSocket sock)
+      throws MeasurementError {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    InetAddress addr = null;
+
+    // Resolve the server's name
+    try {
+      addr = InetAddress.getByName(desc.target);
+      targetIp = addr.getHostAddress();
+    } catch (UnknownHostException e) {
+      throw new MeasurementError("Unknown host " + desc.target);
+    }
+
+    int total = desc.trainCount * desc.trainLength;
+    try {
+      // a train arrives faster than it is read, make room for all of them
+      sock.setReceiveBufferSize(total * desc.trainPacketSize);
+    } catch (SocketException e) {
+      Logger.w("Cannot enlarge the receive buffer: " + e.getMessage());
+    }
+
+    Logger.i("Requesting " + desc.trainCount + " UDP trains of " +
+        desc.trainLength + " x " + desc.trainPacketSize + " bytes from " +
+        desc.target + ": " + targetIp);
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    DataOutputStream dataOut = new DataOutputStream(byteOut);
+    try {
+      // the number of trains travels in packetNum
+      writeHeader(dataOut, UDPBurstTask.PKT_TRAIN_REQUEST, 0,
+          desc.trainLength, desc.trainCount, -1L, desc.trainPacketSize,
+          desc.trainGap);
+      byte[] data = byteOut.toByteArray();
+      sock.send(new DatagramPacket(data, data.length, addr, desc.dstPort));
+    } catch (IOException e) {
+      throw new MeasurementError("Error sending " + desc.target);
+    }
+
+    TrainEstimator estimator = new TrainEstimator(desc.trainLength,
+        desc.trainCount);
+    byte buffer[] = new byte[UDPBurstTask.MAX_TRAIN_PACKETSIZE];
+    DatagramPacket recvpacket = new DatagramPacket(buffer, buffer.length);
+    int pktrecv = 0;
+    while (pktrecv < total) {
+      long arrival;
+      try {
+        sock.setSoTimeout(pktrecv == 0 ? RCV_TIMEOUT
+            : desc.trainGap + UDPBurstTask.TRAIN_TIMEOUT);
+        sock.receive(recvpacket);
+        // take the time first, the estimates depend on it
+        arrival = System.nanoTime();
+      } catch (IOException e) {
+        break;
+      }
+
+      DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(
+          recvpacket.getData(), 0, recvpacket.getLength()));
+      Header header;
+      try {
+        header = readHeader(dataIn);
+      } catch (IOException e) {
+        throw new MeasurementError("Error parsing response from "
+            + desc.target);
+      }
+      if (header.type == UDPBurstTask.PKT_TRAIN_DATA && header.seq == seq
+          && estimator.addArrival(header.packetNum, arrival)) {
+        pktrecv++;
+      }
+    }
+
+    estimator.estimate(desc.trainPacketSize);
+    UDPResult udpResult = new UDPResult();
+    udpResult.packetNumber = pktrecv;
+    udpResult.capacityKbps = estimator.capacityKbps;
+    udpResult.availableKbps = estimator.availableKbps;
+    udpResult.pairsUsed = estimator.pairsUsed;
+    udpResult.trainsUsed = estimator.trainsUsed;
+    Logger.i("UDP trains: received " + pktrecv + "/" + total +
+        " capacity " + udpResult.capacityKbps + "kbps available " +
+        udpResult.availableKbps + "kbps");
+    return udpResult;
+  }
+
+  /**
+   * Runs a streaming test: sends a packet every udpInterval ms until the
+   * duration is over or the task is stopped, collecting the window reports
+   * in between, then stops the session and waits for its totals.
+   * 
+   * @param sock the datagram socket used for the session
+   * @return the totals of the session
+   * @throws MeasurementError
+   *             if an error occurs
+   */
+  private UDPResult runStream(DatagramSocket sock) throws MeasurementError {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    InetAddress addr = null;
+
+    // Resolve the server's name
+    try {
+      addr = InetAddress.getByName(desc.target);
+      targetIp = addr.getHostAddress();
+    } catch (UnknownHostException e) {
+      throw new MeasurementError("Unknown host " + desc.target);
+    }
+
+    int interval = Math.max(1, desc.udpInterval);
+    int window = Math.max(1, Math.min(desc.reportInterval / interval,
+        UDPBurstTask.STREAM_MAX_WINDOW));
+    Logger.i("Starting UDP stream for " + desc.streamDurationSec +
+        "s every " + interval + "ms, window " + window + " to " +
+        desc.target + ": " + targetIp);
+
+    byte[] data = new byte[desc.packetSizeByte];
+    ByteBuffer out = ByteBuffer.wrap(data);
+    DatagramPacket packet = new DatagramPacket(data, data.length, addr,
+        desc.dstPort);
+    byte[] buffer = new byte[STREAM_REPORT_SIZE];
+    DatagramPacket recvpacket = new DatagramPacket(buffer, buffer.length);
+
+    streamWindows.clear();
+    long now = System.currentTimeMillis();
+    long end = now + desc.streamDurationSec * 1000L;
+    long next = now;
+    streamPacketsSent = 0;
+    while (!stopStream && now < end
+        && streamPacketsSent < UDPBurstTask.STREAM_MAX_PACKETS) {
+      if (now >= next) {
+        out.clear();
+        out.putInt(UDPBurstTask.PKT_STREAM_DATA);
+        out.putInt(0); // burst count is not used
+        out.putInt(streamPacketsSent);
+        out.putInt(window);
+        out.putLong(now);
+        out.putInt(desc.packetSizeByte);
+        out.putInt(seq);
+        out.putInt(interval);
+        try {
+          sock.send(packet);
+        } catch (IOException e) {
+          throw new MeasurementError("Error sending " + desc.target);
+        }
+        streamPacketsSent++;
+        // keep the schedule, but do not burst to catch up after a stall
+        next = Math.max(next + interval, now);
+      }
+      receiveStreamReport(sock, recvpacket, (int) Math.max(1, next - now));
+      now = System.currentTimeMillis();
+    }
+    Logger.i("UDP stream sent " + streamPacketsSent + " packets" +
+        (stopStream ? ", stopped early" : ""));
+
+    // Stop the session, retrying until the totals arrive
+    out.clear();
+    out.putInt(UDPBurstTask.PKT_STREAM_STOP);
+    out.putInt(0);
+    out.putInt(streamPacketsSent);
+    out.putInt(window);
+    out.putLong(System.currentTimeMillis());
+    out.putInt(desc.packetSizeByte);
+    out.putInt(seq);
+    out.putInt(interval);
+    packet.setLength(UDPBurstTask.MIN_PACKETSIZE);
+    UDPResult udpResult = null;
+    for (int i = 0; i < STREAM_STOP_ATTEMPTS && udpResult == null; i++) {
+      try {
+        sock.send(packet);
+      } catch (IOException e) {
+        throw new MeasurementError("Error sending " + desc.target);
+      }
+      long deadline = System.currentTimeMillis()
+          + RCV_TIMEOUT / STREAM_STOP_ATTEMPTS;
+      while (udpResult == null
+          && (now = System.currentTimeMillis()) < deadline) {
+        udpResult = receiveStreamReport(sock, recvpacket,
+            (int) (deadline - now));
+      }
+    }
+
+    if (udpResult == null) {
+      // the end was lost, add up the windows that were reported
+      Logger.w("No end of UDP stream from " + desc.target);
+      udpResult = new UDPResult();
+      for (StreamWindow w : streamWindows.values()) {
+        udpResult.packetNumber += w.received;
+        udpResult.InversionNumber += w.inversionNumber;
+        udpResult.jitter = Math.max(udpResult.jitter, w.jitter);
+      }
+    }
+    return udpResult;
+  }
+
+  /**
+   * Waits for one report of the streaming session. Window reports are
+   * stored in streamWindows
+   * 
+   * @param sock the datagram socket used for the session
+   * @param recvpacket reused packet to receive into
+   * @param timeout how long to wait in msec.
+   * @return the totals if the report was the end of the session, or null
+   * @throws MeasurementError
+   *             if an error occurs
+   */
+  private UDPResult receiveStreamReport(DatagramSocket sock,
+      DatagramPacket recvpacket, int timeout) throws MeasurementError {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    try {
+      sock.setSoTimeout(timeout);
+      sock.receive(recvpacket);
+    } catch (SocketTimeoutException e) {
+      return null;
+    } catch (IOException e) {
+      throw new MeasurementError("Error reading from " + desc.target);
+    }
+    if (recvpacket.getLength() < UDPBurstTask.MIN_PACKETSIZE) {
+      return null;
+    }
+
+    ByteBuffer in = ByteBuffer.wrap(recvpacket.getData(), 0,
+        recvpacket.getLength());
+    int ptype = in.getInt();
+    int expected = in.getInt();
+    int received = in.getInt();
+    int invnum = in.getInt();
+    long jitter = in.getLong();
+    in.getInt(); // packet size
+    int rseq = in.getInt();
+    int index = in.getInt();
+    if (rseq != seq) {
+      return null;
+    }
+
+    if (ptype == UDPBurstTask.PKT_STREAM_REPORT
+        && recvpacket.getLength() >= STREAM_REPORT_SIZE) {
+      StreamWindow w = new StreamWindow();
+      w.expected = expected;
+      w.received = received;
+      w.inversionNumber = invnum;
+      w.jitter = jitter;
+      w.lossRuns = in.getInt();
+      w.duplicates = in.getInt();
+      in.getInt(); // arrival span
+      w.rateKbps = in.getInt();
+      streamWindows.put(index, w);
+      Logger.i("UDP stream window " + index + ": " + received + "/" +
+          expected + " inv " + invnum + " jitter " + jitter + " rate " +
+          w.rateKbps + "kbps");
+    } else if (ptype == UDPBurstTask.PKT_STREAM_END) {
+      Logger.i("UDP stream end: " + received + "/" + expected + " late " +
+          invnum + " jitter " + jitter + " windows " + index);
+      UDPResult udpResult = new UDPResult();
+      udpResult.packetNumber = received;
+      udpResult.jitter = jitter;
+      for (StreamWindow w : streamWindows.values()) {
+        udpResult.InversionNumber += w.inversionNumber;
+      }
+      return udpResult;
+    } else if (ptype == UDPBurstTask.PKT_ERROR) {
+      throw new MeasurementError("Server refused UDP stream from "
+          + desc.target);
+    }
+    return null;
+  }
+
   /**
    * Depending on the type of measurement, indicated by desc.Up, perform an
    * uplink/downlink measurement
@@ -638,10 +1575,14 @@ public class UDPBurstTask extends MeasurementTask {
     DatagramSocket socket = null;
     float response = 0.0F;
     UDPResult udpResult;
+    ClockSample clockBefore = null;
+    ClockSample clockAfter = null;
     int pktrecv = 0;
     boolean isMeasurementSuccessful = false;
 
     UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    // a stop only ends the run it was meant for, the task may run again
+    stopStream = false;
     
     if (!desc.target.equals(MLabNS.TARGET)) {
       throw new InvalidParameterException("Unknown target " + desc.target +
@@ -663,18 +1604,39 @@ public class UDPBurstTask extends MeasurementTask {
 
     Logger.i("Running UDPBurstTask on " + desc.target);
     try {
-      if (desc.dirUp == true) {
+      if (desc.trainCount > 0) {
+        socket = openSocket();
+        udpResult = desc.dirUp ? runUpTrains(socket) : runDownTrains(socket);
+        pktrecv = udpResult.packetNumber;
+        response = pktrecv / (float) (desc.trainCount * desc.trainLength);
+        isMeasurementSuccessful = true;
+      } else if (desc.streamDurationSec > 0) {
+        socket = openSocket();
+        udpResult = runStream(socket);
+        pktrecv = udpResult.packetNumber;
+        response = streamPacketsSent == 0 ? 0.0F
+            : pktrecv / (float) streamPacketsSent;
+        isMeasurementSuccessful = true;
+      } else if (desc.dirUp == true) {
+        clockBefore = syncClock();
         socket = sendUpBurst();
         udpResult = recvUpResponse(socket);
         pktrecv = udpResult.packetNumber;
         response = pktrecv / (float) desc.udpBurstCount;
         isMeasurementSuccessful = true;
+        if (clockBefore != null) {
+          clockAfter = syncClock();
+        }
       } else {
+        clockBefore = syncClock();
         socket = sendDownRequest();
         udpResult = recvDownResponse(socket);
         pktrecv = udpResult.packetNumber;
         response = pktrecv / (float) desc.udpBurstCount;
         isMeasurementSuccessful = true;
+        if (clockBefore != null) {
+          clockAfter = syncClock();
+        }
       }
     } catch (MeasurementError e) {
       throw e;
@@ -691,7 +1653,47 @@ public class UDPBurstTask extends MeasurementTask {
     result.addResult("target_ip", targetIp);
     result.addResult("PRR", response);
     result.addResult("Inversion_Number", udpResult.InversionNumber);
-    result.addResult("jitter", udpResult.jitter);
+    if (desc.protocolVersion == 2 && desc.streamDurationSec == 0
+        && desc.trainCount == 0) {
+      // keep jitter in msec. like v1, with the full resolution next to it
+      result.addResult("jitter", udpResult.jitter / 1000000);
+      result.addResult("jitter_us", udpResult.jitter / 1000);
+      result.addResult("one_way_delay_results", udpResult.delays);
+      if (clockBefore != null) {
+        addOneWayDelays(result, udpResult, clockBefore, clockAfter);
+      }
+    } else {
+      result.addResult("jitter", udpResult.jitter);
+    }
+    if (desc.trainCount > 0) {
+      result.addResult("packets_sent", desc.trainCount * desc.trainLength);
+      result.addResult("capacity_kbps", udpResult.capacityKbps);
+      result.addResult("available_bandwidth_kbps", udpResult.availableKbps);
+      result.addResult("train_pairs_used", udpResult.pairsUsed);
+      result.addResult("trains_used", udpResult.trainsUsed);
+    }
+    if (desc.streamDurationSec > 0) {
+      ArrayList<Integer> windowIndexes = new ArrayList<Integer>();
+      ArrayList<Double> lossResults = new ArrayList<Double>();
+      ArrayList<Integer> inversionResults = new ArrayList<Integer>();
+      ArrayList<Long> jitterResults = new ArrayList<Long>();
+      ArrayList<Integer> rateResults = new ArrayList<Integer>();
+      for (Map.Entry<Integer, StreamWindow> entry : streamWindows.entrySet()) {
+        StreamWindow w = entry.getValue();
+        windowIndexes.add(entry.getKey());
+        lossResults.add(1.0 - w.received / (double) w.expected);
+        inversionResults.add(w.inversionNumber);
+        jitterResults.add(w.jitter);
+        rateResults.add(w.rateKbps);
+      }
+      result.addResult("packets_sent", streamPacketsSent);
+      result.addResult("stopped_early", stopStream);
+      result.addResult("stream_windows", windowIndexes);
+      result.addResult("stream_loss_results", lossResults);
+      result.addResult("stream_inversion_results", inversionResults);
+      result.addResult("stream_jitter_results", jitterResults);
+      result.addResult("stream_rate_results", rateResults);
+    }
     // Update the sequence number to be used by the next burst
     seq++;
     return result;
@@ -711,7 +1713,8 @@ public class UDPBurstTask extends MeasurementTask {
   }
 
   private void cleanUp() {
-    // Do nothing
+    // A running stream ends at its next packet and reports what it has
+    stopStream = true;
   }
 
   /**
@@ -733,7 +1736,11 @@ public class UDPBurstTask extends MeasurementTask {
     UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
     String resp;
 
-    if (desc.dirUp) {
+    if (desc.trainCount > 0) {
+      resp = desc.dirUp ? "[UDPTrainUp]\n" : "[UDPTrainDown]\n";
+    } else if (desc.streamDurationSec > 0) {
+      resp = "[UDPStream]\n";
+    } else if (desc.dirUp) {
       resp = "[UDPUp]\n";
     } else {
       resp = "[UDPDown]\n";
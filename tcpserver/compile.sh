@@ -17,10 +17,15 @@ cd bin
 for i in Uplink Downlink ServerConfig
 do
 	echo "Main-Class: servers.$i" > manifest
-	jar cvfm $i.jar manifest servers/$i*.class servers/Definition.class servers/Utilities.class
+	jar cvfm $i.jar manifest servers/$i*.class servers/Definition.class servers/Utilities.class servers/Log*.class servers/SessionStore*.class
 	mv $i.jar ../mlab
 done
 
+# the NIO server serves all three ports from one process
+echo "Main-Class: servers.NioServer" > manifest
+jar cvfm NioServer.jar manifest servers/*.class
+mv NioServer.jar ../mlab
+
 rm manifest
 echo "Successful compile the TCP server code."
 cd ..
@@ -0,0 +1,69 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts clients on one listening port and hands each of them to an
+ * event loop picked by the NioServer.
+ */
+public class Acceptor implements Handler {
+  private NioServer server;
+  private ServerSocketChannel listener;
+  private int port;
+
+  public Acceptor(NioServer server, ServerSocketChannel listener, int port) {
+    this.server = server;
+    this.listener = listener;
+    this.port = port;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Accept every pending client. A failure with one client, or running out
+   * of file descriptors, only drops that client and leaves the listener
+   * for the next select to retry; the loop closes the listener only if it
+   * is broken.
+   */
+  public void handle(SelectionKey key) throws IOException {
+    while (true) {
+      SocketChannel client = null;
+      try {
+        client = listener.accept();
+        if (client == null) {
+          return;
+        }
+        client.configureBlocking(false);
+        EventLoop loop = server.nextLoop();
+        loop.assign(server.newConnection(port, loop, client));
+      } catch (IOException e) {
+        if (!listener.isOpen()) {
+          throw e;
+        }
+        Log.warn("Fail to accept a client on port " + port + ": " +
+                 e.getMessage());
+        if (client != null) {
+          try {
+            client.close();
+          } catch (IOException ce) {
+            Log.error("Fail to close connection", ce);
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  public void close() {
+    try {
+      listener.close();
+    } catch (IOException e) {
+      Log.error("Fail to close listener on port " + port, e);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package servers;
+
+import java.util.Collection;
+
+/**
+ * Decides whether the server has room for one more negotiated test, so
+ * concurrent tests do not share the link without knowing it.
+ *
+ * Two limits apply: the number of running sessions, and the load on the
+ * link as a fraction of its capacity. The load is the larger of the
+ * measured throughput (sampled from the event loops, legacy clients
+ * included) and the rates committed to paced sessions. A session that just
+ * started has not shown up in the measured throughput yet, so an unpaced
+ * one reserves an equal share of the budget until it had time to ramp up.
+ *
+ * Legacy clients cannot be refused, they are only counted in the load.
+ */
+public class AdmissionControl {
+  private SessionTable sessions;
+  private long capacityKbps;
+  private double maxLoad;
+  private int maxSessions;
+  private volatile double loadKbps = 0;
+  private long lastBytes = -1;
+  private long lastSample = 0;
+
+  /**
+   * @param capacityKbps link capacity, 0 if unknown, then only the session
+   * limit applies
+   */
+  public AdmissionControl(SessionTable sessions, long capacityKbps,
+                          double maxLoad, int maxSessions) {
+    this.sessions = sessions;
+    this.capacityKbps = capacityKbps;
+    this.maxLoad = maxLoad;
+    this.maxSessions = maxSessions;
+  }
+
+  /**
+   * Feed the total number of bytes moved by the server so far, called
+   * periodically by housekeeping.
+   */
+  void sample(long totalBytes, long now) {
+    if (lastBytes >= 0 && now > lastSample) {
+      // bytes * 8 / milliseconds is kbps
+      double kbps = (totalBytes - lastBytes) * 8.0 / (now - lastSample);
+      double alpha = Math.min(1.0, (double) (now - lastSample) /
+                              Definition.LOAD_AVERAGE_MILLISECONDS);
+      loadKbps += alpha * (kbps - loadKbps);
+    }
+    lastBytes = totalBytes;
+    lastSample = now;
+  }
+
+  /** Smoothed throughput of all connections. */
+  public double getLoadKbps() {
+    return loadKbps;
+  }
+
+  private double budgetKbps() {
+    return capacityKbps * maxLoad;
+  }
+
+  /**
+   * Register the session if the server has room for it.
+   * @return 0 once the session is registered, otherwise the number of
+   * seconds the client should wait before trying again
+   */
+  public synchronized long admit(Session session, long now) {
+    Collection<Session> all = sessions.values();
+    int running = 0;
+    double committed = 0;
+    double reserved = 0;
+    long firstEnd = Long.MAX_VALUE;
+    for (Session s : all) {
+      if (!s.isRunning(now)) {
+        continue;
+      }
+      running++;
+      firstEnd = Math.min(firstEnd, s.getEndTime());
+      if (s.getRateKbps() > 0) {
+        committed += s.getRateKbps();
+      } else if (now - s.getCreateTime() < Definition.RAMP_UP_MILLISECONDS) {
+        reserved += budgetKbps() / maxSessions;
+      }
+    }
+    boolean admit = running < maxSessions;
+    if (admit && capacityKbps > 0) {
+      double load = Math.max(loadKbps, committed) + reserved;
+      double wanted = session.getRateKbps() > 0
+          ? session.getRateKbps() : budgetKbps() / maxSessions;
+      admit = load + wanted <= budgetKbps();
+    }
+    if (admit) {
+      sessions.register(session);
+      return 0;
+    }
+    if (firstEnd == Long.MAX_VALUE) {
+      // busy with legacy clients, nothing to say when they are done
+      return Definition.DEFAULT_RETRY_AFTER_SEC;
+    }
+    return Math.max(1, (firstEnd - now + 999) / 1000);
+  }
+}
@@ -0,0 +1,204 @@
+package servers;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Non-blocking version of ServerConfigWorker, extended into a negotiation
+ * endpoint. The server version is sent right away, which is all a legacy
+ * client reads before closing. A newer client then sends one JSON line with
+ * the test it would like to run:
+ *
+ *   {"duration_sec":15,"segment_size":1357,"streams":1,
+ *    "sample_period_sec":1,"uplink_proto":2}
+ *
+ * and gets back the values the server accepted, its current load and the
+ * id of the new session, also as one JSON line. Missing fields fall back to
+ * the legacy defaults.
+ *
+ * When the server has no room for the test (see AdmissionControl) nothing
+ * is registered and the reply says when to try again:
+ *
+ *   {"status":"busy","retry_after_sec":4,...}
+ *
+ * Once all streams of a session are done, the client can fetch what the
+ * server measured for the session as a whole:
+ *
+ *   {"op":"result","session_id":"<hex id>"}
+ */
+public class ConfigConnection extends Connection {
+  private ByteBuffer request = ByteBuffer.allocate(Definition.MAX_CONFIG_REQUEST);
+
+  public ConfigConnection(EventLoop loop, SocketChannel channel)
+      throws IOException {
+    super(loop, channel);
+    channel.socket().setTcpNoDelay(true);
+  }
+
+  protected int getPort() {
+    return Definition.PORT_CONFIG;
+  }
+
+  protected int interestOps() {
+    return SelectionKey.OP_READ;
+  }
+
+  protected void onOpen() throws IOException {
+    reply(ByteBuffer.wrap(Definition.NIO_SERVER_VERSION.getBytes()), false);
+  }
+
+  protected void onReadable() throws IOException {
+    int readLen = channel.read(request);
+    if (readLen < 0) {
+      // legacy clients hang up after reading the version
+      close();
+      return;
+    }
+    for (int i = 0; i < request.position(); i++) {
+      if (request.get(i) == '\n') {
+        handleRequest(new String(request.array(), 0, i, "UTF-8"));
+        return;
+      }
+    }
+    if (!request.hasRemaining()) {
+      close();
+    }
+  }
+
+  protected void onClose() {
+    loop.getServer().getMetrics().recordConnection(getPort(),
+        System.currentTimeMillis() - acceptTime);
+  }
+
+  private void handleRequest(String line) throws IOException {
+    key.interestOps(0);
+    LinkedHashMap<String, Object> response = new LinkedHashMap<String, Object>();
+    try {
+      HashMap<String, String> req = Json.parseObject(line);
+      if ("result".equals(req.get("op"))) {
+        sessionResult(req, response);
+      } else {
+        negotiate(req, response);
+      }
+    } catch (IllegalArgumentException e) {
+      loop.getServer().getMetrics().connectionRejected(getPort());
+      response.clear();
+      response.put("status", "error");
+      response.put("error", e.getMessage());
+    }
+    String text = Json.toJson(response) + "\n";
+    reply(ByteBuffer.wrap(text.getBytes("UTF-8")), true);
+  }
+
+  private void negotiate(HashMap<String, String> req,
+                         LinkedHashMap<String, Object> response) {
+    NioServer server = loop.getServer();
+    int uplinkProto = (int) getLong(req, "uplink_proto",
+                                    Definition.UPLINK_PROTO_LEGACY);
+    if (uplinkProto != Definition.UPLINK_PROTO_LEGACY &&
+        uplinkProto != Definition.UPLINK_PROTO_FRAMED) {
+      throw new IllegalArgumentException("Unsupported uplink_proto " +
+                                         uplinkProto);
+    }
+    long durationMs = clamp(
+        (long) (getDouble(req, "duration_sec",
+                          Definition.DURATION_IPERF_MILLISECONDS / 1000.0) * 1000),
+        Definition.MIN_DURATION_MILLISECONDS,
+        Definition.DURATION_IPERF_MILLISECONDS);
+    int segmentSize = (int) clamp(
+        getLong(req, "segment_size", Definition.THROUGHPUT_DOWN_SEGMENT_SIZE),
+        Definition.MIN_SEGMENT_SIZE, Definition.MAX_SEGMENT_SIZE);
+    int streams = (int) clamp(getLong(req, "streams", 1), 1,
+                              Definition.MAX_STREAMS);
+    long samplePeriodMs = clamp(
+        (long) (getDouble(req, "sample_period_sec",
+                          UplinkWorker.SAMPLE_PERIOD / 1000.0) * 1000),
+        Definition.MIN_SAMPLE_PERIOD_MILLISECONDS, durationMs / 2);
+    // 0 is an unpaced test
+    long rateKbps = getLong(req, "rate_kbps", 0);
+    if (rateKbps != 0) {
+      rateKbps = clamp(rateKbps, Definition.MIN_RATE_KBPS,
+                       Definition.MAX_RATE_KBPS);
+    }
+
+    Session session = new Session(uplinkProto, durationMs, segmentSize,
+                                  streams, samplePeriodMs, rateKbps);
+    long retryAfter = server.getAdmission().admit(session,
+                                                  System.currentTimeMillis());
+    if (retryAfter > 0) {
+      Log.warn("Refused session, retry after " + retryAfter + " s");
+      server.getMetrics().connectionRejected(getPort());
+      response.put("status", "busy");
+      response.put("retry_after_sec", retryAfter);
+      response.put("load_kbps", server.getAdmission().getLoadKbps());
+      response.put("active_sessions", server.getSessions().size());
+      response.put("active_connections", server.getActiveConnections());
+      return;
+    }
+
+    response.put("status", "ok");
+    response.put("version", Definition.NIO_SERVER_VERSION);
+    response.put("session_id", Long.toHexString(session.getId()));
+    response.put("uplink_proto", uplinkProto);
+    response.put("duration_sec", durationMs / 1000.0);
+    response.put("segment_size", segmentSize);
+    response.put("streams", streams);
+    response.put("sample_period_sec", samplePeriodMs / 1000.0);
+    response.put("rate_kbps", rateKbps);
+    response.put("active_sessions", server.getSessions().size());
+    response.put("active_connections", server.getActiveConnections());
+  }
+
+  private void sessionResult(HashMap<String, String> req,
+                             LinkedHashMap<String, Object> response) {
+    String id = req.get("session_id");
+    if (id == null) {
+      throw new IllegalArgumentException("Missing session_id");
+    }
+    Session session = loop.getServer().getSessions().get(
+        new BigInteger(id, 16).longValue());
+    if (session == null) {
+      throw new IllegalArgumentException("Unknown session " + id);
+    }
+    response.put("status", "ok");
+    response.put("session_id", id);
+    response.put("streams", session.getAttachedStreams());
+    response.put("sample_period_sec", session.getSamplePeriodMs() / 1000.0);
+    response.put("uplink_kbps", session.getUplinkKbps());
+    response.put("downlink_kbps", session.getDownlinkKbps());
+    if (session.getRateKbps() > 0) {
+      response.put("rate_kbps", session.getRateKbps());
+      response.put("paced_streams", session.getPacedStreams());
+      response.put("achieved_kbps", session.getAchievedKbps());
+      response.put("stall_count", session.getStallCount());
+      response.put("stall_ms", session.getStallMillis());
+    }
+  }
+
+  private static long getLong(HashMap<String, String> req, String name,
+                              long defaultValue) {
+    String value = req.get(name);
+    return value == null ? defaultValue : (long) Double.parseDouble(value);
+  }
+
+  private static double getDouble(HashMap<String, String> req, String name,
+                                  double defaultValue) {
+    String value = req.get(name);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  private static long clamp(long value, long min, long max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  protected void onTick(long now) {
+    if (now - acceptTime >= Definition.RECV_TIMEOUT) {
+      close();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Base class of a client connection served by an EventLoop. All callbacks
+ * run on the thread of the owning loop.
+ */
+public abstract class Connection implements Handler {
+  protected EventLoop loop;
+  protected SocketChannel channel;
+  protected SelectionKey key;
+  protected long acceptTime;
+  // deadline set through EventLoop.wakeAt(), MAX_VALUE when not sleeping
+  long wakeNanos = Long.MAX_VALUE;
+
+  private ByteBuffer outgoing = null;
+  private boolean closeAfterFlush = false;
+  private boolean closed = false;
+  private boolean counted = false;
+
+  public Connection(EventLoop loop, SocketChannel channel) {
+    this.loop = loop;
+    this.channel = channel;
+    this.acceptTime = System.currentTimeMillis();
+  }
+
+  void register(Selector selector) throws IOException {
+    key = channel.register(selector, interestOps(), this);
+    loop.getServer().getMetrics().connectionOpened(getPort());
+    counted = true;
+    onOpen();
+  }
+
+  /** Port the client connected to, for the metrics. */
+  protected abstract int getPort();
+
+  /** Interest set used while no reply is pending. */
+  protected abstract int interestOps();
+
+  protected void onOpen() throws IOException {}
+
+  protected void onReadable() throws IOException {}
+
+  protected void onWritable() throws IOException {}
+
+  /** Called periodically by the loop, used for deadlines and timeouts. */
+  protected void onTick(long now) throws IOException {}
+
+  /** Called by the loop once the deadline given to wakeAt() has passed. */
+  protected void onWake() throws IOException {}
+
+  /** Called before the socket is closed, so the peer cannot be faster. */
+  protected void onClose() {}
+
+  public void handle(SelectionKey key) throws IOException {
+    if (key.isValid() && key.isReadable()) {
+      onReadable();
+    }
+    if (!closed && key.isValid() && key.isWritable()) {
+      if (outgoing != null) {
+        flushOutgoing();
+      } else {
+        onWritable();
+      }
+    }
+  }
+
+  /**
+   * Write a (small) reply without blocking the loop. Whatever the socket
+   * does not take right away is flushed on the next OP_WRITE.
+   */
+  protected void reply(ByteBuffer data, boolean thenClose) throws IOException {
+    outgoing = data;
+    closeAfterFlush = thenClose;
+    flushOutgoing();
+  }
+
+  private void flushOutgoing() throws IOException {
+    channel.write(outgoing);
+    if (outgoing.hasRemaining()) {
+      key.interestOps(SelectionKey.OP_WRITE);
+      return;
+    }
+    outgoing = null;
+    if (closeAfterFlush) {
+      close();
+    } else {
+      key.interestOps(interestOps());
+    }
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    onClose();
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.error("Fail to close connection", e);
+    }
+    if (counted) {
+      loop.getServer().getMetrics().connectionClosed(getPort());
+    }
+  }
+}
@@ -1,14 +1,76 @@
 package servers;
 
 public class Definition {
+  public static final int ACCEPT_BACKLOG = 512;
   public static final int BUFFER_SIZE = 1358;
+  // retry hint for refused clients when no session end is known
+  public static final long DEFAULT_RETRY_AFTER_SEC = 5;
+  public static final double DEFAULT_MAX_LOAD = 0.8;
+  public static final int DEFAULT_MAX_SESSIONS = 32;
   public static final long DURATION_IPERF_MILLISECONDS = 20000;
+  // framed uplink (v2): [byte type][int length][payload]
+  public static final int FRAME_DATA = 1;
+  public static final int FRAME_FIN = 2;
+  public static final int FRAME_RESULT = 3;
+  public static final int FRAME_HEADER_SIZE = 5;
+  // a downlink stream waits this long for a hello before it is legacy
+  public static final long HELLO_GRACE_MILLISECONDS = 200;
+  // time constant of the smoothed server load
+  public static final long LOAD_AVERAGE_MILLISECONDS = 1000;
+  public static final int MAX_CONFIG_REQUEST = 1024;
+  public static final long METRICS_RATE_MILLISECONDS = 1000;
+  // a metrics client gets this long to send its request, all lines together
+  public static final int METRICS_TIMEOUT_MILLISECONDS = 100;
+  public static final int MAX_FRAME_SIZE = 1 << 20;
+  public static final long MAX_RATE_KBPS = 1000000;
+  public static final int MAX_SEGMENT_SIZE = 64 * 1024;
+  public static final int MAX_STREAMS = 8;
+  public static final long MIN_DURATION_MILLISECONDS = 1000;
+  public static final long MIN_RATE_KBPS = 64;
+  public static final long MIN_SAMPLE_PERIOD_MILLISECONDS = 100;
+  public static final int MIN_SEGMENT_SIZE = 512;
+  // a paced stream whose socket stays full this long counts as stalled
+  public static final long MIN_STALL_MILLISECONDS = 50;
+  // version reported by the NIO server, clients negotiate from 2.0 on
+  public static final String NIO_SERVER_VERSION = "2.0";
+  // a paced stream may send this much of its rate at once
+  public static final long PACING_BURST_MILLISECONDS = 10;
+  public static final long PAYLOAD_SIZE = 16 * 1024 * 1024;
   public static final int PORT_DOWNLINK = 6001;
   public static final int PORT_UPLINK = 6002;
   public static final int PORT_CONFIG = 6003;
+  // metrics are only served on 127.0.0.1
+  public static final int PORT_METRICS = 6004;
+  // a new unpaced session reserves bandwidth this long
+  public static final long RAMP_UP_MILLISECONDS = 2000;
+  public static final int READ_BUFFER_SIZE = 64 * 1024;
   public static final int RECV_TIMEOUT = 15000;
+  public static final int SELECT_TIMEOUT_MS = 100;
   public static final String SERVER_VERSION = "1.0";
+  // clients connect and close their streams a bit after the session times
+  public static final long SESSION_GRACE_MILLISECONDS = 2000;
+  public static final long SESSION_TTL_MS = 60000;
+  // session store: sync interval, records per segment, records waiting for
+  // the writer, whether the throughput samples are kept, bytes of a segment
+  public static final long STORE_FORCE_MILLISECONDS = 1000;
+  public static final int STORE_INDEX_ENTRIES = 1024 * 1024;
+  // uplink: int proto, long session id (0 for legacy), long duration ms,
+  // long bytes, int n, n doubles of kbps samples (n is 0 without samples)
+  public static final int STORE_KIND_UPLINK = 1;
+  // downlink: long session id, long duration ms, long bytes, long target
+  // kbps (0 unpaced), int stalls, long stall ms
+  public static final int STORE_KIND_DOWNLINK = 2;
+  public static final int STORE_QUEUE_SIZE = 4096;
+  public static final boolean STORE_SAMPLES = true;
+  public static final int STORE_SEGMENT_SIZE = 64 * 1024 * 1024;
+  // first byte 0xF0 can never start a legacy uplink stream ('a' to 'z')
+  public static final int STREAM_MAGIC = 0xF04D5032;
+  // hello = int STREAM_MAGIC + long session id
+  public static final int STREAM_HELLO_SIZE = 12;
+  public static final long TRANSFER_CHUNK = 256 * 1024;
   public static final int THROUGHPUT_UP_SEGMENT_SIZE = 1358;
   public static final int THROUGHPUT_DOWN_SEGMENT_SIZE = 2600;
   public static final String UPLINK_FINISH_MSG = "*";
+  public static final int UPLINK_PROTO_LEGACY = 1;
+  public static final int UPLINK_PROTO_FRAMED = 2;
 }
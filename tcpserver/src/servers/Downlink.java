@@ -11,13 +11,13 @@ public class Downlink {
     try {
       server = new ServerSocket(port);
       while (true) {
-        System.out.println("Downlink server starts on port " + port);
+        Log.info("Downlink server starts on port " + port);
         DownlinkWorker downlinkWorker = new DownlinkWorker();
         downlinkWorker.setSocket(server.accept());
         downlinkWorker.start();
       }
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.error("Downlink server failed on port " + port, e);
     }
   }
 }
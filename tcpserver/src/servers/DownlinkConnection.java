@@ -0,0 +1,277 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking version of DownlinkWorker: sends data to the client as fast
+ * as the socket accepts it for DURATION_IPERF_MILLISECONDS. When the server
+ * has a shared Payload the data is streamed from it with transferTo,
+ * otherwise a per-connection heap segment is written like the worker does.
+ *
+ * Legacy clients never send anything on this port. A client that negotiated
+ * a session sends a StreamHello right after connecting. Nothing is written
+ * until the hello is parsed, or HELLO_GRACE_MILLISECONDS went by without
+ * one, so a paced stream does not start with an unpaced burst, and the
+ * test then runs for the negotiated duration with the negotiated segment
+ * size as the heap segment and the pacing quantum, while the Payload keeps
+ * streaming in TRANSFER_CHUNK calls, and the bytes the socket accepts are
+ * binned on the time base of the session.
+ *
+ * A session with a target rate is paced: writes are metered by a
+ * TokenBucket and, once it runs dry, the connection drops OP_WRITE and asks
+ * its loop to wake it up when the next segment is due. A socket that stays
+ * full (not writable, or taking less than offered) although tokens are
+ * available means the link does not sustain the rate, such stalls are
+ * counted and reported to the session.
+ */
+public class DownlinkConnection extends Connection {
+  private Payload payload;
+  private long position = 0;
+  private ByteBuffer buffer;
+  private StreamHello hello = new StreamHello();
+  private Session session = null;
+  private ThroughputSeries series = null;
+  private long durationMs = Definition.DURATION_IPERF_MILLISECONDS;
+  private long startNanos;
+  private long sentBytes = 0;
+  // when writing started, -1 while waiting for the hello
+  private long writeStart = -1;
+  // pacing, only used when the session has a target rate
+  private TokenBucket bucket = null;
+  private long quantum = 0;
+  private long stallStart = -1;
+  private int stalls = 0;
+  private long stallNanos = 0;
+
+  public DownlinkConnection(EventLoop loop, SocketChannel channel) {
+    super(loop, channel);
+    startNanos = System.nanoTime();
+    payload = loop.getServer().getPayload();
+    if (payload == null) {
+      byte[] data = new byte[Definition.THROUGHPUT_DOWN_SEGMENT_SIZE];
+      Utilities.genRandomByteArray(data);
+      buffer = ByteBuffer.wrap(data);
+    }
+  }
+
+  protected int getPort() {
+    return Definition.PORT_DOWNLINK;
+  }
+
+  protected int interestOps() {
+    if (writeStart < 0) {
+      return SelectionKey.OP_READ;
+    }
+    return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+  }
+
+  private void startWriting(long now) {
+    writeStart = now;
+    key.interestOps(interestOps());
+  }
+
+  protected void onOpen() {
+    Log.info("Downlink connection <" + channel.socket().getRemoteSocketAddress()
+             + "> starts");
+  }
+
+  protected void onReadable() throws IOException {
+    ByteBuffer buffer = loop.getReadBuffer();
+    buffer.clear();
+    if (channel.read(buffer) < 0) {
+      close();
+      return;
+    }
+    buffer.flip();
+    if (session != null || hello.isError() || hello.isDone()) {
+      // nothing more is expected from the client
+      return;
+    }
+    if (hello.feed(buffer)) {
+      attach(loop.getServer().getSessions().get(hello.getSessionId()));
+    } else if (hello.isError() && writeStart < 0) {
+      // not a hello, treat it as a legacy client
+      startWriting(System.currentTimeMillis());
+    }
+  }
+
+  private void attach(Session session) {
+    if (session == null) {
+      Log.warn("Downlink stream with unknown session " +
+               Long.toHexString(hello.getSessionId()));
+      loop.getServer().getMetrics().connectionRejected(getPort());
+      close();
+      return;
+    }
+    if (!session.attachStream()) {
+      Log.warn("Too many streams for session " +
+               Long.toHexString(session.getId()));
+      loop.getServer().getMetrics().connectionRejected(getPort());
+      close();
+      return;
+    }
+    this.session = session;
+    durationMs = session.getDurationMs();
+    long now = System.nanoTime();
+    series = session.addDownlinkStream(now);
+    if (session.getRateKbps() > 0) {
+      long rate = session.getStreamRateKbps();
+      long burst = Math.max(session.getSegmentSize(),
+          rate * Definition.PACING_BURST_MILLISECONDS / 8);
+      quantum = Math.min(session.getSegmentSize(), burst);
+      bucket = new TokenBucket(rate, burst, now);
+    }
+    if (buffer != null && buffer.capacity() != session.getSegmentSize()) {
+      byte[] data = new byte[session.getSegmentSize()];
+      Utilities.genRandomByteArray(data);
+      buffer = ByteBuffer.wrap(data);
+    }
+    startWriting(System.currentTimeMillis());
+  }
+
+  protected void onWritable() throws IOException {
+    long now = System.nanoTime();
+    long max = Long.MAX_VALUE;
+    if (bucket != null) {
+      max = bucket.available(now);
+      if (max < quantum) {
+        sleep(now);
+        return;
+      }
+    }
+    long sent = payload != null ? writePayload(max) : writeBuffer(max);
+    sentBytes += sent;
+    loop.getServer().getMetrics().addBytesOut(sent);
+    if (series != null && sent > 0) {
+      // one sample per wakeup, the socket buffer was filled just now
+      series.add(now, sent);
+    }
+    if (bucket != null) {
+      bucket.consume(sent);
+      if (sent < max) {
+        // tokens left but the socket is full, keep OP_WRITE
+        startStall(now);
+      } else {
+        endStall(now);
+        sleep(now);
+      }
+    }
+  }
+
+  private void sleep(long now) {
+    key.interestOps(SelectionKey.OP_READ);
+    loop.wakeAt(this, now + bucket.nanosUntil(quantum, now));
+  }
+
+  protected void onWake() {
+    key.interestOps(interestOps());
+    // the bucket holds a segment now, the stall lasts until the socket
+    // takes it (usually right away)
+    startStall(System.nanoTime());
+  }
+
+  private void startStall(long now) {
+    if (stallStart < 0) {
+      stallStart = now;
+    }
+  }
+
+  private void endStall(long now) {
+    if (stallStart < 0) {
+      return;
+    }
+    long length = now - stallStart;
+    if (length >= Definition.MIN_STALL_MILLISECONDS * 1000000L) {
+      stalls++;
+      stallNanos += length;
+    }
+    stallStart = -1;
+  }
+
+  /** @return the number of bytes the socket accepted, at most max */
+  private long writeBuffer(long max) throws IOException {
+    long total = 0;
+    while (total < max) {
+      if (!buffer.hasRemaining()) {
+        buffer.clear();
+      }
+      int end = buffer.limit();
+      int want = (int) Math.min(buffer.remaining(), max - total);
+      buffer.limit(buffer.position() + want);
+      int sent = channel.write(buffer);
+      buffer.limit(end);
+      total += sent;
+      if (sent < want) {
+        // socket buffer is full, wait for the next OP_WRITE
+        break;
+      }
+    }
+    return total;
+  }
+
+  private long writePayload(long max) throws IOException {
+    long total = 0;
+    while (total < max) {
+      // the segment size only bounds the heap path and the pacing quantum,
+      // small transferTo calls would cost a syscall every few KB
+      long limit = Math.min(Definition.TRANSFER_CHUNK, max - total);
+      long expected = Math.min(limit, payload.size() - position);
+      long sent = payload.transferTo(position, limit, channel);
+      position = (position + sent) % payload.size();
+      total += sent;
+      if (sent < expected) {
+        break;
+      }
+    }
+    return total;
+  }
+
+  protected void onTick(long now) {
+    if (writeStart < 0) {
+      if (now - acceptTime >= Definition.HELLO_GRACE_MILLISECONDS) {
+        // a legacy client, it never sends a hello
+        startWriting(now);
+      }
+    } else if (now - writeStart >= durationMs) {
+      close();
+    }
+  }
+
+  protected void onClose() {
+    Metrics metrics = loop.getServer().getMetrics();
+    long end = System.currentTimeMillis();
+    metrics.recordConnection(getPort(), end - acceptTime);
+    if (session != null) {
+      session.endStream(metrics, getPort(), sentBytes, writeStart, end);
+    } else if (writeStart >= 0) {
+      metrics.recordSession(getPort(), end - writeStart, sentBytes);
+    }
+    if (bucket != null) {
+      long now = System.nanoTime();
+      endStall(now);
+      session.addPacedResult(sentBytes, now - startNanos, stalls, stallNanos);
+      Log.info("Paced downlink <" + channel.socket().getRemoteSocketAddress()
+               + "> sent " + sentBytes + " bytes at " +
+               session.getStreamRateKbps() + " kbps, " + stalls + " stalls");
+    }
+    SessionStore store = loop.getServer().getStore();
+    if (store != null) {
+      ByteBuffer record = ByteBuffer.allocate(44);
+      record.putLong(session == null ? 0 : session.getId());
+      record.putLong(System.currentTimeMillis() - acceptTime);
+      record.putLong(sentBytes);
+      record.putLong(bucket == null ? 0 : session.getStreamRateKbps());
+      record.putInt(stalls);
+      record.putLong(stallNanos / 1000000L);
+      record.flip();
+      store.append(Definition.STORE_KIND_DOWNLINK,
+                   channel.socket().getInetAddress(),
+                   channel.socket().getPort(), record);
+    }
+    Log.info("Downlink connection <" + channel.socket().getRemoteSocketAddress()
+             + "> ends");
+  }
+}
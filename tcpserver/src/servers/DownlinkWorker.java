@@ -4,8 +4,6 @@ package servers;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Date;
-import java.text.SimpleDateFormat;
 
 public class DownlinkWorker extends Thread {
   private Socket client = null;
@@ -19,11 +17,8 @@ public class DownlinkWorker extends Thread {
       client.setSoTimeout(Definition.RECV_TIMEOUT);
       OutputStream oStream = client.getOutputStream();
 
-      SimpleDateFormat sDateFormat = new SimpleDateFormat("yyyyMMdd:HH:mm:ss:SSS");
       long threadId = this.getId();
-      String startDate = sDateFormat.format(new Date()).toString();
-      System.out.println("[" + startDate + "]" + " Downlink worker <" +
-                         threadId + "> Thread starts");
+      Log.info("Downlink worker <" + threadId + "> Thread starts");
 
       long start = System.currentTimeMillis();
       long end = System.currentTimeMillis();
@@ -37,13 +32,10 @@ public class DownlinkWorker extends Thread {
       }
       oStream.close();
       client.close();
-      String endDate = sDateFormat.format(new Date()).toString();
-      System.out.println("[" + endDate + "]" + " Downlink worker <" +
-                         threadId + "> Thread ends");
+      Log.info("Downlink worker <" + threadId + "> Thread ends");
     } catch (IOException e) {
-      e.printStackTrace();
-      System.out.println("Downlink worker failed: port <" +
-                         Definition.PORT_DOWNLINK + ">");
+      Log.error("Downlink worker failed: port <" +
+                Definition.PORT_DOWNLINK + ">", e);
     }
   }
 }
@@ -0,0 +1,183 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of the NioServer. Every connection is owned by
+ * exactly one loop, so connection state is never shared between threads.
+ */
+public class EventLoop extends Thread {
+  private NioServer server;
+  private int index;
+  private Selector selector;
+  private ByteBuffer readBuffer =
+      ByteBuffer.allocateDirect(Definition.READ_BUFFER_SIZE);
+  private ConcurrentLinkedQueue<Connection> pending =
+      new ConcurrentLinkedQueue<Connection>();
+  private ArrayList<Connection> connections = new ArrayList<Connection>();
+  // connections waiting for a wake-up deadline, see wakeAt()
+  private ArrayList<Connection> sleeping = new ArrayList<Connection>();
+  private long nextWake = Long.MAX_VALUE;
+  private long nextTick = 0;
+
+  public EventLoop(NioServer server, int index) throws IOException {
+    super("EventLoop-" + index);
+    this.server = server;
+    this.index = index;
+    this.selector = Selector.open();
+  }
+
+  public NioServer getServer() {
+    return server;
+  }
+
+  /**
+   * Scratch buffer for reads, shared by all connections of this loop since
+   * only one of them runs at a time.
+   */
+  public ByteBuffer getReadBuffer() {
+    return readBuffer;
+  }
+
+  /** Must be called before the loop is started. */
+  public void listen(ServerSocketChannel listener, Acceptor acceptor)
+      throws IOException {
+    listener.register(selector, SelectionKey.OP_ACCEPT, acceptor);
+  }
+
+  /** Hand a connection over to this loop, safe from any thread. */
+  public void assign(Connection conn) {
+    pending.add(conn);
+    selector.wakeup();
+  }
+
+  /**
+   * Call conn.onWake() once System.nanoTime() reaches wakeNanos. Only from
+   * this loop's thread, a later call replaces the earlier deadline. The
+   * selector waits in milliseconds, so the wake-up may be up to a
+   * millisecond late.
+   */
+  public void wakeAt(Connection conn, long wakeNanos) {
+    if (conn.wakeNanos == Long.MAX_VALUE) {
+      sleeping.add(conn);
+    }
+    conn.wakeNanos = wakeNanos;
+    nextWake = Math.min(nextWake, wakeNanos);
+  }
+
+  public void run() {
+    while (!isInterrupted()) {
+      try {
+        long timeout = Definition.SELECT_TIMEOUT_MS;
+        if (!sleeping.isEmpty()) {
+          long wait = nextWake - System.nanoTime();
+          timeout = Math.min(timeout, (wait + 999999) / 1000000);
+        }
+        if (timeout > 0) {
+          selector.select(timeout);
+        } else {
+          selector.selectNow();
+        }
+      } catch (IOException e) {
+        Log.error("Event loop " + index + " failed", e);
+        break;
+      }
+      registerPending();
+
+      Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        Handler handler = (Handler) key.attachment();
+        try {
+          handler.handle(key);
+        } catch (CancelledKeyException e) {
+          handler.close();
+        } catch (IOException e) {
+          handler.close();
+        }
+      }
+
+      if (!sleeping.isEmpty()) {
+        wakeUp(System.nanoTime());
+      }
+      long now = System.currentTimeMillis();
+      if (now >= nextTick) {
+        tick(now);
+        nextTick = now + Definition.SELECT_TIMEOUT_MS;
+      }
+    }
+  }
+
+  private void registerPending() {
+    Connection conn;
+    while ((conn = pending.poll()) != null) {
+      try {
+        conn.register(selector);
+        connections.add(conn);
+      } catch (IOException e) {
+        Log.error("Fail to register connection", e);
+        conn.close();
+      }
+    }
+  }
+
+  private void wakeUp(long nowNanos) {
+    nextWake = Long.MAX_VALUE;
+    int i = 0;
+    while (i < sleeping.size()) {
+      Connection conn = sleeping.get(i);
+      if (conn.isClosed() || conn.wakeNanos <= nowNanos) {
+        int last = sleeping.size() - 1;
+        sleeping.set(i, sleeping.get(last));
+        sleeping.remove(last);
+        long deadline = conn.wakeNanos;
+        conn.wakeNanos = Long.MAX_VALUE;
+        if (!conn.isClosed() && deadline <= nowNanos) {
+          try {
+            // may call wakeAt() again, which appends behind us
+            conn.onWake();
+          } catch (IOException e) {
+            conn.close();
+          }
+        }
+      } else {
+        nextWake = Math.min(nextWake, conn.wakeNanos);
+        i++;
+      }
+    }
+  }
+
+  private void tick(long now) {
+    if (index == 0) {
+      server.housekeeping(now);
+    }
+    // swap-remove closed connections while ticking the live ones
+    int i = 0;
+    while (i < connections.size()) {
+      Connection conn = connections.get(i);
+      if (!conn.isClosed()) {
+        try {
+          conn.onTick(now);
+        } catch (IOException e) {
+          conn.close();
+        }
+      }
+      if (conn.isClosed()) {
+        int last = connections.size() - 1;
+        connections.set(i, connections.get(last));
+        connections.remove(last);
+      } else {
+        i++;
+      }
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Anything attached to a SelectionKey of an EventLoop.
+ */
+public interface Handler {
+  void handle(SelectionKey key) throws IOException;
+
+  void close();
+}
@@ -0,0 +1,57 @@
+package servers;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with power of two buckets: bucket 0 counts zeros and
+ * bucket i counts values in [2^(i-1), 2^i). Coarse, but it needs no
+ * configuration and covers milliseconds to hours or kbps to Tbps alike.
+ */
+public class Histogram {
+  private static final int BUCKETS = 64;
+
+  private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private StripedCounter sum = new StripedCounter();
+
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+    sum.add(value);
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /** Number of values up to getUpperBound(bucket). */
+  public long getCumulative(int bucket) {
+    long count = 0;
+    for (int i = 0; i <= bucket; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /** Largest value counted in the bucket. */
+  public static long getUpperBound(int bucket) {
+    return bucket == 0 ? 0 : (1L << bucket) - 1;
+  }
+
+  /** Last bucket with a value in it, -1 if empty. */
+  public int getLastBucket() {
+    for (int i = BUCKETS - 1; i >= 0; i--) {
+      if (counts.get(i) > 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,161 @@
+package servers;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the config port: flat objects in, flat objects with
+ * numbers, strings, booleans and number arrays out. The servers run on a
+ * bare JRE, so pulling a JSON library into every jar is not worth it.
+ */
+public class Json {
+
+  /**
+   * Parse a flat object such as {"a":1,"b":"x"}. Values are returned as
+   * their literal text, strings without quotes.
+   */
+  public static HashMap<String, String> parseObject(String text) {
+    HashMap<String, String> result = new HashMap<String, String>();
+    int[] pos = {skipSpace(text, 0)};
+    expect(text, pos, '{');
+    if (peek(text, pos) == '}') {
+      return result;
+    }
+    while (true) {
+      String name = readString(text, pos);
+      expect(text, pos, ':');
+      String value;
+      if (peek(text, pos) == '"') {
+        value = readString(text, pos);
+      } else {
+        int start = pos[0];
+        while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) {
+          pos[0]++;
+        }
+        value = text.substring(start, pos[0]);
+        if (value.length() == 0) {
+          throw new IllegalArgumentException("Missing value for " + name);
+        }
+      }
+      result.put(name, value);
+      if (peek(text, pos) == ',') {
+        pos[0]++;
+        continue;
+      }
+      expect(text, pos, '}');
+      return result;
+    }
+  }
+
+  private static int skipSpace(String text, int pos) {
+    while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static char peek(String text, int[] pos) {
+    pos[0] = skipSpace(text, pos[0]);
+    if (pos[0] >= text.length()) {
+      throw new IllegalArgumentException("Unexpected end of JSON");
+    }
+    return text.charAt(pos[0]);
+  }
+
+  private static void expect(String text, int[] pos, char c) {
+    if (peek(text, pos) != c) {
+      throw new IllegalArgumentException("Expected '" + c + "' at " + pos[0]);
+    }
+    pos[0]++;
+  }
+
+  private static String readString(String text, int[] pos) {
+    expect(text, pos, '"');
+    StringBuilder sb = new StringBuilder();
+    while (pos[0] < text.length()) {
+      char c = text.charAt(pos[0]++);
+      if (c == '"') {
+        return sb.toString();
+      }
+      if (c == '\\' && pos[0] < text.length()) {
+        c = text.charAt(pos[0]++);
+        if (c == 'u' && pos[0] + 4 <= text.length()) {
+          c = (char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16);
+          pos[0] += 4;
+        } else if (c == 'n') {
+          c = '\n';
+        } else if (c == 't') {
+          c = '\t';
+        }
+      }
+      sb.append(c);
+    }
+    throw new IllegalArgumentException("Unterminated string");
+  }
+
+  /**
+   * Serialize a flat object. Supported values: Number, Boolean, String,
+   * double[] and List of those.
+   */
+  public static String toJson(Map<String, Object> object) {
+    StringBuilder sb = new StringBuilder("{");
+    boolean first = true;
+    for (Map.Entry<String, Object> entry : object.entrySet()) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      appendString(sb, entry.getKey());
+      sb.append(':');
+      appendValue(sb, entry.getValue());
+    }
+    return sb.append('}').toString();
+  }
+
+  private static void appendValue(StringBuilder sb, Object value) {
+    if (value == null) {
+      sb.append("null");
+    } else if (value instanceof Number || value instanceof Boolean) {
+      sb.append(value);
+    } else if (value instanceof double[]) {
+      double[] array = (double[]) value;
+      sb.append('[');
+      for (int i = 0; i < array.length; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append(array[i]);
+      }
+      sb.append(']');
+    } else if (value instanceof List) {
+      sb.append('[');
+      boolean first = true;
+      for (Object item : (List<?>) value) {
+        if (!first) {
+          sb.append(',');
+        }
+        first = false;
+        appendValue(sb, item);
+      }
+      sb.append(']');
+    } else {
+      appendString(sb, value.toString());
+    }
+  }
+
+  private static void appendString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
@@ -0,0 +1,205 @@
+package servers;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger. Callers only put the message into a preallocated
+ * ring and return, a background thread formats and prints. Nothing on the
+ * calling thread touches the console, so a slow terminal cannot throttle
+ * the data path. When the ring is full the message is dropped and counted
+ * instead of blocking.
+ *
+ * Messages below the current level are discarded before they are queued.
+ * Call sites that build an expensive string guard it with isDebug(), which
+ * is a single volatile read.
+ *
+ * The level comes from the log.level system property (debug, info, warn,
+ * error) and can be changed with setLevel().
+ */
+public class Log {
+  public static final int DEBUG = 0;
+  public static final int INFO = 1;
+  public static final int WARN = 2;
+  public static final int ERROR = 3;
+  private static final String[] NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+  // power of two
+  private static final int CAPACITY = 8192;
+  private static final long IDLE_PARK_NANOS = 10 * 1000000L;
+
+  private static volatile int level = parseLevel(
+      System.getProperty("log.level"), INFO);
+
+  // slot i is free for ticket t when seq[i] == t, and holds the message of
+  // ticket t once seq[i] == t + 1
+  private static final AtomicLongArray seq = new AtomicLongArray(CAPACITY);
+  private static final long[] times = new long[CAPACITY];
+  private static final int[] levels = new int[CAPACITY];
+  private static final String[] messages = new String[CAPACITY];
+  private static final AtomicLong tail = new AtomicLong();
+  private static final AtomicLong dropped = new AtomicLong();
+  private static long head = 0;
+
+  // System.out flushes on every line, this one when the ring runs empty
+  private static final PrintStream out = new PrintStream(
+      new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                               64 * 1024), false);
+  private static final Writer writer = new Writer();
+
+  static {
+    for (int i = 0; i < CAPACITY; i++) {
+      seq.set(i, i);
+    }
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        writer.interrupt();
+        drain();
+        out.flush();
+      }
+    });
+  }
+
+  public static int parseLevel(String name, int fallback) {
+    if (name == null) {
+      return fallback;
+    }
+    for (int i = 0; i < NAMES.length; i++) {
+      if (NAMES[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return fallback;
+  }
+
+  public static void setLevel(int newLevel) {
+    level = newLevel;
+  }
+
+  public static boolean isDebug() {
+    return level <= DEBUG;
+  }
+
+  public static void debug(String msg) {
+    log(DEBUG, msg);
+  }
+
+  public static void info(String msg) {
+    log(INFO, msg);
+  }
+
+  public static void warn(String msg) {
+    log(WARN, msg);
+  }
+
+  public static void error(String msg) {
+    log(ERROR, msg);
+  }
+
+  public static void error(String msg, Throwable e) {
+    log(ERROR, msg + ": " + e);
+  }
+
+  /** Messages lost since the writer last reported a loss. */
+  public static long getDropped() {
+    return dropped.get();
+  }
+
+  public static void log(int msgLevel, String msg) {
+    if (msgLevel < level) {
+      return;
+    }
+    while (true) {
+      long ticket = tail.get();
+      int i = (int) (ticket & (CAPACITY - 1));
+      long s = seq.get(i);
+      if (s < ticket) {
+        // the writer is a full ring behind
+        dropped.incrementAndGet();
+        return;
+      }
+      if (s == ticket && tail.compareAndSet(ticket, ticket + 1)) {
+        times[i] = System.currentTimeMillis();
+        levels[i] = msgLevel;
+        messages[i] = msg;
+        // publishes the fields above to the writer
+        seq.set(i, ticket + 1);
+        return;
+      }
+    }
+  }
+
+  // only the writer thread (or the shutdown hook once it stopped) drains
+
+  private static long cachedSecond = -1;
+  private static String cachedPrefix = null;
+  private static SimpleDateFormat dateFormat =
+      new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  private static StringBuilder line = new StringBuilder(256);
+
+  /** @return number of messages printed */
+  private static synchronized int drain() {
+    int count = 0;
+    while (true) {
+      int i = (int) (head & (CAPACITY - 1));
+      if (seq.get(i) != head + 1) {
+        break;
+      }
+      line.setLength(0);
+      format(times[i]);
+      line.append(NAMES[levels[i]]).append(' ').append(messages[i]);
+      messages[i] = null;
+      seq.set(i, head + CAPACITY);
+      head++;
+      out.println(line);
+      count++;
+    }
+    long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      out.println("Log dropped " + lost + " messages");
+    }
+    return count;
+  }
+
+  private static void format(long time) {
+    // the date only changes once a second, reuse it until then
+    long second = time / 1000;
+    if (second != cachedSecond) {
+      cachedPrefix = dateFormat.format(new Date(second * 1000)) + ".";
+      cachedSecond = second;
+    }
+    line.append(cachedPrefix);
+    long millis = time % 1000;
+    if (millis < 100) {
+      line.append('0');
+    }
+    if (millis < 10) {
+      line.append('0');
+    }
+    line.append(millis).append(' ');
+  }
+
+  private static class Writer extends Thread {
+    Writer() {
+      super("Log");
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (!isInterrupted()) {
+        if (drain() == 0) {
+          out.flush();
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+      }
+    }
+  }
+}
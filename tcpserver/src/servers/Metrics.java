@@ -0,0 +1,178 @@
+package servers;
+
+import java.util.Locale;
+
+/**
+ * Counters of the NioServer, per port where it makes sense. Updated from
+ * the event loops without locks, rendered as text for MetricsServer in the
+ * Prometheus exposition format, one "name{labels} value" per line.
+ */
+public class Metrics {
+  private static final int[] PORTS = {
+    Definition.PORT_DOWNLINK, Definition.PORT_UPLINK, Definition.PORT_CONFIG
+  };
+
+  private StripedCounter[] active = new StripedCounter[PORTS.length];
+  private StripedCounter[] accepted = new StripedCounter[PORTS.length];
+  private StripedCounter[] rejected = new StripedCounter[PORTS.length];
+  private Histogram[] durationMs = new Histogram[PORTS.length];
+  // per session, only on the data ports
+  private Histogram[] sessionDurationMs = new Histogram[PORTS.length];
+  private Histogram[] sessionKbps = new Histogram[PORTS.length];
+  private StripedCounter bytesIn = new StripedCounter();
+  private StripedCounter bytesOut = new StripedCounter();
+  // rates over the last sample period, written by housekeeping only
+  private volatile double bytesInRate = 0;
+  private volatile double bytesOutRate = 0;
+  private long lastIn = 0;
+  private long lastOut = 0;
+  private long lastSample = 0;
+
+  public Metrics() {
+    for (int i = 0; i < PORTS.length; i++) {
+      active[i] = new StripedCounter();
+      accepted[i] = new StripedCounter();
+      rejected[i] = new StripedCounter();
+      durationMs[i] = new Histogram();
+      sessionDurationMs[i] = new Histogram();
+      sessionKbps[i] = new Histogram();
+    }
+  }
+
+  private static int index(int port) {
+    for (int i = 0; i < PORTS.length; i++) {
+      if (PORTS[i] == port) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Unknown port " + port);
+  }
+
+  public void connectionOpened(int port) {
+    int i = index(port);
+    accepted[i].increment();
+    active[i].increment();
+  }
+
+  public void connectionClosed(int port) {
+    active[index(port)].decrement();
+  }
+
+  /** A client the server refused: busy, unknown session, bad protocol. */
+  public void connectionRejected(int port) {
+    rejected[index(port)].increment();
+  }
+
+  public void addBytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  public void addBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  public long getBytes() {
+    return bytesIn.sum() + bytesOut.sum();
+  }
+
+  /** Lifetime of a connection that ended. */
+  public void recordConnection(int port, long millis) {
+    durationMs[index(port)].record(millis);
+  }
+
+  /**
+   * Length and average throughput of a session that ended, all its streams
+   * on the port together. A legacy connection is a session of its own.
+   */
+  public void recordSession(int port, long millis, long bytes) {
+    int i = index(port);
+    sessionDurationMs[i].record(millis);
+    if (millis > 0) {
+      // bytes * 8 / milliseconds is kbps
+      sessionKbps[i].record(bytes * 8 / millis);
+    }
+  }
+
+  public int getActiveConnections() {
+    long total = 0;
+    for (StripedCounter counter : active) {
+      total += counter.sum();
+    }
+    return (int) total;
+  }
+
+  /** Called periodically by housekeeping to update the byte rates. */
+  void sample(long now) {
+    if (now - lastSample < Definition.METRICS_RATE_MILLISECONDS) {
+      return;
+    }
+    long in = bytesIn.sum();
+    long out = bytesOut.sum();
+    if (lastSample > 0) {
+      double seconds = (now - lastSample) / 1000.0;
+      bytesInRate = (in - lastIn) / seconds;
+      bytesOutRate = (out - lastOut) / seconds;
+    }
+    lastIn = in;
+    lastOut = out;
+    lastSample = now;
+  }
+
+  public String render(NioServer server) {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < PORTS.length; i++) {
+      String label = "{port=\"" + PORTS[i] + "\"}";
+      line(out, "mobiperf_active_connections" + label, active[i].sum());
+      line(out, "mobiperf_accepted_connections_total" + label,
+           accepted[i].sum());
+      line(out, "mobiperf_rejected_connections_total" + label,
+           rejected[i].sum());
+    }
+    line(out, "mobiperf_bytes_in_total", bytesIn.sum());
+    line(out, "mobiperf_bytes_out_total", bytesOut.sum());
+    line(out, "mobiperf_bytes_in_per_second", bytesInRate);
+    line(out, "mobiperf_bytes_out_per_second", bytesOutRate);
+    line(out, "mobiperf_sessions", server.getSessions().size());
+    line(out, "mobiperf_load_kbps", server.getAdmission().getLoadKbps());
+    for (int i = 0; i < PORTS.length; i++) {
+      histogram(out, "mobiperf_connection_duration_ms", PORTS[i],
+                durationMs[i]);
+    }
+    for (int i = 0; i < PORTS.length; i++) {
+      if (PORTS[i] != Definition.PORT_CONFIG) {
+        histogram(out, "mobiperf_session_duration_ms", PORTS[i],
+                  sessionDurationMs[i]);
+      }
+    }
+    for (int i = 0; i < PORTS.length; i++) {
+      if (PORTS[i] != Definition.PORT_CONFIG) {
+        histogram(out, "mobiperf_session_throughput_kbps", PORTS[i],
+                  sessionKbps[i]);
+      }
+    }
+    return out.toString();
+  }
+
+  private static void line(StringBuilder out, String name, long value) {
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void line(StringBuilder out, String name, double value) {
+    out.append(name).append(' ')
+       .append(String.format(Locale.US, "%.1f", value)).append('\n');
+  }
+
+  private static void histogram(StringBuilder out, String name, int port,
+                                Histogram histogram) {
+    String label = "port=\"" + port + "\"";
+    int last = histogram.getLastBucket();
+    for (int b = 0; b <= last; b++) {
+      line(out, name + "_bucket{" + label + ",le=\"" +
+           Histogram.getUpperBound(b) + "\"}", histogram.getCumulative(b));
+    }
+    line(out, name + "_bucket{" + label + ",le=\"+Inf\"}",
+         histogram.getCount());
+    line(out, name + "_sum{" + label + "}", histogram.getSum());
+    line(out, name + "_count{" + label + "}", histogram.getCount());
+  }
+}
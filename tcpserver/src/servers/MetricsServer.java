@@ -0,0 +1,96 @@
+package servers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Serves Metrics on a localhost port from its own thread, so scraping never
+ * runs on an event loop. Speaks just enough HTTP for a scraper (GET with
+ * any path). The request gets METRICS_TIMEOUT_MILLISECONDS in all, so a slow
+ * client holds up the next scrape no longer than that. A client that sends
+ * nothing gets the plain text once it shuts down its side or the time is up:
+ *
+ *   curl http://127.0.0.1:6004/metrics
+ *   nc 127.0.0.1 6004 < /dev/null
+ */
+public class MetricsServer extends Thread {
+  private NioServer server;
+  private ServerSocket listener;
+
+  public MetricsServer(NioServer server, int port) throws IOException {
+    super("MetricsServer");
+    setDaemon(true);
+    this.server = server;
+    this.listener = new ServerSocket(port, Definition.ACCEPT_BACKLOG,
+                                     InetAddress.getByName("127.0.0.1"));
+  }
+
+  public void run() {
+    while (!isInterrupted()) {
+      Socket client = null;
+      try {
+        client = listener.accept();
+        serve(client);
+      } catch (IOException e) {
+        // a scraper that hung up or timed out, wait for the next one
+      } finally {
+        if (client != null) {
+          try {
+            client.close();
+          } catch (IOException e) {
+            Log.error("Fail to close metrics client", e);
+          }
+        }
+      }
+    }
+  }
+
+  private void serve(Socket client) throws IOException {
+    byte[] body = server.getMetrics().render(server).getBytes("UTF-8");
+    OutputStream out = client.getOutputStream();
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(client.getInputStream(), "US-ASCII"));
+    long deadline = System.currentTimeMillis() +
+        Definition.METRICS_TIMEOUT_MILLISECONDS;
+    String request = readLine(client, in, deadline);
+    if (request != null && request.startsWith("GET ")) {
+      // skip the headers, nothing in them matters
+      String header;
+      while ((header = readLine(client, in, deadline)) != null &&
+             header.length() > 0) {
+      }
+      String head = "HTTP/1.0 200 OK\r\n" +
+          "Content-Type: text/plain; version=0.0.4\r\n" +
+          "Content-Length: " + body.length + "\r\n" +
+          "Connection: close\r\n\r\n";
+      out.write(head.getBytes("US-ASCII"));
+    }
+    out.write(body);
+    out.flush();
+  }
+
+  /**
+   * @return the next line, or null at the end of the stream or once the
+   * deadline passed
+   */
+  private static String readLine(Socket client, BufferedReader in,
+                                 long deadline) throws IOException {
+    long left = deadline - System.currentTimeMillis();
+    if (left <= 0) {
+      return null;
+    }
+    client.setSoTimeout((int) left);
+    try {
+      return in.readLine();
+    } catch (SocketTimeoutException e) {
+      // not HTTP, just a plain text reader, or a client too slow
+      return null;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package servers;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Single process replacement for Downlink, Uplink and ServerConfig. All three
+ * ports are served by a fixed set of selector threads instead of one thread
+ * per client. Legacy clients see the same wire protocol, newer ones can
+ * negotiate a session on the config port (see ConfigConnection).
+ *
+ * Usage: java -jar NioServer.jar [-threads n] [-heap] [-capacity_mbps n]
+ *                                [-max_load f] [-max_sessions n]
+ *                                [-metrics_port n] [-log_level l]
+ *                                [-store_dir dir]
+ *   -threads        number of event loops, defaults to the number of cores
+ *   -heap           write downlink data from heap buffers instead of the
+ *                   shared memory-mapped payload
+ *   -capacity_mbps  link capacity, new sessions are refused once max_load
+ *                   of it is in use (default: unknown, not checked)
+ *   -max_load       fraction of the capacity tests may use, default 0.8
+ *   -max_sessions   number of concurrently running sessions, default 32
+ *   -metrics_port   localhost port of the metrics endpoint, default 6004,
+ *                   0 turns it off
+ *   -log_level      debug, info, warn or error, default info
+ *   -store_dir      keep the result of every connection in a SessionStore
+ *                   in dir, off by default
+ */
+public class NioServer {
+  private EventLoop[] loops;
+  private int nextLoop = 0;
+  private Payload payload = null;
+  private SessionTable sessions = new SessionTable();
+  private Metrics metrics = new Metrics();
+  private AdmissionControl admission;
+  private SessionStore store = null;
+
+  public NioServer(int threads, boolean zeroCopy, long capacityKbps,
+                   double maxLoad, int maxSessions) throws IOException {
+    admission = new AdmissionControl(sessions, capacityKbps, maxLoad,
+                                     maxSessions);
+    if (zeroCopy) {
+      payload = new Payload(Definition.PAYLOAD_SIZE);
+    }
+    loops = new EventLoop[threads];
+    for (int i = 0; i < threads; i++) {
+      loops[i] = new EventLoop(this, i);
+    }
+  }
+
+  public void start() throws IOException {
+    listen(Definition.PORT_DOWNLINK);
+    listen(Definition.PORT_UPLINK);
+    listen(Definition.PORT_CONFIG);
+    for (EventLoop loop : loops) {
+      loop.start();
+    }
+  }
+
+  private void listen(int port) throws IOException {
+    ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.socket().setReuseAddress(true);
+    listener.socket().bind(new InetSocketAddress(port),
+                           Definition.ACCEPT_BACKLOG);
+    listener.configureBlocking(false);
+    // accepting is cheap, the first loop takes care of all listeners
+    loops[0].listen(listener, new Acceptor(this, listener, port));
+    Log.info("NIO server listens on port " + port);
+  }
+
+  /** Shared downlink payload, null when downlink uses heap buffers. */
+  public Payload getPayload() {
+    return payload;
+  }
+
+  public SessionTable getSessions() {
+    return sessions;
+  }
+
+  public AdmissionControl getAdmission() {
+    return admission;
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /** Store of the finished connections, null when nothing is kept. */
+  public SessionStore getStore() {
+    return store;
+  }
+
+  /** Call before start(). */
+  public void setStore(SessionStore store) {
+    this.store = store;
+  }
+
+  public int getActiveConnections() {
+    return metrics.getActiveConnections();
+  }
+
+  /** Periodic server-wide work, run by the first event loop. */
+  void housekeeping(long now) {
+    sessions.expire(now, metrics);
+    admission.sample(metrics.getBytes(), now);
+    metrics.sample(now);
+  }
+
+  /** Only called from the loop that owns the listeners. */
+  EventLoop nextLoop() {
+    EventLoop loop = loops[nextLoop];
+    nextLoop = (nextLoop + 1) % loops.length;
+    return loop;
+  }
+
+  Connection newConnection(int port, EventLoop loop, SocketChannel client)
+      throws IOException {
+    switch (port) {
+      case Definition.PORT_DOWNLINK:
+        return new DownlinkConnection(loop, client);
+      case Definition.PORT_UPLINK:
+        return new UplinkConnection(loop, client);
+      default:
+        return new ConfigConnection(loop, client);
+    }
+  }
+
+  public static void main(String[] argv) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean zeroCopy = true;
+    long capacityMbps = 0;
+    double maxLoad = Definition.DEFAULT_MAX_LOAD;
+    int maxSessions = Definition.DEFAULT_MAX_SESSIONS;
+    int metricsPort = Definition.PORT_METRICS;
+    String storeDir = null;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-threads") && i + 1 < argv.length) {
+        threads = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-heap")) {
+        zeroCopy = false;
+      } else if (argv[i].equals("-capacity_mbps") && i + 1 < argv.length) {
+        capacityMbps = Long.parseLong(argv[++i]);
+      } else if (argv[i].equals("-max_load") && i + 1 < argv.length) {
+        maxLoad = Double.parseDouble(argv[++i]);
+      } else if (argv[i].equals("-max_sessions") && i + 1 < argv.length) {
+        maxSessions = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-metrics_port") && i + 1 < argv.length) {
+        metricsPort = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-log_level") && i + 1 < argv.length) {
+        Log.setLevel(Log.parseLevel(argv[++i], Log.INFO));
+      } else if (argv[i].equals("-store_dir") && i + 1 < argv.length) {
+        storeDir = argv[++i];
+      } else {
+        System.out.println("Unknown option " + argv[i]);
+        return;
+      }
+    }
+    try {
+      NioServer server = new NioServer(threads, zeroCopy, capacityMbps * 1000,
+                                       maxLoad, maxSessions);
+      if (storeDir != null) {
+        SessionStore store = new SessionStore(new File(storeDir),
+            Definition.STORE_SEGMENT_SIZE, Definition.STORE_INDEX_ENTRIES,
+            Definition.STORE_QUEUE_SIZE);
+        store.start();
+        server.setStore(store);
+        Log.info("NIO server stores sessions in " + storeDir);
+      }
+      server.start();
+      if (metricsPort > 0) {
+        new MetricsServer(server, metricsPort).start();
+        Log.info("NIO server metrics on 127.0.0.1:" + metricsPort);
+      }
+      Log.info("NIO server starts with " + threads + " event loops");
+    } catch (IOException e) {
+      Log.error("NIO server fails to start", e);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package servers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Incompressible downlink payload generated once at startup into a
+ * memory-mapped file and shared by every downlink connection. Sending goes
+ * through FileChannel.transferTo, so the kernel moves the bytes straight
+ * from the page cache to the socket without copying them through the heap.
+ */
+public class Payload {
+  private FileChannel file;
+  private MappedByteBuffer mapped;
+  private long size;
+
+  public Payload(long size) throws IOException {
+    this.size = size;
+    File backing = File.createTempFile("mobiperf-payload", ".bin");
+    backing.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(backing, "rw");
+    raf.setLength(size);
+    file = raf.getChannel();
+    mapped = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    fill(System.nanoTime());
+  }
+
+  // xorshift64* output, so the payload cannot be squeezed by any
+  // compression on the path, unlike the 26-letter alphabet of the workers
+  private void fill(long seed) {
+    long x = seed | 1;
+    while (mapped.remaining() >= 8) {
+      x ^= x >>> 12;
+      x ^= x << 25;
+      x ^= x >>> 27;
+      mapped.putLong(x * 2685821657736338717L);
+    }
+    while (mapped.hasRemaining()) {
+      mapped.put((byte) x);
+    }
+    mapped.force();
+    mapped.clear();
+  }
+
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Send up to TRANSFER_CHUNK bytes starting at position, wrapping is left
+   * to the caller.
+   * @return number of bytes the socket accepted, may be 0
+   */
+  public long transferTo(long position, WritableByteChannel target)
+      throws IOException {
+    return transferTo(position, Definition.TRANSFER_CHUNK, target);
+  }
+
+  /** Same as above with a smaller limit, used by paced streams. */
+  public long transferTo(long position, long limit, WritableByteChannel target)
+      throws IOException {
+    long count = Math.min(Math.min(Definition.TRANSFER_CHUNK, limit),
+                          size - position);
+    return file.transferTo(position, count, target);
+  }
+}
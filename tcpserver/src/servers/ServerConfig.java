@@ -10,13 +10,13 @@ public class ServerConfig {
     try {
       server = new ServerSocket(port);
       while (true) {
-        System.out.println("Configuration server starts on port " + port);
+        Log.info("Configuration server starts on port " + port);
         ServerConfigWorker srvConfWorker = new ServerConfigWorker();
         srvConfWorker.setSocket(server.accept());
         srvConfWorker.start();
       }
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.error("Configuration server failed on port " + port, e);
     }
   }
 }
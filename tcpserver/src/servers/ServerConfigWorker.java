@@ -25,9 +25,8 @@ public class ServerConfigWorker extends Thread {
       oStream.close();
       client.close();
     } catch (IOException e) {
-      e.printStackTrace();
-      System.out.println("Configuration worker failed: port <" +
-                         Definition.PORT_CONFIG + ">");
+      Log.error("Configuration worker failed: port <" +
+                Definition.PORT_CONFIG + ">", e);
     }
   }
 }
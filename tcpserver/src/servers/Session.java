@@ -0,0 +1,259 @@
+package servers;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A measurement negotiated on the config port. Data connections refer to
+ * it by id in their stream hello. The negotiated values are fixed before
+ * the session is registered and never change afterwards.
+ *
+ * A session may have several parallel streams, possibly served by
+ * different event loops. Their samples share the time base set by the
+ * first stream, so they can be summed bin by bin.
+ */
+public class Session {
+  private long id = 0;
+  private int uplinkProto;
+  private long durationMs;
+  private int segmentSize;
+  private int streams;
+  private long samplePeriodMs;
+  private long rateKbps;
+  private long createTime;
+  private volatile long lastUsed;
+  private AtomicInteger attached = new AtomicInteger();
+  private AtomicLong originNanos = new AtomicLong(Long.MIN_VALUE);
+  private List<ThroughputSeries> uplinkSeries =
+      new CopyOnWriteArrayList<ThroughputSeries>();
+  private List<ThroughputSeries> downlinkSeries =
+      new CopyOnWriteArrayList<ThroughputSeries>();
+  // paced downlink results, guarded by this
+  private int pacedStreams = 0;
+  private double achievedKbps = 0;
+  private int stallCount = 0;
+  private long stallNanos = 0;
+  // streams that ended, guarded by this: count, then per port bytes, first
+  // start and last end in the currentTimeMillis() scale
+  private int endedStreams = 0;
+  private int[] endedPorts = new int[2];
+  private long[] endedBytes = new long[2];
+  private long[] firstStart = new long[2];
+  private long[] lastEnd = new long[2];
+  private boolean recorded = false;
+
+  /**
+   * @param rateKbps target downlink rate of the whole session, 0 sends as
+   * fast as the sockets allow
+   */
+  public Session(int uplinkProto, long durationMs, int segmentSize,
+                 int streams, long samplePeriodMs, long rateKbps) {
+    this.uplinkProto = uplinkProto;
+    this.durationMs = durationMs;
+    this.segmentSize = segmentSize;
+    this.streams = streams;
+    this.samplePeriodMs = samplePeriodMs;
+    this.rateKbps = rateKbps;
+    this.createTime = System.currentTimeMillis();
+    this.lastUsed = createTime;
+  }
+
+  void setId(long id) {
+    this.id = id;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public int getUplinkProto() {
+    return uplinkProto;
+  }
+
+  public long getDurationMs() {
+    return durationMs;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  public int getStreams() {
+    return streams;
+  }
+
+  public long getSamplePeriodMs() {
+    return samplePeriodMs;
+  }
+
+  public long getRateKbps() {
+    return rateKbps;
+  }
+
+  /** Target rate of a single stream, the session rate is split evenly. */
+  public long getStreamRateKbps() {
+    return Math.max(1, rateKbps / streams);
+  }
+
+  public long getCreateTime() {
+    return createTime;
+  }
+
+  /**
+   * Attach one more data stream.
+   * @return false if all negotiated streams are already attached
+   */
+  public boolean attachStream() {
+    if (attached.incrementAndGet() > streams) {
+      attached.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  public int getAttachedStreams() {
+    return attached.get();
+  }
+
+  private long origin(long nowNanos) {
+    originNanos.compareAndSet(Long.MIN_VALUE, nowNanos);
+    return originNanos.get();
+  }
+
+  private ThroughputSeries newSeries(long nowNanos) {
+    // room for twice the negotiated duration, clients may run a bit longer
+    int capacity = (int) (2 * durationMs / samplePeriodMs) + 2;
+    return new ThroughputSeries(origin(nowNanos), samplePeriodMs * 1000000L,
+                                capacity);
+  }
+
+  /** New per-stream series aligned on the session time base. */
+  public ThroughputSeries addUplinkStream(long nowNanos) {
+    ThroughputSeries series = newSeries(nowNanos);
+    uplinkSeries.add(series);
+    return series;
+  }
+
+  /** Same as addUplinkStream, for the bytes the server sends. */
+  public ThroughputSeries addDownlinkStream(long nowNanos) {
+    ThroughputSeries series = newSeries(nowNanos);
+    downlinkSeries.add(series);
+    return series;
+  }
+
+  /** First bin past the slow start period of the session. */
+  public long firstSampleBin() {
+    return (UplinkWorker.SLOW_START_PERIOD * 1000000L +
+            samplePeriodMs * 1000000L - 1) / (samplePeriodMs * 1000000L);
+  }
+
+  /** Aggregate uplink throughput of all streams, in kbps. */
+  public double[] getUplinkKbps() {
+    return ThroughputSeries.aggregateKbps(uplinkSeries, firstSampleBin());
+  }
+
+  /**
+   * Aggregate downlink throughput of all streams, in kbps. These are the
+   * bytes the server's sockets accepted, the client can compare them with
+   * what it received.
+   */
+  public double[] getDownlinkKbps() {
+    return ThroughputSeries.aggregateKbps(downlinkSeries, firstSampleBin());
+  }
+
+  /** Called by a paced downlink stream when it ends. */
+  public synchronized void addPacedResult(long bytes, long elapsedNanos,
+                                          int stalls, long stallNanos) {
+    pacedStreams++;
+    if (elapsedNanos > 0) {
+      // bytes * 8 / milliseconds is kbps
+      achievedKbps += bytes * 8.0 / (elapsedNanos / 1e6);
+    }
+    this.stallCount += stalls;
+    this.stallNanos += stallNanos;
+  }
+
+  public synchronized int getPacedStreams() {
+    return pacedStreams;
+  }
+
+  /** Sum of the average rates of the paced streams that ended. */
+  public synchronized double getAchievedKbps() {
+    return achievedKbps;
+  }
+
+  public synchronized int getStallCount() {
+    return stallCount;
+  }
+
+  public synchronized long getStallMillis() {
+    return stallNanos / 1000000L;
+  }
+
+  /**
+   * Called by a data stream when it ends. Once all negotiated streams
+   * ended, the session is recorded in the metrics, one entry per port.
+   */
+  public void endStream(Metrics metrics, int port, long bytes,
+                        long startMillis, long endMillis) {
+    synchronized (this) {
+      int i = port == Definition.PORT_UPLINK ? 1 : 0;
+      if (endedPorts[i] == 0) {
+        endedPorts[i] = port;
+        firstStart[i] = startMillis;
+      }
+      endedBytes[i] += bytes;
+      firstStart[i] = Math.min(firstStart[i], startMillis);
+      lastEnd[i] = Math.max(lastEnd[i], endMillis);
+      endedStreams++;
+      if (endedStreams < streams || recorded) {
+        return;
+      }
+      recorded = true;
+    }
+    record(metrics);
+  }
+
+  /**
+   * Record a session whose streams did not all show up, called when it
+   * leaves the table.
+   */
+  public void expire(Metrics metrics) {
+    synchronized (this) {
+      if (endedStreams == 0 || recorded) {
+        return;
+      }
+      recorded = true;
+    }
+    record(metrics);
+  }
+
+  private void record(Metrics metrics) {
+    for (int i = 0; i < endedPorts.length; i++) {
+      if (endedPorts[i] != 0) {
+        metrics.recordSession(endedPorts[i], lastEnd[i] - firstStart[i],
+                              endedBytes[i]);
+      }
+    }
+  }
+
+  /** When the session is due to end, in the currentTimeMillis() scale. */
+  public long getEndTime() {
+    return createTime + durationMs;
+  }
+
+  /** True until the negotiated duration is over, plus some grace. */
+  public boolean isRunning(long now) {
+    return now < getEndTime() + Definition.SESSION_GRACE_MILLISECONDS;
+  }
+
+  public void touch() {
+    lastUsed = System.currentTimeMillis();
+  }
+
+  public boolean isExpired(long now) {
+    return now - lastUsed >= Definition.SESSION_TTL_MS;
+  }
+}
@@ -0,0 +1,564 @@
+package servers;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of finished sessions, so their results outlive the
+ * reply. The store is a directory of segments, each a data file and an
+ * index file of fixed size, mapped into memory and named by the segment
+ * number and the time of its first record:
+ *   nnnnnnnn-time.seg: the records back to back, each
+ *     int length, int crc, long time, int kind, byte[16] address,
+ *     int port, payload
+ *   nnnnnnnn-time.idx: one entry per record,
+ *     long time, int address hash, int offset
+ * Connections hand records to append(), which only queues them. A daemon
+ * thread copies them into the mapped segment, so an event loop never
+ * waits for the disk, and syncs it every STORE_FORCE_MILLISECONDS.
+ * The length of a record is written last and its index entry after it, so
+ * a reader never sees half a record. The writer keeps the times from
+ * decreasing, a scan skips segments by their name and finds its first
+ * record by a binary search of the index, then reads the data file in
+ * order. On open the newest segment is checked record by record and
+ * appending goes on after the last valid one; a record torn by a crash
+ * seals the segment.
+ */
+public class SessionStore implements Runnable {
+  // int length, int crc, long time, int kind, byte[16] address, int port
+  public static final int RECORD_HEADER = 40;
+  // long time, int address hash, int offset
+  public static final int INDEX_ENTRY = 16;
+  private static final String DATA_SUFFIX = ".seg";
+  private static final String INDEX_SUFFIX = ".idx";
+
+  private File dir;
+  private int segmentSize;
+  private int indexEntries;
+  private ArrayBlockingQueue<byte[]> queue;
+  private AtomicLong dropped = new AtomicLong();
+  private volatile boolean closed = false;
+  private Thread writer = null;
+
+  // only touched by the writer thread
+  private int segmentNumber = -1;
+  private MappedByteBuffer data = null;
+  private MappedByteBuffer index = null;
+  private int position = 0;
+  private int indexCount = 0;
+  private long lastTime = 0;
+  private boolean dirty = false;
+  private long lastForce = 0;
+  private CRC32 crc = new CRC32();
+  private long written = 0;
+
+  /**
+   * Open the store in dir, creating it if needed, and find where the
+   * newest segment ends
+   * @param dir directory of the segments
+   * @param segmentSize bytes of a data file
+   * @param indexEntries records of a segment
+   * @param queueSize records waiting for the writer before append drops
+   * @throws IOException the directory or the newest segment failed
+   */
+  public SessionStore(File dir, int segmentSize, int indexEntries,
+                      int queueSize) throws IOException {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.indexEntries = indexEntries;
+    this.queue = new ArrayBlockingQueue<byte[]>(queueSize);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create session store " + dir);
+    }
+    recover();
+  }
+
+  /**
+   * Start the writer thread, a shutdown hook writes what is still queued
+   */
+  public void start() {
+    writer = new Thread(this, "SessionStore");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        close();
+      }
+    });
+  }
+
+  /**
+   * Write the queued records, sync and stop the writer
+   */
+  public void close() {
+    closed = true;
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Queue a record for the writer, never blocks
+   * @param kind what the payload holds, the STORE_KIND_ values of
+   *             Definition
+   * @param addr address of the client
+   * @param port port of the client
+   * @param payload the bytes between position and limit, not consumed
+   * @return false if the record was dropped, the queue being full
+   */
+  public boolean append(int kind, InetAddress addr, int port,
+                        ByteBuffer payload) {
+    int length = RECORD_HEADER + payload.remaining();
+    if (closed || length > segmentSize) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    byte[] record = new byte[length];
+    ByteBuffer view = ByteBuffer.wrap(record);
+    view.putInt(length);
+    view.putInt(0);
+    view.putLong(System.currentTimeMillis());
+    view.putInt(kind);
+    view.put(toBytes(addr));
+    view.putInt(port);
+    view.put(payload.duplicate());
+    if (!queue.offer(record)) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return records dropped because the writer fell behind
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return records written, only exact once the writer stopped
+   */
+  public long getWritten() {
+    return written;
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      byte[] record = null;
+      try {
+        record = queue.poll(Definition.STORE_FORCE_MILLISECONDS,
+                            TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        closed = true;
+      }
+      try {
+        if (record != null) {
+          write(record);
+          written++;
+        }
+        long now = System.currentTimeMillis();
+        if (record == null ||
+            now - lastForce >= Definition.STORE_FORCE_MILLISECONDS) {
+          force();
+          lastForce = now;
+        }
+      } catch (IOException e) {
+        Log.error("Session store write failed", e);
+        // go on in a fresh segment
+        data = null;
+        index = null;
+      }
+      if (record == null && closed) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Copy a record into the current segment, starting a new one if it is
+   * full, writer thread only
+   */
+  private void write(byte[] record) throws IOException {
+    ByteBuffer view = ByteBuffer.wrap(record);
+    long time = Math.max(view.getLong(8), lastTime);
+    // a recovered segment keeps the size it was made with
+    if (data != null && (position + record.length > data.capacity() ||
+                         indexCount == index.capacity() / INDEX_ENTRY)) {
+      force();
+      data = null;
+      index = null;
+    }
+    if (data == null) {
+      openSegment(segmentNumber + 1, time);
+    }
+    view.putLong(8, time);
+    crc.reset();
+    crc.update(record, 8, record.length - 8);
+    view.putInt(4, (int) crc.getValue());
+
+    data.position(position + 4);
+    data.put(record, 4, record.length - 4);
+    // the length makes the record visible, it goes last
+    data.putInt(position, record.length);
+    putIndex(indexCount++, time, addressHash(view, 20), position);
+    position += record.length;
+    lastTime = time;
+    dirty = true;
+  }
+
+  private void putIndex(int i, long time, int hash, int offset) {
+    index.putInt(i * INDEX_ENTRY + 8, hash);
+    index.putInt(i * INDEX_ENTRY + 12, offset);
+    // readers count the entries by their time, it goes last
+    index.putLong(i * INDEX_ENTRY, time);
+  }
+
+  private void force() {
+    if (dirty) {
+      data.force();
+      index.force();
+      dirty = false;
+    }
+  }
+
+  private void openSegment(int number, long time) throws IOException {
+    String name = String.format("%08d-%013d", number, time);
+    data = map(new File(dir, name + DATA_SUFFIX), segmentSize);
+    index = map(new File(dir, name + INDEX_SUFFIX),
+                indexEntries * INDEX_ENTRY);
+    segmentNumber = number;
+    position = 0;
+    indexCount = 0;
+  }
+
+  /**
+   * Map a file of the given size for writing, the file stays sparse until
+   * written
+   */
+  private static MappedByteBuffer map(File file, int size)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+      // the mapping stays valid once the file is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * @return the length of an existing file, or size if it is empty or
+   *         missing
+   */
+  private static int existingSize(File file, int size) {
+    long length = file.length();
+    return length > 0 ? (int) length : size;
+  }
+
+  private static MappedByteBuffer mapReadOnly(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                  raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Find the end of the newest segment and rebuild its index from the
+   * records that pass their check
+   */
+  private void recover() throws IOException {
+    File[] segments = listSegments(dir);
+    if (segments.length == 0) {
+      return;
+    }
+    File last = segments[segments.length - 1];
+    String name = last.getName();
+    name = name.substring(0, name.length() - DATA_SUFFIX.length());
+    segmentNumber = segmentNumber(last);
+    lastTime = segmentTime(last);
+    // map the files at their own size, the configured sizes may have
+    // changed since they were made and must not truncate them
+    data = map(last, existingSize(last, segmentSize));
+    File indexFile = new File(dir, name + INDEX_SUFFIX);
+    index = map(indexFile, existingSize(indexFile,
+                                        indexEntries * INDEX_ENTRY));
+    int dataSize = data.capacity();
+    int entries = index.capacity() / INDEX_ENTRY;
+
+    boolean torn = false;
+    while (position + RECORD_HEADER <= dataSize) {
+      int length = data.getInt(position);
+      if (length == 0) {
+        break;
+      }
+      if (length < RECORD_HEADER || position + length > dataSize ||
+          indexCount == entries || !checkRecord(position, length)) {
+        torn = true;
+        break;
+      }
+      long time = data.getLong(position + 8);
+      lastTime = Math.max(lastTime, time);
+      putIndex(indexCount++, lastTime, addressHash(data, position + 20),
+               position);
+      position += length;
+    }
+    // entries of records that did not make it
+    for (int i = indexCount; i < entries &&
+         index.getLong(i * INDEX_ENTRY) != 0; i++) {
+      index.putLong(i * INDEX_ENTRY, 0);
+    }
+    index.force();
+    if (torn) {
+      Log.warn("Session store: torn record at " + position + " of " +
+               last + ", sealing the segment");
+      data = null;
+      index = null;
+    }
+  }
+
+  private boolean checkRecord(int offset, int length) {
+    byte[] record = new byte[length - 8];
+    ByteBuffer view = data.duplicate();
+    view.position(offset + 8);
+    view.get(record);
+    crc.reset();
+    crc.update(record, 0, record.length);
+    return (int) crc.getValue() == data.getInt(offset + 4);
+  }
+
+  /**
+   * @return the data files of the store, oldest first
+   */
+  private static File[] listSegments(File dir) {
+    File[] segments = dir.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.getName().endsWith(DATA_SUFFIX);
+      }
+    });
+    if (segments == null) {
+      return new File[0];
+    }
+    // the zero padded segment number sorts them
+    Arrays.sort(segments);
+    return segments;
+  }
+
+  private static int segmentNumber(File segment) {
+    return Integer.parseInt(segment.getName().substring(0, 8));
+  }
+
+  private static long segmentTime(File segment) {
+    String name = segment.getName();
+    return Long.parseLong(name.substring(9,
+                          name.length() - DATA_SUFFIX.length()));
+  }
+
+  /**
+   * @return the address in 16 bytes, IPv4 ones mapped into IPv6
+   */
+  static byte[] toBytes(InetAddress addr) {
+    byte[] raw = addr.getAddress();
+    if (raw.length == 16) {
+      return raw;
+    }
+    byte[] mapped = new byte[16];
+    mapped[10] = (byte) 0xff;
+    mapped[11] = (byte) 0xff;
+    System.arraycopy(raw, 0, mapped, 12, 4);
+    return mapped;
+  }
+
+  static int addressHash(ByteBuffer buffer, int offset) {
+    int hash = 1;
+    for (int i = 0; i < 16; i++) {
+      hash = 31 * hash + buffer.get(offset + i);
+    }
+    return hash;
+  }
+
+  /**
+   * A record met by a scan, the same instance is reused for every record
+   */
+  public static class Entry {
+    public long time;
+    public int kind;
+    public int port;
+    // the client address, IPv4 ones mapped into IPv6
+    public byte[] address = new byte[16];
+    // the payload between position and limit, a view of the mapped segment
+    // that is only valid during the visit
+    public ByteBuffer payload;
+
+    private void read(ByteBuffer view, int offset) {
+      int length = view.getInt(offset);
+      time = view.getLong(offset + 8);
+      kind = view.getInt(offset + 16);
+      for (int i = 0; i < 16; i++) {
+        address[i] = view.get(offset + 20 + i);
+      }
+      port = view.getInt(offset + 36);
+      view.limit(offset + length);
+      view.position(offset + RECORD_HEADER);
+      payload = view;
+    }
+
+    public InetAddress getAddress() throws UnknownHostException {
+      return InetAddress.getByAddress(address);
+    }
+  }
+
+  /**
+   * Receives the records of a scan
+   */
+  public interface Visitor {
+    /**
+     * @param entry the record, only valid during the call
+     * @return false to stop the scan
+     */
+    boolean visit(Entry entry);
+  }
+
+  /**
+   * Visit the records of a time range in the order they were written. A
+   * store may be scanned while a server writes it, the scan then sees the
+   * records written before it reached them
+   * @param dir directory of the store
+   * @param from first time in ms, inclusive
+   * @param to last time in ms, inclusive
+   * @param client only visit the records of this address, null for all
+   * @param visitor receives the records
+   * @return number of records visited
+   * @throws IOException a segment failed
+   */
+  public static long scan(File dir, long from, long to, InetAddress client,
+                          Visitor visitor) throws IOException {
+    byte[] wanted = client == null ? null : toBytes(client);
+    int wantedHash = wanted == null ? 0 :
+        addressHash(ByteBuffer.wrap(wanted), 0);
+    File[] segments = listSegments(dir);
+    Entry entry = new Entry();
+    long count = 0;
+    for (int s = 0; s < segments.length; s++) {
+      if (segmentTime(segments[s]) > to) {
+        break;
+      }
+      if (s + 1 < segments.length && segmentTime(segments[s + 1]) < from) {
+        // the next segment starts before the range
+        continue;
+      }
+      String name = segments[s].getName();
+      name = name.substring(0, name.length() - DATA_SUFFIX.length());
+      ByteBuffer data = mapReadOnly(segments[s]);
+      ByteBuffer index = mapReadOnly(new File(dir, name + INDEX_SUFFIX));
+      int entries = countEntries(index);
+      for (int i = firstEntry(index, entries, from); i < entries; i++) {
+        int at = i * INDEX_ENTRY;
+        if (index.getLong(at) > to) {
+          return count;
+        }
+        if (wanted != null && index.getInt(at + 8) != wantedHash) {
+          continue;
+        }
+        data.limit(data.capacity());
+        entry.read(data, index.getInt(at + 12));
+        if (wanted != null && !Arrays.equals(wanted, entry.address)) {
+          continue;
+        }
+        count++;
+        if (!visitor.visit(entry)) {
+          return count;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of used entries, the used ones have a time and
+   *         come first
+   */
+  private static int countEntries(ByteBuffer index) {
+    int low = 0;
+    int high = index.capacity() / INDEX_ENTRY;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (index.getLong(mid * INDEX_ENTRY) != 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the first of the entries whose time is at least from
+   */
+  private static int firstEntry(ByteBuffer index, int entries, long from) {
+    int low = 0;
+    int high = entries;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (index.getLong(mid * INDEX_ENTRY) < from) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Print the records of a store, one line each
+   * Usage: SessionStore dir [from_ms] [to_ms]
+   * @param args directory and time range
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: SessionStore dir [from_ms] [to_ms]");
+      return;
+    }
+    long from = args.length > 1 ? Long.parseLong(args[1]) : 0;
+    long to = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+    final StringBuilder line = new StringBuilder();
+    long count = scan(new File(args[0]), from, to, null, new Visitor() {
+      public boolean visit(Entry entry) {
+        line.setLength(0);
+        try {
+          line.append(entry.time).append(' ').append(entry.kind).append(' ')
+              .append(entry.getAddress().getHostAddress()).append(':')
+              .append(entry.port).append(' ')
+              .append(entry.payload.remaining());
+        } catch (UnknownHostException e) {
+          line.append("bad address");
+        }
+        System.out.println(line);
+        return true;
+      }
+    });
+    System.out.println(count + " records");
+  }
+}
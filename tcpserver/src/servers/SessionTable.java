@@ -0,0 +1,56 @@
+package servers;
+
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions shared by all event loops. Created by config connections, looked
+ * up by data connections on whichever loop they landed.
+ */
+public class SessionTable {
+  private ConcurrentHashMap<Long, Session> sessions =
+      new ConcurrentHashMap<Long, Session>();
+  private SecureRandom random = new SecureRandom();
+
+  /** Give the session a fresh random id and publish it. */
+  public Session register(Session session) {
+    while (true) {
+      long id = random.nextLong();
+      session.setId(id);
+      if (id != 0 && sessions.putIfAbsent(id, session) == null) {
+        return session;
+      }
+    }
+  }
+
+  public Session get(long id) {
+    Session session = sessions.get(id);
+    if (session != null) {
+      session.touch();
+    }
+    return session;
+  }
+
+  /** Live view of all sessions, for scans that can live with a snapshot. */
+  public Collection<Session> values() {
+    return sessions.values();
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  /** Drop the idle sessions, recording those not recorded yet. */
+  public void expire(long now, Metrics metrics) {
+    Iterator<Session> it = sessions.values().iterator();
+    while (it.hasNext()) {
+      Session session = it.next();
+      if (session.isExpired(now)) {
+        it.remove();
+        session.expire(metrics);
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package servers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder of the hello that opens a session-bound data stream:
+ * int STREAM_MAGIC followed by the long session id.
+ */
+public class StreamHello {
+  private int read = 0;
+  private int magic = 0;
+  private long sessionId = 0;
+
+  public boolean isDone() {
+    return read == Definition.STREAM_HELLO_SIZE;
+  }
+
+  public boolean isError() {
+    return read >= 4 && magic != Definition.STREAM_MAGIC;
+  }
+
+  public long getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Consume hello bytes from buf, leaving anything after the hello in it.
+   * @return true once the whole hello has been read
+   */
+  public boolean feed(ByteBuffer buf) {
+    while (buf.hasRemaining() && !isDone() && !isError()) {
+      int b = buf.get() & 0xff;
+      if (read < 4) {
+        magic = (magic << 8) | b;
+      } else {
+        sessionId = (sessionId << 8) | b;
+      }
+      read++;
+    }
+    return isDone();
+  }
+}
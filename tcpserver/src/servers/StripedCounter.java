@@ -0,0 +1,53 @@
+package servers;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter for values updated by several event loops. Each thread
+ * adds to its own stripe, picked from its id, and the stripes are spaced a
+ * cache line apart so the loops do not contend. Reading sums all stripes,
+ * which is cheap enough for a scraper.
+ */
+public class StripedCounter {
+  // 8 longs = 64 bytes between two stripes
+  private static final int PAD = 8;
+  private static final int STRIPES = stripes();
+
+  // one spare line in front keeps stripe 0 off the array header
+  private AtomicLongArray cells = new AtomicLongArray((STRIPES + 1) * PAD);
+
+  private static int stripes() {
+    int n = 1;
+    while (n < 2 * Runtime.getRuntime().availableProcessors()) {
+      n <<= 1;
+    }
+    return n;
+  }
+
+  private static int index() {
+    // loop threads are created together, so their ids are consecutive and
+    // land on different stripes
+    int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    return (stripe + 1) * PAD;
+  }
+
+  public void add(long x) {
+    cells.getAndAdd(index(), x);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  public void decrement() {
+    add(-1);
+  }
+
+  public long sum() {
+    long sum = 0;
+    for (int i = PAD; i < cells.length(); i += PAD) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+}
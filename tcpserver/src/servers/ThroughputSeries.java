@@ -0,0 +1,99 @@
+package servers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bytes per fixed-width time bin, bins are counted in System.nanoTime() from
+ * a common origin so the series of several streams line up. Storage is a
+ * primitive ring of the most recent bins.
+ *
+ * There is one writer (the loop owning the stream); readers on other
+ * threads see completed bins through the atomic array.
+ */
+public class ThroughputSeries {
+  private long originNanos;
+  private long binNanos;
+  private AtomicLongArray ring;
+  private volatile long lastBin = -1;
+
+  public ThroughputSeries(long originNanos, long binNanos, int capacity) {
+    this.originNanos = originNanos;
+    this.binNanos = binNanos;
+    this.ring = new AtomicLongArray(capacity);
+  }
+
+  public void add(long nowNanos, long bytes) {
+    long bin = (nowNanos - originNanos) / binNanos;
+    if (bin < 0) {
+      return;
+    }
+    if (bin > lastBin) {
+      // clear the slots we are about to reuse
+      for (long b = Math.max(lastBin + 1, bin - ring.length() + 1); b <= bin; b++) {
+        ring.lazySet(slot(b), 0);
+      }
+      lastBin = bin;
+    } else if (bin <= lastBin - ring.length()) {
+      return;
+    }
+    int i = slot(bin);
+    ring.lazySet(i, ring.get(i) + bytes);
+  }
+
+  private int slot(long bin) {
+    return (int) (bin % ring.length());
+  }
+
+  public long getLastBin() {
+    return lastBin;
+  }
+
+  public long getFirstBin() {
+    return Math.max(0, lastBin - ring.length() + 1);
+  }
+
+  public long getBytes(long bin) {
+    if (bin < getFirstBin() || bin > lastBin) {
+      return 0;
+    }
+    return ring.get(slot(bin));
+  }
+
+  /**
+   * Throughput of the complete bins from firstBin on, in kbps. The last bin
+   * is still being filled (or was cut short by the end of the test) and is
+   * left out.
+   */
+  public double[] kbps(long firstBin) {
+    return aggregateKbps(Collections.singletonList(this), firstBin);
+  }
+
+  /**
+   * Sum several series with the same origin and bin width bin by bin.
+   */
+  public static double[] aggregateKbps(List<ThroughputSeries> series,
+                                       long firstBin) {
+    if (series.isEmpty()) {
+      return new double[0];
+    }
+    long lastBin = -1;
+    for (ThroughputSeries s : series) {
+      lastBin = Math.max(lastBin, s.getLastBin());
+      firstBin = Math.max(firstBin, s.getFirstBin());
+    }
+    int count = (int) Math.max(0, lastBin - firstBin);
+    double[] result = new double[count];
+    double binMillis = series.get(0).binNanos / 1e6;
+    for (int i = 0; i < count; i++) {
+      long bytes = 0;
+      for (ThroughputSeries s : series) {
+        bytes += s.getBytes(firstBin + i);
+      }
+      // bytes * 8 / milliseconds is already kbps
+      result[i] = bytes * 8.0 / binMillis;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,50 @@
+package servers;
+
+/**
+ * Byte token bucket on System.nanoTime(), used to pace a downlink stream
+ * to a target rate. Tokens accrue continuously and are capped at the burst
+ * size, so an idle stream cannot save up more than one burst.
+ *
+ * Not thread safe, a bucket belongs to one connection.
+ */
+public class TokenBucket {
+  private double bytesPerNano;
+  private long burst;
+  private double tokens;
+  private long lastNanos;
+
+  public TokenBucket(long rateKbps, long burst, long nowNanos) {
+    // kbps is 1000 bits per second
+    this.bytesPerNano = rateKbps * 1000.0 / 8 / 1e9;
+    this.burst = burst;
+    this.tokens = burst;
+    this.lastNanos = nowNanos;
+  }
+
+  private void refill(long nowNanos) {
+    if (nowNanos > lastNanos) {
+      tokens = Math.min(burst, tokens + (nowNanos - lastNanos) * bytesPerNano);
+      lastNanos = nowNanos;
+    }
+  }
+
+  /** Bytes that may be sent right now. */
+  public long available(long nowNanos) {
+    refill(nowNanos);
+    return (long) tokens;
+  }
+
+  public void consume(long bytes) {
+    tokens -= bytes;
+  }
+
+  /** Time until the bucket holds the given number of bytes, 0 if it does. */
+  public long nanosUntil(long bytes, long nowNanos) {
+    refill(nowNanos);
+    bytes = Math.min(bytes, burst);
+    if (tokens >= bytes) {
+      return 0;
+    }
+    return (long) Math.ceil((bytes - tokens) / bytesPerNano);
+  }
+}
@@ -1,22 +1,44 @@
 package servers;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 
+/**
+ * Usage: java -jar Uplink.jar [-store_dir dir]
+ *   -store_dir  keep the result of every test in a SessionStore in dir
+ */
 public class Uplink {
   public static void main(String[] argv){
     int port = Definition.PORT_UPLINK;
     ServerSocket server = null;
+    SessionStore store = null;
+    String storeDir = null;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-store_dir") && i + 1 < argv.length) {
+        storeDir = argv[++i];
+      } else {
+        System.out.println("Unknown option " + argv[i]);
+        return;
+      }
+    }
     try {
+      if (storeDir != null) {
+        store = new SessionStore(new File(storeDir),
+            Definition.STORE_SEGMENT_SIZE, Definition.STORE_INDEX_ENTRIES,
+            Definition.STORE_QUEUE_SIZE);
+        store.start();
+      }
       server = new ServerSocket(port);
       while (true) {
-        System.out.println("Uplink server starts on port " + port);
+        Log.info("Uplink server starts on port " + port);
         UplinkWorker uplinkWorker = new UplinkWorker();
+        uplinkWorker.setStore(store);
         uplinkWorker.setSocket(server.accept());
         uplinkWorker.start();
       }
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.error("Uplink server failed on port " + port, e);
     }
   }
 }
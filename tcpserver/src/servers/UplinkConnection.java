@@ -0,0 +1,222 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+/**
+ * Non-blocking version of UplinkWorker: drains the client's data, samples
+ * the throughput and replies with the samples once the client is done.
+ *
+ * The protocol is picked from the first byte of the stream. A legacy client
+ * sends plain data terminated by UPLINK_FINISH_MSG. A framed (v2) client
+ * starts with STREAM_MAGIC and the id of a session it negotiated on the
+ * config port, see UplinkFrameParser. Its bytes are binned on the time
+ * base of the session, so parallel streams add up to one series.
+ */
+public class UplinkConnection extends Connection {
+  private static final int PROTO_UNKNOWN = 0;
+
+  private int proto = PROTO_UNKNOWN;
+  private UplinkFrameParser parser = null;
+  private Session session = null;
+  private ThroughputSeries series = null;
+  private ArrayList<Double> tps_result = new ArrayList<Double>();
+  private long size = 0;
+  private long received = 0;
+  private long startTime = 0;
+  private long lastRead;
+
+  public UplinkConnection(EventLoop loop, SocketChannel channel)
+      throws IOException {
+    super(loop, channel);
+    channel.socket().setTcpNoDelay(true);
+    lastRead = acceptTime;
+  }
+
+  protected int getPort() {
+    return Definition.PORT_UPLINK;
+  }
+
+  protected int interestOps() {
+    return SelectionKey.OP_READ;
+  }
+
+  protected void onOpen() {
+    Log.info("Uplink connection <" + channel.socket().getRemoteSocketAddress()
+             + "> starts");
+  }
+
+  protected void onReadable() throws IOException {
+    // the buffer is shared by every connection of the loop, nothing in it
+    // survives this call
+    ByteBuffer buffer = loop.getReadBuffer();
+    while (true) {
+      buffer.clear();
+      int readLen = channel.read(buffer);
+      if (readLen < 0) {
+        close();
+        return;
+      }
+      if (readLen == 0) {
+        return;
+      }
+      lastRead = System.currentTimeMillis();
+      received += readLen;
+      loop.getServer().getMetrics().addBytesIn(readLen);
+      buffer.flip();
+      if (proto == PROTO_UNKNOWN) {
+        pickProto(buffer.get(0));
+      }
+      if (proto == Definition.UPLINK_PROTO_FRAMED) {
+        if (!consumeFrames(buffer)) {
+          return;
+        }
+      } else if (buffer.get(readLen - 1) ==
+                 Definition.UPLINK_FINISH_MSG.charAt(0)) {
+        Log.debug("LAST MSG detected break");
+        finish();
+        return;
+      } else {
+        updateSize(readLen);
+      }
+    }
+  }
+
+  private void pickProto(byte first) {
+    if ((first & 0xff) == (Definition.STREAM_MAGIC >>> 24)) {
+      proto = Definition.UPLINK_PROTO_FRAMED;
+      parser = new UplinkFrameParser();
+    } else {
+      proto = Definition.UPLINK_PROTO_LEGACY;
+    }
+  }
+
+  /** @return false if the connection is done with reading */
+  private boolean consumeFrames(ByteBuffer buffer) throws IOException {
+    boolean helloDone = parser.isHelloDone();
+    int data = parser.feed(buffer);
+    if (!helloDone && parser.isHelloDone() && !acceptSession()) {
+      loop.getServer().getMetrics().connectionRejected(getPort());
+      close();
+      return false;
+    }
+    if (parser.isError()) {
+      Log.warn("Uplink protocol error from <" +
+               channel.socket().getRemoteSocketAddress() + ">");
+      loop.getServer().getMetrics().connectionRejected(getPort());
+      close();
+      return false;
+    }
+    if (series != null && data > 0) {
+      series.add(System.nanoTime(), data);
+    }
+    if (parser.isFinished()) {
+      finish();
+      return false;
+    }
+    return true;
+  }
+
+  private boolean acceptSession() {
+    Session session = loop.getServer().getSessions().get(parser.getSessionId());
+    if (session == null ||
+        session.getUplinkProto() != Definition.UPLINK_PROTO_FRAMED) {
+      Log.warn("Uplink stream with unknown session " +
+               Long.toHexString(parser.getSessionId()));
+      return false;
+    }
+    if (!session.attachStream()) {
+      Log.warn("Too many streams for session " +
+               Long.toHexString(session.getId()));
+      return false;
+    }
+    this.session = session;
+    series = session.addUplinkStream(System.nanoTime());
+    return true;
+  }
+
+  protected void onTick(long now) {
+    if (now - lastRead >= Definition.RECV_TIMEOUT) {
+      close();
+    }
+  }
+
+  private void finish() throws IOException {
+    key.interestOps(0);
+    if (tps_result.size() == 0 && proto != Definition.UPLINK_PROTO_FRAMED) {
+      close();
+      return;
+    }
+    double[] samples;
+    if (series != null) {
+      // per-stream samples, the aggregate is fetched on the config port
+      samples = series.kbps(session.firstSampleBin());
+    } else {
+      samples = new double[tps_result.size()];
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = tps_result.get(i);
+      }
+    }
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < samples.length; i++) {
+      if (i > 0) {
+        result.append('#');
+      }
+      result.append(samples[i]);
+    }
+    SessionStore store = loop.getServer().getStore();
+    if (store != null) {
+      UplinkWorker.store(store, channel.socket().getInetAddress(),
+          channel.socket().getPort(), proto,
+          session == null ? 0 : session.getId(),
+          System.currentTimeMillis() - acceptTime, received, samples);
+    }
+    byte[] body = result.toString().getBytes();
+    if (proto != Definition.UPLINK_PROTO_FRAMED) {
+      reply(ByteBuffer.wrap(body), true);
+      return;
+    }
+    ByteBuffer frame = ByteBuffer.allocate(Definition.FRAME_HEADER_SIZE +
+                                           body.length);
+    frame.put((byte) Definition.FRAME_RESULT);
+    frame.putInt(body.length);
+    frame.put(body);
+    frame.flip();
+    reply(frame, true);
+  }
+
+  private void updateSize(int delta) {
+    long now = System.currentTimeMillis();
+    if (now - acceptTime < UplinkWorker.SLOW_START_PERIOD) {
+      return;
+    }
+    if (startTime == 0) {
+      startTime = now;
+      size = 0;
+    }
+    size += delta;
+    double time = now - startTime;
+    if (time >= UplinkWorker.SAMPLE_PERIOD) {
+      // time is in milli, so already kbps
+      tps_result.add((double) size * 8.0 / time);
+      size = 0;
+      startTime = now;
+    }
+  }
+
+  protected void onClose() {
+    Metrics metrics = loop.getServer().getMetrics();
+    long now = System.currentTimeMillis();
+    metrics.recordConnection(getPort(), now - acceptTime);
+    if (session != null) {
+      session.endStream(metrics, getPort(), received, acceptTime, now);
+    } else if (proto == Definition.UPLINK_PROTO_LEGACY) {
+      metrics.recordSession(getPort(), now - acceptTime, received);
+    }
+    Log.info("Uplink connection <" + channel.socket().getRemoteSocketAddress()
+             + "> ends");
+  }
+}
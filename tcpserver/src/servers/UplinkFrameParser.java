@@ -0,0 +1,92 @@
+package servers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder of the framed (v2) uplink stream:
+ *
+ *   hello: int STREAM_MAGIC, long session id
+ *   frame: byte type, int payload length, payload
+ *
+ * Bytes are scanned in place in the caller's buffer and nothing is
+ * allocated, payload bytes are only counted. Headers may be split across
+ * reads, the partial state is kept in primitive fields.
+ */
+public class UplinkFrameParser {
+  private StreamHello hello = new StreamHello();
+
+  private int headerRead = 0;
+  private int frameType = 0;
+  private int frameLength = 0;
+  private int payloadLeft = 0;
+
+  private boolean finished = false;
+  private boolean error = false;
+
+  public boolean isHelloDone() {
+    return hello.isDone();
+  }
+
+  public long getSessionId() {
+    return hello.getSessionId();
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  public boolean isError() {
+    return error;
+  }
+
+  /**
+   * Consume everything between position and limit of buf.
+   * @return number of DATA payload bytes seen
+   */
+  public int feed(ByteBuffer buf) {
+    int data = 0;
+    if (!hello.feed(buf)) {
+      error = hello.isError();
+      return 0;
+    }
+    int pos = buf.position();
+    int limit = buf.limit();
+    while (pos < limit && !finished && !error) {
+      if (payloadLeft > 0) {
+        int n = Math.min(payloadLeft, limit - pos);
+        pos += n;
+        payloadLeft -= n;
+        if (frameType == Definition.FRAME_DATA) {
+          data += n;
+        }
+      } else {
+        int b = buf.get(pos++) & 0xff;
+        if (headerRead == 0) {
+          frameType = b;
+          frameLength = 0;
+        } else {
+          frameLength = (frameLength << 8) | b;
+        }
+        headerRead++;
+        if (headerRead == Definition.FRAME_HEADER_SIZE) {
+          headerRead = 0;
+          onHeader();
+        }
+      }
+    }
+    buf.position(pos);
+    return data;
+  }
+
+  private void onHeader() {
+    if (frameLength < 0 || frameLength > Definition.MAX_FRAME_SIZE) {
+      error = true;
+    } else if (frameType == Definition.FRAME_FIN) {
+      finished = true;
+    } else if (frameType == Definition.FRAME_DATA) {
+      payloadLeft = frameLength;
+    } else {
+      error = true;
+    }
+  }
+}
@@ -3,13 +3,15 @@ package servers;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
-import java.text.SimpleDateFormat;
 
 public class UplinkWorker extends Thread {
   private Socket client = null;
+  private SessionStore store = null;
+  private long received = 0;
 
   private ArrayList<Double> tps_result;
   public int size = 0;
@@ -27,6 +29,32 @@ public class UplinkWorker extends Thread {
     this.client = client;
   }
 
+  /** Keep the result of the test in store, null keeps nothing. */
+  public void setStore(SessionStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Queue the record of a finished uplink test, see STORE_KIND_UPLINK.
+   * Shared with UplinkConnection.
+   */
+  static void store(SessionStore store, InetAddress addr, int port,
+                    int proto, long sessionId, long durationMs, long bytes,
+                    double[] samples) {
+    int count = Definition.STORE_SAMPLES ? samples.length : 0;
+    ByteBuffer record = ByteBuffer.allocate(32 + 8 * count);
+    record.putInt(proto);
+    record.putLong(sessionId);
+    record.putLong(durationMs);
+    record.putLong(bytes);
+    record.putInt(count);
+    for (int i = 0; i < count; i++) {
+      record.putDouble(samples[i]);
+    }
+    record.flip();
+    store.append(Definition.STORE_KIND_UPLINK, addr, port, record);
+  }
+
   public void run() {
     try {
       client.setSoTimeout(Definition.RECV_TIMEOUT);
@@ -34,26 +62,21 @@ public class UplinkWorker extends Thread {
 
       InputStream iStream = client.getInputStream();
       OutputStream oStream = client.getOutputStream(); 
-      SimpleDateFormat sDateFormat = new SimpleDateFormat("yyyyMMdd:HH:mm:ss:SSS");
       long threadId = this.getId();
-      String startDate = sDateFormat.format(new Date()).toString();
-      System.out.println("[" + startDate + "]" + " Uplink worker <" +
-                         threadId + "> Thread starts");
+      Log.info("Uplink worker <" + threadId + "> Thread starts");
       
       int readLen;
       byte [] buffer = new byte[Definition.BUFFER_SIZE];
-      String recvData;
+      byte finishMsg = (byte) Definition.UPLINK_FINISH_MSG.charAt(0);
       while (true) {
         readLen = iStream.read(buffer, 0, buffer.length);
         if (readLen > 0) {
-          recvData = new String(buffer).substring(0, readLen);
-          // str = "data*" last message at str.substring(5-"*".length(), 5)
-          if (readLen >= Definition.UPLINK_FINISH_MSG.length() && 
-            recvData.substring(readLen - Definition.UPLINK_FINISH_MSG.length(), 
-                               readLen).equals(Definition.UPLINK_FINISH_MSG)) {
-            System.out.println("LAST MSG detected break");
+          // "data*": the finish marker is the last byte of the last message
+          if (buffer[readLen - 1] == finishMsg) {
+            Log.debug("LAST MSG detected break");
             break;
           }
+          received += readLen;
           updateSize(readLen);
         }
         else break;
@@ -68,17 +91,23 @@ public class UplinkWorker extends Thread {
         oStream.write(finalResult, 0, finalResult.length);
         oStream.flush();
       }      
+      if (store != null) {
+        double[] samples = new double[tps_result.size()];
+        for (int i = 0; i < samples.length; i++) {
+          samples[i] = tps_result.get(i);
+        }
+        store(store, client.getInetAddress(), client.getPort(),
+              Definition.UPLINK_PROTO_LEGACY, 0,
+              System.currentTimeMillis() - testStartTime, received, samples);
+      }
       oStream.close();
       iStream.close();
       client.close();
-      String endDate = sDateFormat.format(new Date()).toString();
-      System.out.println("[" + endDate + "]" + " Uplink worker <" +
-                         threadId + "> Thread ends");
+      Log.info("Uplink worker <" + threadId + "> Thread ends");
 
     } catch (IOException e) {
-      e.printStackTrace();
-      System.out.println("Uplink worker failed: port <" +
-                         Definition.PORT_DOWNLINK + ">");
+      Log.error("Uplink worker failed: port <" +
+                Definition.PORT_DOWNLINK + ">", e);
     }
   }
 
@@ -97,8 +126,10 @@ public class UplinkWorker extends Thread {
     } else {
       //time is in milli, so already kbps
       double throughput = (double)size * 8.0 / time;
-      System.out.println("_throughput: " + throughput + " kbps_Time(sec): "
-                         + (gtime / 1000.0));
+      if (Log.isDebug()) {
+        Log.debug("_throughput: " + throughput + " kbps_Time(sec): "
+                  + (gtime / 1000.0));
+      }
       tps_result.add(throughput);
       size = 0;
       startTime = System.currentTimeMillis();